@@ -24,6 +24,9 @@ import android.widget.Toast;
 
 import com.dji.videostreamdecodingsample.media.DJIVideoStreamDecoder;
 import com.dji.videostreamdecodingsample.media.NativeHelper;
+import com.dji.videostreamdecodingsample.media.PipelineTracer;
+import com.dji.videostreamdecodingsample.media.SnapshotDeduplicator;
+import com.dji.videostreamdecodingsample.media.StillCapture;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -85,6 +88,8 @@ public class MainActivity extends Activity implements DJICodecManager.YuvDataCal
     private int videoViewWidth;
     private int videoViewHeight;
     private int count;
+    // Near duplicates of the recent snapshots are not saved, e.g. while hovering.
+    private final SnapshotDeduplicator snapshotDeduplicator = new SnapshotDeduplicator(6);
 
     @Override
     protected void onResume() {
@@ -434,6 +439,13 @@ public class MainActivity extends Activity implements DJICodecManager.YuvDataCal
             AsyncTask.execute(new Runnable() {
                 @Override
                 public void run() {
+                    PipelineTracer.begin(PipelineTracer.EVENT_SNAPSHOT);
+                    // The luma plane comes first in all the formats, check it before encoding anything.
+                    if (bytes.length >= width * height
+                            && !snapshotDeduplicator.offer(bytes, 0, width, width, height)) {
+                        PipelineTracer.end(PipelineTracer.EVENT_SNAPSHOT);
+                        return;
+                    }
                     // two samples here, it may has other color format.
                     int colorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
                     switch (colorFormat) {
@@ -452,7 +464,7 @@ public class MainActivity extends Activity implements DJICodecManager.YuvDataCal
                         default:
                             break;
                     }
-
+                    PipelineTracer.end(PipelineTracer.EVENT_SNAPSHOT);
                 }
             });
         }
@@ -636,6 +648,11 @@ public class MainActivity extends Activity implements DJICodecManager.YuvDataCal
     }
 
     private void handleYUVClick() {
+        if (demoType == DemoType.USE_SURFACE_VIEW_DEMO_DECODER) {
+            // The live view keeps being decoded to the surface, the still is decoded separately.
+            captureStill();
+            return;
+        }
         if (screenShot.isSelected()) {
             screenShot.setText("YUV Screen Shot");
             screenShot.setSelected(false);
@@ -647,14 +664,11 @@ public class MainActivity extends Activity implements DJICodecManager.YuvDataCal
                     mCodecManager.setYuvDataCallback(null);
                     // ToDo:
                     break;
-                case USE_SURFACE_VIEW_DEMO_DECODER:
-                    DJIVideoStreamDecoder.getInstance().changeSurface(videostreamPreviewSh.getSurface());
-                    DJIVideoStreamDecoder.getInstance().setYuvDataListener(null);
-                    break;
             }
             savePath.setText("");
             savePath.setVisibility(View.INVISIBLE);
             stringBuilder = null;
+            snapshotDeduplicator.clear();
         } else {
             screenShot.setText("Live Stream");
             screenShot.setSelected(true);
@@ -665,16 +679,54 @@ public class MainActivity extends Activity implements DJICodecManager.YuvDataCal
                     mCodecManager.enabledYuvData(true);
                     mCodecManager.setYuvDataCallback(this);
                     break;
-                case USE_SURFACE_VIEW_DEMO_DECODER:
-                    DJIVideoStreamDecoder.getInstance().changeSurface(null);
-                    DJIVideoStreamDecoder.getInstance().setYuvDataListener(MainActivity.this);
-                    break;
             }
             savePath.setText("");
             savePath.setVisibility(View.VISIBLE);
         }
     }
 
+    private void captureStill() {
+        DJIVideoStreamDecoder.getInstance().captureStill(new StillCapture.StillCallback() {
+            @Override
+            public void onStillCaptured(byte[] i420, int width, int height, long ptsUs) {
+                String shotDir;
+                if (Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
+                    shotDir = getApplicationContext().getExternalFilesDir("DJI").getPath() + "/DJI_ScreenShot";
+                } else {
+                    shotDir = Environment.getExternalStorageDirectory() + "/DJI_ScreenShot";
+                }
+                File dir = new File(shotDir);
+                if (!dir.exists() || !dir.isDirectory()) {
+                    dir.mkdirs();
+                }
+                final String path = dir + "/Still_" + System.currentTimeMillis() + ".jpg";
+                try {
+                    OutputStream outputFile = new FileOutputStream(new File(path));
+                    try {
+                        StillCapture.compressToJpeg(i420, width, height, 100, outputFile);
+                    } finally {
+                        outputFile.close();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "captureStill: save jpeg error: " + e);
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        savePath.setVisibility(View.VISIBLE);
+                        displayPath(path);
+                    }
+                });
+            }
+
+            @Override
+            public void onStillFailed(String reason) {
+                showToast("Still capture failed: " + reason);
+            }
+        });
+    }
+
     private void displayPath(String path) {
         if (stringBuilder == null) {
             stringBuilder = new StringBuilder();
@@ -0,0 +1,207 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reader of the bits of a NAL unit payload, the RBSP, including the Exp-Golomb codes of H.264 and H.265.
+ *
+ * The emulation prevention bytes, i.e. the 0x03 following two zero bytes, are skipped on the fly, so the
+ * NAL unit is read in place from its buffer, with absolute reads which leave the position of the buffer
+ * unchanged. Nothing is allocated, and a reader can be reset for every NAL unit.
+ *
+ * Reading past the end returns zero bits and sets the overrun flag instead of throwing, so a parser can
+ * read a whole structure and check {@link #hasOverrun()} once at the end.
+ */
+public class BitReader {
+    private ByteBuffer buffer;
+    private byte[] array;
+    private int start;
+    private int position;
+    private int limit;
+    // Number of consecutive zero bytes before position, to detect the emulation prevention bytes.
+    private int zeroCount;
+    private int currentByte;
+    // Bits of currentByte not read yet.
+    private int bitsLeft;
+    private long bitsRead;
+    private boolean overrun;
+
+    /**
+     * Start reading a NAL unit.
+     * @param buffer The buffer containing the NAL unit
+     * @param offset Offset of the first byte to read, e.g. after the NAL unit header
+     * @param length Number of bytes up to the end of the NAL unit
+     */
+    public void reset(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        array = null;
+        start(offset, length);
+    }
+
+    /**
+     * Start reading a NAL unit in an array, without wrapping it into a buffer.
+     * @param array The array containing the NAL unit
+     * @param offset Offset of the first byte to read, e.g. after the NAL unit header
+     * @param length Number of bytes up to the end of the NAL unit
+     */
+    public void reset(byte[] array, int offset, int length) {
+        buffer = null;
+        this.array = array;
+        start(offset, length);
+    }
+
+    private void start(int offset, int length) {
+        start = offset;
+        position = offset;
+        limit = offset + length;
+        zeroCount = 0;
+        currentByte = 0;
+        bitsLeft = 0;
+        bitsRead = 0;
+        overrun = false;
+    }
+
+    /**
+     * @return Whether more bits were read than the NAL unit contains.
+     */
+    public boolean hasOverrun() {
+        return overrun;
+    }
+
+    /**
+     * @return Number of bits read since the reset, the emulation prevention bytes excluded.
+     */
+    public long getBitsRead() {
+        return bitsRead;
+    }
+
+    public int readBit() {
+        return readBits(1);
+    }
+
+    public boolean readFlag() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * Read an unsigned number.
+     * @param count Number of bits, from 0 to 32. With 32 bits, the result is to be read as unsigned.
+     * @return The number
+     */
+    public int readBits(int count) {
+        int value = 0;
+        bitsRead += count;
+        while (count > 0) {
+            if (bitsLeft == 0) {
+                currentByte = nextByte();
+                bitsLeft = 8;
+            }
+            int taken = Math.min(count, bitsLeft);
+            bitsLeft -= taken;
+            value = (value << taken) | ((currentByte >> bitsLeft) & ((1 << taken) - 1));
+            count -= taken;
+        }
+        return value;
+    }
+
+    public void skipBits(int count) {
+        while (count > 32) {
+            readBits(32);
+            count -= 32;
+        }
+        readBits(count);
+    }
+
+    public void skipBytes(int count) {
+        for (int i = 0; i < count; i++) {
+            readBits(8);
+        }
+    }
+
+    /**
+     * Read an unsigned Exp-Golomb code, ue(v).
+     * @return The number, -1 if the code is longer than 32 bits, which also sets the overrun flag
+     */
+    public int readUe() {
+        int leadingZeros = 0;
+        while (readBits(1) == 0) {
+            if (overrun || ++leadingZeros > 31) {
+                overrun = true;
+                return -1;
+            }
+        }
+        long value = (1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xFFFFFFFFL);
+        if (value > Integer.MAX_VALUE) {
+            overrun = true;
+            return -1;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Read a signed Exp-Golomb code, se(v).
+     */
+    public int readSe() {
+        int code = readUe();
+        if (code < 0) {
+            return 0;
+        }
+        return (code & 1) != 0 ? (code >> 1) + 1 : -(code >> 1);
+    }
+
+    public boolean isByteAligned() {
+        return bitsLeft == 0;
+    }
+
+    /**
+     * Skip the bits up to the next byte boundary.
+     */
+    public void byteAlign() {
+        bitsRead += bitsLeft;
+        bitsLeft = 0;
+    }
+
+    /**
+     * Check whether there is more data before the RBSP trailing bits, more_rbsp_data() in the standards.
+     */
+    public boolean moreRbspData() {
+        int last = limit - 1;
+        while (last >= start && byteAt(last) == 0) {
+            last--;
+        }
+        if (last < start) {
+            return false;
+        }
+        // The stop bit is the last bit set.
+        int stopBit = Integer.numberOfTrailingZeros(byteAt(last) & 0xFF);
+        int bytePosition = bitsLeft > 0 ? position - 1 : position;
+        int nextBit = bitsLeft > 0 ? bitsLeft - 1 : 7;
+        if (bytePosition != last) {
+            return bytePosition < last;
+        }
+        return nextBit > stopBit;
+    }
+
+    private int nextByte() {
+        if (position >= limit) {
+            overrun = true;
+            return 0;
+        }
+        int value = byteAt(position++) & 0xFF;
+        if (value == 3 && zeroCount >= 2) {
+            // Emulation prevention byte.
+            zeroCount = 0;
+            if (position >= limit) {
+                overrun = true;
+                return 0;
+            }
+            value = byteAt(position++) & 0xFF;
+        }
+        zeroCount = value == 0 ? zeroCount + 1 : 0;
+        return value;
+    }
+
+    private byte byteAt(int index) {
+        return array != null ? array[index] : buffer.get(index);
+    }
+}
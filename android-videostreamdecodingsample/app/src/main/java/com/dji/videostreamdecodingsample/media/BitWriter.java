@@ -0,0 +1,162 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * A writer of the bits of a NAL unit payload, the RBSP, including the Exp-Golomb codes of H.264. It is the
+ * counterpart of {@link BitReader}.
+ *
+ * The bits are written into an array which only grows, so a writer reset for every NAL unit stops
+ * allocating once it has reached the size of the largest one. The emulation prevention bytes are added
+ * when the payload is copied out with {@link #copyNalPayload(byte[], int)}.
+ */
+public class BitWriter {
+    private byte[] data;
+    private int length;
+    private int currentByte;
+    // Bits of currentByte written.
+    private int bitCount;
+
+    /**
+     * @param initialCapacity Initial capacity in bytes
+     */
+    public BitWriter(int initialCapacity) {
+        data = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * Start writing a new payload.
+     */
+    public void reset() {
+        length = 0;
+        currentByte = 0;
+        bitCount = 0;
+    }
+
+    /**
+     * Write the lowest bits of a value, the most significant first.
+     * @param count Number of bits, from 0 to 32
+     */
+    public void writeBits(int count, int value) {
+        for (int i = count - 1; i >= 0; i--) {
+            writeBit((value >>> i) & 1);
+        }
+    }
+
+    public void writeBit(int bit) {
+        currentByte = (currentByte << 1) | bit;
+        if (++bitCount == 8) {
+            appendByte(currentByte);
+            currentByte = 0;
+            bitCount = 0;
+        }
+    }
+
+    public void writeFlag(boolean flag) {
+        writeBit(flag ? 1 : 0);
+    }
+
+    /**
+     * Write an unsigned Exp-Golomb code, ue(v).
+     */
+    public void writeUe(int value) {
+        long codeNum = (value & 0xFFFFFFFFL) + 1;
+        int bits = 64 - Long.numberOfLeadingZeros(codeNum);
+        writeBits(bits - 1, 0);
+        for (int i = bits - 1; i >= 0; i--) {
+            writeBit((int) (codeNum >>> i) & 1);
+        }
+    }
+
+    /**
+     * Write a signed Exp-Golomb code, se(v).
+     */
+    public void writeSe(int value) {
+        writeUe(value > 0 ? 2 * value - 1 : -2 * value);
+    }
+
+    /**
+     * Write a whole byte, the writer being byte aligned.
+     */
+    public void writeByte(int value) {
+        if (bitCount == 0) {
+            appendByte(value);
+        } else {
+            writeBits(8, value);
+        }
+    }
+
+    public boolean isByteAligned() {
+        return bitCount == 0;
+    }
+
+    /**
+     * Write zero bits up to the next byte boundary.
+     */
+    public void byteAlign() {
+        while (bitCount != 0) {
+            writeBit(0);
+        }
+    }
+
+    /**
+     * Write the rbsp_trailing_bits, the stop bit and the alignment, which end every RBSP.
+     */
+    public void writeTrailingBits() {
+        writeBit(1);
+        byteAlign();
+    }
+
+    /**
+     * @return Number of whole bytes written.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return Size of the payload once copied with the emulation prevention bytes.
+     */
+    public int getNalPayloadLength() {
+        int size = length;
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xFF;
+            if (zeros >= 2 && b <= 3) {
+                size++;
+                zeros = 0;
+            }
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return size;
+    }
+
+    /**
+     * Copy the payload, inserting an emulation prevention byte wherever two zero bytes are followed by a
+     * byte up to 3, so that no start code appears inside the NAL unit.
+     * @param dst The destination, it must have room for {@link #getNalPayloadLength()} bytes
+     * @param offset Offset in the destination
+     * @return Number of bytes copied.
+     */
+    public int copyNalPayload(byte[] dst, int offset) {
+        int out = offset;
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xFF;
+            if (zeros >= 2 && b <= 3) {
+                dst[out++] = 3;
+                zeros = 0;
+            }
+            dst[out++] = (byte) b;
+            zeros = b == 0 ? zeros + 1 : 0;
+        }
+        return out - offset;
+    }
+
+    private void appendByte(int value) {
+        if (length == data.length) {
+            byte[] grown = new byte[data.length * 2];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+        data[length++] = (byte) value;
+    }
+}
@@ -2,6 +2,8 @@ package com.dji.videostreamdecodingsample.media;
 
 import android.annotation.TargetApi;
 import android.content.Context;
+import android.graphics.Rect;
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
@@ -9,6 +11,8 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -17,9 +21,6 @@ import com.dji.videostreamdecodingsample.R;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.concurrent.ArrayBlockingQueue;
 
 import dji.common.product.Model;
 import dji.log.DJILog;
@@ -36,11 +37,11 @@ import dji.sdk.sdkmanager.DJISDKManager;
  *
  * 2. Send the raw data from camera to ffmpeg for frame parsing.
  *
- * 3. Get the parsed frame data from ffmpeg parsing frame callback and cache the parsed framed data into the frameQueue.
+ * 3. Get the parsed frame data from ffmpeg parsing frame callback and cache the parsed framed data into the frameRing.
  *
  * 4. Initialize the MediaCodec as a decoder and then check whether there is any i-frame in the MediaCodec. If not, get
- * the default i-frame from sdk resource and insert it at the head of frameQueue. Then dequeue the framed data from the
- * frameQueue and feed it(which is Byte buffer) into the MediaCodec.
+ * the default i-frame from sdk resource and feed it before the queued frames. Then dequeue the framed data from the
+ * frameRing and feed it(which is Byte buffer) into the MediaCodec.
  *
  * 5. Get the output byte buffer from MediaCodec, if a surface(Video Previewing View) is configured in the MediaCodec,
  * the output byte buffer is only need to be released. If not, the output yuv data should invoke the callback and pass
@@ -51,31 +52,164 @@ import dji.sdk.sdkmanager.DJISDKManager;
 public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
     private static final String TAG = DJIVideoStreamDecoder.class.getSimpleName();
     private static final int BUF_QUEUE_SIZE = 30;
+    private static final int FRAME_RING_CAPACITY = 64;
     private static final int MSG_INIT_CODEC = 0;
     private static final int MSG_FRAME_QUEUE_IN = 1;
     private static final int MSG_DECODE_FRAME = 2;
     private static final int MSG_YUV_DATA = 3;
+    private static final int MSG_WATCHDOG_CHECK = 4;
+    private static final int MSG_UPDATE_STANDBY = 5;
+    private static final int MSG_CHANGE_SURFACE = 6;
+    private static final int MSG_PARSE_DATA = 7;
+    private static final int MSG_STANDBY_TAKEN_OVER = 8;
+    private static final int RAW_DATA_RING_CAPACITY = 256;
+    /**
+     * The raw data is framed in the native parser thread, and the frames are queued to the decoding thread.
+     */
+    public static final int THREADING_PIPELINED = 0;
+    /**
+     * The raw data is framed in the decoding thread, and each frame is fed into the codec as soon as it is
+     * framed, without frame queue. It saves a thread hop per frame, but the framing of the next data waits
+     * for the codec, so it suits low bitrate streams.
+     */
+    public static final int THREADING_FUSED = 1;
+    private static final long WATCHDOG_CHECK_INTERVAL_MS = 500;
+    private static final int GOP_BUFFER_CAPACITY = 4 * 1024 * 1024;
+    private static final int GOP_BUFFER_MAX_FRAMES = 240;
+    private static final long CATCH_UP_TIMEOUT_US = 10000;
     public static final String VIDEO_ENCODING_FORMAT = "video/avc";
+    public static final String VIDEO_ENCODING_FORMAT_HEVC = "video/hevc";
+    /**
+     * The codec of the stream is detected from its parameter sets, see {@link #setVideoCodec(int)}.
+     */
+    public static final int CODEC_AUTO = -1;
+    /**
+     * The frames after a frame_num gap are fed into the codec anyway.
+     */
+    public static final int GAP_POLICY_IGNORE = 0;
+    /**
+     * The frames after a frame_num gap are dropped until the next key frame.
+     */
+    public static final int GAP_POLICY_DISCARD = 1;
+    /**
+     * The frames after a frame_num gap are dropped, and a key frame is requested through the
+     * {@link KeyFrameRequester}, again if it does not come within the request interval.
+     */
+    public static final int GAP_POLICY_REQUEST_KEY_FRAME = 2;
+    private static final long DEFAULT_KEY_FRAME_REQUEST_INTERVAL_MS = 1000;
+    // Crop keys of the output format, inclusive of right and bottom.
+    private static final String KEY_CROP_LEFT = "crop-left";
+    private static final String KEY_CROP_TOP = "crop-top";
+    private static final String KEY_CROP_RIGHT = "crop-right";
+    private static final String KEY_CROP_BOTTOM = "crop-bottom";
     private HandlerThread  handlerThreadNew;
-    private Handler handlerNew;
+    private volatile Handler handlerNew;
+    // Frames the raw data in place of the native parser, only set by the tests.
+    private volatile RawDataFramer framer;
+    // Whether the native parser delivers its frames to the decoder, set on the first raw data.
+    private volatile boolean parserStarted;
     private final boolean DEBUG = false;
     private static DJIVideoStreamDecoder instance;
-    private Queue<DJIFrame> frameQueue;
-    private HandlerThread dataHandlerThread;
-    private Handler dataHandler;
+    private final FrameRing frameRing = new FrameRing(FRAME_RING_CAPACITY);
+    // Raw data waiting to be framed, with its arrival time.
+    private final FrameRing rawDataRing = new FrameRing(RAW_DATA_RING_CAPACITY);
+    private volatile int threadingMode = THREADING_PIPELINED;
+    // Arrival time of the raw data being framed, only accessed by the framing thread.
+    private long parsingArrivalTimeUs;
+    private volatile int requestedCodecType = NativeHelper.CODEC_H264;
+    // Whether the codec was detected since it was set to CODEC_AUTO. Accessed in the framing thread only,
+    // except for the reset.
+    private volatile boolean codecDetected;
+    // The codec the native parser and the decoder are set up for.
+    private volatile int streamCodecType = NativeHelper.CODEC_H264;
+    // Only accessed by the framing thread.
+    private final H264FrameClassifier h264Classifier = new H264FrameClassifier();
+    private final H265FrameClassifier h265Classifier = new H265FrameClassifier();
+    // Whether the leading frames of the open GOP the decoding started at are dropped.
+    private boolean skipLeadingFrames;
+    private final FrameNumTracker frameNumTracker = new FrameNumTracker();
+    private volatile int frameGapPolicy = GAP_POLICY_IGNORE;
+    private volatile KeyFrameRequester keyFrameRequester;
+    private volatile long keyFrameRequestIntervalMs = DEFAULT_KEY_FRAME_REQUEST_INTERVAL_MS;
+    // Only accessed by the framing thread.
+    private boolean discardingUntilKeyFrame;
+    // Whether frames were lost since the last frame passed on.
+    private boolean framesLost;
+    // Timestamp of the last frame received after lost frames. Written by the framing thread.
+    private volatile long lastLossPtsUs = Long.MIN_VALUE;
+    private final FreezeConcealment concealment = new FreezeConcealment();
+    private final JitterBuffer jitterBuffer = new JitterBuffer();
+    private long lastKeyFrameRequestMs;
+    private volatile long gapDiscardedFrameCount;
+    private volatile long keyFrameRequestCount;
+    private volatile long throttledKeyFrameRequestCount;
+    // The default i-frame fed before the queued frames, null if there is none.
+    private byte[] injectedKeyFrame;
+    private long injectedKeyFramePts;
+    private long injectedKeyFrameIndex;
+    private volatile DecodeScheduler decodeScheduler =
+            new HandlerDecodeScheduler("frame data handler thread", Process.THREAD_PRIORITY_DEFAULT);
     private Context context;
-    private MediaCodec codec;
+    private DecoderBackend codec;
+    // Creates the codec, null for the hardware decoder selected by the DecoderProbe.
+    private volatile DecoderBackend.Factory backendFactory;
+    private volatile DecoderClock clock = DecoderClock.SYSTEM;
     private Surface surface;
+    private Surface configuredSurface;
+    // Draws the frames to the surface and reads them back while pixels are needed. Only set in the
+    // decoding thread.
+    private volatile GlFrameSplitter frameSplitter;
+    private boolean frameSplitterUnavailable;
+    private final FrameBus frameBus = new FrameBus();
+    private final GopBuffer gopBuffer = new GopBuffer(GOP_BUFFER_CAPACITY, GOP_BUFFER_MAX_FRAMES);
+    private StillCapture stillCapture;
+    private volatile TimeShiftBuffer timeShiftBuffer;
+    // The queued frames up to this timestamp were already fed from the GOP buffer.
+    private long caughtUpPtsUs = Long.MIN_VALUE;
+    // The outputs before this timestamp are decoded but not shown, while catching up.
+    private long renderFromPtsUs = Long.MIN_VALUE;
+    private int outputColorFormat;
+    private int outputStride;
+    private int outputSliceHeight;
+    private final Rect outputCrop = new Rect();
+    private final YuvFrameView yuvFrameView = new YuvFrameView();
+    private volatile YuvFrameListener yuvFrameListener;
+    private volatile SurfaceSwitchListener surfaceSwitchListener;
+    private volatile long surfaceSwitchStartUs;
+    private boolean surfaceHotSwapped;
+    private volatile long lastSurfaceSwitchLatencyUs;
 
     public int frameIndex = -1;
-    private long currentTime;
+    private long currentTimeUs;
+    private long lastPtsUs;
     public int width;
     public int height;
     private boolean hasIFrameInQueue = false;
     MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-    LinkedList<Long> bufferChangedQueue=new LinkedList<Long>();
+    private final DecoderWatchdog watchdog = new DecoderWatchdog();
+    // The next codec initialization is requested on purpose, not a recreation by the watchdog.
+    private volatile boolean deliberateInit = true;
+    private volatile boolean hotStandbyEnabled;
+    private volatile boolean timedProbeEnabled;
+    // Whether the timed probe was started, only accessed by the decoding thread.
+    private boolean timedProbeStarted;
+    private volatile boolean defaultKeyFrameEnabled = true;
+    private StandbyDecoder standbyDecoder;
+    // The standby codec is taking over in the standby thread, the primary codec is gone meanwhile.
+    private boolean failingOver;
+    // A codec initialization or a surface change was requested during the take over.
+    private boolean initAfterFailOver;
+    private boolean surfaceChangeAfterFailOver;
+    // Frames could not be queued during the take over, in the fused mode.
+    private boolean framesMissedWhileFailingOver;
+    private volatile DecoderBackend takenOverCodec;
+    private volatile long takenOverPtsUs;
 
     private long createTime;
+    private final PtsFrameMap ptsFrameMap = new PtsFrameMap();
+    private volatile long lastOutputFrameIndex = -1;
+    private volatile long lastOutputLatencyUs;
+    private volatile long averageLatencyUs;
 
     /**
      * Set the yuv frame data receiving callback. The callback method will be invoked when the decoder
@@ -90,51 +224,313 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
 
     private DJICodecManager.YuvDataCallback yuvDataListener;
 
+    public interface YuvFrameListener {
+        /**
+         * Callback method for receiving a decoded frame without copying it. It is invoked in the decoding
+         * thread, and the frame is only valid until the method returns.
+         * @param frame View on the planes of the frame
+         */
+        void onYuvFrameReceived(YuvFrameView frame);
+    }
+
+    public interface KeyFrameRequester {
+        /**
+         * Callback method invoked in the framing thread when a key frame is needed to resume the decoding,
+         * e.g. to call {@code DJICodecManager.resetKeyFrame()}. The requests are rate limited by the decoder.
+         */
+        void requestKeyFrame();
+    }
+
+    public interface SurfaceSwitchListener {
+        /**
+         * Callback method invoked in the decoding thread when the first frame is rendered after a surface change.
+         * @param hotSwapped Whether the surface was swapped in place, or the codec was rebuilt
+         * @param latencyUs Time from the change request to the first frame rendered on the new surface
+         */
+        void onSurfaceSwitched(boolean hotSwapped, long latencyUs);
+    }
+
+    public void setSurfaceSwitchListener(SurfaceSwitchListener surfaceSwitchListener) {
+        this.surfaceSwitchListener = surfaceSwitchListener;
+    }
+
     /**
-     * A data structure for containing the frames.
+     * @return Latency of the last surface change, from the request to the first frame rendered on the new surface.
      */
-    private static class DJIFrame {
-        public byte[] videoBuffer;
-        public int size;
-        public long pts;
-        public long incomingTimeMs;
-        public long fedIntoCodecTime;
-        public long codecOutputTime;
-        public boolean isKeyFrame;
-        public int frameNum;
-        public long frameIndex;
-        public int width;
-        public int height;
+    public long getLastSurfaceSwitchLatencyUs() {
+        return lastSurfaceSwitchLatencyUs;
+    }
 
-        public DJIFrame(byte[] videoBuffer, int size, long pts, long incomingTimeUs, boolean isKeyFrame,
-                        int frameNum, long frameIndex, int width, int height){
-            this.videoBuffer=videoBuffer;
-            this.size=size;
-            this.pts =pts;
-            this.incomingTimeMs=incomingTimeUs;
-            this.isKeyFrame=isKeyFrame;
-            this.frameNum=frameNum;
-            this.frameIndex=frameIndex;
-            this.width=width;
-            this.height=height;
-        }
+    /**
+     * Set the listener which reads the decoded yuv frames in place. Like the yuv data listener, it is
+     * only called back while no surface is set.
+     * @param yuvFrameListener
+     */
+    public void setYuvFrameListener(YuvFrameListener yuvFrameListener) {
+        this.yuvFrameListener = yuvFrameListener;
+    }
+
+    /**
+     * Get the frame bus, which distributes the decoded frames to any number of subscribers. While there
+     * is a subscriber of the pixels, the decoder renders through a {@link GlFrameSplitter}, which keeps
+     * drawing to the surface and reads the pixels back.
+     * @return The frame bus of the decoder
+     */
+    public FrameBus getFrameBus() {
+        return frameBus;
+    }
 
-        public long getQueueDelay()
-        {
-            return fedIntoCodecTime-incomingTimeMs;
+    /**
+     * Capture a still picture of the live stream. The current GOP is decoded again by the software
+     * decoder, so the codec keeps rendering to the surface without any interruption.
+     * @param callback The callback, invoked in the still capture thread
+     */
+    public synchronized void captureStill(StillCapture.StillCallback callback) {
+        if (stillCapture == null) {
+            stillCapture = new StillCapture(gopBuffer);
         }
+        stillCapture.capture(callback);
+    }
 
-        public long getDecodingDelay()
-        {
-            return codecOutputTime-fedIntoCodecTime;
+    private synchronized void releaseStillCapture() {
+        if (stillCapture != null) {
+            stillCapture.release();
+            stillCapture = null;
         }
+    }
+
+    /**
+     * Set the buffer which keeps the last seconds of the encoded stream, e.g. to save them after an event.
+     * @param timeShiftBuffer The buffer, null to stop filling it
+     */
+    public void setTimeShiftBuffer(TimeShiftBuffer timeShiftBuffer) {
+        this.timeShiftBuffer = timeShiftBuffer;
+    }
+
+    /**
+     * Set the listener of the decoder watchdog. The watchdog detects a stalled or failing codec and
+     * recovers it by flushing, reconfiguring or recreating the codec. The listener is invoked in the
+     * decoding thread for every recovery step.
+     * @param watchdogListener
+     */
+    public void setWatchdogListener(DecoderWatchdog.WatchdogListener watchdogListener) {
+        watchdog.setListener(watchdogListener);
+    }
 
-        public long getTotalDelay()
-        {
-            return codecOutputTime-fedIntoCodecTime;
+    /**
+     * Enable or disable the hot-standby decoder. When enabled, a second hardware decoder is kept
+     * configured, primed with the current GOP and fed the frames of the primary decoder, and it replaces
+     * the primary decoder at once when the primary fails, instead of leaving the display black until the
+     * next i-frame. It costs a second codec instance decoding every frame, and it is only available on
+     * Android M and above in surface mode.
+     * @param enabled
+     */
+    public void setHotStandbyEnabled(boolean enabled) {
+        hotStandbyEnabled = enabled;
+        if (decodeScheduler.isRunning()) {
+            decodeScheduler.sendMessage(MSG_UPDATE_STANDBY);
         }
     }
 
+    /**
+     * Enable or disable the timed probe of the decoders. When enabled, the first time an H.264 codec is
+     * created, the default i-frame of the connected product is decoded with every candidate decoder in a
+     * background thread, and the measured decoding times are added to the ranking of the
+     * {@link DecoderProbe}. The new ranking is used from the next codec creation, and persisted, so the
+     * probe only runs once per device. It is disabled by default.
+     * @param enabled
+     */
+    public void setTimedProbeEnabled(boolean enabled) {
+        timedProbeEnabled = enabled;
+    }
+
+    /**
+     * Set the codec of the stream, H.264 by default. The native parser, the decoder and the framing follow
+     * it, and the codec is reinitialized when it changes. Call it before passing data of the new codec to
+     * {@link #parse(byte[], int)}.
+     * @param codecType {@link NativeHelper#CODEC_H264}, {@link NativeHelper#CODEC_HEVC}, or {@link #CODEC_AUTO}
+     *                  to detect it from the parameter sets of the stream. The data before the first parameter
+     *                  set is dropped while detecting.
+     */
+    public void setVideoCodec(int codecType) {
+        codecDetected = false;
+        requestedCodecType = codecType;
+    }
+
+    /**
+     * @return The codec of the stream being decoded, {@link NativeHelper#CODEC_H264} or
+     * {@link NativeHelper#CODEC_HEVC}.
+     */
+    public int getStreamCodec() {
+        return streamCodecType;
+    }
+
+    /**
+     * Set what is done when a gap in the frame_num of an H.264 stream shows that reference frames were lost.
+     * @param policy {@link #GAP_POLICY_IGNORE} (the default), {@link #GAP_POLICY_DISCARD} or
+     *               {@link #GAP_POLICY_REQUEST_KEY_FRAME}
+     */
+    public void setFrameGapPolicy(int policy) {
+        frameGapPolicy = policy;
+    }
+
+    /**
+     * Set the hook requesting a key frame from the aircraft, used by {@link #GAP_POLICY_REQUEST_KEY_FRAME}.
+     * @param requester The hook
+     * @param minIntervalMs Minimum time between two requests, the requests in between are counted as
+     *                      throttled
+     */
+    public void setKeyFrameRequester(KeyFrameRequester requester, long minIntervalMs) {
+        keyFrameRequester = requester;
+        keyFrameRequestIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * @return Number of frame_num gaps detected in the stream.
+     */
+    public long getFrameGapCount() {
+        return frameNumTracker.getGapCount();
+    }
+
+    /**
+     * @return Number of reference frames lost in the frame_num gaps.
+     */
+    public long getLostReferenceFrameCount() {
+        return frameNumTracker.getLostFrameCount();
+    }
+
+    /**
+     * @return Number of frames dropped after a frame_num gap while waiting for a key frame.
+     */
+    public long getGapDiscardedFrameCount() {
+        return gapDiscardedFrameCount;
+    }
+
+    /**
+     * @return Number of key frame requests made through the {@link KeyFrameRequester}.
+     */
+    public long getKeyFrameRequestCount() {
+        return keyFrameRequestCount;
+    }
+
+    /**
+     * @return Number of key frame requests not made because the previous one was too recent.
+     */
+    public long getThrottledKeyFrameRequestCount() {
+        return throttledKeyFrameRequestCount;
+    }
+
+    /**
+     * Enable or disable the freeze concealment. When enabled, after frames were lost or the codec failed,
+     * the display keeps the last good picture instead of showing the corrupted ones, until a key frame is
+     * decoded. It is disabled by default.
+     * @param enabled
+     */
+    public void setConcealmentEnabled(boolean enabled) {
+        concealment.setEnabled(enabled);
+    }
+
+    /**
+     * @return The freeze concealment, which gives the number and the durations of the freezes.
+     */
+    public FreezeConcealment getFreezeConcealment() {
+        return concealment;
+    }
+
+    /**
+     * Enable or disable the jitter buffer. When enabled, the frames rendered to the surface are displayed
+     * at regular times instead of as soon as they are decoded, and the ones decoded too late are dropped.
+     * It needs Android 5.0 and is disabled by default.
+     * @param enabled
+     */
+    public void setJitterBufferEnabled(boolean enabled) {
+        jitterBuffer.setEnabled(enabled);
+    }
+
+    /**
+     * @return The jitter buffer, to set its delay bounds and preference, and to read its metrics.
+     */
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    /**
+     * @return The mime type of the decoder for the codec of the stream.
+     */
+    private String getMimeType() {
+        return streamCodecType == NativeHelper.CODEC_HEVC ? VIDEO_ENCODING_FORMAT_HEVC : VIDEO_ENCODING_FORMAT;
+    }
+
+    /**
+     * Set whether the black i-frame of the connected product is fed before the first frame, so that the
+     * decoding starts without waiting for a key frame. It is enabled by default; disable it for a stream
+     * which does not come from a DJI product, e.g. a {@link SyntheticH264Stream}.
+     */
+    public void setDefaultKeyFrameEnabled(boolean enabled) {
+        defaultKeyFrameEnabled = enabled;
+    }
+
+    /**
+     * Frame the raw data passed to {@link #parse(byte[], int)} with the given framer instead of the native
+     * parser, e.g. on the JVM. Set it before passing any data.
+     */
+    void setRawDataFramer(RawDataFramer framer) {
+        this.framer = framer;
+    }
+
+    /**
+     * Set the factory of the codec, e.g. of a {@link SimulatedDecoderBackend} to run the decoding without
+     * the hardware decoder. It is used the next time the codec is created. The hot-standby decoder is
+     * hardware only, it is not used with a factory.
+     * @param factory The factory, null for the hardware decoder selected by the DecoderProbe (the default)
+     */
+    public void setDecoderBackendFactory(DecoderBackend.Factory factory) {
+        backendFactory = factory;
+    }
+
+    /**
+     * Set the clock timing the decoding, e.g. a {@link VirtualDecoderClock} with a simulated backend and
+     * a {@link ManualDecodeScheduler}. Set it before passing any data.
+     * @param clock The clock, {@link DecoderClock#SYSTEM} by default
+     */
+    public void setClock(DecoderClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Current time of the decoder clock in microseconds.
+     */
+    private long nowUs() {
+        return clock.nowUs();
+    }
+
+    private long nowMs() {
+        return clock.nowUs() / 1000;
+    }
+
+    /**
+     * @return The index of the last frame output by the codec, -1 if none.
+     */
+    public long getLastOutputFrameIndex() {
+        return lastOutputFrameIndex;
+    }
+
+    /**
+     * @return The time in microseconds between the arrival of the last output frame and its output.
+     */
+    public long getLastOutputLatencyUs() {
+        return lastOutputLatencyUs;
+    }
+
+    /**
+     * @return The smoothed time in microseconds between the arrival of a frame and its output. The arrival is
+     * the time the raw data completing the frame is passed to {@link #parse(byte[], int)}, so the latency
+     * covers the framing as well, and can be compared between the threading modes.
+     */
+    public long getAverageLatencyUs() {
+        return averageLatencyUs;
+    }
+
     private void logd(String tag, String log) {
         if (!DEBUG) {
             return;
@@ -155,20 +551,33 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
         loge(TAG, log);
     }
 
-    private DJIVideoStreamDecoder() {
-        createTime = System.currentTimeMillis();
-        frameQueue = new ArrayBlockingQueue<DJIFrame>(BUF_QUEUE_SIZE);
-        startDataHandler();
-        handlerThreadNew = new HandlerThread("native parser thread");
-        handlerThreadNew.start();
-        handlerNew = new Handler(handlerThreadNew.getLooper(), new Handler.Callback() {
+    /**
+     * Frames the raw data, and passes each frame to {@link #onDataRecv}, as the native parser does.
+     */
+    interface RawDataFramer {
+        void parse(byte[] buf, int size);
+    }
+
+    /**
+     * Use {@link #getInstance()}. A decoder of its own, with a {@link SimulatedDecoderBackend}, is only
+     * created by the tests.
+     */
+    DJIVideoStreamDecoder() {
+        createTime = SystemClock.elapsedRealtime();
+        frameBus.setDemandListener(new FrameBus.DemandListener() {
             @Override
-            public boolean handleMessage(Message msg) {
-                byte[] buf = (byte[])msg.obj;
-                NativeHelper.getInstance().parse(buf, msg.arg1);
-                return false;
+            public void onDemandChanged(FrameBus bus) {
+                GlFrameSplitter splitter = frameSplitter;
+                if (splitter != null) {
+                    splitter.setReadback(bus.isFormatNeeded(FrameBus.Format.YUV), bus.isFormatNeeded(FrameBus.Format.RGBA));
+                }
+                // The codec has to render to the frame splitter, or directly to the surface again.
+                if (decodeScheduler.isRunning() && !decodeScheduler.hasMessage(MSG_INIT_CODEC)) {
+                    decodeScheduler.sendMessage(MSG_CHANGE_SURFACE);
+                }
             }
         });
+        startDataHandler();
     }
 
 
@@ -187,12 +596,21 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
      * should set "null" surface when calling the "configure" method of MediaCodec.
      */
     public void init(Context context, Surface surface) {
+        init(context, surface, THREADING_PIPELINED);
+    }
+
+    /**
+     * Initialize the decoder
+     * @param context The application context
+     * @param surface The displaying surface for the video stream
+     * @param threadingMode {@link #THREADING_PIPELINED} or {@link #THREADING_FUSED}. It should be chosen
+     *                      before the raw data is passed to {@link #parse(byte[], int)}.
+     */
+    public void init(Context context, Surface surface, int threadingMode) {
+        this.threadingMode = threadingMode;
         this.context = context;
         this.surface = surface;
-        NativeHelper.getInstance().setDataListener(this);
-        if (dataHandler != null && !dataHandler.hasMessages(MSG_INIT_CODEC)) {
-            dataHandler.sendEmptyMessage(MSG_INIT_CODEC);
-        }
+        requestCodecInit();
     }
 
     /**
@@ -201,10 +619,184 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
      * @param size Data length
      */
     public void parse(byte[] buf, int size) {
-        Message message =handlerNew.obtainMessage();
-        message.obj = buf;
-        message.arg1 = size;
-        handlerNew.sendMessage(message);
+        if (!parserStarted) {
+            startParser();
+        }
+        if (!rawDataRing.offer(buf, size, 0, nowUs(), false, 0, 0, 0, 0, 0)) {
+            loge("raw data ring full, drop " + size + " bytes");
+            return;
+        }
+        if (threadingMode == THREADING_FUSED) {
+            decodeScheduler.sendMessage(MSG_PARSE_DATA);
+            return;
+        }
+        Handler handler = handlerNew;
+        if (handler == null) {
+            // Switched from the fused mode.
+            handler = startParserThread();
+        }
+        if (!handler.hasMessages(MSG_PARSE_DATA)) {
+            handler.sendEmptyMessage(MSG_PARSE_DATA);
+        }
+    }
+
+    /**
+     * Have the native parser deliver its frames to the decoder, and start the native parser thread in the
+     * pipelined mode. Until then, the native library is not loaded, so that the frames can be passed to
+     * {@link #onDataRecv} directly, e.g. on the JVM.
+     */
+    private synchronized void startParser() {
+        if (parserStarted) {
+            return;
+        }
+        if (framer == null) {
+            NativeHelper.getInstance().setDataListener(this);
+        }
+        if (threadingMode != THREADING_FUSED) {
+            // The fused mode frames in the decoding thread.
+            startParserThread();
+        }
+        parserStarted = true;
+    }
+
+    private synchronized Handler startParserThread() {
+        if (handlerNew != null) {
+            return handlerNew;
+        }
+        handlerThreadNew = new HandlerThread("native parser thread");
+        handlerThreadNew.start();
+        handlerNew = new Handler(handlerThreadNew.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                parseRawData();
+                return false;
+            }
+        });
+        return handlerNew;
+    }
+
+    /**
+     * Frame the pending raw data. Invoke in the native parser thread, or in the decoding thread in the fused
+     * mode.
+     */
+    private void parseRawData() {
+        while (rawDataRing.nextReceived() >= 0) {
+            rawDataRing.accept();
+        }
+        int slot;
+        while ((slot = rawDataRing.peek()) >= 0) {
+            byte[] buf = rawDataRing.getPayload(slot);
+            int size = rawDataRing.getSize(slot);
+            parsingArrivalTimeUs = rawDataRing.getIncomingTimeUs(slot);
+            rawDataRing.remove();
+            if (!selectStreamCodec(buf, size)) {
+                continue;
+            }
+            PipelineTracer.begin(PipelineTracer.EVENT_PARSE);
+            RawDataFramer rawDataFramer = framer;
+            if (rawDataFramer != null) {
+                rawDataFramer.parse(buf, size);
+            } else {
+                NativeHelper.getInstance().parse(buf, size);
+            }
+            PipelineTracer.end(PipelineTracer.EVENT_PARSE);
+        }
+    }
+
+    /**
+     * Check the continuity of the frame_num of the H.264 frame just classified, and apply the gap policy.
+     * Invoke in the framing thread.
+     * @param isKeyFrame Whether the decoding can restart at the frame
+     * @return true if the frame should be dropped.
+     */
+    private boolean checkFrameGap(boolean isKeyFrame) {
+        int policy = frameGapPolicy;
+        H264Sps sps = h264Classifier.getSps();
+        if (sps == null) {
+            // The frame_num is unknown until the parameter sets are received.
+            return discardingUntilKeyFrame && !isKeyFrame && policy != GAP_POLICY_IGNORE;
+        }
+        if (discardingUntilKeyFrame) {
+            if (isKeyFrame || policy == GAP_POLICY_IGNORE) {
+                discardingUntilKeyFrame = false;
+                frameNumTracker.reset();
+            } else {
+                gapDiscardedFrameCount++;
+                requestKeyFrame();
+                return true;
+            }
+        }
+        boolean gap = frameNumTracker.onFrame(h264Classifier.getFrameNum(), 1 << sps.log2MaxFrameNum,
+                h264Classifier.isIdr(), h264Classifier.isReference(), sps.gapsInFrameNumAllowed);
+        if (!gap) {
+            return false;
+        }
+        loge("frame_num gap before the frame with index=" + frameIndex);
+        framesLost = true;
+        if (policy == GAP_POLICY_IGNORE || isKeyFrame) {
+            return false;
+        }
+        discardingUntilKeyFrame = true;
+        gapDiscardedFrameCount++;
+        requestKeyFrame();
+        return true;
+    }
+
+    /**
+     * Request a key frame through the hook, at most once per request interval. Invoke in the framing thread.
+     */
+    private void requestKeyFrame() {
+        KeyFrameRequester requester = keyFrameRequester;
+        if (frameGapPolicy != GAP_POLICY_REQUEST_KEY_FRAME || requester == null) {
+            return;
+        }
+        long nowMs = nowMs();
+        if (keyFrameRequestCount > 0 && nowMs - lastKeyFrameRequestMs < keyFrameRequestIntervalMs) {
+            throttledKeyFrameRequestCount++;
+            return;
+        }
+        lastKeyFrameRequestMs = nowMs;
+        keyFrameRequestCount++;
+        logd("request a key frame");
+        try {
+            requester.requestKeyFrame();
+        } catch (Exception e) {
+            loge("request key frame error: " + e);
+        }
+    }
+
+    /**
+     * Follow the requested codec, or detect it from the raw data. On a change, the native parser is switched
+     * and the codec reinitialized. Invoke in the framing thread.
+     * @return false if the data should be dropped, the codec of the stream being unknown yet.
+     */
+    private boolean selectStreamCodec(byte[] buf, int size) {
+        int codecType = requestedCodecType;
+        if (codecType == CODEC_AUTO) {
+            codecType = VideoCodecDetector.detect(buf, size);
+            if (codecType == VideoCodecDetector.CODEC_UNKNOWN) {
+                if (!codecDetected) {
+                    // The data can not be framed before the first parameter set tells the codec.
+                    return false;
+                }
+                // Keep the codec detected so far, the parameter sets are not in every chunk.
+                codecType = streamCodecType;
+            }
+            codecDetected = true;
+        }
+        if (codecType == streamCodecType) {
+            return true;
+        }
+        logd("stream codec changes to " + codecType);
+        streamCodecType = codecType;
+        NativeHelper.getInstance().setCodecType(codecType);
+        h264Classifier.reset();
+        h265Classifier.reset();
+        frameNumTracker.reset();
+        discardingUntilKeyFrame = false;
+        gopBuffer.clear(codecType);
+        requestCodecInit();
+        return true;
     }
 
     /**
@@ -517,6 +1109,16 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
         return null;
     }
 
+    /**
+     * Have the codec initialized on purpose, e.g. for a new resolution, surface or codec type. Unlike a
+     * recreation chosen by the watchdog, it starts again from the first recovery level.
+     */
+    private void requestCodecInit() {
+        deliberateInit = true;
+        if (decodeScheduler.isRunning() && !decodeScheduler.hasMessage(MSG_INIT_CODEC)) {
+            decodeScheduler.sendMessage(MSG_INIT_CODEC);
+        }
+    }
 
     /**
      * Initialize the hardware decoder.
@@ -528,28 +1130,30 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
         if (codec != null) {
             releaseCodec();
         }
+        // No codec renders to the surface now, the splitter can connect to it or leave it.
+        updateFrameSplitter();
         loge("initVideoDecoder----------------------------------------------------------");
         loge("initVideoDecoder video width = " + width + "  height = " + height);
-        // create the media format
-        MediaFormat format = MediaFormat.createVideoFormat(VIDEO_ENCODING_FORMAT, width, height);
-        if (surface == null) {
-            logd("initVideoDecoder: yuv output");
-            // The surface is null, which means that the yuv data is needed, so the color format should
-            // be set to YUV420.
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
-        } else {
-            logd("initVideoDecoder: display");
-            // The surface is set, so the color format should be set to format surface.
-            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        MediaFormat format = createFormat();
+        // A recreation chosen by the watchdog keeps its escalation, so that a codec failing again backs off.
+        watchdog.resetCounters(nowMs());
+        if (deliberateInit) {
+            deliberateInit = false;
+            watchdog.resetEscalation();
         }
+        outputColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        outputStride = width;
+        outputSliceHeight = height;
+        outputCrop.set(0, 0, width - 1, height - 1);
         try {
             // Create the codec instance.
-            codec = MediaCodec.createDecoderByType(VIDEO_ENCODING_FORMAT);
+            codec = createDecoder(format);
             logd( "initVideoDecoder create: " + (codec == null));
             // Configure the codec. What should be noted here is that the hardware decoder would not output
             // any yuv data if a surface is configured into, which mean that if you want the yuv frames, you
             // should set "null" surface when calling the "configure" method of MediaCodec.
-            codec.configure(format, surface, null, 0);
+            configuredSurface = getOutputSurface();
+            codec.configure(format, configuredSurface);
             logd( "initVideoDecoder configure");
             //            codec.configure(format, null, null, 0);
             if (codec == null) {
@@ -558,94 +1162,546 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
             }
             // Start the codec
             codec.start();
+            // Show the current picture at once instead of waiting for the next i-frame.
+            if (catchUpFromGopBuffer()) {
+                hasIFrameInQueue = true;
+            }
         } catch (Exception e) {
             loge("init codec failed, do it again: " + e);
             e.printStackTrace();
         }
+        updateStandbyDecoder();
     }
 
-    private void startDataHandler() {
-        if (dataHandlerThread != null && dataHandlerThread.isAlive()) {
+    /**
+     * Create the decoder with the backend factory if set. Otherwise create the best decoder selected by the
+     * DecoderProbe, and fall back to the default decoder of the format if it can not be created.
+     * @param format The format of the decoder, the low latency mode is enabled in it if supported.
+     */
+    private DecoderBackend createDecoder(MediaFormat format) throws IOException {
+        DecoderBackend.Factory factory = backendFactory;
+        if (factory != null) {
+            return factory.create(format);
+        }
+        DecoderProbe probe = DecoderProbe.getInstance(context);
+        startTimedProbe(probe);
+        String decoderName = probe.selectDecoder(getMimeType(), width, height);
+        if (decoderName != null) {
+            try {
+                MediaCodec decoder = MediaCodec.createByCodecName(decoderName);
+                logd("initVideoDecoder: selected decoder " + decoderName);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                        && probe.isLowLatencySupported(getMimeType(), decoderName)) {
+                    format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+                }
+                return new MediaCodecBackend(decoder);
+            } catch (Exception e) {
+                loge("create decoder " + decoderName + " error: " + e);
+            }
+        }
+        return new MediaCodecBackend(MediaCodec.createDecoderByType(getMimeType()));
+    }
+
+    /**
+     * Start the timed probe of the H.264 decoders in a background thread, if enabled and not done yet. The
+     * clip is the default i-frame of the connected product. Invoke in the decoding thread.
+     */
+    private void startTimedProbe(final DecoderProbe probe) {
+        if (!timedProbeEnabled || timedProbeStarted || streamCodecType != NativeHelper.CODEC_H264) {
+            return;
+        }
+        BaseProduct product = DJISDKManager.getInstance().getProduct();
+        if (product == null || product.getModel() == null) {
+            return;
+        }
+        final int iframeId = getIframeRawId(product.getModel(), width);
+        if (iframeId < 0) {
             return;
         }
-        dataHandlerThread = new HandlerThread("frame data handler thread");
-        dataHandlerThread.start();
-        dataHandler = new Handler(dataHandlerThread.getLooper()) {
+        timedProbeStarted = true;
+        final Context probeContext = context;
+        new Thread("decoder probe thread") {
             @Override
-            public void handleMessage(Message msg) {
-                switch (msg.what) {
-                    case MSG_INIT_CODEC:
-                        try {
-                            initCodec();
-                        } catch (Exception e) {
-                            loge("init codec error: " + e.getMessage());
-                            e.printStackTrace();
-                        }
+            public void run() {
+                probe.runTimedProbe(probeContext, VIDEO_ENCODING_FORMAT, iframeId);
+            }
+        }.start();
+    }
 
-                        removeCallbacksAndMessages(null);
-                        sendEmptyMessageDelayed(MSG_DECODE_FRAME, 1);
-                        break;
-                    case MSG_FRAME_QUEUE_IN:
-                        try {
-                            onFrameQueueIn(msg);
-                        } catch (Exception e) {
-                            loge("queue in frame error: " + e);
-                            e.printStackTrace();
-                        }
+    /**
+     * Build, rebuild or release the hot-standby decoder according to the current settings.
+     */
+    private void updateStandbyDecoder() {
+        boolean needed = hotStandbyEnabled && getOutputSurface() != null && backendFactory == null
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        if (needed) {
+            if (standbyDecoder == null) {
+                standbyDecoder = new StandbyDecoder(gopBuffer, standbyListener);
+            }
+            // The same decoder as the primary one, see createDecoder.
+            MediaFormat format = createFormat();
+            DecoderProbe probe = DecoderProbe.getInstance(context);
+            String decoderName = probe.selectDecoder(getMimeType(), width, height);
+            if (decoderName != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    && probe.isLowLatencySupported(getMimeType(), decoderName)) {
+                format.setInteger(MediaFormat.KEY_LOW_LATENCY, 1);
+            }
+            standbyDecoder.prepare(format, decoderName, width, height);
+        } else if (standbyDecoder != null && !failingOver) {
+            standbyDecoder.release();
+            standbyDecoder = null;
+        }
+    }
 
-                        if (!hasMessages(MSG_DECODE_FRAME)) {
-                            sendEmptyMessage(MSG_DECODE_FRAME);
-                        }
-                        break;
-                    case MSG_DECODE_FRAME:
-                        try {
-                            decodeFrame();
-                        } catch (Exception e) {
-                            loge("handle frame error: " + e);
-                            if (e instanceof MediaCodec.CodecException) {
-                            }
-                            e.printStackTrace();
-                            initCodec();
-                        }finally {
-                            if (frameQueue.size() > 0) {
-                                sendEmptyMessage(MSG_DECODE_FRAME);
-                            }
-                        }
-                        break;
-                    case MSG_YUV_DATA:
+    private final StandbyDecoder.TakeOverListener standbyListener = new StandbyDecoder.TakeOverListener() {
+        @Override
+        public void onTakenOver(DecoderBackend newCodec, long lastFedPtsUs) {
+            takenOverPtsUs = lastFedPtsUs;
+            takenOverCodec = newCodec;
+            decodeScheduler.sendMessage(MSG_STANDBY_TAKEN_OVER);
+        }
+    };
 
-                        break;
-                    default:
-                        break;
+    /**
+     * Start replacing the failed codec by the hot-standby decoder. The failed codec is released and the
+     * standby one moved onto the surface in the standby thread, the decoding waits for
+     * {@link #onStandbyTakenOver()} meanwhile, keeping the queued frames.
+     * @return false if no standby decoder is ready.
+     */
+    private boolean failOverToStandby() {
+        if (standbyDecoder == null || configuredSurface == null || !hotStandbyEnabled || !standbyDecoder.isReady()) {
+            return false;
+        }
+        if (!standbyDecoder.takeOver(codec, configuredSurface)) {
+            return false;
+        }
+        loge("fail over to the standby decoder");
+        codec = null;
+        failingOver = true;
+        decodeScheduler.removeMessage(MSG_DECODE_FRAME);
+        return true;
+    }
+
+    /**
+     * Continue the decoding with the codec taking over, or with a new codec if the take over failed.
+     * Invoke in the decoding thread.
+     */
+    private void onStandbyTakenOver() {
+        DecoderBackend newCodec = takenOverCodec;
+        takenOverCodec = null;
+        if (!failingOver) {
+            // The decoder was stopped meanwhile.
+            releaseQuietly(newCodec);
+            return;
+        }
+        failingOver = false;
+        if (newCodec != null) {
+            codec = newCodec;
+            // The frames up to the last one fed into the standby codec are already decoded.
+            caughtUpPtsUs = takenOverPtsUs;
+            watchdog.onOutput(nowMs());
+            if (framesMissedWhileFailingOver) {
+                // The codec misses the frames framed meanwhile, show the last picture until the next i-frame.
+                concealment.freeze(Long.MIN_VALUE, nowUs());
+                resetFrameQueue();
+            }
+        } else {
+            loge("standby take over failed, recreate codec");
+            resetFrameQueue();
+            initAfterFailOver = true;
+        }
+        framesMissedWhileFailingOver = false;
+        if (initAfterFailOver) {
+            initAfterFailOver = false;
+            surfaceChangeAfterFailOver = false;
+            decodeScheduler.sendMessage(MSG_INIT_CODEC);
+            return;
+        }
+        if (surfaceChangeAfterFailOver) {
+            surfaceChangeAfterFailOver = false;
+            decodeScheduler.sendMessage(MSG_CHANGE_SURFACE);
+        }
+        decodeScheduler.sendMessage(MSG_UPDATE_STANDBY);
+        decodeScheduler.sendMessage(MSG_DECODE_FRAME);
+    }
+
+    private void releaseQuietly(DecoderBackend backend) {
+        if (backend == null) {
+            return;
+        }
+        try {
+            backend.stop();
+            backend.release();
+        } catch (Exception e) {
+            loge("close codec error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Feed the buffered GOP into the codec, so that a new or restarted codec shows the current picture
+     * without waiting for the next i-frame. The frames are fed as fast as the codec takes them and only
+     * the last one is rendered, then the queued frames already fed are skipped. Each frame is copied under
+     * the lock of the GOP buffer, the codec waits are done outside of it so that the framing thread is
+     * not blocked. Invoke in the decoding thread.
+     * @return false if the GOP buffer can not be used, e.g. it is empty, truncated or of another resolution.
+     */
+    private boolean catchUpFromGopBuffer() {
+        int count;
+        long firstPtsUs;
+        synchronized (gopBuffer) {
+            count = gopBuffer.getFrameCount();
+            if (count == 0 || gopBuffer.isTruncated()
+                    || gopBuffer.getWidth() != width || gopBuffer.getHeight() != height) {
+                return false;
+            }
+            firstPtsUs = gopBuffer.getPts(0);
+            renderFromPtsUs = gopBuffer.getPts(count - 1);
+        }
+        long lastFedPtsUs = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            int inIndex = codec.dequeueInputBuffer(CATCH_UP_TIMEOUT_US);
+            if (inIndex < 0) {
+                loge("catch up: no input buffer after " + i + " frames");
+                renderFromPtsUs = Long.MIN_VALUE;
+                return false;
+            }
+            ByteBuffer buffer = codec.getInputBuffer(inIndex);
+            buffer.clear();
+            int size;
+            long ptsUs;
+            synchronized (gopBuffer) {
+                if (gopBuffer.getFrameCount() <= i || gopBuffer.getPts(0) != firstPtsUs) {
+                    // A new GOP started meanwhile, its frames are in the queue: stop at the last frame fed.
+                    codec.queueInputBuffer(inIndex, 0, 0, 0, 0);
+                    logd("catch up: the GOP changed after " + i + " frames");
+                    if (i == 0) {
+                        renderFromPtsUs = Long.MIN_VALUE;
+                        return false;
+                    }
+                    break;
                 }
+                size = gopBuffer.copyFrame(i, buffer);
+                ptsUs = gopBuffer.getPts(i);
             }
-        };
+            codec.queueInputBuffer(inIndex, 0, size, ptsUs, 0);
+            lastFedPtsUs = ptsUs;
+            drainCatchUpOutput();
+        }
+        renderFromPtsUs = Math.min(renderFromPtsUs, lastFedPtsUs);
+        caughtUpPtsUs = lastFedPtsUs;
+        if (lastLossPtsUs < firstPtsUs) {
+            // The codec decoded a whole chain from the buffered key frame, nothing it refers to is broken.
+            concealment.release(nowUs());
+        }
+        logd("caught up with the buffered frames up to " + lastFedPtsUs);
+        return true;
     }
 
     /**
-     * Stop the data processing thread
+     * Release the outputs available while catching up, without rendering them.
      */
-    private void stopDataHandler() {
-        if (dataHandlerThread == null || !dataHandlerThread.isAlive()) {
+    private void drainCatchUpOutput() {
+        int outIndex;
+        while ((outIndex = codec.dequeueOutputBuffer(bufferInfo, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            if (outIndex >= 0) {
+                boolean render = bufferInfo.presentationTimeUs >= renderFromPtsUs;
+                codec.releaseOutputBuffer(outIndex, render && configuredSurface != null);
+            } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                onOutputFormatChanged();
+            }
+        }
+    }
+
+    /**
+     * Create the media format of the decoder for the current resolution and surface.
+     */
+    private MediaFormat createFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(getMimeType(), width, height);
+        if (getOutputSurface() == null) {
+            logd("initVideoDecoder: yuv output");
+            // The surface is null, which means that the yuv data is needed, so the color format should
+            // be set to YUV420.
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
+        } else {
+            logd("initVideoDecoder: display");
+            // The surface is set, so the color format should be set to format surface.
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        }
+        return format;
+    }
+
+    /**
+     * Get the surface the codec should be configured with: the input surface of the frame splitter while
+     * it reads the pixels back, otherwise the displaying surface, or null when yuv buffers are needed.
+     */
+    private Surface getOutputSurface() {
+        GlFrameSplitter splitter = frameSplitter;
+        return splitter != null ? splitter.getInputSurface() : getDirectOutputSurface();
+    }
+
+    /**
+     * Get the surface the codec should be configured with when it renders without the frame splitter.
+     */
+    private Surface getDirectOutputSurface() {
+        return frameBus.isPixelsNeeded() ? null : surface;
+    }
+
+    /**
+     * @return Whether the codec should render through the frame splitter. It is not used with a custom
+     * backend, which outputs yuv buffers, nor while the yuv listeners want the yuv buffers of the codec.
+     */
+    private boolean isFrameSplitterNeeded() {
+        return frameBus.isPixelsNeeded() && backendFactory == null && !frameSplitterUnavailable
+                && !(surface == null && (yuvDataListener != null || yuvFrameListener != null));
+    }
+
+    /**
+     * Create, update or release the frame splitter according to the demand. Invoke in the decoding thread,
+     * while the codec does not render to the displaying surface, as a surface has a single producer.
+     */
+    private void updateFrameSplitter() {
+        if (isFrameSplitterNeeded()) {
+            if (frameSplitter == null) {
+                try {
+                    frameSplitter = new GlFrameSplitter(pixelListener);
+                } catch (RuntimeException e) {
+                    loge("frame splitter unavailable, the codec outputs yuv buffers: " + e);
+                    frameSplitterUnavailable = true;
+                    return;
+                }
+            }
+            frameSplitter.setReadback(frameBus.isFormatNeeded(FrameBus.Format.YUV),
+                                      frameBus.isFormatNeeded(FrameBus.Format.RGBA));
+            frameSplitter.setDisplaySurface(surface);
+        } else if (frameSplitter != null) {
+            frameSplitter.release();
+            frameSplitter = null;
+        }
+    }
+
+    private final GlFrameSplitter.PixelListener pixelListener = new GlFrameSplitter.PixelListener() {
+        @Override
+        public void onPixels(ByteBuffer pixels, FrameBus.Format format, int width, int height, long ptsUs,
+                             long frameIndex) {
+            if (format == FrameBus.Format.YUV) {
+                frameBus.publish(pixels, format, width, height, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+                                 width, height, ptsUs, frameIndex);
+            } else {
+                frameBus.publish(pixels, format, width, height, MediaCodecInfo.CodecCapabilities.COLOR_Format32bitABGR8888,
+                                 width * 4, height, ptsUs, frameIndex);
+            }
+        }
+    };
+
+    /**
+     * Perform the recovery chosen by the watchdog.
+     * @param action
+     */
+    private void recoverCodec(DecoderWatchdog.Action action) {
+        if (failingOver) {
             return;
         }
-        if (dataHandler != null) {
-            dataHandler.removeCallbacksAndMessages(null);
+        switch (action) {
+            case FLUSH:
+                loge("watchdog: flush codec");
+                resetFrameQueue();
+                if (codec != null) {
+                    try {
+                        codec.flush();
+                    } catch (Exception e) {
+                        loge("flush codec error: " + e.getMessage());
+                        recoverCodec(DecoderWatchdog.Action.RECREATE);
+                    }
+                }
+                break;
+            case RECONFIGURE:
+                if (failOverToStandby()) {
+                    break;
+                }
+                loge("watchdog: reconfigure codec");
+                resetFrameQueue();
+                if (codec != null) {
+                    try {
+                        codec.stop();
+                        configuredSurface = getOutputSurface();
+                        codec.configure(createFormat(), configuredSurface);
+                        codec.start();
+                    } catch (Exception e) {
+                        loge("reconfigure codec error: " + e.getMessage());
+                        recoverCodec(DecoderWatchdog.Action.RECREATE);
+                    }
+                } else {
+                    recoverCodec(DecoderWatchdog.Action.RECREATE);
+                }
+                break;
+            case RECREATE:
+                if (failOverToStandby()) {
+                    break;
+                }
+                loge("watchdog: recreate codec");
+                if (decodeScheduler.isRunning()) {
+                    decodeScheduler.removeMessage(MSG_DECODE_FRAME);
+                    decodeScheduler.sendMessage(MSG_INIT_CODEC);
+                }
+                break;
+            default:
+                break;
         }
-        if (Build.VERSION.SDK_INT >= 18) {
-            dataHandlerThread.quitSafely();
-        } else {
-            dataHandlerThread.quit();
+    }
+
+    /**
+     * Drop the queued frames and wait for the next i-frame, the codec has lost its reference frames.
+     */
+    private void resetFrameQueue() {
+        frameRing.clear();
+        injectedKeyFrame = null;
+        hasIFrameInQueue = false;
+        ptsFrameMap.clear();
+        jitterBuffer.reset();
+    }
+
+    private void startDataHandler() {
+        decodeScheduler.start(new DecodeScheduler.MessageHandler() {
+            @Override
+            public void handleMessage(int what) {
+                handleDecoderMessage(what);
+            }
+        });
+    }
+
+    /**
+     * Handle a decoder message. Invoke in the decoding thread.
+     * @param what Type of the message
+     */
+    private void handleDecoderMessage(int what) {
+        switch (what) {
+            case MSG_CHANGE_SURFACE:
+                if (failingOver) {
+                    surfaceChangeAfterFailOver = true;
+                    break;
+                }
+                swapSurface();
+                break;
+            case MSG_STANDBY_TAKEN_OVER:
+                onStandbyTakenOver();
+                break;
+            case MSG_INIT_CODEC:
+                if (failingOver) {
+                    // The surface is still connected to a codec.
+                    initAfterFailOver = true;
+                    break;
+                }
+                surfaceHotSwapped = false;
+                try {
+                    initCodec();
+                } catch (Exception e) {
+                    loge("init codec error: " + e.getMessage());
+                    e.printStackTrace();
+                }
+
+                decodeScheduler.removeAllMessages();
+                decodeScheduler.sendMessageDelayed(MSG_DECODE_FRAME, 1);
+                decodeScheduler.sendMessageDelayed(MSG_WATCHDOG_CHECK, WATCHDOG_CHECK_INTERVAL_MS);
+                if (threadingMode == THREADING_FUSED) {
+                    // The raw data may have been waiting for the codec.
+                    decodeScheduler.sendMessage(MSG_PARSE_DATA);
+                }
+                break;
+            case MSG_FRAME_QUEUE_IN:
+                PipelineTracer.begin(PipelineTracer.EVENT_FRAME_QUEUE_IN);
+                try {
+                    onFrameQueueIn();
+                } catch (Exception e) {
+                    loge("queue in frame error: " + e);
+                    e.printStackTrace();
+                }
+                PipelineTracer.end(PipelineTracer.EVENT_FRAME_QUEUE_IN);
+                PipelineTracer.counter(PipelineTracer.EVENT_QUEUE_SIZE, frameRing.getQueuedCount());
+
+                decodeScheduler.sendMessage(MSG_DECODE_FRAME);
+                break;
+            case MSG_PARSE_DATA:
+                parseRawData();
+                break;
+            case MSG_DECODE_FRAME:
+                if (failingOver) {
+                    // The queued frames wait for the codec taking over.
+                    break;
+                }
+                PipelineTracer.begin(PipelineTracer.EVENT_DECODE_FRAME);
+                try {
+                    decodeFrame();
+                } catch (Exception e) {
+                    onDecodeError(e);
+                }finally {
+                    PipelineTracer.end(PipelineTracer.EVENT_DECODE_FRAME);
+                    if (frameRing.getQueuedCount() > 0 || injectedKeyFrame != null) {
+                        decodeScheduler.sendMessage(MSG_DECODE_FRAME);
+                    }
+                }
+                break;
+            case MSG_YUV_DATA:
+
+                break;
+            case MSG_WATCHDOG_CHECK:
+                if (codec != null) {
+                    recoverCodec(watchdog.check(nowMs()));
+                }
+                decodeScheduler.sendMessageDelayed(MSG_WATCHDOG_CHECK, WATCHDOG_CHECK_INTERVAL_MS);
+                break;
+            case MSG_UPDATE_STANDBY:
+                if (codec != null && !failingOver) {
+                    updateStandbyDecoder();
+                }
+                break;
+            default:
+                break;
         }
+    }
 
-        try {
-            dataHandlerThread.join(3000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    /**
+     * Stop the data processing thread
+     */
+    private void stopDataHandler() {
+        if (!decodeScheduler.isRunning()) {
+            return;
         }
+        decodeScheduler.stop();
 
         releaseCodec();
-        dataHandler = null;
+        if (frameSplitter != null) {
+            frameSplitter.release();
+            frameSplitter = null;
+        }
+        failingOver = false;
+        if (standbyDecoder != null) {
+            standbyDecoder.release();
+            standbyDecoder = null;
+        }
+        // Taken over just before the stop.
+        releaseQuietly(takenOverCodec);
+        takenOverCodec = null;
+    }
+
+    /**
+     * Set the threading strategy of the decoding thread, e.g. a {@link RealtimeDecodeScheduler} at display
+     * priority instead of the default {@link HandlerDecodeScheduler}. If the decoding thread is running, it
+     * is stopped and started again with the new strategy, and the codec is rebuilt.
+     * @param scheduler The strategy
+     */
+    public synchronized void setDecodeScheduler(DecodeScheduler scheduler) {
+        if (scheduler == decodeScheduler) {
+            return;
+        }
+        boolean wasRunning = decodeScheduler.isRunning();
+        stopDataHandler();
+        decodeScheduler = scheduler;
+        if (wasRunning) {
+            startDataHandler();
+            if (context != null) {
+                requestCodecInit();
+            }
+        }
     }
 
     /**
@@ -657,20 +1713,94 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
     public void changeSurface(Surface surface) {
         if (this.surface != surface) {
             this.surface = surface;
-            if (dataHandler != null && !dataHandler.hasMessages(MSG_INIT_CODEC)) {
-                dataHandler.sendEmptyMessage(MSG_INIT_CODEC);
+            surfaceSwitchStartUs = nowUs();
+            if (decodeScheduler.isRunning() && !decodeScheduler.hasMessage(MSG_INIT_CODEC)) {
+                decodeScheduler.sendMessage(MSG_CHANGE_SURFACE);
+            }
+        }
+    }
+
+    /**
+     * Move the codec onto the new surface. From Android M, a codec rendering to a surface can render to
+     * another one with setOutputSurface, without being rebuilt and waiting for the next i-frame. The
+     * codec is only rebuilt when that is not possible, i.e. before Android M, or when switching between
+     * the surface and the yuv output. Invoke in the decoding thread.
+     */
+    private void swapSurface() {
+        boolean splitterNeeded = isFrameSplitterNeeded();
+        if (splitterNeeded && frameSplitter != null && configuredSurface == frameSplitter.getInputSurface()) {
+            // The codec keeps rendering to the splitter, only the displaying surface changes.
+            updateFrameSplitter();
+            return;
+        }
+        if (!splitterNeeded && frameSplitter == null && getDirectOutputSurface() == configuredSurface) {
+            return;
+        }
+        if (codec != null && configuredSurface != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                if (splitterNeeded) {
+                    if (frameSplitter == null) {
+                        frameSplitter = new GlFrameSplitter(pixelListener);
+                    }
+                    setOutputSurface(frameSplitter.getInputSurface());
+                    configuredSurface = frameSplitter.getInputSurface();
+                    // The codec has left the displaying surface, the splitter can draw to it.
+                    updateFrameSplitter();
+                    surfaceHotSwapped = true;
+                    logd("swapSurface: rendering through the frame splitter");
+                    return;
+                }
+                Surface target = getDirectOutputSurface();
+                if (target != null) {
+                    if (frameSplitter != null) {
+                        // Leave the displaying surface to the codec.
+                        frameSplitter.setDisplaySurface(null);
+                    }
+                    setOutputSurface(target);
+                    configuredSurface = target;
+                    updateFrameSplitter();
+                    surfaceHotSwapped = true;
+                    logd("swapSurface: output surface changed in place");
+                    return;
+                }
+            } catch (Exception e) {
+                loge("swapSurface: setOutputSurface error, rebuild the codec: " + e);
             }
         }
+        surfaceHotSwapped = false;
+        deliberateInit = true;
+        decodeScheduler.sendMessage(MSG_INIT_CODEC);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setOutputSurface(Surface target) {
+        codec.setOutputSurface(target);
+    }
+
+    /**
+     * Report the latency of a pending surface change, once a frame is rendered on the new surface.
+     * Invoke in the decoding thread.
+     */
+    private void onFrameRendered() {
+        long startUs = surfaceSwitchStartUs;
+        if (startUs == 0) {
+            return;
+        }
+        surfaceSwitchStartUs = 0;
+        long latencyUs = nowUs() - startUs;
+        lastSurfaceSwitchLatencyUs = latencyUs;
+        logd("surface switched in " + latencyUs + "us, hot swapped: " + surfaceHotSwapped);
+        SurfaceSwitchListener listener = surfaceSwitchListener;
+        if (listener != null) {
+            listener.onSurfaceSwitched(surfaceHotSwapped, latencyUs);
+        }
     }
 
     /**
      * Release and close the codec.
      */
     private void releaseCodec() {
-        if (frameQueue!=null){
-            frameQueue.clear();
-            hasIFrameInQueue = false;
-        }
+        resetFrameQueue();
         if (codec != null) {
             try {
                 codec.flush();
@@ -690,72 +1820,152 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
     }
 
     /**
-     * Queue in the frame.
-     * @param msg
+     * Queue in the received frames.
      */
-    private void onFrameQueueIn(Message msg) {
-        DJIFrame inputFrame = (DJIFrame)msg.obj;
-        if (inputFrame == null) {
+    private void onFrameQueueIn() {
+        int slot;
+        while ((slot = frameRing.nextReceived()) >= 0) {
+            queueInFrame(slot);
+        }
+    }
+
+    /**
+     * Check a received frame, then accept it into the queue or reject it.
+     * @param slot Slot of the frame in the frame ring
+     */
+    private void queueInFrame(int slot) {
+        int flags = frameRing.getFlags(slot);
+        if (!admitFrame(frameRing.isKeyFrame(slot), frameRing.getFrameNum(slot), frameRing.getPts(slot),
+                        frameRing.getFrameIndex(slot), frameRing.getWidth(slot), frameRing.getHeight(slot), flags)) {
+            frameRing.reject();
             return;
         }
+        // Queue in the input frame.
+        if (frameRing.getQueuedCount() >= BUF_QUEUE_SIZE && (flags & FrameRing.FLAG_NON_REFERENCE) != 0) {
+            // Nothing refers to the frame, dropping it does not break the decoding of the queued ones.
+            loge("Drop the non reference frame with index=" + frameRing.getFrameIndex(slot));
+            frameRing.reject();
+            return;
+        }
+        if (frameRing.getQueuedCount() >= BUF_QUEUE_SIZE) {
+            // If the queue is full, drop a frame.
+            int dropSlot = frameRing.peek();
+            loge("Drop a frame with index=" + frameRing.getFrameIndex(dropSlot)
+                    + " and append a frame with index=" + frameRing.getFrameIndex(slot));
+            if ((frameRing.getFlags(dropSlot) & FrameRing.FLAG_NON_REFERENCE) == 0) {
+                // The frames after it refer to it.
+                concealment.freeze(frameRing.getPts(dropSlot), nowUs());
+            }
+            frameRing.remove();
+        } else {
+            logd("put a frame into the Extended-Queue with index=" + frameRing.getFrameIndex(slot));
+        }
+        frameRing.accept();
+    }
+
+    /**
+     * Check whether a frame can be decoded. Until the first i-frame, the default i-frame is prepared to be
+     * fed first, and the queued frames are dropped. A change of resolution has the codec reinitialized.
+     * When the decoding starts at an open GOP key frame, its leading frames are dropped, they refer to
+     * frames the codec never got.
+     * @param flags The {@code FrameRing.FLAG_*} bits of the frame
+     * @return false if the frame should be dropped.
+     */
+    private boolean admitFrame(boolean isKeyFrame, int frameNum, long pts, long frameIndex,
+                               int frameWidth, int frameHeight, int flags) {
+        if ((flags & FrameRing.FLAG_AFTER_LOSS) != 0 && !isKeyFrame) {
+            concealment.freeze(pts, nowUs());
+        }
+        if (isKeyFrame) {
+            skipLeadingFrames = !hasIFrameInQueue && (flags & FrameRing.FLAG_OPEN_GOP_KEY_FRAME) != 0;
+        } else if (skipLeadingFrames && (flags & FrameRing.FLAG_SKIPPED_LEADING) != 0) {
+            logd("drop the leading frame with index=" + frameIndex);
+            return false;
+        }
         if (!hasIFrameInQueue) { // check the I frame flag
-            if (inputFrame.frameNum !=1 && !inputFrame.isKeyFrame) {
+            boolean isH264 = streamCodecType == NativeHelper.CODEC_H264;
+            if ((!isH264 || frameNum != 1) && !isKeyFrame) {
                 loge("the timing for setting iframe has not yet come.");
-                return;
+                return false;
             }
             byte[] defaultKeyFrame = null;
             try {
-                defaultKeyFrame = getDefaultKeyFrame(inputFrame.width); // Get I frame data
+                // The default i-frames are H.264 ones.
+                defaultKeyFrame = isH264 && defaultKeyFrameEnabled ? getDefaultKeyFrame(frameWidth) : null; // Get I frame data
             } catch (IOException e) {
                 loge("get default key frame error: " + e.getMessage());
             }
             if (defaultKeyFrame != null) {
-                DJIFrame iFrame = new DJIFrame(
-                        defaultKeyFrame,
-                        defaultKeyFrame.length,
-                        inputFrame.pts,
-                        System.currentTimeMillis(),
-                        inputFrame.isKeyFrame,
-                        0,
-                        inputFrame.frameIndex - 1,
-                        inputFrame.width,
-                        inputFrame.height
-                );
-                frameQueue.clear();
-                frameQueue.offer(iFrame); // Queue in the I frame.
+                while (frameRing.getQueuedCount() > 0) {
+                    frameRing.remove();
+                }
+                // Feed the I frame first.
+                injectedKeyFrame = defaultKeyFrame;
+                injectedKeyFramePts = pts - 1; // keep the timestamps unique
+                injectedKeyFrameIndex = frameIndex - 1;
                 logd("add iframe success!!!!");
                 hasIFrameInQueue = true;
-            } else if (inputFrame.isKeyFrame) {
+            } else if (isKeyFrame) {
                 logd("onFrameQueueIn no need add i frame!!!!");
                 hasIFrameInQueue = true;
             } else {
                 loge("input key frame failed");
             }
         }
-        if (inputFrame.width!=0 && inputFrame.height != 0 &&
-            (inputFrame.width != this.width ||
-                inputFrame.height != this.height)) {
-            this.width = inputFrame.width;
-            this.height = inputFrame.height;
+        if (frameWidth!=0 && frameHeight != 0 &&
+            (frameWidth != this.width ||
+                frameHeight != this.height)) {
+            this.width = frameWidth;
+            this.height = frameHeight;
     	   /*
     	    * On some devices, the codec supports changing of resolution during the fly
     	    * However, on some devices, that is not the case.
     	    * So, reset the codec in order to fix this issue.
     	    */
             loge("init decoder for the 1st time or when resolution changes");
-            if (dataHandler != null && !dataHandler.hasMessages(MSG_INIT_CODEC)) {
-                dataHandler.sendEmptyMessage(MSG_INIT_CODEC);
+            requestCodecInit();
+        }
+        return true;
+    }
+
+    /**
+     * Decode a frame as soon as it is framed, in the fused mode. Invoke in the decoding thread.
+     */
+    private void decodeFramedData(byte[] data, int size, long ptsUs, long incomingUs, boolean isKeyFrame,
+                                  int frameNum, long frameIndex, int frameWidth, int frameHeight, int flags) {
+        if (!admitFrame(isKeyFrame, frameNum, ptsUs, frameIndex, frameWidth, frameHeight, flags)) {
+            return;
+        }
+        PipelineTracer.begin(PipelineTracer.EVENT_DECODE_FRAME);
+        try {
+            if (injectedKeyFrame != null) {
+                decodeFrame();
             }
+            feedFrame(data, size, ptsUs, incomingUs, isKeyFrame, frameNum, frameIndex);
+        } catch (Exception e) {
+            onDecodeError(e);
+        } finally {
+            PipelineTracer.end(PipelineTracer.EVENT_DECODE_FRAME);
         }
-        // Queue in the input frame.
-        if (this.frameQueue.offer(inputFrame)){
-            logd("put a frame into the Extended-Queue with index=" + inputFrame.frameIndex);
-        } else {
-            // If the queue is full, drop a frame.
-            DJIFrame dropFrame = frameQueue.poll();
-            this.frameQueue.offer(inputFrame);
-            loge("Drop a frame with index=" + dropFrame.frameIndex+" and append a frame with index=" + inputFrame.frameIndex);
+    }
+
+    /**
+     * Report a codec failure to the watchdog and perform the recovery it chooses.
+     * @param e The failure
+     */
+    private void onDecodeError(Exception e) {
+        loge("handle frame error: " + e);
+        e.printStackTrace();
+        concealment.freeze(Long.MIN_VALUE, nowUs());
+        boolean isTransient = false;
+        boolean isRecoverable = false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && e instanceof MediaCodec.CodecException) {
+            isTransient = ((MediaCodec.CodecException) e).isTransient();
+            isRecoverable = ((MediaCodec.CodecException) e).isRecoverable();
         }
+        recoverCodec(watchdog.onCodecException(nowMs(),
+                                               isTransient, isRecoverable));
     }
 
     /**
@@ -764,13 +1974,58 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
      */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private void decodeFrame() throws Exception {
-        DJIFrame inputFrame = frameQueue.poll();
-        if (inputFrame == null) {
+        byte[] frameData;
+        int frameSize;
+        long framePts;
+        long frameIncomingUs;
+        boolean frameIsKey;
+        int frameNumber;
+        long frameIdx;
+        if (injectedKeyFrame != null) {
+            frameData = injectedKeyFrame;
+            frameSize = injectedKeyFrame.length;
+            framePts = injectedKeyFramePts;
+            frameIncomingUs = nowUs();
+            frameIsKey = true;
+            frameNumber = 0;
+            frameIdx = injectedKeyFrameIndex;
+            injectedKeyFrame = null;
+        } else {
+            int slot = frameRing.peek();
+            if (slot < 0) {
+                return;
+            }
+            // Take the metadata out of the slot before freeing it.
+            frameData = frameRing.getPayload(slot);
+            frameSize = frameRing.getSize(slot);
+            framePts = frameRing.getPts(slot);
+            frameIncomingUs = frameRing.getIncomingTimeUs(slot);
+            frameIsKey = frameRing.isKeyFrame(slot);
+            frameNumber = frameRing.getFrameNum(slot);
+            frameIdx = frameRing.getFrameIndex(slot);
+            frameRing.remove();
+        }
+        feedFrame(frameData, frameSize, framePts, frameIncomingUs, frameIsKey, frameNumber, frameIdx);
+    }
+
+    /**
+     * Feed a frame into the codec and handle its output.
+     * @throws Exception
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void feedFrame(byte[] frameData, int frameSize, long framePts, long frameIncomingUs, boolean frameIsKey,
+                           int frameNumber, long frameIdx) throws Exception {
+        if (framePts <= caughtUpPtsUs) {
+            // Already fed from the GOP buffer.
             return;
         }
         if (codec == null) {
-            if (dataHandler != null && !dataHandler.hasMessages(MSG_INIT_CODEC)) {
-                dataHandler.sendEmptyMessage(MSG_INIT_CODEC);
+            if (failingOver) {
+                framesMissedWhileFailingOver = true;
+                return;
+            }
+            if (decodeScheduler.isRunning() && !decodeScheduler.hasMessage(MSG_INIT_CODEC)) {
+                decodeScheduler.sendMessage(MSG_INIT_CODEC);
             }
             return;
         }
@@ -781,66 +2036,186 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
         if (inIndex >= 0) {
             //Log.d(TAG, "decodeFrame: index=" + inIndex);
             ByteBuffer buffer = codec.getInputBuffer(inIndex);
-            buffer.put(inputFrame.videoBuffer);
-            inputFrame.fedIntoCodecTime = System.currentTimeMillis();
-            long queueingDelay = inputFrame.getQueueDelay();
-            // Feed the frame data to the decoder.
-            codec.queueInputBuffer(inIndex, 0, inputFrame.size, inputFrame.pts, 0);
+            buffer.put(frameData, 0, frameSize);
+            long fedIntoCodecTimeUs = nowUs();
+            // Feed the frame data to the decoder. The presentation timestamp is in microseconds.
+            codec.queueInputBuffer(inIndex, 0, frameSize, framePts, 0);
+            ptsFrameMap.put(framePts, frameIdx, frameNumber, frameIncomingUs,
+                            fedIntoCodecTimeUs, frameIsKey, width, height);
+            watchdog.onInputQueued(nowMs());
+            if (standbyDecoder != null && hotStandbyEnabled) {
+                standbyDecoder.onFrameFed(frameData, frameSize, framePts, frameIsKey);
+            }
 
             // Get the output data from the decoder.
             int outIndex = codec.dequeueOutputBuffer(bufferInfo, 0);
 
             if (outIndex >= 0) {
                 //Log.d(TAG, "decodeFrame: outIndex: " + outIndex);
-                if (surface == null && yuvDataListener != null) {
+                watchdog.onOutput(nowMs());
+                boolean outputIsKey = onFrameOutput(bufferInfo.presentationTimeUs);
+                // The outputs of the frames fed while catching up are not shown, nor the corrupted ones
+                // while the display is frozen.
+                boolean render = bufferInfo.presentationTimeUs >= renderFromPtsUs
+                        && concealment.onOutput(bufferInfo.presentationTimeUs, outputIsKey, nowUs());
+                YuvFrameListener frameListener = yuvFrameListener;
+                if (render && configuredSurface == null
+                        && (yuvDataListener != null || frameListener != null || frameBus.hasSubscribers())) {
                     // If the surface is null, the yuv data should be get from the buffer and invoke the callback.
                     logd("decodeFrame: need callback");
                     ByteBuffer yuvDataBuf = codec.getOutputBuffer(outIndex);
+                    // The frame is the size bytes from the offset of the buffer.
+                    yuvDataBuf.limit(bufferInfo.offset + bufferInfo.size);
                     yuvDataBuf.position(bufferInfo.offset);
-                    yuvDataBuf.limit(bufferInfo.size - bufferInfo.offset);
+                    frameBus.publish(yuvDataBuf, FrameBus.Format.YUV, width, height, outputColorFormat, outputStride,
+                                     outputSliceHeight, bufferInfo.presentationTimeUs, lastOutputFrameIndex);
                     if (yuvDataListener != null) {
-                        yuvDataListener.onYuvDataReceived(codec.getOutputFormat(), yuvDataBuf, bufferInfo.size - bufferInfo.offset,  width, height);
+                        yuvDataBuf.position(bufferInfo.offset);
+                        yuvDataListener.onYuvDataReceived(codec.getOutputFormat(), yuvDataBuf, bufferInfo.size,  width, height);
+                    }
+                    // Last, as it may fall back to getOutputImage, which invalidates the buffer.
+                    if (frameListener != null) {
+                        deliverYuvFrame(frameListener, outIndex, yuvDataBuf);
+                    }
+                }
+                long renderTimestampNs = 0;
+                if (render && configuredSurface != null && jitterBuffer.isEnabled()
+                        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    long nowUs = nowUs();
+                    long displayUs = jitterBuffer.schedule(bufferInfo.presentationTimeUs, nowUs);
+                    if (displayUs == JitterBuffer.DROP) {
+                        // Too late to be displayed on time.
+                        render = false;
+                    } else {
+                        // The render time is on the clock of System.nanoTime.
+                        renderTimestampNs = System.nanoTime() + (displayUs - nowUs) * 1000;
                     }
                 }
                 // All the output buffer must be release no matter whether the yuv data is output or
                 // not, so that the codec can reuse the buffer.
-                codec.releaseOutputBuffer(outIndex, true);
+                PipelineTracer.begin(PipelineTracer.EVENT_OUTPUT_RELEASE);
+                GlFrameSplitter splitter = frameSplitter;
+                if (render && splitter != null && configuredSurface == splitter.getInputSurface()) {
+                    // The splitter displays the frame at the render time, the frame keeps its timestamp so
+                    // that the splitter can match it.
+                    splitter.onFrameReleased(bufferInfo.presentationTimeUs, lastOutputFrameIndex, width, height,
+                                             renderTimestampNs);
+                    codec.releaseOutputBuffer(outIndex, true);
+                } else if (renderTimestampNs != 0) {
+                    codec.releaseOutputBuffer(outIndex, renderTimestampNs);
+                } else {
+                    codec.releaseOutputBuffer(outIndex, render);
+                }
+                PipelineTracer.end(PipelineTracer.EVENT_OUTPUT_RELEASE);
+                if (render && configuredSurface != null) {
+                    onFrameRendered();
+                }
+                if (render && configuredSurface != null && frameBus.hasSubscribers()) {
+                    frameBus.publish(null, FrameBus.Format.SURFACE, width, height,
+                                     MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface, 0, 0,
+                                     bufferInfo.presentationTimeUs, lastOutputFrameIndex);
+                }
             } else if (outIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // The output buffer set is changed. So the decoder should be reinitialized and the
-                // output buffers should be retrieved.
-                long curTime = System.currentTimeMillis();
-                bufferChangedQueue.addLast(curTime);
-                if (bufferChangedQueue.size() >= 10) {
-                    long headTime = bufferChangedQueue.pollFirst();
-                    if (curTime - headTime < 1000) {
-                        // reset decoder
-                        loge("Reset decoder. Get INFO_OUTPUT_BUFFERS_CHANGED more than 10 times within a second.");
-                        bufferChangedQueue.clear();
-                        dataHandler.removeCallbacksAndMessages(null);
-                        dataHandler.sendEmptyMessage(MSG_INIT_CODEC);
-                        return;
-                    }
+                // The output buffer set is changed. If it happens too often, the watchdog will have the
+                // decoder reinitialized.
+                DecoderWatchdog.Action action = watchdog.onOutputBuffersChanged(nowMs());
+                if (action != DecoderWatchdog.Action.NONE) {
+                    loge("INFO_OUTPUT_BUFFERS_CHANGED storm, recover the codec: " + action);
+                    recoverCodec(action);
+                    return;
                 }
             } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                loge("format changed, color: " + codec.getOutputFormat().getInteger(MediaFormat.KEY_COLOR_FORMAT));
+                onOutputFormatChanged();
             }
         }else {
-            codec.flush();
+            // No input buffer is available, the frame is dropped. The watchdog flushes the codec if
+            // it stays starved.
+            if (!frameIsKey) {
+                concealment.freeze(framePts, nowUs());
+            }
+            recoverCodec(watchdog.onInputUnavailable(nowMs()));
         }
     }
 
     /**
-     * Stop the decoding process.
+     * Read the layout of the yuv output from the new output format.
      */
-    public void stop() {
-        if (dataHandler != null) {
-            dataHandler.removeCallbacksAndMessages(null);
+    private void onOutputFormatChanged() {
+        MediaFormat outputFormat = codec.getOutputFormat();
+        loge("format changed, color: " + outputFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT));
+        outputColorFormat = outputFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        outputStride = outputFormat.containsKey(MediaFormat.KEY_STRIDE)
+                ? outputFormat.getInteger(MediaFormat.KEY_STRIDE) : width;
+        outputSliceHeight = outputFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT)
+                ? outputFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : height;
+        if (outputFormat.containsKey(KEY_CROP_LEFT) && outputFormat.containsKey(KEY_CROP_BOTTOM)) {
+            outputCrop.set(outputFormat.getInteger(KEY_CROP_LEFT), outputFormat.getInteger(KEY_CROP_TOP),
+                           outputFormat.getInteger(KEY_CROP_RIGHT), outputFormat.getInteger(KEY_CROP_BOTTOM));
+        } else {
+            outputCrop.set(0, 0, width - 1, height - 1);
+        }
+        // Some decoders report a slice height smaller than the picture.
+        outputSliceHeight = Math.max(outputSliceHeight, outputCrop.bottom + 1);
+    }
+
+    /**
+     * Pass a view on an output buffer to the yuv frame listener. The layouts of the planar and semi-planar
+     * formats are derived from the output format, the other formats are read through getOutputImage.
+     * Invoke in the decoding thread.
+     */
+    private void deliverYuvFrame(YuvFrameListener frameListener, int outIndex, ByteBuffer yuvDataBuf) {
+        if (yuvFrameView.set(yuvDataBuf, bufferInfo.offset, outputColorFormat, outputStride, outputSliceHeight,
+                             outputCrop, bufferInfo.presentationTimeUs, lastOutputFrameIndex)) {
+            try {
+                frameListener.onYuvFrameReceived(yuvFrameView);
+            } finally {
+                yuvFrameView.invalidate();
+            }
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
         }
+        // The buffer returned before must not be used after getOutputImage.
+        Image image = codec.getOutputImage(outIndex);
+        if (image == null) {
+            return;
+        }
+        try {
+            yuvFrameView.set(image, outputColorFormat, bufferInfo.presentationTimeUs, lastOutputFrameIndex);
+            frameListener.onYuvFrameReceived(yuvFrameView);
+        } finally {
+            yuvFrameView.invalidate();
+            image.close();
+        }
+    }
 
-        if (frameQueue!=null){
-            frameQueue.clear();
-            hasIFrameInQueue = false;
+    /**
+     * Match a codec output to its source frame and update the latency.
+     * @param ptsUs Presentation timestamp of the output
+     * @return Whether the output is a key frame.
+     */
+    private boolean onFrameOutput(long ptsUs) {
+        int slot = ptsFrameMap.find(ptsUs);
+        if (slot < 0) {
+            return false;
         }
+        boolean isKeyFrame = ptsFrameMap.isKeyFrame(slot);
+        long latencyUs = nowUs() - ptsFrameMap.getIncomingTimeUs(slot);
+        lastOutputFrameIndex = ptsFrameMap.getFrameIndex(slot);
+        lastOutputLatencyUs = latencyUs;
+        averageLatencyUs = averageLatencyUs == 0 ? latencyUs : (averageLatencyUs * 7 + latencyUs) / 8;
+        ptsFrameMap.remove(slot);
+        return isKeyFrame;
+    }
+
+    /**
+     * Stop the decoding process.
+     */
+    public void stop() {
+        releaseStillCapture();
+        decodeScheduler.removeAllMessages();
+        // The queued frames are dropped once the decoding thread is stopped, it is their only consumer.
         if (codec != null) {
             try {
                 codec.flush();
@@ -859,7 +2234,7 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
 
     @Override
     public void onDataRecv(byte[] data, int size, int frameNum, boolean isKeyFrame, int width, int height) {
-        if (dataHandler == null || dataHandlerThread == null || !dataHandlerThread.isAlive()) {
+        if (!decodeScheduler.isRunning()) {
             return;
         }
         if (data.length != size) {
@@ -867,11 +2242,69 @@ public class DJIVideoStreamDecoder implements NativeHelper.NativeDataListener {
         } else {
             logd( "recv data size: " + size + ", frameNum: "+frameNum+", isKeyframe: "+isKeyFrame+"," +
                     " width: "+width+", height: " + height);
-            currentTime = System.currentTimeMillis();
+            currentTimeUs = nowUs();
+            long incomingUs = parsingArrivalTimeUs != 0 ? parsingArrivalTimeUs : currentTimeUs;
+            // The presentation timestamps must be strictly increasing.
+            long ptsUs = Math.max(currentTimeUs, lastPtsUs + 1);
+            lastPtsUs = ptsUs;
             frameIndex ++;
-            DJIFrame newFrame = new DJIFrame(data, size, currentTime, currentTime, isKeyFrame,
-                    frameNum, frameIndex, width, height);
-            dataHandler.obtainMessage(MSG_FRAME_QUEUE_IN, newFrame).sendToTarget();
+            PipelineTracer.instant(PipelineTracer.EVENT_DATA_RECV, frameIndex);
+            int flags = 0;
+            if (streamCodecType == NativeHelper.CODEC_HEVC) {
+                // The native parser only reports the frame information of H.264 streams.
+                h265Classifier.classify(data, 0, size);
+                isKeyFrame = h265Classifier.isKeyFrame();
+                frameNum = 0;
+                width = h265Classifier.getWidth();
+                height = h265Classifier.getHeight();
+                if (h265Classifier.isOpenGopKeyFrame()) {
+                    flags |= FrameRing.FLAG_OPEN_GOP_KEY_FRAME;
+                }
+                if (h265Classifier.isRasl()) {
+                    flags |= FrameRing.FLAG_SKIPPED_LEADING;
+                }
+                if (!h265Classifier.isReference()) {
+                    flags |= FrameRing.FLAG_NON_REFERENCE;
+                }
+            } else {
+                if (h264Classifier.classify(data, 0, size)) {
+                    // The values of the native parser are only used when the slice header can not be parsed.
+                    isKeyFrame = h264Classifier.isKeyFrame();
+                    frameNum = h264Classifier.getFrameNum();
+                    width = h264Classifier.getWidth();
+                    height = h264Classifier.getHeight();
+                }
+                if (!h264Classifier.isReference()) {
+                    flags |= FrameRing.FLAG_NON_REFERENCE;
+                }
+                if (checkFrameGap(isKeyFrame)) {
+                    return;
+                }
+            }
+            if (framesLost) {
+                flags |= FrameRing.FLAG_AFTER_LOSS;
+                lastLossPtsUs = ptsUs;
+                framesLost = false;
+            }
+            if ((flags & FrameRing.FLAG_SKIPPED_LEADING) == 0) {
+                // The GOP buffer is decoded from its key frame, the leading frames cannot be.
+                gopBuffer.add(data, size, ptsUs, isKeyFrame, width, height);
+            }
+            TimeShiftBuffer shiftBuffer = timeShiftBuffer;
+            if (shiftBuffer != null) {
+                shiftBuffer.write(data, size, ptsUs, isKeyFrame);
+            }
+            if (threadingMode == THREADING_FUSED) {
+                // Already in the decoding thread.
+                decodeFramedData(data, size, ptsUs, incomingUs, isKeyFrame, frameNum, frameIndex, width, height, flags);
+                return;
+            }
+            if (!frameRing.offer(data, size, ptsUs, incomingUs, isKeyFrame, frameNum, frameIndex, width, height,
+                    flags)) {
+                loge("frame ring full, drop the frame with index=" + frameIndex);
+                framesLost = true;
+            }
+            decodeScheduler.sendMessage(MSG_FRAME_QUEUE_IN);
 
         }
     }
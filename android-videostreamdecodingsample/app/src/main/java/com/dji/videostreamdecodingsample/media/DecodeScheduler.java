@@ -0,0 +1,49 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * The threading strategy of the decoding thread of {@link DJIVideoStreamDecoder}: which thread handles
+ * the decoder messages, at which priority, and how it waits for them.
+ *
+ * The messages carry no data, only their type. A message type is either pending or not, so sending a
+ * message which is already pending has no effect. All the methods may be invoked from any thread, the
+ * messages are handled one at a time in the decoding thread.
+ *
+ * Two strategies are provided, to be compared on a given device:
+ *
+ * - {@link HandlerDecodeScheduler}, a HandlerThread with its looper.
+ *
+ * - {@link RealtimeDecodeScheduler}, a dedicated loop thread which spins shortly while frames are
+ * expected and parks when idle.
+ */
+public interface DecodeScheduler {
+    interface MessageHandler {
+        /**
+         * Callback method invoked in the decoding thread.
+         * @param what Type of the message, from 0 to 31
+         */
+        void handleMessage(int what);
+    }
+
+    /**
+     * Start the decoding thread.
+     * @param handler The handler of the messages
+     */
+    void start(MessageHandler handler);
+
+    /**
+     * Stop the decoding thread and wait for it to end. The pending messages are dropped.
+     */
+    void stop();
+
+    boolean isRunning();
+
+    void sendMessage(int what);
+
+    void sendMessageDelayed(int what, long delayMs);
+
+    boolean hasMessage(int what);
+
+    void removeMessage(int what);
+
+    void removeAllMessages();
+}
@@ -0,0 +1,81 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The video codec used by {@link DJIVideoStreamDecoder}, the subset of MediaCodec the decoder needs. The
+ * methods behave like the MediaCodec ones, and return the same MediaCodec.INFO_* codes.
+ *
+ * Two backends are provided:
+ *
+ * - {@link MediaCodecBackend}, the hardware decoder of the device.
+ *
+ * - {@link SimulatedDecoderBackend}, a deterministic fake with a configurable decode latency, number of
+ * buffers and failures, timed by a {@link DecoderClock}, to exercise the decoding logic without a device.
+ */
+public interface DecoderBackend {
+    interface Factory {
+        /**
+         * Create a backend for a format. It is then configured and started by the decoder.
+         * @param format The format of the decoder, the factory may add keys to it, e.g. the low latency one
+         */
+        DecoderBackend create(MediaFormat format) throws IOException;
+    }
+
+    /**
+     * @return The name of the codec, for the logs.
+     */
+    String getName();
+
+    void configure(MediaFormat format, Surface surface);
+
+    void start();
+
+    void stop();
+
+    void flush();
+
+    void release();
+
+    /**
+     * Move the rendering to another surface, like MediaCodec.setOutputSurface.
+     */
+    void setOutputSurface(Surface surface);
+
+    /**
+     * @return The index of an available input buffer, -1 if none is available within the timeout.
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return The index of a decoded output buffer, or one of the MediaCodec.INFO_* codes.
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    /**
+     * @return The output as an image, null if the backend does not support it.
+     */
+    Image getOutputImage(int index);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Release an output buffer and render it to the surface at the given time.
+     * @param renderTimestampNs Display time on the System.nanoTime clock
+     */
+    void releaseOutputBuffer(int index, long renderTimestampNs);
+
+    MediaFormat getOutputFormat();
+}
@@ -0,0 +1,24 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.os.SystemClock;
+
+/**
+ * The monotonic clock timing the decoding: the arrival and output times of the frames, the watchdog and
+ * the rate limits. The wall clock is not used, because it may jump when the time is synchronized.
+ */
+public interface DecoderClock {
+    /**
+     * The clock of the device, SystemClock.elapsedRealtimeNanos.
+     */
+    DecoderClock SYSTEM = new DecoderClock() {
+        @Override
+        public long nowUs() {
+            return SystemClock.elapsedRealtimeNanos() / 1000;
+        }
+    };
+
+    /**
+     * @return Current time in microseconds.
+     */
+    long nowUs();
+}
@@ -0,0 +1,405 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * This class probes the decoders of the device and picks the best one for a video format.
+ *
+ * The decoders supporting the format are enumerated from MediaCodecList and scored on hardware
+ * acceleration, FEATURE_LowLatency, FEATURE_AdaptivePlayback and the maximum supported resolution.
+ * Optionally, {@link #runTimedProbe(Context, String, int)} decodes a bundled clip with every candidate and adds
+ * the measured decoding time to the score, see {@link DJIVideoStreamDecoder#setTimedProbeEnabled(boolean)}.
+ * The ranking is persisted per device fingerprint, so later launches pick the decoder without probing again.
+ */
+public class DecoderProbe {
+    private static final String TAG = DecoderProbe.class.getSimpleName();
+    private static final boolean DEBUG = false;
+    private static final String PREFS_NAME = "dji_decoder_probe";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_RANKING_PREFIX = "ranking_";
+    private static final String KEY_TIMED_PREFIX = "timed_";
+
+    private static final int SCORE_HARDWARE = 1000;
+    private static final int SCORE_LOW_LATENCY = 200;
+    private static final int SCORE_ADAPTIVE_PLAYBACK = 100;
+    private static final int SCORE_PER_1080P_AREA = 25;
+    private static final int MAX_AREA_SCORE = 4 * SCORE_PER_1080P_AREA;
+    private static final int SCORE_TIMED_DECODE_BASE = 300;
+    private static final int TIMED_DECODE_ROUNDS = 5;
+    private static final long TIMED_DECODE_TIMEOUT_US = 100000;
+
+    private static DecoderProbe instance;
+
+    private final SharedPreferences preferences;
+    private final String fingerprint;
+    private List<Candidate> ranking;
+    private String rankingMimeType;
+
+    /**
+     * A decoder and its score.
+     */
+    public static class Candidate {
+        public final String name;
+        public final boolean hardwareAccelerated;
+        public final boolean lowLatency;
+        public final boolean adaptivePlayback;
+        public final int maxWidth;
+        public final int maxHeight;
+        public int score;
+        /** Average time in ms to decode a frame of the bundled clip, -1 if not measured. */
+        public long decodeTimeMs = -1;
+
+        public Candidate(String name, boolean hardwareAccelerated, boolean lowLatency, boolean adaptivePlayback,
+                         int maxWidth, int maxHeight) {
+            this.name = name;
+            this.hardwareAccelerated = hardwareAccelerated;
+            this.lowLatency = lowLatency;
+            this.adaptivePlayback = adaptivePlayback;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        /**
+         * @return Whether the decoder can decode the given resolution.
+         */
+        public boolean supportsSize(int width, int height) {
+            return (maxWidth <= 0 || width <= maxWidth) && (maxHeight <= 0 || height <= maxHeight);
+        }
+    }
+
+    public synchronized static DecoderProbe getInstance(Context context) {
+        if (instance == null) {
+            instance = new DecoderProbe(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DecoderProbe(Context context) {
+        preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        fingerprint = Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+        if (!fingerprint.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            // Another device or a system update, the cached ranking is no longer valid.
+            preferences.edit().clear().putString(KEY_FINGERPRINT, fingerprint).apply();
+        }
+    }
+
+    /**
+     * Select the best decoder for the format and the resolution. The cached ranking is used if there is
+     * one, otherwise the decoders are probed and the ranking is persisted.
+     * @param mimeType Video format, e.g. "video/avc"
+     * @param width Width of current video stream
+     * @param height Height of current video stream
+     * @return The name of the decoder, or null if none could be found.
+     */
+    public synchronized String selectDecoder(String mimeType, int width, int height) {
+        for (Candidate candidate : getRanking(mimeType)) {
+            if (candidate.supportsSize(width, height)) {
+                return candidate.name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether the named decoder supports FEATURE_LowLatency.
+     */
+    public synchronized boolean isLowLatencySupported(String mimeType, String decoderName) {
+        for (Candidate candidate : getRanking(mimeType)) {
+            if (candidate.name.equals(decoderName)) {
+                return candidate.lowLatency;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the ranking of the decoders for the format, best first.
+     * @param mimeType Video format
+     * @return The ranked decoders
+     */
+    public synchronized List<Candidate> getRanking(String mimeType) {
+        if (ranking != null && mimeType.equals(rankingMimeType)) {
+            return ranking;
+        }
+        List<Candidate> candidates = readRanking(mimeType);
+        if (candidates == null) {
+            candidates = probe(mimeType);
+            sortAndSave(mimeType, candidates, false);
+        }
+        ranking = candidates;
+        rankingMimeType = mimeType;
+        return ranking;
+    }
+
+    /**
+     * Decode the bundled clip with every candidate and rank them again with the measured decoding time.
+     * This takes a while, so invoke it in a background thread. It is skipped if a timed ranking has been
+     * persisted already.
+     * @param context The application context
+     * @param mimeType Video format of the clip
+     * @param clipResId Raw resource of the clip, e.g. one of the default i-frames
+     */
+    public void runTimedProbe(Context context, String mimeType, int clipResId) {
+        synchronized (this) {
+            if (preferences.getBoolean(KEY_TIMED_PREFIX + mimeType, false)) {
+                return;
+            }
+        }
+        byte[] clip;
+        try {
+            clip = readClip(context, clipResId);
+        } catch (IOException e) {
+            loge("read probe clip error: " + e);
+            return;
+        }
+        List<Candidate> candidates = new ArrayList<Candidate>(getRanking(mimeType));
+        for (Candidate candidate : candidates) {
+            candidate.decodeTimeMs = timeDecode(candidate.name, mimeType, clip);
+        }
+        synchronized (this) {
+            sortAndSave(mimeType, candidates, true);
+            ranking = candidates;
+            rankingMimeType = mimeType;
+        }
+    }
+
+    /**
+     * Enumerate and score the decoders supporting the format.
+     */
+    private static List<Candidate> probe(String mimeType) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (MediaCodecInfo info : getCodecInfos()) {
+            if (info.isEncoder() || !supportsType(info, mimeType)) {
+                continue;
+            }
+            MediaCodecInfo.CodecCapabilities capabilities;
+            try {
+                capabilities = info.getCapabilitiesForType(mimeType);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            boolean lowLatency = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    && capabilities.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_LowLatency);
+            boolean adaptivePlayback = capabilities.isFeatureSupported(
+                    MediaCodecInfo.CodecCapabilities.FEATURE_AdaptivePlayback);
+            int maxWidth = 0;
+            int maxHeight = 0;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && capabilities.getVideoCapabilities() != null) {
+                maxWidth = capabilities.getVideoCapabilities().getSupportedWidths().getUpper();
+                maxHeight = capabilities.getVideoCapabilities().getSupportedHeights().getUpper();
+            }
+            Candidate candidate = new Candidate(info.getName(), isHardwareAccelerated(info), lowLatency,
+                                                adaptivePlayback, maxWidth, maxHeight);
+            candidates.add(candidate);
+        }
+        return candidates;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static List<MediaCodecInfo> getCodecInfos() {
+        List<MediaCodecInfo> infos = new ArrayList<MediaCodecInfo>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Collections.addAll(infos, new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos());
+        } else {
+            for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+                infos.add(MediaCodecList.getCodecInfoAt(i));
+            }
+        }
+        return infos;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mimeType) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private static boolean isHardwareAccelerated(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        // Before Android Q, the software decoders can only be told by their names.
+        String name = info.getName().toLowerCase();
+        return !(name.startsWith("omx.google.")
+                || name.startsWith("c2.android.")
+                || name.startsWith("omx.ffmpeg.")
+                || name.contains(".sw."));
+    }
+
+    private static int score(Candidate candidate) {
+        int score = 0;
+        if (candidate.hardwareAccelerated) {
+            score += SCORE_HARDWARE;
+        }
+        if (candidate.lowLatency) {
+            score += SCORE_LOW_LATENCY;
+        }
+        if (candidate.adaptivePlayback) {
+            score += SCORE_ADAPTIVE_PLAYBACK;
+        }
+        long area = (long) candidate.maxWidth * candidate.maxHeight;
+        score += (int) Math.min(MAX_AREA_SCORE, area * SCORE_PER_1080P_AREA / (1920 * 1080));
+        if (candidate.decodeTimeMs >= 0) {
+            // A decoder that could not decode the clip at all loses its hardware bonus.
+            score += candidate.decodeTimeMs == Long.MAX_VALUE
+                    ? -SCORE_HARDWARE
+                    : (int) Math.max(0, SCORE_TIMED_DECODE_BASE - 10 * candidate.decodeTimeMs);
+        }
+        return score;
+    }
+
+    private void sortAndSave(String mimeType, List<Candidate> candidates, boolean timed) {
+        for (Candidate candidate : candidates) {
+            candidate.score = score(candidate);
+        }
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate c1, Candidate c2) {
+                return c2.score - c1.score;
+            }
+        });
+        StringBuilder builder = new StringBuilder();
+        for (Candidate candidate : candidates) {
+            builder.append(candidate.name).append(',')
+                    .append(candidate.hardwareAccelerated ? 1 : 0).append(',')
+                    .append(candidate.lowLatency ? 1 : 0).append(',')
+                    .append(candidate.adaptivePlayback ? 1 : 0).append(',')
+                    .append(candidate.maxWidth).append(',')
+                    .append(candidate.maxHeight).append(',')
+                    .append(candidate.decodeTimeMs).append(';');
+        }
+        preferences.edit()
+                .putString(KEY_RANKING_PREFIX + mimeType, builder.toString())
+                .putBoolean(KEY_TIMED_PREFIX + mimeType, timed)
+                .apply();
+    }
+
+    private List<Candidate> readRanking(String mimeType) {
+        String saved = preferences.getString(KEY_RANKING_PREFIX + mimeType, null);
+        if (saved == null) {
+            return null;
+        }
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        try {
+            for (String entry : saved.split(";")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                String[] fields = entry.split(",");
+                Candidate candidate = new Candidate(fields[0],
+                                                    "1".equals(fields[1]),
+                                                    "1".equals(fields[2]),
+                                                    "1".equals(fields[3]),
+                                                    Integer.parseInt(fields[4]),
+                                                    Integer.parseInt(fields[5]));
+                candidate.decodeTimeMs = Long.parseLong(fields[6]);
+                candidate.score = score(candidate);
+                candidates.add(candidate);
+            }
+        } catch (RuntimeException e) {
+            loge("read saved ranking error: " + e);
+            return null;
+        }
+        return candidates;
+    }
+
+    private static byte[] readClip(Context context, int clipResId) throws IOException {
+        InputStream inputStream = context.getResources().openRawResource(clipResId);
+        try {
+            byte[] buffer = new byte[inputStream.available()];
+            int offset = 0;
+            while (offset < buffer.length) {
+                int length = inputStream.read(buffer, offset, buffer.length - offset);
+                if (length < 0) {
+                    break;
+                }
+                offset += length;
+            }
+            return buffer;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Decode the clip a few times with the named decoder.
+     * @return Average decoding time in ms, Long.MAX_VALUE if the decoder fails.
+     */
+    @SuppressWarnings("deprecation")
+    private static long timeDecode(String name, String mimeType, byte[] clip) {
+        MediaCodec codec = null;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        try {
+            codec = MediaCodec.createByCodecName(name);
+            // The resolution is only a hint here, the real one is read from the SPS of the clip.
+            MediaFormat format = MediaFormat.createVideoFormat(mimeType, 1280, 720);
+            codec.configure(format, null, null, 0);
+            codec.start();
+            ByteBuffer[] inputBuffers = codec.getInputBuffers();
+            long totalMs = 0;
+            for (int round = 0; round < TIMED_DECODE_ROUNDS; round++) {
+                long startMs = SystemClock.elapsedRealtime();
+                int inIndex = codec.dequeueInputBuffer(TIMED_DECODE_TIMEOUT_US);
+                if (inIndex < 0) {
+                    return Long.MAX_VALUE;
+                }
+                ByteBuffer buffer = inputBuffers[inIndex];
+                buffer.clear();
+                buffer.put(clip);
+                codec.queueInputBuffer(inIndex, 0, clip.length, round, 0);
+                int outIndex;
+                do {
+                    outIndex = codec.dequeueOutputBuffer(info, TIMED_DECODE_TIMEOUT_US);
+                    if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        return Long.MAX_VALUE;
+                    }
+                } while (outIndex < 0);
+                codec.releaseOutputBuffer(outIndex, false);
+                totalMs += SystemClock.elapsedRealtime() - startMs;
+                // Each round starts from a clean state, as the clip is a single i-frame.
+                codec.flush();
+            }
+            return totalMs / TIMED_DECODE_ROUNDS;
+        } catch (Exception e) {
+            loge("timed decode with " + name + " error: " + e);
+            return Long.MAX_VALUE;
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (Exception e) {
+                    loge("stop codec error: " + e.getMessage());
+                }
+                codec.release();
+            }
+        }
+    }
+
+    private static void loge(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.e(TAG, log);
+    }
+}
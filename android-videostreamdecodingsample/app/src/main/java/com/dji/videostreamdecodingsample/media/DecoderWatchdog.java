@@ -0,0 +1,303 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * This class watches the health of the hardware decoder and decides how it should be recovered.
+ *
+ * The decoder reports every input it queues, every output it receives, every failed attempt to get an
+ * input buffer, every exception and every INFO_OUTPUT_BUFFERS_CHANGED event. From these the watchdog
+ * detects four kinds of trouble:
+ *
+ * 1. Output stall: frames are fed into the codec but nothing comes out for a while (a hung codec).
+ *
+ * 2. Input starvation: the codec does not hand out any input buffer for a while.
+ *
+ * 3. Codec exceptions.
+ *
+ * 4. A storm of INFO_OUTPUT_BUFFERS_CHANGED events (10 within a second).
+ *
+ * Each detected problem escalates the recovery one level: flush, then reconfigure, then recreate the
+ * codec. The level drops back to flush once the decoder has produced output again for a while. Two
+ * limits keep the decoder from thrashing: consecutive recoveries are separated by an exponential
+ * backoff, and only a fixed number of recoveries is allowed within a sliding window (the reset budget).
+ *
+ * All the methods take the current time in milliseconds from a monotonic clock and must be called on
+ * the decoding thread. The listener is invoked on that thread as well.
+ */
+public class DecoderWatchdog {
+
+    /**
+     * The recovery the decoder should perform.
+     */
+    public enum Action {
+        NONE,
+        FLUSH,
+        RECONFIGURE,
+        RECREATE
+    }
+
+    /**
+     * The reason of a recovery.
+     */
+    public enum Trigger {
+        OUTPUT_STALL,
+        INPUT_STARVATION,
+        CODEC_EXCEPTION,
+        BUFFERS_CHANGED_STORM
+    }
+
+    /**
+     * The state transitions reported to the listener.
+     */
+    public enum Event {
+        /** A recovery is started, the value is the attempt number since the decoder was last healthy. */
+        RECOVERY_STARTED,
+        /** A recovery is postponed because of the backoff, the value is the remaining backoff in ms. */
+        RECOVERY_DEFERRED,
+        /** A recovery is refused because the reset budget is used up, the value is the budget size. */
+        BUDGET_EXHAUSTED,
+        /** The decoder produces output again, the value is the time in ms since the problem was detected. */
+        RECOVERED
+    }
+
+    public interface WatchdogListener {
+        /**
+         * Callback method for the watchdog state transitions. It is invoked in the decoding thread, so
+         * time consuming processing should not be done here.
+         * @param event The transition
+         * @param trigger The reason of the recovery
+         * @param action The recovery action, NONE if no recovery is performed
+         * @param value Event specific value, see {@link Event}
+         */
+        void onWatchdogEvent(Event event, Trigger trigger, Action action, long value);
+    }
+
+    private static final long OUTPUT_STALL_TIMEOUT_MS = 1500;
+    private static final int OUTPUT_STALL_MIN_PENDING_INPUTS = 5;
+    private static final long INPUT_STARVATION_TIMEOUT_MS = 200;
+    private static final int INPUT_STARVATION_MIN_ATTEMPTS = 3;
+    private static final int EXCEPTION_RATE_COUNT = 3;
+    private static final long EXCEPTION_RATE_WINDOW_MS = 2000;
+    private static final int BUFFERS_CHANGED_COUNT = 10;
+    private static final long BUFFERS_CHANGED_WINDOW_MS = 1000;
+    private static final long HEALTHY_RESET_MS = 3000;
+    private static final long BACKOFF_BASE_MS = 250;
+    private static final long BACKOFF_MAX_MS = 8000;
+    private static final int RESET_BUDGET = 6;
+    private static final long RESET_BUDGET_WINDOW_MS = 60000;
+
+    private WatchdogListener listener;
+
+    private long lastInputTimeMs;
+    private long lastOutputTimeMs;
+    private int inputsSinceOutput;
+    private long starvationStartMs = -1;
+    private int starvationAttempts;
+
+    private final long[] exceptionTimes = new long[EXCEPTION_RATE_COUNT];
+    private int exceptionCount;
+    private final long[] buffersChangedTimes = new long[BUFFERS_CHANGED_COUNT];
+    private int buffersChangedCount;
+    private final long[] recoveryTimes = new long[RESET_BUDGET];
+    private int recoveryCount;
+
+    private int level;
+    private long lastRecoveryTimeMs = -1;
+    private long backoffMs;
+    private long troubleStartMs = -1;
+    private Trigger lastTrigger;
+    private boolean budgetReported;
+
+    public void setListener(WatchdogListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forget the stalls and the errors of the previous codec instance. Invoke whenever the codec is
+     * initialized, including the recreations chosen by the watchdog itself, which keep the escalation.
+     * @param nowMs Current time
+     */
+    public void resetCounters(long nowMs) {
+        lastInputTimeMs = nowMs;
+        lastOutputTimeMs = nowMs;
+        inputsSinceOutput = 0;
+        starvationStartMs = -1;
+        starvationAttempts = 0;
+        exceptionCount = 0;
+        buffersChangedCount = 0;
+    }
+
+    /**
+     * Forget the escalation level and the backoff, e.g. when the codec is initialized on purpose for a new
+     * resolution, surface or codec type. Healthy output forgets them too, see {@link #onOutput(long)}.
+     */
+    public void resetEscalation() {
+        level = 0;
+        backoffMs = 0;
+        troubleStartMs = -1;
+        lastTrigger = null;
+    }
+
+    /**
+     * A frame is queued into the codec.
+     * @param nowMs Current time
+     */
+    public void onInputQueued(long nowMs) {
+        if (inputsSinceOutput == 0) {
+            // The stall timer starts with the first input that is waiting for an output.
+            lastOutputTimeMs = Math.max(lastOutputTimeMs, nowMs);
+        }
+        lastInputTimeMs = nowMs;
+        inputsSinceOutput++;
+        starvationStartMs = -1;
+        starvationAttempts = 0;
+    }
+
+    /**
+     * The codec has output a frame.
+     * @param nowMs Current time
+     */
+    public void onOutput(long nowMs) {
+        lastOutputTimeMs = nowMs;
+        inputsSinceOutput = 0;
+        if (troubleStartMs >= 0) {
+            notifyListener(Event.RECOVERED, lastTrigger, Action.NONE, nowMs - troubleStartMs);
+            troubleStartMs = -1;
+        }
+        if (level > 0 && lastRecoveryTimeMs >= 0 && nowMs - lastRecoveryTimeMs >= HEALTHY_RESET_MS) {
+            level = 0;
+            backoffMs = 0;
+            exceptionCount = 0;
+        }
+    }
+
+    /**
+     * The codec did not hand out an input buffer.
+     * @param nowMs Current time
+     * @return The recovery that should be performed
+     */
+    public Action onInputUnavailable(long nowMs) {
+        if (starvationStartMs < 0) {
+            starvationStartMs = nowMs;
+        }
+        starvationAttempts++;
+        if (starvationAttempts >= INPUT_STARVATION_MIN_ATTEMPTS
+                && nowMs - starvationStartMs >= INPUT_STARVATION_TIMEOUT_MS) {
+            starvationStartMs = -1;
+            starvationAttempts = 0;
+            return escalate(Trigger.INPUT_STARVATION, Action.FLUSH, nowMs);
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * The codec threw an exception.
+     * @param nowMs Current time
+     * @param isTransient Whether the codec reported the error as transient
+     * @param isRecoverable Whether the codec reported the error as recoverable by stop, configure and start
+     * @return The recovery that should be performed
+     */
+    public Action onCodecException(long nowMs, boolean isTransient, boolean isRecoverable) {
+        exceptionCount = record(exceptionTimes, exceptionCount, nowMs);
+        if (isTransient && !isRateExceeded(exceptionTimes, exceptionCount, EXCEPTION_RATE_WINDOW_MS, nowMs)) {
+            // A transient error is retried as it is, unless it keeps happening.
+            return Action.NONE;
+        }
+        if (isRateExceeded(exceptionTimes, exceptionCount, EXCEPTION_RATE_WINDOW_MS, nowMs)) {
+            exceptionCount = 0;
+            return escalate(Trigger.CODEC_EXCEPTION, Action.RECREATE, nowMs);
+        }
+        return escalate(Trigger.CODEC_EXCEPTION, isRecoverable ? Action.RECONFIGURE : Action.RECREATE, nowMs);
+    }
+
+    /**
+     * The codec reported INFO_OUTPUT_BUFFERS_CHANGED.
+     * @param nowMs Current time
+     * @return The recovery that should be performed
+     */
+    public Action onOutputBuffersChanged(long nowMs) {
+        buffersChangedCount = record(buffersChangedTimes, buffersChangedCount, nowMs);
+        if (isRateExceeded(buffersChangedTimes, buffersChangedCount, BUFFERS_CHANGED_WINDOW_MS, nowMs)) {
+            buffersChangedCount = 0;
+            return escalate(Trigger.BUFFERS_CHANGED_STORM, Action.RECREATE, nowMs);
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * Periodic check for a hung codec.
+     * @param nowMs Current time
+     * @return The recovery that should be performed
+     */
+    public Action check(long nowMs) {
+        // Only a codec that is still being fed is considered as stalled, a paused stream is not.
+        if (inputsSinceOutput >= OUTPUT_STALL_MIN_PENDING_INPUTS
+                && nowMs - lastOutputTimeMs >= OUTPUT_STALL_TIMEOUT_MS
+                && nowMs - lastInputTimeMs < OUTPUT_STALL_TIMEOUT_MS) {
+            return escalate(Trigger.OUTPUT_STALL, Action.FLUSH, nowMs);
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * Pick the recovery for a detected problem, taking the escalation level, the backoff and the reset
+     * budget into account.
+     */
+    private Action escalate(Trigger trigger, Action minimum, long nowMs) {
+        if (troubleStartMs < 0) {
+            troubleStartMs = nowMs;
+        }
+        lastTrigger = trigger;
+
+        if (lastRecoveryTimeMs >= 0 && nowMs - lastRecoveryTimeMs < backoffMs) {
+            notifyListener(Event.RECOVERY_DEFERRED, trigger, Action.NONE, backoffMs - (nowMs - lastRecoveryTimeMs));
+            return Action.NONE;
+        }
+        if (recoveryCount >= RESET_BUDGET
+                && nowMs - recoveryTimes[recoveryCount % RESET_BUDGET] < RESET_BUDGET_WINDOW_MS) {
+            if (!budgetReported) {
+                budgetReported = true;
+                notifyListener(Event.BUDGET_EXHAUSTED, trigger, Action.NONE, RESET_BUDGET);
+            }
+            return Action.NONE;
+        }
+        budgetReported = false;
+
+        Action action = Action.values()[Math.min(Action.RECREATE.ordinal(), Math.max(minimum.ordinal(), level + 1))];
+        level = action.ordinal();
+        recoveryTimes[recoveryCount % RESET_BUDGET] = nowMs;
+        recoveryCount++;
+        lastRecoveryTimeMs = nowMs;
+        backoffMs = backoffMs == 0 ? BACKOFF_BASE_MS : Math.min(BACKOFF_MAX_MS, backoffMs * 2);
+        // Give the codec a fresh chance after the recovery.
+        lastOutputTimeMs = nowMs;
+        inputsSinceOutput = 0;
+        notifyListener(Event.RECOVERY_STARTED, trigger, action, level);
+        return action;
+    }
+
+    /**
+     * Record a timestamp into a ring of timestamps.
+     * @return The new number of recorded timestamps
+     */
+    private static int record(long[] times, int count, long nowMs) {
+        times[count % times.length] = nowMs;
+        return count + 1;
+    }
+
+    /**
+     * Check whether the ring is full and its oldest timestamp is within the window.
+     */
+    private static boolean isRateExceeded(long[] times, int count, long windowMs, long nowMs) {
+        if (count < times.length) {
+            return false;
+        }
+        long oldest = times[count % times.length];
+        return nowMs - oldest < windowMs;
+    }
+
+    private void notifyListener(Event event, Trigger trigger, Action action, long value) {
+        if (listener != null) {
+            listener.onWatchdogEvent(event, trigger, action, value);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class distributes the frames of one decoder to several consumers, e.g. the display, a yuv
+ * analytics, a recorder and a snapshotter, so that the stream is never decoded twice.
+ *
+ * Each subscription has its own rate limit, format, drop-when-busy behavior and number of frames it may
+ * hold at a time, and is called back either in the publishing thread or with its own executor. The
+ * pixels of a decoded frame are copied at most once per format into a pooled and reference-counted
+ * buffer, no matter how many consumers receive it. Each consumer receives its own {@link SharedFrame}
+ * view of the buffer, taken from the frames reserved for its subscription, so a slow consumer only drops
+ * its own frames and never starves the others. A consumer must call {@link SharedFrame#release()} when
+ * it is done with the frame, and must not modify its data.
+ *
+ * A hardware decoder configured with a surface does not expose any pixels. While there is a
+ * {@link Format#YUV} or {@link Format#RGBA} subscription, the decoder keeps rendering to the surface
+ * and the pixels are read back from the rendered frames, see {@link GlFrameSplitter}.
+ */
+public class FrameBus {
+    /** Default number of frames a subscription may hold at a time. */
+    public static final int DEFAULT_MAX_HELD_FRAMES = 2;
+
+    /**
+     * What a subscriber wants to receive.
+     */
+    public enum Format {
+        /** A notification for every frame rendered to the surface, without pixels. */
+        SURFACE,
+        /**
+         * The yuv data of every decoded frame: I420 read back from the rendered frame, or the color format
+         * of the decoder when it outputs yuv buffers instead of rendering.
+         */
+        YUV,
+        /**
+         * The RGBA pixels of every rendered frame, 4 bytes per pixel, top row first. They are only
+         * available when the frames are read back from a rendered frame.
+         */
+        RGBA
+    }
+
+    public interface FrameSubscriber {
+        /**
+         * Callback method for receiving a frame. It is invoked in the publishing thread if the subscription
+         * has no executor, in which case time consuming processing should not be done here.
+         * @param frame The frame, call {@link SharedFrame#release()} when done with it.
+         */
+        void onFrame(SharedFrame frame);
+    }
+
+    public interface DemandListener {
+        /**
+         * Callback method invoked when the set of formats wanted by the subscribers changes.
+         * @param bus The bus, see {@link #isFormatNeeded(Format)}
+         */
+        void onDemandChanged(FrameBus bus);
+    }
+
+    /**
+     * The pixels of a published frame, shared by the frames delivered to every subscription.
+     */
+    private static final class PixelBuffer {
+        private final AtomicInteger refCount = new AtomicInteger();
+        private byte[] data;
+        private int size;
+    }
+
+    /**
+     * A decoded frame delivered to a subscription. The pixels are shared with the other subscriptions.
+     */
+    public static final class SharedFrame {
+        private final FrameBus bus;
+        private final Subscription owner;
+        private final AtomicInteger refCount = new AtomicInteger();
+        private PixelBuffer buffer;
+        private int width;
+        private int height;
+        private int colorFormat;
+        private int stride;
+        private int sliceHeight;
+        private long ptsUs;
+        private long frameIndex;
+
+        private SharedFrame(FrameBus bus, Subscription owner) {
+            this.bus = bus;
+            this.owner = owner;
+        }
+
+        /**
+         * @return The pixels, null for a {@link Format#SURFACE} notification. Only the first
+         * {@link #getSize()} bytes are valid.
+         */
+        public byte[] getData() {
+            return buffer != null ? buffer.data : null;
+        }
+
+        public int getSize() {
+            return buffer != null ? buffer.size : 0;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getColorFormat() {
+            return colorFormat;
+        }
+
+        public int getStride() {
+            return stride;
+        }
+
+        public int getSliceHeight() {
+            return sliceHeight;
+        }
+
+        public long getPtsUs() {
+            return ptsUs;
+        }
+
+        public long getFrameIndex() {
+            return frameIndex;
+        }
+
+        /**
+         * Keep the frame beyond the release of the current reference, e.g. to hand it to another thread.
+         * The frame counts against the frames held by the subscription until the last reference is released.
+         */
+        public void retain() {
+            refCount.incrementAndGet();
+        }
+
+        /**
+         * Give up a reference. The frame is recycled when the last reference is released.
+         */
+        public void release() {
+            if (refCount.decrementAndGet() == 0) {
+                PixelBuffer pixels = buffer;
+                buffer = null;
+                bus.releaseBuffer(pixels);
+                owner.frames.offer(this);
+            }
+        }
+    }
+
+    /**
+     * A subscription to the frames of the bus.
+     */
+    public static final class Subscription {
+        private final FrameSubscriber subscriber;
+        private final Format format;
+        private final long minIntervalUs;
+        private final boolean dropWhenBusy;
+        private final Executor executor;
+        private final int maxHeldFrames;
+        // The frames reserved for the subscription, which are not held by the subscriber.
+        private final ArrayBlockingQueue<SharedFrame> frames;
+        private final ArrayBlockingQueue<SharedFrame> pending;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Runnable deliverTask;
+        private long lastPtsUs = Long.MIN_VALUE;
+        private volatile long deliveredCount;
+        private volatile long droppedCount;
+
+        private Subscription(FrameBus bus, FrameSubscriber subscriber, Format format, long minIntervalMs,
+                             boolean dropWhenBusy, Executor executor, int maxHeldFrames) {
+            this.subscriber = subscriber;
+            this.format = format;
+            this.minIntervalUs = minIntervalMs * 1000;
+            this.dropWhenBusy = dropWhenBusy;
+            this.executor = executor;
+            this.maxHeldFrames = maxHeldFrames;
+            frames = new ArrayBlockingQueue<SharedFrame>(maxHeldFrames);
+            pending = new ArrayBlockingQueue<SharedFrame>(maxHeldFrames);
+            for (int i = 0; i < maxHeldFrames; i++) {
+                frames.offer(new SharedFrame(bus, this));
+            }
+            // One task object is reused for every frame, it delivers the oldest pending frame.
+            this.deliverTask = new Runnable() {
+                @Override
+                public void run() {
+                    SharedFrame frame = pending.poll();
+                    if (frame != null) {
+                        deliver(frame);
+                    }
+                }
+            };
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public int getMaxHeldFrames() {
+            return maxHeldFrames;
+        }
+
+        public long getDeliveredCount() {
+            return deliveredCount;
+        }
+
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        private void deliver(SharedFrame frame) {
+            try {
+                subscriber.onFrame(frame);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    // The pixel buffers not referenced by any frame. The pool grows up to one buffer per frame that the
+    // subscriptions may hold, plus the one being published.
+    private final ConcurrentLinkedQueue<PixelBuffer> bufferPool = new ConcurrentLinkedQueue<PixelBuffer>();
+    private volatile DemandListener demandListener;
+    private volatile boolean yuvNeeded;
+    private volatile boolean rgbaNeeded;
+
+    public void setDemandListener(DemandListener demandListener) {
+        this.demandListener = demandListener;
+    }
+
+    /**
+     * Subscribe to the frames, holding up to {@link #DEFAULT_MAX_HELD_FRAMES} frames at a time.
+     * @param subscriber The consumer
+     * @param format What the consumer wants to receive
+     * @param minIntervalMs Minimum time between two frames delivered to the consumer, 0 for every frame
+     * @param dropWhenBusy Whether a frame should be skipped while the consumer is still handling the previous one
+     * @param executor Executor calling the consumer back, null to call it back in the publishing thread
+     * @return The subscription, to unsubscribe with
+     */
+    public Subscription subscribe(FrameSubscriber subscriber, Format format, long minIntervalMs, boolean dropWhenBusy,
+                                  Executor executor) {
+        return subscribe(subscriber, format, minIntervalMs, dropWhenBusy, executor, DEFAULT_MAX_HELD_FRAMES);
+    }
+
+    /**
+     * Subscribe to the frames.
+     * @param maxHeldFrames Number of frames reserved for the consumer, i.e. the frames it may hold at a
+     *                      time, including the ones waiting for its executor. A frame is dropped for the
+     *                      consumer when they are all held.
+     * @see #subscribe(FrameSubscriber, Format, long, boolean, Executor)
+     */
+    public Subscription subscribe(FrameSubscriber subscriber, Format format, long minIntervalMs, boolean dropWhenBusy,
+                                  Executor executor, int maxHeldFrames) {
+        if (maxHeldFrames < 1) {
+            throw new IllegalArgumentException("A subscription must hold at least one frame: " + maxHeldFrames);
+        }
+        Subscription subscription = new Subscription(this, subscriber, format, minIntervalMs, dropWhenBusy, executor,
+                                                     maxHeldFrames);
+        subscriptions.add(subscription);
+        updateDemand();
+        return subscription;
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        if (subscription != null && subscriptions.remove(subscription)) {
+            SharedFrame frame;
+            while ((frame = subscription.pending.poll()) != null) {
+                subscription.inFlight.decrementAndGet();
+                frame.release();
+            }
+            updateDemand();
+        }
+    }
+
+    /**
+     * @return Whether a subscriber wants the given format.
+     */
+    public boolean isFormatNeeded(Format format) {
+        switch (format) {
+            case YUV:
+                return yuvNeeded;
+            case RGBA:
+                return rgbaNeeded;
+            default:
+                return hasSubscribers();
+        }
+    }
+
+    /**
+     * @return Whether a subscriber wants pixels, in any format.
+     */
+    public boolean isPixelsNeeded() {
+        return yuvNeeded || rgbaNeeded;
+    }
+
+    /**
+     * @return Whether there is any subscriber.
+     */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /**
+     * Publish a decoded frame to the subscriptions of its format. Invoke in a single thread per format.
+     * @param pixels The pixels from their position to their limit, null for a {@link Format#SURFACE} notification
+     * @param format Format of the pixels
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param colorFormat Color format of the pixels
+     * @param stride Row stride of the luma plane, or of the RGBA rows
+     * @param sliceHeight Number of rows of the luma plane
+     * @param ptsUs Presentation timestamp of the frame
+     * @param frameIndex Index of the source frame
+     */
+    public void publish(ByteBuffer pixels, Format format, int width, int height, int colorFormat, int stride,
+                        int sliceHeight, long ptsUs, long frameIndex) {
+        PixelBuffer buffer = null;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.format != format) {
+                continue;
+            }
+            if (subscription.lastPtsUs != Long.MIN_VALUE && ptsUs - subscription.lastPtsUs < subscription.minIntervalUs) {
+                continue;
+            }
+            if (subscription.dropWhenBusy && subscription.inFlight.get() > 0) {
+                subscription.droppedCount++;
+                continue;
+            }
+            SharedFrame frame = subscription.frames.poll();
+            if (frame == null) {
+                // The consumer holds all its frames.
+                subscription.droppedCount++;
+                continue;
+            }
+            if (buffer == null && pixels != null) {
+                buffer = obtainBuffer(pixels);
+            }
+            if (buffer != null) {
+                buffer.refCount.incrementAndGet();
+            }
+            frame.buffer = buffer;
+            frame.width = width;
+            frame.height = height;
+            frame.colorFormat = colorFormat;
+            frame.stride = stride;
+            frame.sliceHeight = sliceHeight;
+            frame.ptsUs = ptsUs;
+            frame.frameIndex = frameIndex;
+            frame.refCount.set(1);
+            subscription.lastPtsUs = ptsUs;
+            subscription.inFlight.incrementAndGet();
+            subscription.deliveredCount++;
+            if (subscription.executor == null) {
+                subscription.deliver(frame);
+            } else if (subscription.pending.offer(frame)) {
+                subscription.executor.execute(subscription.deliverTask);
+            } else {
+                subscription.inFlight.decrementAndGet();
+                subscription.deliveredCount--;
+                subscription.droppedCount++;
+                frame.release();
+            }
+        }
+        // The reference of the publisher.
+        releaseBuffer(buffer);
+    }
+
+    /**
+     * Take a buffer from the pool and copy the pixels into it, the only copy of the pixels.
+     */
+    private PixelBuffer obtainBuffer(ByteBuffer pixels) {
+        PixelBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            buffer = new PixelBuffer();
+        }
+        int size = pixels.remaining();
+        if (buffer.data == null || buffer.data.length < size) {
+            buffer.data = new byte[size];
+        }
+        int position = pixels.position();
+        pixels.get(buffer.data, 0, size);
+        pixels.position(position);
+        buffer.size = size;
+        buffer.refCount.set(1);
+        return buffer;
+    }
+
+    private void releaseBuffer(PixelBuffer buffer) {
+        if (buffer != null && buffer.refCount.decrementAndGet() == 0) {
+            bufferPool.offer(buffer);
+        }
+    }
+
+    private void updateDemand() {
+        boolean yuv = false;
+        boolean rgba = false;
+        for (Subscription subscription : subscriptions) {
+            yuv |= subscription.format == Format.YUV;
+            rgba |= subscription.format == Format.RGBA;
+        }
+        if (yuv != yuvNeeded || rgba != rgbaNeeded) {
+            yuvNeeded = yuv;
+            rgbaNeeded = rgba;
+            DemandListener listener = demandListener;
+            if (listener != null) {
+                listener.onDemandChanged(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * Track the continuity of the frame_num of an H.264 stream. The frame_num of a picture is the one of the
+ * previous reference picture, plus one if that picture was a reference one, modulo MaxFrameNum. Any other
+ * value means that reference pictures were lost, so the pictures after them refer to frames the decoder
+ * never got, and would be decoded smeared.
+ *
+ * The tracker resynchronizes on the next frame after a reset, e.g. at the key frame ending a gap. It is
+ * only updated in the framing thread, the counters can be read from any thread.
+ */
+public class FrameNumTracker {
+    private static final int NONE = -1;
+
+    private int prevRefFrameNum = NONE;
+    private volatile long gapCount;
+    private volatile long lostFrameCount;
+
+    /**
+     * Check the frame_num of a frame, in decoding order.
+     * @param frameNum frame_num of the frame
+     * @param maxFrameNum MaxFrameNum of its SPS
+     * @param isIdr Whether the frame is an IDR, which restarts the numbering
+     * @param isReference Whether the frame is a reference frame
+     * @param gapsAllowed gaps_in_frame_num_value_allowed_flag of its SPS, the encoder may skip numbers then
+     * @return true if there is a gap before the frame. The tracker is then reset.
+     */
+    public boolean onFrame(int frameNum, int maxFrameNum, boolean isIdr, boolean isReference, boolean gapsAllowed) {
+        if (isIdr || prevRefFrameNum == NONE || gapsAllowed) {
+            prevRefFrameNum = isReference ? frameNum : NONE;
+            return false;
+        }
+        int expected = (prevRefFrameNum + 1) % maxFrameNum;
+        if (frameNum != expected && frameNum != prevRefFrameNum) {
+            gapCount++;
+            lostFrameCount += (frameNum - expected + maxFrameNum) % maxFrameNum;
+            prevRefFrameNum = NONE;
+            return true;
+        }
+        if (isReference) {
+            prevRefFrameNum = frameNum;
+        }
+        return false;
+    }
+
+    /**
+     * Forget the previous frames, the next frame is taken as the start of the numbering.
+     */
+    public void reset() {
+        prevRefFrameNum = NONE;
+    }
+
+    /**
+     * @return Number of gaps detected.
+     */
+    public long getGapCount() {
+        return gapCount;
+    }
+
+    /**
+     * @return Number of reference frames missing in the gaps, as far as the frame_num tells: a gap of a whole
+     * MaxFrameNum period is not seen.
+     */
+    public long getLostFrameCount() {
+        return lostFrameCount;
+    }
+}
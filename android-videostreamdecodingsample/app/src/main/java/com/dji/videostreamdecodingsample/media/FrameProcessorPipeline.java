@@ -0,0 +1,220 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class runs frame processing stages, e.g. analytics or detection, off the decoding thread. Please
+ * follow the following steps to use it:
+ *
+ * 1. Add the stages with {@link #addStage(String, Stage)}, in the order a frame goes through them.
+ *
+ * 2. Call {@link #attach(FrameBus)} with the frame bus of the decoder. The decoding thread only hands
+ * each frame over to the first stage, which never blocks.
+ *
+ * 3. Read the timing of each stage with {@link #getStages()}, and call {@link #detach()} when done.
+ *
+ * Each stage has its own thread and holds at most one frame in flight plus one waiting. A new frame
+ * replaces the waiting one, so a stage slower than the frame interval processes the latest frames and
+ * skips the others, without delaying the stages before it or the decoder. The subscription of the
+ * pipeline reserves these two frames per stage in the frame bus, so it never starves the other subscribers.
+ */
+public class FrameProcessorPipeline {
+    private static final String TAG = FrameProcessorPipeline.class.getSimpleName();
+    private static final boolean DEBUG = false;
+    // A frame in flight and a frame waiting.
+    private static final int FRAMES_PER_STAGE = 2;
+
+    public interface Stage {
+        /**
+         * Process a frame. Invoke in the thread of the stage. The frame must not be modified or released
+         * here, it is passed to the next stage afterwards.
+         * @param frame The frame
+         * @return false to stop the frame here, it is then not passed to the next stages.
+         */
+        boolean process(FrameBus.SharedFrame frame);
+    }
+
+    /**
+     * A stage of the pipeline with its timing statistics.
+     */
+    public final class StageRunner {
+        private final String name;
+        private final Stage stage;
+        private final HandlerThread thread;
+        private final Handler handler;
+        private final AtomicReference<FrameBus.SharedFrame> waiting = new AtomicReference<FrameBus.SharedFrame>();
+        private final Runnable processTask;
+        private StageRunner next;
+        private volatile long processedCount;
+        private volatile long droppedCount;
+        private volatile long lastTimeUs;
+        private volatile long averageTimeUs;
+        private volatile long maxTimeUs;
+
+        private StageRunner(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+            thread = new HandlerThread("frame processor " + name);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            processTask = new Runnable() {
+                @Override
+                public void run() {
+                    processWaiting();
+                }
+            };
+        }
+
+        /**
+         * Hand a frame over to the stage, taking its reference. Never blocks.
+         */
+        private void offer(FrameBus.SharedFrame frame) {
+            FrameBus.SharedFrame replaced = waiting.getAndSet(frame);
+            if (replaced != null) {
+                // The stage is still busy with an older frame, only the latest frame waits.
+                droppedCount++;
+                replaced.release();
+            } else {
+                handler.post(processTask);
+            }
+        }
+
+        private void processWaiting() {
+            FrameBus.SharedFrame frame = waiting.getAndSet(null);
+            if (frame == null) {
+                return;
+            }
+            long startNs = SystemClock.elapsedRealtimeNanos();
+            boolean passOn = false;
+            try {
+                passOn = stage.process(frame);
+            } catch (Exception e) {
+                loge("stage " + name + " error: " + e);
+            }
+            long timeUs = (SystemClock.elapsedRealtimeNanos() - startNs) / 1000;
+            lastTimeUs = timeUs;
+            averageTimeUs = averageTimeUs == 0 ? timeUs : (averageTimeUs * 7 + timeUs) / 8;
+            if (timeUs > maxTimeUs) {
+                maxTimeUs = timeUs;
+            }
+            processedCount++;
+            StageRunner nextStage = next;
+            if (passOn && nextStage != null) {
+                nextStage.offer(frame);
+            } else {
+                frame.release();
+            }
+        }
+
+        private void quit() {
+            handler.removeCallbacksAndMessages(null);
+            thread.quitSafely();
+            FrameBus.SharedFrame frame = waiting.getAndSet(null);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getProcessedCount() {
+            return processedCount;
+        }
+
+        /**
+         * @return Number of frames replaced by a newer one before the stage could process them.
+         */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        public long getLastTimeUs() {
+            return lastTimeUs;
+        }
+
+        public long getAverageTimeUs() {
+            return averageTimeUs;
+        }
+
+        public long getMaxTimeUs() {
+            return maxTimeUs;
+        }
+    }
+
+    private final List<StageRunner> stages = new ArrayList<StageRunner>();
+    private FrameBus frameBus;
+    private FrameBus.Subscription subscription;
+
+    private static void loge(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.e(TAG, log);
+    }
+
+    /**
+     * Add a stage at the end of the pipeline. It can not be called once the pipeline is attached.
+     * @param name Name of the stage, used for its thread and statistics
+     * @param stage The stage
+     */
+    public synchronized void addStage(String name, Stage stage) {
+        if (subscription != null) {
+            throw new IllegalStateException("The pipeline is already attached");
+        }
+        StageRunner runner = new StageRunner(name, stage);
+        if (!stages.isEmpty()) {
+            stages.get(stages.size() - 1).next = runner;
+        }
+        stages.add(runner);
+    }
+
+    /**
+     * Feed the pipeline with the yuv frames of a decoder.
+     * @param bus The frame bus of the decoder, see {@link DJIVideoStreamDecoder#getFrameBus()}
+     */
+    public synchronized void attach(FrameBus bus) {
+        if (subscription != null || stages.isEmpty()) {
+            return;
+        }
+        final StageRunner first = stages.get(0);
+        frameBus = bus;
+        // Called back in the publishing thread, which only hands the frame over.
+        subscription = bus.subscribe(new FrameBus.FrameSubscriber() {
+            @Override
+            public void onFrame(FrameBus.SharedFrame frame) {
+                first.offer(frame);
+            }
+        }, FrameBus.Format.YUV, 0, false, null, FRAMES_PER_STAGE * stages.size());
+    }
+
+    /**
+     * Stop feeding the pipeline and stop the threads of the stages.
+     */
+    public synchronized void detach() {
+        if (subscription != null) {
+            frameBus.unsubscribe(subscription);
+            subscription = null;
+            frameBus = null;
+        }
+        for (StageRunner runner : stages) {
+            runner.quit();
+        }
+        stages.clear();
+    }
+
+    /**
+     * @return The stages in their order, with their statistics.
+     */
+    public synchronized List<StageRunner> getStages() {
+        return new ArrayList<StageRunner>(stages);
+    }
+}
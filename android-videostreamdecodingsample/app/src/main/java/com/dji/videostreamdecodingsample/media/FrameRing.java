@@ -0,0 +1,251 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The queue of the framed data between the framing thread and the decoding thread, kept as parallel
+ * primitive arrays indexed by ring slot instead of one object per frame. The payload of a frame is
+ * referenced by its slot.
+ *
+ * The ring has a single producer, the framing thread, and a single consumer, the decoding thread, so
+ * it needs no lock: the producer publishes a frame by advancing the tail and the consumer frees a slot
+ * by advancing the head. The frames between the head and the tail are split in two parts:
+ *
+ * - From the head to the inspected mark, the frames already checked by the consumer, i.e. the queue of
+ * the frames waiting to be decoded. The rejected frames stay in their slots until the head passes them,
+ * they are neither counted nor returned.
+ *
+ * - From the inspected mark to the tail, the frames just received, which the consumer checks one by one
+ * with {@link #nextReceived()} and then accepts into the queue or rejects.
+ *
+ * Every position is a sequence number, the slot being the sequence number modulo the capacity.
+ */
+public class FrameRing {
+    /** The frame is not a reference frame, it can be dropped without breaking the decoding. */
+    public static final int FLAG_NON_REFERENCE = 1;
+    /** The frame is a leading frame which cannot be decoded when the decoding starts at its key frame. */
+    public static final int FLAG_SKIPPED_LEADING = 2;
+    /** The frame is a key frame which may be followed by leading frames referring to the previous GOP. */
+    public static final int FLAG_OPEN_GOP_KEY_FRAME = 4;
+    /** Frames were lost before the frame, the frames up to the next key frame may be corrupted. */
+    public static final int FLAG_AFTER_LOSS = 8;
+
+    private final int capacity;
+    private final int mask;
+    private final byte[][] payloads;
+    private final int[] sizes;
+    private final long[] pts;
+    private final long[] incomingTimeUs;
+    private final boolean[] keyFrames;
+    private final int[] frameNums;
+    private final long[] frameIndexes;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] flags;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // Only accessed by the consumer.
+    private long inspected;
+    private int queuedCount;
+    private volatile long rejectedCount;
+    private volatile long overflowCount;
+
+    /**
+     * @param capacity Number of slots, a power of two
+     */
+    public FrameRing(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        mask = capacity - 1;
+        payloads = new byte[capacity][];
+        sizes = new int[capacity];
+        pts = new long[capacity];
+        incomingTimeUs = new long[capacity];
+        keyFrames = new boolean[capacity];
+        frameNums = new int[capacity];
+        frameIndexes = new long[capacity];
+        widths = new int[capacity];
+        heights = new int[capacity];
+        flags = new int[capacity];
+    }
+
+    /**
+     * Add a received frame. Invoke in the framing thread.
+     * @param frameFlags The {@code FLAG_*} bits of the frame
+     * @return false if the ring is full, then the frame is dropped.
+     */
+    public boolean offer(byte[] data, int size, long ptsUs, long incomingUs, boolean isKeyFrame, int frameNum,
+                         long frameIndex, int width, int height, int frameFlags) {
+        long sequence = tail.get();
+        if (sequence - head.get() >= capacity) {
+            overflowCount++;
+            return false;
+        }
+        int slot = (int) sequence & mask;
+        payloads[slot] = data;
+        sizes[slot] = size;
+        pts[slot] = ptsUs;
+        incomingTimeUs[slot] = incomingUs;
+        keyFrames[slot] = isKeyFrame;
+        frameNums[slot] = frameNum;
+        frameIndexes[slot] = frameIndex;
+        widths[slot] = width;
+        heights[slot] = height;
+        flags[slot] = frameFlags;
+        // Publish the frame to the consumer.
+        tail.lazySet(sequence + 1);
+        return true;
+    }
+
+    /**
+     * Get the next received frame to check. Invoke in the decoding thread.
+     * @return Its slot, -1 if there is none. It must then be accepted or rejected.
+     */
+    public int nextReceived() {
+        if (inspected == tail.get()) {
+            return -1;
+        }
+        return (int) inspected & mask;
+    }
+
+    /**
+     * Add the checked frame to the queue of the frames to decode. Invoke in the decoding thread.
+     */
+    public void accept() {
+        inspected++;
+        queuedCount++;
+    }
+
+    /**
+     * Drop the checked frame. Invoke in the decoding thread.
+     */
+    public void reject() {
+        int slot = (int) inspected & mask;
+        // The frame stays in its slot until the head passes it, the consumer never sees it again.
+        payloads[slot] = null;
+        inspected++;
+        rejectedCount++;
+    }
+
+    /**
+     * @return Number of accepted frames waiting to be decoded. Invoke in the decoding thread.
+     */
+    public int getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Get the oldest accepted frame. Invoke in the decoding thread.
+     * @return Its slot, -1 if the queue is empty.
+     */
+    public int peek() {
+        long sequence = skipRejected();
+        if (sequence == inspected) {
+            return -1;
+        }
+        return (int) sequence & mask;
+    }
+
+    /**
+     * Remove the oldest accepted frame and free its slot. Invoke in the decoding thread.
+     */
+    public void remove() {
+        long sequence = skipRejected();
+        if (sequence == inspected) {
+            return;
+        }
+        payloads[(int) sequence & mask] = null;
+        queuedCount--;
+        head.lazySet(sequence + 1);
+    }
+
+    /**
+     * Free the slots of the rejected frames at the head, so that it is at an accepted frame.
+     * @return The new head
+     */
+    private long skipRejected() {
+        long sequence = head.get();
+        long start = sequence;
+        while (sequence != inspected && payloads[(int) sequence & mask] == null) {
+            sequence++;
+        }
+        if (sequence != start) {
+            head.lazySet(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Drop all the frames, the accepted ones and the received ones. Invoke in the decoding thread, or
+     * once the decoding thread is stopped.
+     */
+    public void clear() {
+        long end = tail.get();
+        for (long sequence = head.get(); sequence < end; sequence++) {
+            payloads[(int) sequence & mask] = null;
+        }
+        inspected = end;
+        queuedCount = 0;
+        head.lazySet(end);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of frames rejected by the consumer.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return Number of frames dropped because the consumer did not keep up.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    public byte[] getPayload(int slot) {
+        return payloads[slot];
+    }
+
+    public int getSize(int slot) {
+        return sizes[slot];
+    }
+
+    public long getPts(int slot) {
+        return pts[slot];
+    }
+
+    public long getIncomingTimeUs(int slot) {
+        return incomingTimeUs[slot];
+    }
+
+    public boolean isKeyFrame(int slot) {
+        return keyFrames[slot];
+    }
+
+    public int getFrameNum(int slot) {
+        return frameNums[slot];
+    }
+
+    public long getFrameIndex(int slot) {
+        return frameIndexes[slot];
+    }
+
+    public int getWidth(int slot) {
+        return widths[slot];
+    }
+
+    public int getHeight(int slot) {
+        return heights[slot];
+    }
+
+    public int getFlags(int slot) {
+        return flags[slot];
+    }
+}
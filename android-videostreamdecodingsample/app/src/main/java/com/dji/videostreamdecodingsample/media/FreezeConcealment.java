@@ -0,0 +1,160 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * Conceal the corrupted pictures by freezing the display on the last good one. After frames were lost or
+ * the codec failed, the decoded pictures refer to missing data until the next key frame, and show
+ * macroblock garbage. While frozen, the outputs are released without being rendered, so the surface keeps
+ * showing the last picture rendered, until a key frame is decoded, or until the maximum freeze duration if
+ * one is set and no key frame comes.
+ *
+ * It is updated in the decoding thread, the metrics can be read from any thread.
+ */
+public class FreezeConcealment {
+    private static final long NOT_FROZEN = Long.MAX_VALUE;
+
+    private volatile boolean enabled;
+    private volatile long maxFreezeDurationUs;
+    // The outputs from this timestamp are suppressed, NOT_FROZEN if the display is not frozen.
+    private long freezeFromPtsUs = NOT_FROZEN;
+    private long freezeStartUs;
+    private boolean suppressing;
+    private volatile long freezeCount;
+    private volatile long suppressedFrameCount;
+    private volatile long lastFreezeDurationUs;
+    private volatile long longestFreezeDurationUs;
+    private volatile long totalFreezeDurationUs;
+
+    /**
+     * Enable or disable the concealment. Disabling it ends the current freeze.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Limit the duration of a freeze, e.g. when the key frame requests are not answered. The display then
+     * goes on with the corrupted pictures rather than staying frozen.
+     * @param maxFreezeDurationUs Maximum duration from the detection of the broken frames, 0 for no limit
+     *                            (the default)
+     */
+    public void setMaxFreezeDurationUs(long maxFreezeDurationUs) {
+        if (maxFreezeDurationUs < 0) {
+            throw new IllegalArgumentException("Invalid duration: " + maxFreezeDurationUs);
+        }
+        this.maxFreezeDurationUs = maxFreezeDurationUs;
+    }
+
+    public long getMaxFreezeDurationUs() {
+        return maxFreezeDurationUs;
+    }
+
+    /**
+     * Freeze the display, the frames were broken from the given one.
+     * @param fromPtsUs Timestamp of the first broken frame, Long.MIN_VALUE to freeze from the next output
+     * @param nowUs Current time of the monotonic clock
+     */
+    public void freeze(long fromPtsUs, long nowUs) {
+        if (!enabled) {
+            return;
+        }
+        if (freezeFromPtsUs == NOT_FROZEN) {
+            freezeStartUs = nowUs;
+            suppressing = false;
+        }
+        // The earliest broken frame wins, a second gap while frozen extends the freeze.
+        freezeFromPtsUs = Math.min(freezeFromPtsUs, fromPtsUs);
+    }
+
+    /**
+     * Check whether an output should be rendered. A key frame output ends the freeze, as does any output
+     * once the maximum freeze duration is over.
+     * @param ptsUs Timestamp of the output
+     * @param isKeyFrame Whether the output is a key frame
+     * @param nowUs Current time of the monotonic clock
+     * @return false if the output should be suppressed.
+     */
+    public boolean onOutput(long ptsUs, boolean isKeyFrame, long nowUs) {
+        if (freezeFromPtsUs == NOT_FROZEN) {
+            return true;
+        }
+        if (!enabled) {
+            endFreeze(nowUs);
+            return true;
+        }
+        if (ptsUs < freezeFromPtsUs) {
+            // Decoded before the broken frames.
+            return true;
+        }
+        long maxDurationUs = maxFreezeDurationUs;
+        if (isKeyFrame || (maxDurationUs > 0 && nowUs - freezeStartUs >= maxDurationUs)) {
+            endFreeze(nowUs);
+            return true;
+        }
+        if (!suppressing) {
+            suppressing = true;
+            freezeCount++;
+        }
+        suppressedFrameCount++;
+        return false;
+    }
+
+    /**
+     * End the freeze without waiting for a key frame output, the codec was fed again from a key frame with
+     * all the frames following it, e.g. from the GOP buffer.
+     * @param nowUs Current time of the monotonic clock
+     */
+    public void release(long nowUs) {
+        if (freezeFromPtsUs != NOT_FROZEN) {
+            endFreeze(nowUs);
+        }
+    }
+
+    public boolean isFrozen() {
+        return freezeFromPtsUs != NOT_FROZEN;
+    }
+
+    private void endFreeze(long nowUs) {
+        freezeFromPtsUs = NOT_FROZEN;
+        if (!suppressing) {
+            // Nothing was suppressed, the display did not freeze.
+            return;
+        }
+        long durationUs = nowUs - freezeStartUs;
+        lastFreezeDurationUs = durationUs;
+        longestFreezeDurationUs = Math.max(longestFreezeDurationUs, durationUs);
+        totalFreezeDurationUs += durationUs;
+    }
+
+    /**
+     * @return Number of times the display was frozen.
+     */
+    public long getFreezeCount() {
+        return freezeCount;
+    }
+
+    /**
+     * @return Number of decoded frames not shown while frozen.
+     */
+    public long getSuppressedFrameCount() {
+        return suppressedFrameCount;
+    }
+
+    /**
+     * @return Duration of the last freeze, from the detection of the broken frames to the output ending it.
+     */
+    public long getLastFreezeDurationUs() {
+        return lastFreezeDurationUs;
+    }
+
+    public long getLongestFreezeDurationUs() {
+        return longestFreezeDurationUs;
+    }
+
+    public long getTotalFreezeDurationUs() {
+        return totalFreezeDurationUs;
+    }
+}
@@ -0,0 +1,654 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * This class splits the frames a decoder renders to a surface between the displaying surface and a
+ * readback of their pixels. A hardware decoder renders either to a surface or to yuv buffers, so without
+ * it a consumer of the pixels would have the decoder configured without the displaying surface, leaving
+ * the display black.
+ *
+ * The decoder renders to the input surface of the splitter, a SurfaceTexture. In the splitter thread,
+ * every frame is drawn to the displaying surface first, at the render time given by the decoder, then
+ * read back if wanted:
+ *
+ * - As I420, packed by a shader into an RGBA texture a quarter as wide and 3/2 as high as the frame, so
+ * that glReadPixels returns the Y, U and V planes one after the other. The width is cropped to a multiple
+ * of 8 and the height to a multiple of 4.
+ *
+ * - As RGBA, top row first.
+ *
+ * The readback stalls the splitter thread only, after the frame is displayed.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GlFrameSplitter {
+    private static final String TAG = GlFrameSplitter.class.getSimpleName();
+    private static final boolean DEBUG = false;
+    private static final long SYNC_TIMEOUT_MS = 2000;
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final int PENDING_FRAME_CAPACITY = 8;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n"
+            + "attribute vec4 aPosition;\n"
+            + "attribute vec4 aTexCoord;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_Position = aPosition;\n"
+            + "    vTexCoord = (uTexMatrix * aTexCoord).xy;\n"
+            + "}\n";
+    private static final String COPY_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+            + "}\n";
+    // Each output texel packs 4 bytes of the I420 layout, so one output row is one row of luma, or two
+    // rows of chroma, which are half as wide. The U and V planes are a quarter of the luma rows each.
+    // The chroma is sampled at the center of each 2x2 block, the linear filtering averages the block.
+    private static final String I420_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+            + "#ifdef GL_FRAGMENT_PRECISION_HIGH\n"
+            + "precision highp float;\n"
+            + "#else\n"
+            + "precision mediump float;\n"
+            + "#endif\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "uniform mat4 uTexMatrix;\n"
+            + "uniform vec2 uFrameSize;\n"
+            + "uniform vec2 uReadSize;\n"
+            + "vec3 sampleAt(float x, float y) {\n"
+            + "    vec4 st = uTexMatrix * vec4(x / uFrameSize.x, 1.0 - y / uFrameSize.y, 0.0, 1.0);\n"
+            + "    return texture2D(sTexture, st.xy).rgb;\n"
+            + "}\n"
+            + "float lumaAt(float x, float y) {\n"
+            + "    return 0.0625 + dot(sampleAt(x, y), vec3(0.257, 0.504, 0.098));\n"
+            + "}\n"
+            + "float chromaAt(float x, float y, vec3 weights) {\n"
+            + "    return 0.5 + dot(sampleAt(x, y), weights);\n"
+            + "}\n"
+            + "void main() {\n"
+            + "    float x = floor(gl_FragCoord.x) * 4.0;\n"
+            + "    float row = floor(gl_FragCoord.y);\n"
+            + "    if (row < uReadSize.y) {\n"
+            + "        float y = row + 0.5;\n"
+            + "        gl_FragColor = vec4(lumaAt(x + 0.5, y), lumaAt(x + 1.5, y), lumaAt(x + 2.5, y),\n"
+            + "                            lumaAt(x + 3.5, y));\n"
+            + "        return;\n"
+            + "    }\n"
+            + "    float planeRows = uReadSize.y * 0.25;\n"
+            + "    float r = row - uReadSize.y;\n"
+            + "    vec3 weights = vec3(-0.148, -0.291, 0.439);\n"
+            + "    if (r >= planeRows) {\n"
+            + "        r -= planeRows;\n"
+            + "        weights = vec3(0.439, -0.368, -0.071);\n"
+            + "    }\n"
+            + "    float halfWidth = uReadSize.x * 0.5;\n"
+            + "    float cy = (r * 2.0 + floor(x / halfWidth)) * 2.0 + 1.0;\n"
+            + "    float cx = mod(x, halfWidth) * 2.0 + 1.0;\n"
+            + "    gl_FragColor = vec4(chromaAt(cx, cy, weights), chromaAt(cx + 2.0, cy, weights),\n"
+            + "                        chromaAt(cx + 4.0, cy, weights), chromaAt(cx + 6.0, cy, weights));\n"
+            + "}\n";
+
+    private static final float[] QUAD_POSITIONS = {-1, -1, 1, -1, -1, 1, 1, 1};
+    private static final float[] QUAD_TEX_COORDS = {0, 0, 1, 0, 0, 1, 1, 1};
+    // Upside down, so that glReadPixels returns the top row first.
+    private static final float[] FLIPPED_TEX_COORDS = {0, 1, 1, 1, 0, 0, 1, 0};
+
+    public interface PixelListener {
+        /**
+         * Callback method for the pixels of a frame, invoked in the splitter thread.
+         * @param pixels The pixels, only valid during the call
+         * @param format {@link FrameBus.Format#YUV} for I420, or {@link FrameBus.Format#RGBA}
+         * @param width Width of the pixels
+         * @param height Height of the pixels
+         * @param ptsUs Presentation timestamp of the frame
+         * @param frameIndex Index of the source frame, -1 if unknown
+         */
+        void onPixels(ByteBuffer pixels, FrameBus.Format format, int width, int height, long ptsUs, long frameIndex);
+    }
+
+    private final PixelListener listener;
+    private final HandlerThread splitterThread;
+    private final Handler splitterHandler;
+    private volatile boolean yuvReadback;
+    private volatile boolean rgbaReadback;
+
+    // The frames released to the input surface by the decoder, guarded by pendingPts.
+    private final long[] pendingPts = new long[PENDING_FRAME_CAPACITY];
+    private final long[] pendingFrameIndexes = new long[PENDING_FRAME_CAPACITY];
+    private final int[] pendingWidths = new int[PENDING_FRAME_CAPACITY];
+    private final int[] pendingHeights = new int[PENDING_FRAME_CAPACITY];
+    private final long[] pendingRenderTimesNs = new long[PENDING_FRAME_CAPACITY];
+    private int pendingCount;
+
+    // Only accessed in the splitter thread.
+    private EGLDisplay eglDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLContext eglContext = EGL14.EGL_NO_CONTEXT;
+    private EGLConfig eglConfig;
+    private EGLSurface pbufferSurface = EGL14.EGL_NO_SURFACE;
+    private EGLSurface windowSurface = EGL14.EGL_NO_SURFACE;
+    private Surface displaySurface;
+    private int textureId;
+    private SurfaceTexture surfaceTexture;
+    private volatile Surface inputSurface;
+    private final float[] texMatrix = new float[16];
+    private FloatBuffer quadPositions;
+    private FloatBuffer quadTexCoords;
+    private FloatBuffer flippedTexCoords;
+    private int copyProgram;
+    private int i420Program;
+    private final int[] i420Target = new int[4];
+    private final int[] rgbaTarget = new int[4];
+    // Width and height of the displaying surface, queried for each frame.
+    private final int[] windowSize = new int[2];
+    private ByteBuffer i420Pixels;
+    private ByteBuffer rgbaPixels;
+
+    /**
+     * Start the splitter thread and create the input surface.
+     * @param listener Receives the pixels read back
+     * @throws RuntimeException if OpenGL ES 2.0 can not be set up
+     */
+    public GlFrameSplitter(PixelListener listener) {
+        this.listener = listener;
+        splitterThread = new HandlerThread("frame splitter thread");
+        splitterThread.start();
+        splitterHandler = new Handler(splitterThread.getLooper());
+        final RuntimeException[] error = new RuntimeException[1];
+        runSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setUp();
+                } catch (RuntimeException e) {
+                    error[0] = e;
+                    tearDown();
+                }
+            }
+        });
+        if (error[0] != null || inputSurface == null) {
+            splitterThread.quit();
+            throw error[0] != null ? error[0] : new IllegalStateException("frame splitter set up timed out");
+        }
+    }
+
+    private static void logd(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.d(TAG, log);
+    }
+
+    private static void loge(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.e(TAG, log);
+    }
+
+    /**
+     * @return The surface the decoder should render to.
+     */
+    public Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    /**
+     * Choose which pixels are read back.
+     * @param yuv Whether to read back the frames as I420
+     * @param rgba Whether to read back the frames as RGBA
+     */
+    public void setReadback(boolean yuv, boolean rgba) {
+        yuvReadback = yuv;
+        rgbaReadback = rgba;
+    }
+
+    /**
+     * Set the surface the frames are drawn to. It returns once the splitter is connected to the new surface
+     * and disconnected from the previous one, as a surface can only be connected to one producer.
+     * @param surface The displaying surface, null to only read the frames back
+     */
+    public void setDisplaySurface(final Surface surface) {
+        runSync(new Runnable() {
+            @Override
+            public void run() {
+                attachDisplaySurface(surface);
+            }
+        });
+    }
+
+    /**
+     * Record a frame the decoder is about to release to the input surface with rendering.
+     * Invoke in the decoding thread.
+     * @param ptsUs Presentation timestamp of the frame
+     * @param frameIndex Index of the source frame
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param renderTimeNs When to display the frame, on the clock of System.nanoTime, 0 for as soon as possible
+     */
+    public void onFrameReleased(long ptsUs, long frameIndex, int width, int height, long renderTimeNs) {
+        synchronized (pendingPts) {
+            if (pendingCount == PENDING_FRAME_CAPACITY) {
+                // The oldest frame was never drawn, forget it.
+                shiftPending(1);
+            }
+            pendingPts[pendingCount] = ptsUs;
+            pendingFrameIndexes[pendingCount] = frameIndex;
+            pendingWidths[pendingCount] = width;
+            pendingHeights[pendingCount] = height;
+            pendingRenderTimesNs[pendingCount] = renderTimeNs;
+            pendingCount++;
+        }
+    }
+
+    /**
+     * Release the surfaces and the OpenGL resources, and quit the splitter thread. The decoder must not
+     * render to the input surface any more.
+     */
+    public void release() {
+        runSync(new Runnable() {
+            @Override
+            public void run() {
+                tearDown();
+            }
+        });
+        splitterThread.quitSafely();
+    }
+
+    /**
+     * Run a task in the splitter thread and wait for it.
+     */
+    private void runSync(final Runnable task) {
+        final boolean[] done = new boolean[1];
+        splitterHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (done) {
+                        done[0] = true;
+                        done.notifyAll();
+                    }
+                }
+            }
+        });
+        long deadlineMs = SystemClock.elapsedRealtime() + SYNC_TIMEOUT_MS;
+        synchronized (done) {
+            while (!done[0]) {
+                long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+                if (remainingMs <= 0) {
+                    loge("splitter thread does not respond");
+                    return;
+                }
+                try {
+                    done.wait(remainingMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void setUp() {
+        eglDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        if (eglDisplay == EGL14.EGL_NO_DISPLAY || !EGL14.eglInitialize(eglDisplay, version, 0, version, 1)) {
+            throw new IllegalStateException("eglInitialize failed");
+        }
+        int[] configAttributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_ALPHA_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL14.EGL_SURFACE_TYPE, EGL14.EGL_WINDOW_BIT | EGL14.EGL_PBUFFER_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(eglDisplay, configAttributes, 0, configs, 0, 1, configCount, 0)
+                || configCount[0] == 0) {
+            throw new IllegalStateException("eglChooseConfig failed");
+        }
+        eglConfig = configs[0];
+        int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+        checkEgl("eglCreateContext");
+        int[] pbufferAttributes = {EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE};
+        pbufferSurface = EGL14.eglCreatePbufferSurface(eglDisplay, eglConfig, pbufferAttributes, 0);
+        checkEgl("eglCreatePbufferSurface");
+        makeCurrent(pbufferSurface);
+
+        copyProgram = createProgram(VERTEX_SHADER, COPY_SHADER);
+        i420Program = createProgram(VERTEX_SHADER, I420_SHADER);
+        quadPositions = createFloatBuffer(QUAD_POSITIONS);
+        quadTexCoords = createFloatBuffer(QUAD_TEX_COORDS);
+        flippedTexCoords = createFloatBuffer(FLIPPED_TEX_COORDS);
+
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        checkGl("create texture");
+
+        // Created in the splitter thread, so that the frames are signaled in it.
+        surfaceTexture = new SurfaceTexture(textureId);
+        surfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture texture) {
+                try {
+                    drawFrame();
+                } catch (RuntimeException e) {
+                    loge("draw frame error: " + e);
+                }
+            }
+        });
+        inputSurface = new Surface(surfaceTexture);
+        logd("set up, EGL " + version[0] + "." + version[1]);
+    }
+
+    private void tearDown() {
+        inputSurface = null;
+        if (eglDisplay != EGL14.EGL_NO_DISPLAY) {
+            if (eglContext != EGL14.EGL_NO_CONTEXT && pbufferSurface != EGL14.EGL_NO_SURFACE) {
+                makeCurrent(pbufferSurface);
+                deleteTarget(i420Target);
+                deleteTarget(rgbaTarget);
+                if (textureId != 0) {
+                    GLES20.glDeleteTextures(1, new int[] {textureId}, 0);
+                }
+                if (copyProgram != 0) {
+                    GLES20.glDeleteProgram(copyProgram);
+                }
+                if (i420Program != 0) {
+                    GLES20.glDeleteProgram(i420Program);
+                }
+            }
+            attachDisplaySurface(null);
+            EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (pbufferSurface != EGL14.EGL_NO_SURFACE) {
+                EGL14.eglDestroySurface(eglDisplay, pbufferSurface);
+            }
+            if (eglContext != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(eglDisplay, eglContext);
+            }
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(eglDisplay);
+        }
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        eglDisplay = EGL14.EGL_NO_DISPLAY;
+        eglContext = EGL14.EGL_NO_CONTEXT;
+        pbufferSurface = EGL14.EGL_NO_SURFACE;
+        textureId = 0;
+        copyProgram = 0;
+        i420Program = 0;
+    }
+
+    private void attachDisplaySurface(Surface surface) {
+        if (surface == displaySurface && (surface == null || windowSurface != EGL14.EGL_NO_SURFACE)) {
+            return;
+        }
+        if (windowSurface != EGL14.EGL_NO_SURFACE) {
+            makeCurrent(pbufferSurface);
+            EGL14.eglDestroySurface(eglDisplay, windowSurface);
+            windowSurface = EGL14.EGL_NO_SURFACE;
+        }
+        displaySurface = surface;
+        if (surface == null || eglDisplay == EGL14.EGL_NO_DISPLAY || !surface.isValid()) {
+            return;
+        }
+        int[] attributes = {EGL14.EGL_NONE};
+        windowSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, attributes, 0);
+        if (windowSurface == null || EGL14.eglGetError() != EGL14.EGL_SUCCESS) {
+            loge("eglCreateWindowSurface failed, nothing is displayed");
+            windowSurface = EGL14.EGL_NO_SURFACE;
+        }
+    }
+
+    /**
+     * Draw the new frame of the input surface to the displaying surface, then read it back.
+     */
+    private void drawFrame() {
+        if (surfaceTexture == null) {
+            return;
+        }
+        makeCurrent(pbufferSurface);
+        surfaceTexture.updateTexImage();
+        surfaceTexture.getTransformMatrix(texMatrix);
+        long ptsUs = surfaceTexture.getTimestamp() / 1000;
+        long frameIndex = -1;
+        int width = 0;
+        int height = 0;
+        long renderTimeNs = 0;
+        synchronized (pendingPts) {
+            int found = -1;
+            for (int i = 0; i < pendingCount; i++) {
+                if (pendingPts[i] == ptsUs) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found >= 0) {
+                frameIndex = pendingFrameIndexes[found];
+                width = pendingWidths[found];
+                height = pendingHeights[found];
+                renderTimeNs = pendingRenderTimesNs[found];
+                // The older frames were dropped by the input surface.
+                shiftPending(found + 1);
+            }
+        }
+
+        if (windowSurface != EGL14.EGL_NO_SURFACE) {
+            makeCurrent(windowSurface);
+            EGL14.eglQuerySurface(eglDisplay, windowSurface, EGL14.EGL_WIDTH, windowSize, 0);
+            EGL14.eglQuerySurface(eglDisplay, windowSurface, EGL14.EGL_HEIGHT, windowSize, 1);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glViewport(0, 0, windowSize[0], windowSize[1]);
+            drawQuad(copyProgram, quadTexCoords, 0, 0, 0, 0);
+            if (renderTimeNs != 0) {
+                EGLExt.eglPresentationTimeANDROID(eglDisplay, windowSurface, renderTimeNs);
+            }
+            if (!EGL14.eglSwapBuffers(eglDisplay, windowSurface)) {
+                loge("eglSwapBuffers error " + EGL14.eglGetError() + ", detach the displaying surface");
+                Surface lost = displaySurface;
+                attachDisplaySurface(null);
+                displaySurface = lost;
+            }
+        }
+
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        if (yuvReadback) {
+            int readWidth = width & ~7;
+            int readHeight = height & ~3;
+            if (readWidth > 0 && readHeight > 0) {
+                int targetWidth = readWidth / 4;
+                int targetHeight = readHeight * 3 / 2;
+                bindTarget(i420Target, targetWidth, targetHeight);
+                drawQuad(i420Program, quadTexCoords, width, height, readWidth, readHeight);
+                i420Pixels = readPixels(i420Pixels, targetWidth, targetHeight);
+                listener.onPixels(i420Pixels, FrameBus.Format.YUV, readWidth, readHeight, ptsUs, frameIndex);
+            }
+        }
+        if (rgbaReadback) {
+            bindTarget(rgbaTarget, width, height);
+            drawQuad(copyProgram, flippedTexCoords, 0, 0, 0, 0);
+            rgbaPixels = readPixels(rgbaPixels, width, height);
+            listener.onPixels(rgbaPixels, FrameBus.Format.RGBA, width, height, ptsUs, frameIndex);
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    private void shiftPending(int count) {
+        pendingCount -= count;
+        System.arraycopy(pendingPts, count, pendingPts, 0, pendingCount);
+        System.arraycopy(pendingFrameIndexes, count, pendingFrameIndexes, 0, pendingCount);
+        System.arraycopy(pendingWidths, count, pendingWidths, 0, pendingCount);
+        System.arraycopy(pendingHeights, count, pendingHeights, 0, pendingCount);
+        System.arraycopy(pendingRenderTimesNs, count, pendingRenderTimesNs, 0, pendingCount);
+    }
+
+    private void drawQuad(int program, FloatBuffer texCoords, int frameWidth, int frameHeight, int readWidth,
+                          int readHeight) {
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniformMatrix4fv(GLES20.glGetUniformLocation(program, "uTexMatrix"), 1, false, texMatrix, 0);
+        if (program == i420Program) {
+            GLES20.glUniform2f(GLES20.glGetUniformLocation(program, "uFrameSize"), frameWidth, frameHeight);
+            GLES20.glUniform2f(GLES20.glGetUniformLocation(program, "uReadSize"), readWidth, readHeight);
+        }
+        int position = GLES20.glGetAttribLocation(program, "aPosition");
+        int texCoord = GLES20.glGetAttribLocation(program, "aTexCoord");
+        GLES20.glEnableVertexAttribArray(position);
+        GLES20.glVertexAttribPointer(position, 2, GLES20.GL_FLOAT, false, 8, quadPositions);
+        GLES20.glEnableVertexAttribArray(texCoord);
+        GLES20.glVertexAttribPointer(texCoord, 2, GLES20.GL_FLOAT, false, 8, texCoords);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glDisableVertexAttribArray(position);
+        GLES20.glDisableVertexAttribArray(texCoord);
+    }
+
+    /**
+     * Bind a framebuffer of the given size to draw into, recreating it when the size changes.
+     * @param target The framebuffer, its texture, its width and its height
+     */
+    private void bindTarget(int[] target, int width, int height) {
+        if (target[0] == 0 || target[2] != width || target[3] != height) {
+            deleteTarget(target);
+            int[] ids = new int[1];
+            GLES20.glGenTextures(1, ids, 0);
+            target[1] = ids[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, target[1]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA,
+                                GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            GLES20.glGenFramebuffers(1, ids, 0);
+            target[0] = ids[0];
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target[0]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
+                                          target[1], 0);
+            target[2] = width;
+            target[3] = height;
+            checkGl("create framebuffer");
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, target[0]);
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    private static void deleteTarget(int[] target) {
+        if (target[0] != 0) {
+            GLES20.glDeleteFramebuffers(1, target, 0);
+            GLES20.glDeleteTextures(1, target, 1);
+        }
+        target[0] = 0;
+        target[1] = 0;
+        target[2] = 0;
+        target[3] = 0;
+    }
+
+    private static ByteBuffer readPixels(ByteBuffer pixels, int width, int height) {
+        int size = width * height * 4;
+        if (pixels == null || pixels.capacity() < size) {
+            pixels = ByteBuffer.allocateDirect(size);
+        }
+        pixels.clear();
+        GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 4);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        pixels.limit(size);
+        return pixels;
+    }
+
+    private void makeCurrent(EGLSurface surface) {
+        if (!EGL14.eglMakeCurrent(eglDisplay, surface, surface, eglContext)) {
+            throw new IllegalStateException("eglMakeCurrent error " + EGL14.eglGetError());
+        }
+    }
+
+    private static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = compileShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+        GLES20.glLinkProgram(program);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            String log = GLES20.glGetProgramInfoLog(program);
+            GLES20.glDeleteProgram(program);
+            throw new IllegalStateException("link program error: " + log);
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] status = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == 0) {
+            String log = GLES20.glGetShaderInfoLog(shader);
+            GLES20.glDeleteShader(shader);
+            throw new IllegalStateException("compile shader error: " + log);
+        }
+        return shader;
+    }
+
+    private static FloatBuffer createFloatBuffer(float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    private static void checkEgl(String operation) {
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS) {
+            throw new IllegalStateException(operation + " error " + error);
+        }
+    }
+
+    private static void checkGl(String operation) {
+        int error = GLES20.glGetError();
+        if (error != GLES20.GL_NO_ERROR) {
+            throw new IllegalStateException(operation + " error " + error);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded buffer of the encoded frames of the current GOP: the latest real i-frame and the frames
+ * following it. It allows to decode the current picture again without waiting for the next i-frame.
+ *
+ * The frames are copied into one byte array allocated once, and indexed by primitive arrays, so adding a
+ * frame allocates nothing. When the GOP does not fit, the following frames are not added until the next
+ * i-frame, and the buffer keeps the beginning of the GOP, which can still be decoded.
+ *
+ * The frames are added in the framing thread and read in other threads, so the methods are synchronized.
+ */
+public class GopBuffer {
+    private final byte[] data;
+    private final int[] offsets;
+    private final int[] sizes;
+    private final long[] pts;
+    private int frameCount;
+    private int usedBytes;
+    private int width;
+    private int height;
+    private boolean truncated;
+    private int codecType = NativeHelper.CODEC_H264;
+
+    /**
+     * @param capacityBytes Total size of the buffered frames
+     * @param maxFrames Maximum number of buffered frames
+     */
+    public GopBuffer(int capacityBytes, int maxFrames) {
+        data = new byte[capacityBytes];
+        offsets = new int[maxFrames];
+        sizes = new int[maxFrames];
+        pts = new long[maxFrames];
+    }
+
+    /**
+     * Add a frame. An i-frame starts a new GOP, the other frames are ignored until the first i-frame.
+     * @param frame Frame data
+     * @param size Frame length
+     * @param presentationTimeUs Presentation timestamp of the frame
+     * @param isKeyFrame Whether the frame is an i-frame
+     * @param frameWidth Width of the frame
+     * @param frameHeight Height of the frame
+     */
+    public synchronized void add(byte[] frame, int size, long presentationTimeUs, boolean isKeyFrame,
+                                 int frameWidth, int frameHeight) {
+        if (isKeyFrame) {
+            frameCount = 0;
+            usedBytes = 0;
+            truncated = false;
+            width = frameWidth;
+            height = frameHeight;
+        } else if (frameCount == 0 || truncated) {
+            return;
+        }
+        if (frameCount == offsets.length || usedBytes + size > data.length) {
+            truncated = true;
+            return;
+        }
+        System.arraycopy(frame, 0, data, usedBytes, size);
+        offsets[frameCount] = usedBytes;
+        sizes[frameCount] = size;
+        pts[frameCount] = presentationTimeUs;
+        usedBytes += size;
+        frameCount++;
+    }
+
+    /**
+     * Drop the buffered frames, e.g. when the stream changes.
+     */
+    public synchronized void clear() {
+        frameCount = 0;
+        usedBytes = 0;
+        truncated = false;
+    }
+
+    /**
+     * Drop the buffered frames when the codec of the stream changes.
+     * @param codecType {@link NativeHelper#CODEC_H264} or {@link NativeHelper#CODEC_HEVC}
+     */
+    public synchronized void clear(int codecType) {
+        this.codecType = codecType;
+        clear();
+    }
+
+    /**
+     * @return The codec of the buffered frames, {@link NativeHelper#CODEC_H264} by default.
+     */
+    public synchronized int getCodecType() {
+        return codecType;
+    }
+
+    /**
+     * @return Number of buffered frames, 0 if no i-frame has been received. The first frame is the i-frame.
+     */
+    public synchronized int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getMaxFrames() {
+        return offsets.length;
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Whether frames of the current GOP were left out because the buffer is full.
+     */
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    public synchronized long getPts(int index) {
+        return pts[index];
+    }
+
+    /**
+     * Copy a buffered frame, e.g. into an input buffer of a codec.
+     * @param index Index of the frame, from 0 for the i-frame
+     * @param dst Destination, the frame is put at its position
+     * @return The frame length
+     */
+    public synchronized int copyFrame(int index, ByteBuffer dst) {
+        dst.put(data, offsets[index], sizes[index]);
+        return sizes[index];
+    }
+
+    /**
+     * Copy all the buffered frames at once.
+     * @param frameSizes Receives the length of each frame, it must hold {@link #getMaxFrames()} values
+     * @return The frames one after another, null if no i-frame has been received.
+     */
+    public synchronized byte[] copyFrames(int[] frameSizes) {
+        if (frameCount == 0) {
+            return null;
+        }
+        byte[] frames = new byte[usedBytes];
+        System.arraycopy(data, 0, frames, 0, usedBytes);
+        System.arraycopy(sizes, 0, frameSizes, 0, frameCount);
+        return frames;
+    }
+}
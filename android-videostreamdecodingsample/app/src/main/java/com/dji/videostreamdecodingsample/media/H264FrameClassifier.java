@@ -0,0 +1,171 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classify the framed H.264 frames in Java, from their own NAL units: whether a frame is a key frame, its
+ * frame_num and its resolution. It gives the same information as the fields the patched FFmpeg parser
+ * reports to {@link NativeHelper.NativeDataListener}, without depending on the native build.
+ *
+ * The parameter sets are kept from frame to frame, as the slices refer to them. The NAL units after the
+ * first slice are not looked at, so the slice data is not scanned. The classifier allocates nothing once
+ * created, and it is not thread safe.
+ */
+public class H264FrameClassifier {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_IDR_SLICE = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    private final NalUnitScanner scanner = new NalUnitScanner();
+    private final BitReader reader = new BitReader();
+    private final H264ParameterSets parameterSets = new H264ParameterSets();
+    private final H264SliceHeader sliceHeader = new H264SliceHeader();
+    private final H264SeiReader seiReader = new H264SeiReader();
+    private boolean hasSlice;
+    private boolean hasVcl;
+    private boolean hasSps;
+    private boolean hasRecoveryPoint;
+    private int frameNum;
+    private int sliceType;
+    private boolean idr;
+    private boolean reference;
+    private int width;
+    private int height;
+
+    /**
+     * Classify a frame.
+     * @param frame The buffer containing the frame, in the Annex-B format
+     * @param offset Offset of the frame
+     * @param length Length of the frame
+     * @return false if the frame has no slice which could be parsed, e.g. its parameter sets are missing.
+     */
+    public boolean classify(ByteBuffer frame, int offset, int length) {
+        scanner.reset(frame, offset, length);
+        return classifyNalUnits();
+    }
+
+    /**
+     * Classify a frame in an array, without wrapping it into a buffer.
+     * @see #classify(ByteBuffer, int, int)
+     */
+    public boolean classify(byte[] frame, int offset, int length) {
+        scanner.reset(frame, offset, length);
+        return classifyNalUnits();
+    }
+
+    private boolean classifyNalUnits() {
+        hasSlice = false;
+        hasVcl = false;
+        reference = false;
+        hasSps = false;
+        hasRecoveryPoint = false;
+        idr = false;
+        while (!hasVcl && scanner.next()) {
+            int nalType = scanner.getH264NalType();
+            if (nalType == NAL_SLICE || nalType == NAL_IDR_SLICE) {
+                // The slice header is short, it is read without looking for the end of the slice.
+                hasVcl = true;
+                idr = nalType == NAL_IDR_SLICE;
+                reference = scanner.getH264NalRefIdc() != 0;
+                scanner.resetReader(reader, scanner.getNalOffset() + 1, scanner.getRemainingLength() - 1);
+                if (sliceHeader.parse(reader, nalType, scanner.getH264NalRefIdc(), parameterSets)) {
+                    hasSlice = true;
+                    frameNum = sliceHeader.frameNum;
+                    sliceType = sliceHeader.sliceType;
+                    width = sliceHeader.sps.getWidth();
+                    height = sliceHeader.sps.getHeight();
+                }
+                continue;
+            }
+            if (nalType != NAL_SEI && nalType != NAL_SPS && nalType != NAL_PPS) {
+                continue;
+            }
+            scanner.resetReader(reader, scanner.getNalOffset() + 1, scanner.getNalLength() - 1);
+            switch (nalType) {
+                case NAL_SPS:
+                    H264Sps sps = parameterSets.parseSps(reader);
+                    if (sps != null) {
+                        hasSps = true;
+                    }
+                    break;
+                case NAL_PPS:
+                    parameterSets.parsePps(reader);
+                    break;
+                case NAL_SEI:
+                    seiReader.reset(reader);
+                    while (seiReader.next()) {
+                        if (seiReader.getPayloadType() == H264SeiReader.SEI_RECOVERY_POINT
+                                && seiReader.parseRecoveryPoint()) {
+                            hasRecoveryPoint = true;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return hasSlice;
+    }
+
+    /**
+     * @return Whether the decoding can start at the frame: an IDR, or an intra frame with a recovery point.
+     */
+    public boolean isKeyFrame() {
+        return hasSlice && (idr || (hasRecoveryPoint && sliceHeader.isIntra()));
+    }
+
+    public boolean isIdr() {
+        return idr;
+    }
+
+    /**
+     * @return Whether the frame carries an SPS.
+     */
+    public boolean hasSps() {
+        return hasSps;
+    }
+
+    /**
+     * @return Whether other frames may refer to the frame. A non reference frame can be dropped safely. It
+     * is known even if the slice header could not be parsed.
+     */
+    public boolean isReference() {
+        return reference;
+    }
+
+    public int getFrameNum() {
+        return frameNum;
+    }
+
+    /**
+     * @return The type of the first slice, e.g. {@link H264SliceHeader#SLICE_TYPE_I}.
+     */
+    public int getSliceType() {
+        return sliceType;
+    }
+
+    /**
+     * @return The SPS of the last classified frame, it gives e.g. the maximum frame_num.
+     */
+    public H264Sps getSps() {
+        return hasSlice ? sliceHeader.sps : null;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Forget the parameter sets, e.g. when the stream changes.
+     */
+    public void reset() {
+        parameterSets.clear();
+    }
+}
@@ -0,0 +1,87 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * The H.264 parameter sets received in a stream, by id. The tables are allocated once, and each parameter
+ * set is parsed into its slot.
+ */
+public class H264ParameterSets {
+    private static final int MAX_SPS_COUNT = 32;
+    private static final int MAX_PPS_COUNT = 256;
+
+    private final H264Sps[] spsTable = new H264Sps[MAX_SPS_COUNT];
+    private final H264Pps[] ppsTable = new H264Pps[MAX_PPS_COUNT];
+    // Parsed into first, then swapped with the table slot if valid, so a malformed set keeps the last good one.
+    private H264Sps spareSps = new H264Sps();
+    private H264Pps sparePps = new H264Pps();
+
+    public H264ParameterSets() {
+        for (int i = 0; i < MAX_SPS_COUNT; i++) {
+            spsTable[i] = new H264Sps();
+        }
+        for (int i = 0; i < MAX_PPS_COUNT; i++) {
+            ppsTable[i] = new H264Pps();
+        }
+    }
+
+    /**
+     * Parse an SPS NAL unit into the table.
+     * @param reader The reader, after the NAL unit header
+     * @return The SPS, null if it is malformed.
+     */
+    public H264Sps parseSps(BitReader reader) {
+        if (!spareSps.parse(reader)) {
+            return null;
+        }
+        H264Sps sps = spareSps;
+        spareSps = spsTable[sps.spsId];
+        spsTable[sps.spsId] = sps;
+        return sps;
+    }
+
+    /**
+     * Parse a PPS NAL unit into the table.
+     * @param reader The reader, after the NAL unit header
+     * @return The PPS, null if it is malformed.
+     */
+    public H264Pps parsePps(BitReader reader) {
+        if (!sparePps.parse(reader, this)) {
+            return null;
+        }
+        H264Pps pps = sparePps;
+        sparePps = ppsTable[pps.ppsId];
+        ppsTable[pps.ppsId] = pps;
+        return pps;
+    }
+
+    /**
+     * @return The SPS with the given id, null if none was received.
+     */
+    public H264Sps getSps(int spsId) {
+        if (spsId < 0 || spsId >= MAX_SPS_COUNT || !spsTable[spsId].valid) {
+            return null;
+        }
+        return spsTable[spsId];
+    }
+
+    /**
+     * @return The PPS with the given id, null if none was received.
+     */
+    public H264Pps getPps(int ppsId) {
+        if (ppsId < 0 || ppsId >= MAX_PPS_COUNT || !ppsTable[ppsId].valid) {
+            return null;
+        }
+        return ppsTable[ppsId];
+    }
+
+    /**
+     * Forget all the parameter sets, e.g. when the stream changes.
+     */
+    public void clear() {
+        for (H264Sps sps : spsTable) {
+            sps.valid = false;
+        }
+        for (H264Pps pps : ppsTable) {
+            pps.valid = false;
+        }
+    }
+}
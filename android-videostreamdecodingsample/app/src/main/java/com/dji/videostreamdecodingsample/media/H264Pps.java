@@ -0,0 +1,103 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * An H.264 picture parameter set. An instance is parsed again for every PPS NAL unit with the same id, so
+ * parsing allocates nothing.
+ */
+public class H264Pps {
+    public boolean valid;
+    public int ppsId;
+    public int spsId;
+    public boolean entropyCodingModeCabac;
+    public boolean bottomFieldPicOrderInFramePresent;
+    public int numSliceGroups;
+    public int numRefIdxL0DefaultActive;
+    public int numRefIdxL1DefaultActive;
+    public boolean weightedPred;
+    public int weightedBipredIdc;
+    public int picInitQp;
+    public int chromaQpIndexOffset;
+    public boolean deblockingFilterControlPresent;
+    public boolean constrainedIntraPred;
+    public boolean redundantPicCntPresent;
+    public boolean transform8x8Mode;
+    public int secondChromaQpIndexOffset;
+
+    /**
+     * Parse a PPS.
+     * @param reader The reader, after the NAL unit header
+     * @param parameterSets The parameter sets received so far, for the chroma format of the SPS
+     * @return false if the PPS is malformed, then it is not valid.
+     */
+    public boolean parse(BitReader reader, H264ParameterSets parameterSets) {
+        valid = false;
+        ppsId = reader.readUe();
+        spsId = reader.readUe();
+        if (ppsId < 0 || ppsId > 255 || spsId < 0 || spsId > 31) {
+            return false;
+        }
+        entropyCodingModeCabac = reader.readFlag();
+        bottomFieldPicOrderInFramePresent = reader.readFlag();
+        numSliceGroups = reader.readUe() + 1;
+        if (numSliceGroups <= 0 || numSliceGroups > 8) {
+            return false;
+        }
+        if (numSliceGroups > 1) {
+            skipSliceGroups(reader);
+        }
+        numRefIdxL0DefaultActive = reader.readUe() + 1;
+        numRefIdxL1DefaultActive = reader.readUe() + 1;
+        weightedPred = reader.readFlag();
+        weightedBipredIdc = reader.readBits(2);
+        picInitQp = reader.readSe() + 26;
+        reader.readSe(); // pic_init_qs_minus26
+        chromaQpIndexOffset = reader.readSe();
+        deblockingFilterControlPresent = reader.readFlag();
+        constrainedIntraPred = reader.readFlag();
+        redundantPicCntPresent = reader.readFlag();
+        transform8x8Mode = false;
+        secondChromaQpIndexOffset = chromaQpIndexOffset;
+        if (reader.moreRbspData()) {
+            transform8x8Mode = reader.readFlag();
+            if (reader.readFlag()) { // pic_scaling_matrix_present_flag
+                H264Sps sps = parameterSets.getSps(spsId);
+                int chromaFormatIdc = sps != null ? sps.chromaFormatIdc : 1;
+                int listCount = 6 + (transform8x8Mode ? (chromaFormatIdc != 3 ? 2 : 6) : 0);
+                for (int i = 0; i < listCount; i++) {
+                    if (reader.readFlag()) {
+                        H264Sps.skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+            secondChromaQpIndexOffset = reader.readSe();
+        }
+        if (reader.hasOverrun()) {
+            return false;
+        }
+        valid = true;
+        return true;
+    }
+
+    private void skipSliceGroups(BitReader reader) {
+        int mapType = reader.readUe();
+        if (mapType == 0) {
+            for (int i = 0; i < numSliceGroups; i++) {
+                reader.readUe(); // run_length_minus1
+            }
+        } else if (mapType == 2) {
+            for (int i = 0; i < numSliceGroups - 1; i++) {
+                reader.readUe(); // top_left
+                reader.readUe(); // bottom_right
+            }
+        } else if (mapType >= 3 && mapType <= 5) {
+            reader.skipBits(1); // slice_group_change_direction_flag
+            reader.readUe(); // slice_group_change_rate_minus1
+        } else if (mapType == 6) {
+            int mapUnits = reader.readUe() + 1;
+            int idBits = 32 - Integer.numberOfLeadingZeros(numSliceGroups - 1);
+            for (int i = 0; i < mapUnits && !reader.hasOverrun(); i++) {
+                reader.skipBits(idBits); // slice_group_id
+            }
+        }
+    }
+}
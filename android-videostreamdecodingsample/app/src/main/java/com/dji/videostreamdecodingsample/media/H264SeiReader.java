@@ -0,0 +1,119 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * Iterate over the messages of an H.264 SEI NAL unit. The payload of the current message is read with the
+ * bit reader, and the rest of it is skipped by {@link #next()}, so nothing is allocated.
+ *
+ *     seiReader.reset(reader);
+ *     while (seiReader.next()) {
+ *         if (seiReader.getPayloadType() == H264SeiReader.SEI_RECOVERY_POINT) {
+ *             seiReader.parseRecoveryPoint();
+ *             ...
+ *         }
+ *     }
+ */
+public class H264SeiReader {
+    public static final int SEI_BUFFERING_PERIOD = 0;
+    public static final int SEI_PIC_TIMING = 1;
+    public static final int SEI_USER_DATA_REGISTERED = 4;
+    public static final int SEI_USER_DATA_UNREGISTERED = 5;
+    public static final int SEI_RECOVERY_POINT = 6;
+
+    private BitReader reader;
+    private int payloadType;
+    private int payloadSize;
+    private long payloadEndBit;
+    private int recoveryFrameCount;
+    private boolean exactMatch;
+    private boolean brokenLink;
+
+    /**
+     * @param reader The reader, after the NAL unit header of the SEI NAL unit
+     */
+    public void reset(BitReader reader) {
+        this.reader = reader;
+        payloadType = -1;
+        payloadSize = 0;
+        payloadEndBit = 0;
+    }
+
+    /**
+     * Move to the next SEI message.
+     * @return false if there is none, or the NAL unit is malformed.
+     */
+    public boolean next() {
+        // Skip what is left of the current payload.
+        long remaining = payloadEndBit - reader.getBitsRead();
+        while (remaining > 0) {
+            int count = (int) Math.min(remaining, 32);
+            reader.skipBits(count);
+            remaining -= count;
+        }
+        if (reader.hasOverrun() || !reader.moreRbspData()) {
+            return false;
+        }
+        payloadType = readVariableLength();
+        payloadSize = readVariableLength();
+        payloadEndBit = reader.getBitsRead() + payloadSize * 8L;
+        return !reader.hasOverrun();
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    /**
+     * @return Size of the payload of the current message in bytes.
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Parse the current message as a recovery point, which marks a picture from which the decoding can
+     * start without an IDR.
+     * @return false if the message is malformed.
+     */
+    public boolean parseRecoveryPoint() {
+        recoveryFrameCount = reader.readUe();
+        exactMatch = reader.readFlag();
+        brokenLink = reader.readFlag();
+        reader.skipBits(2); // changing_slice_group_idc
+        return !reader.hasOverrun() && recoveryFrameCount >= 0;
+    }
+
+    /**
+     * @return Number of frames after the recovery point before the pictures are correct.
+     */
+    public int getRecoveryFrameCount() {
+        return recoveryFrameCount;
+    }
+
+    public boolean isExactMatch() {
+        return exactMatch;
+    }
+
+    public boolean isBrokenLink() {
+        return brokenLink;
+    }
+
+    /**
+     * Read the UUID of the current user data unregistered message.
+     * @param uuid Receives the 16 bytes of the UUID
+     */
+    public void readUuid(byte[] uuid) {
+        for (int i = 0; i < 16; i++) {
+            uuid[i] = (byte) reader.readBits(8);
+        }
+    }
+
+    private int readVariableLength() {
+        int value = 0;
+        int b;
+        do {
+            b = reader.readBits(8);
+            value += b;
+        } while (b == 0xFF && !reader.hasOverrun());
+        return value;
+    }
+}
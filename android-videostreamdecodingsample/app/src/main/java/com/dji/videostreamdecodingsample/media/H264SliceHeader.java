@@ -0,0 +1,105 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * The beginning of an H.264 slice header, up to the picture order count, which is what identifies the
+ * picture of the slice and its place in the reference chain. An instance is parsed again for every slice,
+ * so parsing allocates nothing.
+ */
+public class H264SliceHeader {
+    public static final int SLICE_TYPE_P = 0;
+    public static final int SLICE_TYPE_B = 1;
+    public static final int SLICE_TYPE_I = 2;
+    public static final int SLICE_TYPE_SP = 3;
+    public static final int SLICE_TYPE_SI = 4;
+
+    public boolean valid;
+    public int nalType;
+    public int nalRefIdc;
+    public int firstMbInSlice;
+    /** The slice type, from {@link #SLICE_TYPE_P} to {@link #SLICE_TYPE_SI}. */
+    public int sliceType;
+    public int ppsId;
+    public int frameNum;
+    public boolean fieldPic;
+    public boolean bottomField;
+    public int idrPicId;
+    public int picOrderCntLsb;
+    public int deltaPicOrderCntBottom;
+    public int redundantPicCnt;
+    // The parameter sets of the slice, valid until they are received again.
+    public H264Sps sps;
+    public H264Pps pps;
+
+    /**
+     * Parse a slice header.
+     * @param reader The reader, after the NAL unit header
+     * @param nalType Type of the NAL unit, 1 or 5
+     * @param nalRefIdc nal_ref_idc of the NAL unit
+     * @param parameterSets The parameter sets received so far
+     * @return false if the header is malformed or its parameter sets were not received.
+     */
+    public boolean parse(BitReader reader, int nalType, int nalRefIdc, H264ParameterSets parameterSets) {
+        valid = false;
+        this.nalType = nalType;
+        this.nalRefIdc = nalRefIdc;
+        firstMbInSlice = reader.readUe();
+        int type = reader.readUe();
+        ppsId = reader.readUe();
+        if (firstMbInSlice < 0 || type < 0 || type > 9) {
+            return false;
+        }
+        sliceType = type % 5;
+        pps = parameterSets.getPps(ppsId);
+        sps = pps != null ? parameterSets.getSps(pps.spsId) : null;
+        if (sps == null) {
+            return false;
+        }
+        if (sps.separateColourPlane) {
+            reader.skipBits(2); // colour_plane_id
+        }
+        frameNum = reader.readBits(sps.log2MaxFrameNum);
+        fieldPic = false;
+        bottomField = false;
+        if (!sps.frameMbsOnly) {
+            fieldPic = reader.readFlag();
+            if (fieldPic) {
+                bottomField = reader.readFlag();
+            }
+        }
+        idrPicId = isIdr() ? reader.readUe() : -1;
+        picOrderCntLsb = 0;
+        deltaPicOrderCntBottom = 0;
+        if (sps.picOrderCntType == 0) {
+            picOrderCntLsb = reader.readBits(sps.log2MaxPicOrderCntLsb);
+            if (pps.bottomFieldPicOrderInFramePresent && !fieldPic) {
+                deltaPicOrderCntBottom = reader.readSe();
+            }
+        } else if (sps.picOrderCntType == 1 && !sps.deltaPicOrderAlwaysZero) {
+            reader.readSe(); // delta_pic_order_cnt[0]
+            if (pps.bottomFieldPicOrderInFramePresent && !fieldPic) {
+                reader.readSe(); // delta_pic_order_cnt[1]
+            }
+        }
+        redundantPicCnt = pps.redundantPicCntPresent ? reader.readUe() : 0;
+        if (reader.hasOverrun()) {
+            return false;
+        }
+        valid = true;
+        return true;
+    }
+
+    public boolean isIdr() {
+        return nalType == 5;
+    }
+
+    public boolean isIntra() {
+        return sliceType == SLICE_TYPE_I || sliceType == SLICE_TYPE_SI;
+    }
+
+    /**
+     * @return Whether the slice belongs to a reference picture, i.e. other pictures may depend on it.
+     */
+    public boolean isReference() {
+        return nalRefIdc != 0;
+    }
+}
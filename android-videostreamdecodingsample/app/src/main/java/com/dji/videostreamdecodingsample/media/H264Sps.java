@@ -0,0 +1,317 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * An H.264 sequence parameter set, including the cropping and the VUI parameters. An instance is parsed
+ * again for every SPS NAL unit with the same id, so parsing allocates nothing.
+ */
+public class H264Sps {
+    public boolean valid;
+    public int profileIdc;
+    public int constraintFlags;
+    public int levelIdc;
+    public int spsId;
+    public int chromaFormatIdc;
+    public boolean separateColourPlane;
+    public int bitDepthLuma;
+    public int bitDepthChroma;
+    public int log2MaxFrameNum;
+    public int picOrderCntType;
+    public int log2MaxPicOrderCntLsb;
+    public boolean deltaPicOrderAlwaysZero;
+    public int maxNumRefFrames;
+    public boolean gapsInFrameNumAllowed;
+    public int picWidthInMbs;
+    public int picHeightInMapUnits;
+    public boolean frameMbsOnly;
+    public int cropLeft;
+    public int cropRight;
+    public int cropTop;
+    public int cropBottom;
+
+    // VUI parameters.
+    public boolean vuiPresent;
+    public int sarWidth;
+    public int sarHeight;
+    public boolean videoFullRange;
+    public int colourPrimaries;
+    public int transferCharacteristics;
+    public int matrixCoefficients;
+    public boolean timingInfoPresent;
+    public int numUnitsInTick;
+    public int timeScale;
+    public boolean fixedFrameRate;
+    public boolean hrdPresent;
+    public int cpbRemovalDelayLength;
+    public int dpbOutputDelayLength;
+    public boolean picStructPresent;
+    public int maxNumReorderFrames;
+    public int maxDecFrameBuffering;
+
+    // Far beyond the 8192x4320 of the highest levels, so that the sizes computed from an SPS never overflow.
+    private static final int MAX_SIZE_IN_MBS = 1024;
+    private static final int EXTENDED_SAR = 255;
+    // Sample aspect ratios of aspect_ratio_idc 0 to 16.
+    private static final int[] SAR_WIDTHS = {0, 1, 12, 10, 16, 40, 24, 20, 32, 80, 18, 15, 64, 160, 4, 3, 2};
+    private static final int[] SAR_HEIGHTS = {0, 1, 11, 11, 11, 33, 11, 11, 11, 33, 11, 11, 33, 99, 3, 2, 1};
+
+    /**
+     * Parse an SPS.
+     * @param reader The reader, after the NAL unit header
+     * @return false if the SPS is malformed, then it is not valid.
+     */
+    public boolean parse(BitReader reader) {
+        valid = false;
+        profileIdc = reader.readBits(8);
+        constraintFlags = reader.readBits(8);
+        levelIdc = reader.readBits(8);
+        spsId = reader.readUe();
+        if (spsId < 0 || spsId > 31) {
+            return false;
+        }
+        chromaFormatIdc = 1;
+        separateColourPlane = false;
+        bitDepthLuma = 8;
+        bitDepthChroma = 8;
+        if (hasChromaInfo(profileIdc)) {
+            chromaFormatIdc = reader.readUe();
+            if (chromaFormatIdc == 3) {
+                separateColourPlane = reader.readFlag();
+            }
+            bitDepthLuma = reader.readUe() + 8;
+            bitDepthChroma = reader.readUe() + 8;
+            reader.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readFlag()) { // seq_scaling_matrix_present_flag
+                int listCount = chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < listCount; i++) {
+                    if (reader.readFlag()) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        log2MaxFrameNum = reader.readUe() + 4;
+        picOrderCntType = reader.readUe();
+        deltaPicOrderAlwaysZero = false;
+        if (picOrderCntType == 0) {
+            log2MaxPicOrderCntLsb = reader.readUe() + 4;
+        } else if (picOrderCntType == 1) {
+            deltaPicOrderAlwaysZero = reader.readFlag();
+            reader.readSe(); // offset_for_non_ref_pic
+            reader.readSe(); // offset_for_top_to_bottom_field
+            int cycleLength = reader.readUe();
+            if (cycleLength < 0 || cycleLength > 255) {
+                return false;
+            }
+            for (int i = 0; i < cycleLength; i++) {
+                reader.readSe(); // offset_for_ref_frame
+            }
+        }
+        maxNumRefFrames = reader.readUe();
+        gapsInFrameNumAllowed = reader.readFlag();
+        picWidthInMbs = reader.readUe() + 1;
+        picHeightInMapUnits = reader.readUe() + 1;
+        frameMbsOnly = reader.readFlag();
+        if (!frameMbsOnly) {
+            reader.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        reader.skipBits(1); // direct_8x8_inference_flag
+        cropLeft = 0;
+        cropRight = 0;
+        cropTop = 0;
+        cropBottom = 0;
+        if (reader.readFlag()) { // frame_cropping_flag
+            cropLeft = reader.readUe();
+            cropRight = reader.readUe();
+            cropTop = reader.readUe();
+            cropBottom = reader.readUe();
+        }
+        vuiPresent = reader.readFlag();
+        resetVui();
+        if (vuiPresent) {
+            parseVui(reader);
+        }
+        if (reader.hasOverrun() || log2MaxFrameNum > 16 || picOrderCntType > 2 || picWidthInMbs <= 0
+                || picWidthInMbs > MAX_SIZE_IN_MBS || picHeightInMapUnits <= 0
+                || picHeightInMapUnits > MAX_SIZE_IN_MBS || chromaFormatIdc > 3 || !isCroppingValid()) {
+            return false;
+        }
+        valid = true;
+        return true;
+    }
+
+    /**
+     * @return Width of the pictures, the cropping applied.
+     */
+    public int getWidth() {
+        return picWidthInMbs * 16 - getCropUnitX() * (cropLeft + cropRight);
+    }
+
+    /**
+     * @return Height of the pictures, the cropping applied.
+     */
+    public int getHeight() {
+        return (frameMbsOnly ? 1 : 2) * picHeightInMapUnits * 16 - getCropUnitY() * (cropTop + cropBottom);
+    }
+
+    /**
+     * @return The frame rate from the timing info, 0 if unknown.
+     */
+    public float getFrameRate() {
+        if (!timingInfoPresent || numUnitsInTick == 0) {
+            return 0;
+        }
+        // A frame lasts two ticks.
+        return (timeScale & 0xFFFFFFFFL) / (2f * (numUnitsInTick & 0xFFFFFFFFL));
+    }
+
+    private int getChromaArrayType() {
+        return separateColourPlane ? 0 : chromaFormatIdc;
+    }
+
+    /**
+     * @return Whether the cropping leaves a picture, the crop offsets being read as large as 2^31 - 1.
+     */
+    private boolean isCroppingValid() {
+        long cropX = getCropUnitX() * ((long) cropLeft + cropRight);
+        long cropY = getCropUnitY() * ((long) cropTop + cropBottom);
+        return cropX < picWidthInMbs * 16 && cropY < (frameMbsOnly ? 1 : 2) * picHeightInMapUnits * 16;
+    }
+
+    private int getCropUnitX() {
+        int chromaArrayType = getChromaArrayType();
+        return chromaArrayType == 0 || chromaArrayType == 3 ? 1 : 2;
+    }
+
+    private int getCropUnitY() {
+        int chromaArrayType = getChromaArrayType();
+        int subHeight = chromaArrayType == 1 ? 2 : 1;
+        return subHeight * (frameMbsOnly ? 1 : 2);
+    }
+
+    private static boolean hasChromaInfo(int profileIdc) {
+        switch (profileIdc) {
+            case 100:
+            case 110:
+            case 122:
+            case 244:
+            case 44:
+            case 83:
+            case 86:
+            case 118:
+            case 128:
+            case 138:
+            case 139:
+            case 134:
+            case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size; i++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSe() + 256) % 256;
+            }
+            if (nextScale != 0) {
+                lastScale = nextScale;
+            }
+        }
+    }
+
+    private void resetVui() {
+        sarWidth = 0;
+        sarHeight = 0;
+        videoFullRange = false;
+        colourPrimaries = 2;
+        transferCharacteristics = 2;
+        matrixCoefficients = 2;
+        timingInfoPresent = false;
+        numUnitsInTick = 0;
+        timeScale = 0;
+        fixedFrameRate = false;
+        hrdPresent = false;
+        cpbRemovalDelayLength = 24;
+        dpbOutputDelayLength = 24;
+        picStructPresent = false;
+        maxNumReorderFrames = -1;
+        maxDecFrameBuffering = -1;
+    }
+
+    private void parseVui(BitReader reader) {
+        if (reader.readFlag()) { // aspect_ratio_info_present_flag
+            int aspectRatioIdc = reader.readBits(8);
+            if (aspectRatioIdc == EXTENDED_SAR) {
+                sarWidth = reader.readBits(16);
+                sarHeight = reader.readBits(16);
+            } else if (aspectRatioIdc < SAR_WIDTHS.length) {
+                sarWidth = SAR_WIDTHS[aspectRatioIdc];
+                sarHeight = SAR_HEIGHTS[aspectRatioIdc];
+            }
+        }
+        if (reader.readFlag()) { // overscan_info_present_flag
+            reader.skipBits(1); // overscan_appropriate_flag
+        }
+        if (reader.readFlag()) { // video_signal_type_present_flag
+            reader.skipBits(3); // video_format
+            videoFullRange = reader.readFlag();
+            if (reader.readFlag()) { // colour_description_present_flag
+                colourPrimaries = reader.readBits(8);
+                transferCharacteristics = reader.readBits(8);
+                matrixCoefficients = reader.readBits(8);
+            }
+        }
+        if (reader.readFlag()) { // chroma_loc_info_present_flag
+            reader.readUe();
+            reader.readUe();
+        }
+        timingInfoPresent = reader.readFlag();
+        if (timingInfoPresent) {
+            numUnitsInTick = reader.readBits(32);
+            timeScale = reader.readBits(32);
+            fixedFrameRate = reader.readFlag();
+        }
+        boolean nalHrdPresent = reader.readFlag();
+        if (nalHrdPresent) {
+            parseHrd(reader);
+        }
+        boolean vclHrdPresent = reader.readFlag();
+        if (vclHrdPresent) {
+            parseHrd(reader);
+        }
+        hrdPresent = nalHrdPresent || vclHrdPresent;
+        if (hrdPresent) {
+            reader.skipBits(1); // low_delay_hrd_flag
+        }
+        picStructPresent = reader.readFlag();
+        if (reader.readFlag()) { // bitstream_restriction_flag
+            reader.skipBits(1); // motion_vectors_over_pic_boundaries_flag
+            reader.readUe(); // max_bytes_per_pic_denom
+            reader.readUe(); // max_bits_per_mb_denom
+            reader.readUe(); // log2_max_mv_length_horizontal
+            reader.readUe(); // log2_max_mv_length_vertical
+            maxNumReorderFrames = reader.readUe();
+            maxDecFrameBuffering = reader.readUe();
+        }
+    }
+
+    private void parseHrd(BitReader reader) {
+        int cpbCount = reader.readUe() + 1;
+        if (cpbCount <= 0 || cpbCount > 32) {
+            return;
+        }
+        reader.skipBits(8); // bit_rate_scale, cpb_size_scale
+        for (int i = 0; i < cpbCount; i++) {
+            reader.readUe(); // bit_rate_value_minus1
+            reader.readUe(); // cpb_size_value_minus1
+            reader.skipBits(1); // cbr_flag
+        }
+        reader.skipBits(5); // initial_cpb_removal_delay_length_minus1
+        cpbRemovalDelayLength = reader.readBits(5) + 1;
+        dpbOutputDelayLength = reader.readBits(5) + 1;
+        reader.skipBits(5); // time_offset_length
+    }
+}
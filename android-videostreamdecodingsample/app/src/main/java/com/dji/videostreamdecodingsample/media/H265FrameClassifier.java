@@ -0,0 +1,314 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Classify the framed H.265/HEVC frames from their NAL units: whether a frame is an IRAP picture the
+ * decoding can start at, whether it is a leading picture which cannot be decoded when the decoding starts
+ * at its IRAP picture, whether other frames may refer to it, and its resolution.
+ *
+ * The patched FFmpeg parser only reports these for H.264, so they are read here from the VPS/SPS/PPS and
+ * the first slice segment header. The parameter sets are kept in primitive tables by id, so nothing is
+ * allocated once created. The classifier is not thread safe.
+ */
+public class H265FrameClassifier {
+    public static final int NAL_TRAIL_N = 0;
+    public static final int NAL_RASL_N = 8;
+    public static final int NAL_RASL_R = 9;
+    public static final int NAL_BLA_W_LP = 16;
+    public static final int NAL_IDR_W_RADL = 19;
+    public static final int NAL_IDR_N_LP = 20;
+    public static final int NAL_CRA = 21;
+    public static final int NAL_IRAP_LAST = 23;
+    public static final int NAL_VPS = 32;
+    public static final int NAL_SPS = 33;
+    public static final int NAL_PPS = 34;
+    public static final int NAL_AUD = 35;
+
+    public static final int SLICE_TYPE_B = 0;
+    public static final int SLICE_TYPE_P = 1;
+    public static final int SLICE_TYPE_I = 2;
+
+    private static final int MAX_SPS_COUNT = 16;
+    private static final int MAX_PPS_COUNT = 64;
+
+    private final NalUnitScanner scanner = new NalUnitScanner();
+    private final BitReader reader = new BitReader();
+    // SPS table.
+    private final boolean[] spsValid = new boolean[MAX_SPS_COUNT];
+    private final int[] spsWidths = new int[MAX_SPS_COUNT];
+    private final int[] spsHeights = new int[MAX_SPS_COUNT];
+    private final boolean[] spsSeparateColourPlanes = new boolean[MAX_SPS_COUNT];
+    private final int[] spsLog2MaxPocLsbs = new int[MAX_SPS_COUNT];
+    private final int[] spsMaxSubLayersMinus1s = new int[MAX_SPS_COUNT];
+    // PPS table.
+    private final boolean[] ppsValid = new boolean[MAX_PPS_COUNT];
+    private final int[] ppsSpsIds = new int[MAX_PPS_COUNT];
+    private final boolean[] ppsOutputFlagPresents = new boolean[MAX_PPS_COUNT];
+    private final int[] ppsExtraSliceHeaderBits = new int[MAX_PPS_COUNT];
+
+    private boolean hasVcl;
+    private boolean hasSliceHeader;
+    private boolean hasParameterSets;
+    private int nalType;
+    private int temporalId;
+    // TemporalId of the highest sub-layer of the active SPS, -1 if it is unknown.
+    private int highestTemporalId;
+    private int sliceType;
+    private int picOrderCntLsb;
+    private int width;
+    private int height;
+
+    /**
+     * Classify a frame.
+     * @param frame The buffer containing the frame, in the Annex-B format
+     * @param offset Offset of the frame
+     * @param length Length of the frame
+     * @return false if the frame has no slice segment.
+     */
+    public boolean classify(ByteBuffer frame, int offset, int length) {
+        scanner.reset(frame, offset, length);
+        return classifyNalUnits();
+    }
+
+    /**
+     * Classify a frame in an array, without wrapping it into a buffer.
+     * @see #classify(ByteBuffer, int, int)
+     */
+    public boolean classify(byte[] frame, int offset, int length) {
+        scanner.reset(frame, offset, length);
+        return classifyNalUnits();
+    }
+
+    private boolean classifyNalUnits() {
+        hasVcl = false;
+        hasSliceHeader = false;
+        hasParameterSets = false;
+        nalType = -1;
+        temporalId = -1;
+        highestTemporalId = -1;
+        while (!hasVcl && scanner.next()) {
+            int type = scanner.getH265NalType();
+            if (type < NAL_VPS) {
+                // The first slice segment, its header is read without looking for the end of the slice.
+                hasVcl = true;
+                nalType = type;
+                temporalId = scanner.getH265TemporalId();
+                scanner.resetReader(reader, scanner.getNalOffset() + 2, scanner.getRemainingLength() - 2);
+                hasSliceHeader = parseSliceHeader();
+            } else if (type == NAL_SPS || type == NAL_PPS) {
+                hasParameterSets = true;
+                scanner.resetReader(reader, scanner.getNalOffset() + 2, scanner.getNalLength() - 2);
+                if (type == NAL_SPS) {
+                    parseSps();
+                } else {
+                    parsePps();
+                }
+            } else if (type == NAL_VPS) {
+                hasParameterSets = true;
+            }
+        }
+        return hasVcl;
+    }
+
+    /**
+     * @return Whether the frame is an IRAP picture (IDR, CRA or BLA), the decoding can start at it.
+     */
+    public boolean isKeyFrame() {
+        return nalType >= NAL_BLA_W_LP && nalType <= NAL_IRAP_LAST;
+    }
+
+    /**
+     * @return Whether the frame is an IRAP picture which may be followed by RASL pictures, i.e. the first
+     * picture of an open GOP.
+     */
+    public boolean isOpenGopKeyFrame() {
+        return nalType == NAL_CRA || nalType == NAL_BLA_W_LP;
+    }
+
+    /**
+     * @return Whether the frame is a RASL picture. It refers to the GOP before its IRAP picture, so it cannot
+     * be decoded when the decoding starts at that IRAP picture.
+     */
+    public boolean isRasl() {
+        return nalType == NAL_RASL_N || nalType == NAL_RASL_R;
+    }
+
+    /**
+     * @return Whether other frames may refer to the frame. A sub-layer non reference frame can only be
+     * dropped safely in the highest temporal sub-layer of its SPS, the frames of the higher sub-layers may
+     * refer to it otherwise.
+     */
+    public boolean isReference() {
+        if (nalType > 14 || nalType % 2 != 0) {
+            return true;
+        }
+        // A frame whose SPS is unknown is kept.
+        return highestTemporalId < 0 || temporalId < highestTemporalId;
+    }
+
+    /**
+     * @return TemporalId of the frame, 0 for the base sub-layer, -1 if there is no slice segment.
+     */
+    public int getTemporalId() {
+        return temporalId;
+    }
+
+    /**
+     * @return Whether the frame carries parameter sets.
+     */
+    public boolean hasParameterSets() {
+        return hasParameterSets;
+    }
+
+    /**
+     * @return The NAL unit type of the first slice segment, -1 if there is none.
+     */
+    public int getNalType() {
+        return nalType;
+    }
+
+    /**
+     * @return The slice type, e.g. {@link #SLICE_TYPE_I}, -1 if the slice header could not be parsed.
+     */
+    public int getSliceType() {
+        return hasSliceHeader ? sliceType : -1;
+    }
+
+    /**
+     * @return slice_pic_order_cnt_lsb of the frame, 0 for an IDR picture.
+     */
+    public int getPicOrderCntLsb() {
+        return picOrderCntLsb;
+    }
+
+    /**
+     * @return Width of the pictures from the active SPS, the conformance window applied, 0 if unknown.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Forget the parameter sets, e.g. when the stream changes.
+     */
+    public void reset() {
+        for (int i = 0; i < MAX_SPS_COUNT; i++) {
+            spsValid[i] = false;
+        }
+        for (int i = 0; i < MAX_PPS_COUNT; i++) {
+            ppsValid[i] = false;
+        }
+        width = 0;
+        height = 0;
+    }
+
+    private void parseSps() {
+        reader.skipBits(4); // sps_video_parameter_set_id
+        int maxSubLayersMinus1 = reader.readBits(3);
+        reader.skipBits(1); // sps_temporal_id_nesting_flag
+        skipProfileTierLevel(maxSubLayersMinus1);
+        int spsId = reader.readUe();
+        if (spsId < 0 || spsId >= MAX_SPS_COUNT) {
+            return;
+        }
+        int chromaFormatIdc = reader.readUe();
+        boolean separateColourPlane = chromaFormatIdc == 3 && reader.readFlag();
+        int picWidth = reader.readUe();
+        int picHeight = reader.readUe();
+        if (reader.readFlag()) { // conformance_window_flag
+            int chromaArrayType = separateColourPlane ? 0 : chromaFormatIdc;
+            int subWidth = chromaArrayType == 1 || chromaArrayType == 2 ? 2 : 1;
+            int subHeight = chromaArrayType == 1 ? 2 : 1;
+            picWidth -= subWidth * (reader.readUe() + reader.readUe());
+            picHeight -= subHeight * (reader.readUe() + reader.readUe());
+        }
+        reader.readUe(); // bit_depth_luma_minus8
+        reader.readUe(); // bit_depth_chroma_minus8
+        int log2MaxPocLsb = reader.readUe() + 4;
+        if (reader.hasOverrun() || chromaFormatIdc > 3 || picWidth <= 0 || picHeight <= 0 || log2MaxPocLsb > 16) {
+            return;
+        }
+        spsValid[spsId] = true;
+        spsWidths[spsId] = picWidth;
+        spsHeights[spsId] = picHeight;
+        spsSeparateColourPlanes[spsId] = separateColourPlane;
+        spsLog2MaxPocLsbs[spsId] = log2MaxPocLsb;
+        spsMaxSubLayersMinus1s[spsId] = maxSubLayersMinus1;
+    }
+
+    private void skipProfileTierLevel(int maxSubLayersMinus1) {
+        // general_profile_space to general_level_idc.
+        reader.skipBits(96);
+        int subLayerFlags = 0;
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            subLayerFlags = (subLayerFlags << 2) | reader.readBits(2);
+        }
+        if (maxSubLayersMinus1 > 0) {
+            reader.skipBits(2 * (8 - maxSubLayersMinus1)); // reserved_zero_2bits
+        }
+        for (int i = maxSubLayersMinus1 - 1; i >= 0; i--) {
+            int flags = subLayerFlags >> (2 * i);
+            if ((flags & 2) != 0) { // sub_layer_profile_present_flag
+                reader.skipBits(88);
+            }
+            if ((flags & 1) != 0) { // sub_layer_level_present_flag
+                reader.skipBits(8);
+            }
+        }
+    }
+
+    private void parsePps() {
+        int ppsId = reader.readUe();
+        int spsId = reader.readUe();
+        if (ppsId < 0 || ppsId >= MAX_PPS_COUNT || spsId < 0 || spsId >= MAX_SPS_COUNT) {
+            return;
+        }
+        reader.skipBits(1); // dependent_slice_segments_enabled_flag
+        boolean outputFlagPresent = reader.readFlag();
+        int extraSliceHeaderBits = reader.readBits(3);
+        if (reader.hasOverrun()) {
+            return;
+        }
+        ppsValid[ppsId] = true;
+        ppsSpsIds[ppsId] = spsId;
+        ppsOutputFlagPresents[ppsId] = outputFlagPresent;
+        ppsExtraSliceHeaderBits[ppsId] = extraSliceHeaderBits;
+    }
+
+    private boolean parseSliceHeader() {
+        picOrderCntLsb = 0;
+        boolean firstSliceSegment = reader.readFlag();
+        if (isKeyFrame()) {
+            reader.skipBits(1); // no_output_of_prior_pics_flag
+        }
+        int ppsId = reader.readUe();
+        if (ppsId < 0 || ppsId >= MAX_PPS_COUNT || !ppsValid[ppsId] || !spsValid[ppsSpsIds[ppsId]]) {
+            return false;
+        }
+        int spsId = ppsSpsIds[ppsId];
+        width = spsWidths[spsId];
+        height = spsHeights[spsId];
+        highestTemporalId = spsMaxSubLayersMinus1s[spsId];
+        if (!firstSliceSegment) {
+            // The slice segment address depends on the coding tree block size, which is not parsed.
+            return false;
+        }
+        reader.skipBits(ppsExtraSliceHeaderBits[ppsId]); // slice_reserved_flag
+        sliceType = reader.readUe();
+        if (ppsOutputFlagPresents[ppsId]) {
+            reader.skipBits(1); // pic_output_flag
+        }
+        if (spsSeparateColourPlanes[spsId]) {
+            reader.skipBits(2); // colour_plane_id
+        }
+        if (nalType != NAL_IDR_W_RADL && nalType != NAL_IDR_N_LP) {
+            picOrderCntLsb = reader.readBits(spsLog2MaxPocLsbs[spsId]);
+        }
+        return !reader.hasOverrun() && sliceType >= 0 && sliceType <= SLICE_TYPE_I;
+    }
+}
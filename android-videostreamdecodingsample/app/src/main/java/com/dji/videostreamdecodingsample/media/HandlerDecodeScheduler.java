@@ -0,0 +1,104 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+/**
+ * The decoding thread as a HandlerThread: each message goes through the message queue of its looper.
+ */
+public class HandlerDecodeScheduler implements DecodeScheduler {
+    private final String threadName;
+    private final int priority;
+    private HandlerThread handlerThread;
+    private volatile Handler handler;
+
+    /**
+     * @param threadName Name of the decoding thread
+     * @param priority Linux priority of the thread, e.g. {@link Process#THREAD_PRIORITY_DEFAULT}
+     */
+    public HandlerDecodeScheduler(String threadName, int priority) {
+        this.threadName = threadName;
+        this.priority = priority;
+    }
+
+    @Override
+    public synchronized void start(final MessageHandler messageHandler) {
+        if (handlerThread != null && handlerThread.isAlive()) {
+            return;
+        }
+        handlerThread = new HandlerThread(threadName, priority);
+        handlerThread.start();
+        handler = new Handler(handlerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                messageHandler.handleMessage(msg.what);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (handlerThread == null || !handlerThread.isAlive()) {
+            return;
+        }
+        handler.removeCallbacksAndMessages(null);
+        if (Build.VERSION.SDK_INT >= 18) {
+            handlerThread.quitSafely();
+        } else {
+            handlerThread.quit();
+        }
+
+        try {
+            handlerThread.join(3000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        handler = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return handler != null;
+    }
+
+    @Override
+    public void sendMessage(int what) {
+        Handler h = handler;
+        if (h != null && !h.hasMessages(what)) {
+            h.sendEmptyMessage(what);
+        }
+    }
+
+    @Override
+    public void sendMessageDelayed(int what, long delayMs) {
+        Handler h = handler;
+        if (h != null && !h.hasMessages(what)) {
+            h.sendEmptyMessageDelayed(what, delayMs);
+        }
+    }
+
+    @Override
+    public boolean hasMessage(int what) {
+        Handler h = handler;
+        return h != null && h.hasMessages(what);
+    }
+
+    @Override
+    public void removeMessage(int what) {
+        Handler h = handler;
+        if (h != null) {
+            h.removeMessages(what);
+        }
+    }
+
+    @Override
+    public void removeAllMessages() {
+        Handler h = handler;
+        if (h != null) {
+            h.removeCallbacksAndMessages(null);
+        }
+    }
+}
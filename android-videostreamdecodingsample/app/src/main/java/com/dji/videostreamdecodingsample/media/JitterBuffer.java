@@ -0,0 +1,202 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * Schedule the display of the decoded frames to smooth the arrival jitter of the link. Rendered as soon as
+ * they are decoded, the frames show the irregular arrival times as uneven motion.
+ *
+ * The frames are timestamped with their arrival time. A display clock follows these timestamps at the
+ * estimated frame interval, only drifting slowly towards them, so the jitter is filtered out. Each frame is
+ * displayed at the display clock plus a delay, the depth of the buffer. The delay adapts to how late the
+ * outputs come after the display clock, their mean plus a multiple of their mean deviation, as RFC 3550
+ * estimates the jitter, within configurable bounds. It grows at once and shrinks slowly.
+ *
+ * A frame whose display time has passed when it is decoded is dropped, showing it would delay the next
+ * ones. The preference decides between the latency and the smoothness: a smaller delay shrinking faster,
+ * or a larger one shrinking slower.
+ *
+ * It is used in the decoding thread only, the metrics can be read from any thread.
+ */
+public class JitterBuffer {
+    /** Keep the delay small, at the cost of some late frames on jitter peaks. */
+    public static final int PREFER_LATENCY = 0;
+    /** Keep the motion regular, at the cost of a larger delay. */
+    public static final int PREFER_SMOOTHNESS = 1;
+    /** Returned by {@link #schedule(long, long)} for a frame to drop. */
+    public static final long DROP = Long.MIN_VALUE;
+
+    private static final long DEFAULT_MIN_DELAY_US = 10000;
+    private static final long DEFAULT_MAX_DELAY_US = 200000;
+    private static final long DEFAULT_FRAME_INTERVAL_US = 33333;
+    // Multiple of the mean deviation added to the mean lateness, for each preference.
+    private static final int[] DEVIATION_FACTOR = {3, 5};
+    // Divider of the step towards a smaller target delay, for each preference.
+    private static final int[] SHRINK_DIVIDER = {16, 128};
+    // Divider of the drift of the display clock towards the timestamps.
+    private static final int CLOCK_DRIFT_DIVIDER = 16;
+    // The late frames dropped in a row before one is shown at once, so that the display never stops.
+    private static final int MAX_CONSECUTIVE_DROPS = 2;
+
+    private volatile boolean enabled;
+    private volatile int preference = PREFER_LATENCY;
+    private volatile long minDelayUs = DEFAULT_MIN_DELAY_US;
+    private volatile long maxDelayUs = DEFAULT_MAX_DELAY_US;
+
+    private boolean started;
+    private long lastPtsUs;
+    private long frameIntervalUs = DEFAULT_FRAME_INTERVAL_US;
+    private long clockUs;
+    private long lastDisplayUs;
+    private long meanLatenessUs;
+    private long latenessDeviationUs;
+    private int consecutiveDrops;
+    private volatile long delayUs = DEFAULT_MIN_DELAY_US;
+    private volatile long scheduledFrameCount;
+    private volatile long lateDropCount;
+    private volatile long resyncCount;
+
+    /**
+     * Enable or disable the buffer. When disabled, the frames are rendered as soon as they are decoded.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param preference {@link #PREFER_LATENCY} (the default) or {@link #PREFER_SMOOTHNESS}
+     */
+    public void setPreference(int preference) {
+        if (preference != PREFER_LATENCY && preference != PREFER_SMOOTHNESS) {
+            throw new IllegalArgumentException("Invalid preference: " + preference);
+        }
+        this.preference = preference;
+    }
+
+    public int getPreference() {
+        return preference;
+    }
+
+    /**
+     * Set the bounds of the delay added before the display. The default is 10 ms to 200 ms.
+     * @param minDelayUs Minimum delay in microseconds
+     * @param maxDelayUs Maximum delay in microseconds
+     */
+    public void setDelayBounds(long minDelayUs, long maxDelayUs) {
+        if (minDelayUs < 0 || maxDelayUs < minDelayUs) {
+            throw new IllegalArgumentException("Invalid delay bounds: " + minDelayUs + ", " + maxDelayUs);
+        }
+        this.minDelayUs = minDelayUs;
+        this.maxDelayUs = maxDelayUs;
+    }
+
+    /**
+     * Forget the timing of the stream, e.g. after the codec was flushed. The next frame restarts the
+     * display clock.
+     */
+    public void reset() {
+        started = false;
+        consecutiveDrops = 0;
+        latenessDeviationUs = 0;
+        delayUs = minDelayUs;
+    }
+
+    /**
+     * Schedule the display of a decoded frame.
+     * @param ptsUs Timestamp of the frame, its arrival time on the clock of nowUs
+     * @param nowUs Current time of the monotonic clock
+     * @return The display time of the frame on the same clock, or {@link #DROP} if the frame is late.
+     */
+    public long schedule(long ptsUs, long nowUs) {
+        long minDelay = minDelayUs;
+        long maxDelay = maxDelayUs;
+        boolean restart = !started || ptsUs <= lastPtsUs;
+        if (restart) {
+            started = true;
+            clockUs = ptsUs;
+            lastDisplayUs = Long.MIN_VALUE;
+        } else {
+            long deltaUs = ptsUs - lastPtsUs;
+            // A much longer interval is a lost frame or a pause, not a change of the frame rate.
+            if (deltaUs < frameIntervalUs * 3) {
+                frameIntervalUs += (deltaUs - frameIntervalUs) / 16;
+            }
+            clockUs += frameIntervalUs;
+            clockUs += (ptsUs - clockUs) / CLOCK_DRIFT_DIVIDER;
+            if (Math.abs(ptsUs - clockUs) > maxDelay) {
+                // Too far from the stream, e.g. after a pause of the link.
+                clockUs = ptsUs;
+                resyncCount++;
+            }
+        }
+        lastPtsUs = ptsUs;
+
+        long latenessUs = nowUs - clockUs;
+        if (restart) {
+            meanLatenessUs = latenessUs;
+        }
+        meanLatenessUs += (latenessUs - meanLatenessUs) / 16;
+        latenessDeviationUs += (Math.abs(latenessUs - meanLatenessUs) - latenessDeviationUs) / 16;
+        int pref = preference;
+        long targetUs = meanLatenessUs + DEVIATION_FACTOR[pref] * latenessDeviationUs;
+        targetUs = Math.max(minDelay, Math.min(maxDelay, targetUs));
+        long delay = delayUs;
+        if (targetUs > delay) {
+            delay = targetUs;
+        } else {
+            delay -= (delay - targetUs) / SHRINK_DIVIDER[pref];
+        }
+        delay = Math.max(minDelay, Math.min(maxDelay, delay));
+        delayUs = delay;
+
+        long displayUs = clockUs + delay;
+        if (displayUs < nowUs) {
+            if (consecutiveDrops < MAX_CONSECUTIVE_DROPS) {
+                consecutiveDrops++;
+                lateDropCount++;
+                return DROP;
+            }
+            // Late for too long, move the display clock so that this frame is on time.
+            clockUs = nowUs - delay;
+            displayUs = nowUs;
+            resyncCount++;
+        }
+        consecutiveDrops = 0;
+        // Never out of order, nor further than the maximum delay.
+        displayUs = Math.max(displayUs, lastDisplayUs + frameIntervalUs / 2);
+        displayUs = Math.min(displayUs, nowUs + maxDelay);
+        lastDisplayUs = displayUs;
+        scheduledFrameCount++;
+        return displayUs;
+    }
+
+    /**
+     * @return The current delay from the display clock to the display, the depth of the buffer.
+     */
+    public long getDelayUs() {
+        return delayUs;
+    }
+
+    /**
+     * @return Number of frames scheduled for display.
+     */
+    public long getScheduledFrameCount() {
+        return scheduledFrameCount;
+    }
+
+    /**
+     * @return Number of frames dropped because their display time had passed.
+     */
+    public long getLateDropCount() {
+        return lateDropCount;
+    }
+
+    /**
+     * @return Number of times the display clock jumped to the stream, after a pause or late frames.
+     */
+    public long getResyncCount() {
+        return resyncCount;
+    }
+}
@@ -0,0 +1,194 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cheap motion and scene change detector, which lets the snapshot or recording features trigger on
+ * the content instead of every N frames.
+ *
+ * Only the luma plane is read, on a sparse grid: the frame is split into {@link #GRID_COLUMNS} x
+ * {@link #GRID_ROWS} blocks and each block mean is estimated from {@link #SAMPLES_PER_SIDE} squared
+ * samples, i.e. about 9k reads per frame whatever the resolution. A running model of the block means is
+ * kept in primitive arrays, so a frame allocates nothing. Per frame it gives:
+ *
+ * - The motion score, the ratio of blocks whose mean differs from the model by more than the motion
+ * threshold, from 0 to 1.
+ *
+ * - The scene change score, the mean difference of the block means from the previous frame, from 0 to 1.
+ * When it exceeds the scene change threshold, the model is reset to the new scene.
+ *
+ * It can be used as a stage of a {@link FrameProcessorPipeline}, or called with a {@link YuvFrameView} or
+ * the luma plane in a buffer.
+ */
+public class LumaMotionDetector implements FrameProcessorPipeline.Stage {
+    public static final int GRID_COLUMNS = 32;
+    public static final int GRID_ROWS = 18;
+    public static final int SAMPLES_PER_SIDE = 4;
+    private static final int BLOCK_COUNT = GRID_COLUMNS * GRID_ROWS;
+    // The model is kept in 1/16 of a luma level, and follows the frames with a weight of 1/8.
+    private static final int MODEL_SHIFT = 4;
+    private static final int MODEL_RATE_SHIFT = 3;
+
+    public interface MotionListener {
+        /**
+         * Callback method invoked for every analyzed frame, in the thread calling the detector.
+         * @param ptsUs Presentation timestamp of the frame
+         * @param motionScore Ratio of the blocks in motion, from 0 to 1
+         * @param sceneChangeScore How much the frame differs from the previous one, from 0 to 1
+         * @param sceneChanged Whether the scene change score exceeds its threshold
+         */
+        void onMotion(long ptsUs, float motionScore, float sceneChangeScore, boolean sceneChanged);
+    }
+
+    private final int[] blockMeans = new int[BLOCK_COUNT];
+    private final int[] previousMeans = new int[BLOCK_COUNT];
+    private final int[] model = new int[BLOCK_COUNT];
+    private final int[] sampleColumns = new int[GRID_COLUMNS * SAMPLES_PER_SIDE];
+    private final int[] sampleRows = new int[GRID_ROWS * SAMPLES_PER_SIDE];
+    private ByteBuffer wrappedData;
+    private int sampledWidth;
+    private int sampledHeight;
+    private boolean hasModel;
+    private int motionThreshold = 12;
+    private float sceneChangeThreshold = 0.25f;
+    private volatile MotionListener motionListener;
+    private volatile float motionScore;
+    private volatile float sceneChangeScore;
+
+    public void setMotionListener(MotionListener motionListener) {
+        this.motionListener = motionListener;
+    }
+
+    /**
+     * @param motionThreshold Difference of a block mean from the model, in luma levels, counted as motion
+     */
+    public void setMotionThreshold(int motionThreshold) {
+        this.motionThreshold = motionThreshold;
+    }
+
+    /**
+     * @param sceneChangeThreshold Scene change score from which the scene is considered changed
+     */
+    public void setSceneChangeThreshold(float sceneChangeThreshold) {
+        this.sceneChangeThreshold = sceneChangeThreshold;
+    }
+
+    public float getMotionScore() {
+        return motionScore;
+    }
+
+    public float getSceneChangeScore() {
+        return sceneChangeScore;
+    }
+
+    /**
+     * Forget the model, e.g. when the camera is switched.
+     */
+    public void reset() {
+        hasModel = false;
+    }
+
+    @Override
+    public boolean process(FrameBus.SharedFrame frame) {
+        byte[] data = frame.getData();
+        if (data != null) {
+            // The pool of the bus recycles the arrays, so the wrapper is only replaced with the pool entry.
+            ByteBuffer buffer = wrappedData;
+            if (buffer == null || buffer.array() != data) {
+                buffer = ByteBuffer.wrap(data);
+                wrappedData = buffer;
+            }
+            // The luma plane comes first in both the planar and the semi-planar layouts.
+            process(buffer, 0, frame.getStride(), frame.getWidth(), frame.getHeight(), frame.getPtsUs());
+        }
+        return true;
+    }
+
+    /**
+     * Analyze a frame. The view is only read until this method returns.
+     * @param frame The frame
+     */
+    public void process(YuvFrameView frame) {
+        process(frame.getBuffer(YuvFrameView.PLANE_Y), frame.getOffset(YuvFrameView.PLANE_Y),
+                frame.getRowStride(YuvFrameView.PLANE_Y), frame.getWidth(), frame.getHeight(), frame.getPtsUs());
+    }
+
+    /**
+     * Analyze a frame from its luma plane, with a pixel stride of 1. The buffer is only read until this
+     * method returns, its position is left unchanged.
+     * @param luma Buffer holding the luma plane
+     * @param offset Offset of the first luma sample in the buffer
+     * @param stride Row stride of the luma plane
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @param ptsUs Presentation timestamp of the frame
+     */
+    public void process(ByteBuffer luma, int offset, int stride, int width, int height, long ptsUs) {
+        updateSampling(width, height);
+        for (int block = 0; block < BLOCK_COUNT; block++) {
+            int column = (block % GRID_COLUMNS) * SAMPLES_PER_SIDE;
+            int row = (block / GRID_COLUMNS) * SAMPLES_PER_SIDE;
+            int sum = 0;
+            for (int j = 0; j < SAMPLES_PER_SIDE; j++) {
+                int rowOffset = offset + sampleRows[row + j] * stride;
+                for (int i = 0; i < SAMPLES_PER_SIDE; i++) {
+                    sum += luma.get(rowOffset + sampleColumns[column + i]) & 0xFF;
+                }
+            }
+            blockMeans[block] = sum / (SAMPLES_PER_SIDE * SAMPLES_PER_SIDE);
+        }
+        analyze(ptsUs);
+    }
+
+    /**
+     * Place the samples evenly in each block, once per resolution.
+     */
+    private void updateSampling(int width, int height) {
+        if (width == sampledWidth && height == sampledHeight) {
+            return;
+        }
+        sampledWidth = width;
+        sampledHeight = height;
+        for (int i = 0; i < sampleColumns.length; i++) {
+            sampleColumns[i] = (int) ((2L * i + 1) * width / (2L * sampleColumns.length));
+        }
+        for (int i = 0; i < sampleRows.length; i++) {
+            sampleRows[i] = (int) ((2L * i + 1) * height / (2L * sampleRows.length));
+        }
+        hasModel = false;
+    }
+
+    private void analyze(long ptsUs) {
+        int moving = 0;
+        long difference = 0;
+        if (hasModel) {
+            int threshold = motionThreshold << MODEL_SHIFT;
+            for (int block = 0; block < BLOCK_COUNT; block++) {
+                int mean = blockMeans[block];
+                int scaled = mean << MODEL_SHIFT;
+                if (Math.abs(scaled - model[block]) > threshold) {
+                    moving++;
+                }
+                model[block] += (scaled - model[block]) >> MODEL_RATE_SHIFT;
+                difference += Math.abs(mean - previousMeans[block]);
+            }
+        }
+        float motion = (float) moving / BLOCK_COUNT;
+        float sceneChange = hasModel ? Math.min(1f, (float) difference / BLOCK_COUNT / 64) : 1f;
+        boolean sceneChanged = sceneChange >= sceneChangeThreshold;
+        if (sceneChanged) {
+            // Start over with the new scene, rather than reporting motion everywhere until the model follows.
+            for (int block = 0; block < BLOCK_COUNT; block++) {
+                model[block] = blockMeans[block] << MODEL_SHIFT;
+            }
+            hasModel = true;
+        }
+        System.arraycopy(blockMeans, 0, previousMeans, 0, BLOCK_COUNT);
+        motionScore = motion;
+        sceneChangeScore = sceneChange;
+        MotionListener listener = motionListener;
+        if (listener != null) {
+            listener.onMotion(ptsUs, motion, sceneChange, sceneChanged);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * A decoding "thread" driven by the caller: the messages are only handled when {@link #runPending(int)} is
+ * invoked, in the calling thread, and the delayed messages are due on a {@link DecoderClock}. With a
+ * {@link VirtualDecoderClock} and a {@link SimulatedDecoderBackend}, the decoding runs step by step in a
+ * reproducible order, e.g. in a test.
+ *
+ * Like {@link RealtimeDecodeScheduler}, the pending messages are the bits of an integer and are handled
+ * in turns. The messages may be sent from any thread.
+ */
+public class ManualDecodeScheduler implements DecodeScheduler {
+    private static final int MAX_MESSAGES = 32;
+
+    private final DecoderClock clock;
+    private int pendingMessages;
+    private int delayedMessages;
+    private final long[] dueTimesUs = new long[MAX_MESSAGES];
+    private MessageHandler handler;
+    private int nextMessage;
+
+    public ManualDecodeScheduler(DecoderClock clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized void start(MessageHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public synchronized void stop() {
+        handler = null;
+        removeAllMessages();
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return handler != null;
+    }
+
+    @Override
+    public synchronized void sendMessage(int what) {
+        pendingMessages |= 1 << what;
+    }
+
+    @Override
+    public synchronized void sendMessageDelayed(int what, long delayMs) {
+        if (delayMs <= 0) {
+            sendMessage(what);
+            return;
+        }
+        if (hasMessage(what)) {
+            return;
+        }
+        dueTimesUs[what] = clock.nowUs() + delayMs * 1000;
+        delayedMessages |= 1 << what;
+    }
+
+    @Override
+    public synchronized boolean hasMessage(int what) {
+        return ((pendingMessages | delayedMessages) & (1 << what)) != 0;
+    }
+
+    @Override
+    public synchronized void removeMessage(int what) {
+        pendingMessages &= ~(1 << what);
+        delayedMessages &= ~(1 << what);
+    }
+
+    @Override
+    public synchronized void removeAllMessages() {
+        pendingMessages = 0;
+        delayedMessages = 0;
+    }
+
+    /**
+     * Handle the pending messages and the delayed messages due, in the calling thread, until none is left.
+     * @param maxMessages Maximum number of messages to handle, as a message may keep sending itself
+     * @return Number of messages handled.
+     */
+    public int runPending(int maxMessages) {
+        int count = 0;
+        while (count < maxMessages) {
+            MessageHandler messageHandler;
+            int what;
+            synchronized (this) {
+                messageHandler = handler;
+                what = takeMessage();
+            }
+            if (messageHandler == null || what < 0) {
+                break;
+            }
+            messageHandler.handleMessage(what);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return The time of the next delayed message in microseconds, Long.MAX_VALUE if there is none. The
+     * clock can be moved forward to it to keep the decoding going.
+     */
+    public synchronized long getNextDueTimeUs() {
+        long next = Long.MAX_VALUE;
+        for (int what = 0; what < MAX_MESSAGES; what++) {
+            if ((delayedMessages & (1 << what)) != 0) {
+                next = Math.min(next, dueTimesUs[what]);
+            }
+        }
+        return next;
+    }
+
+    private int takeMessage() {
+        long nowUs = clock.nowUs();
+        for (int what = 0; what < MAX_MESSAGES; what++) {
+            int bit = 1 << what;
+            if ((delayedMessages & bit) != 0 && dueTimesUs[what] <= nowUs) {
+                delayedMessages &= ~bit;
+                pendingMessages |= bit;
+            }
+        }
+        if (pendingMessages == 0) {
+            return -1;
+        }
+        // Round-robin from the message after the last handled one.
+        for (int i = 0; i < MAX_MESSAGES; i++) {
+            int what = (nextMessage + i) % MAX_MESSAGES;
+            if ((pendingMessages & (1 << what)) != 0) {
+                pendingMessages &= ~(1 << what);
+                nextMessage = (what + 1) % MAX_MESSAGES;
+                return what;
+            }
+        }
+        return -1;
+    }
+}
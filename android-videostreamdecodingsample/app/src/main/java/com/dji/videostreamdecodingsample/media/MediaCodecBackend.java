@@ -0,0 +1,110 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The hardware decoder of the device, a MediaCodec behind the {@link DecoderBackend} interface.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class MediaCodecBackend implements DecoderBackend {
+    private final MediaCodec codec;
+
+    public MediaCodecBackend(MediaCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @return The wrapped codec.
+     */
+    public MediaCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public String getName() {
+        return codec.getName();
+    }
+
+    @Override
+    public void configure(MediaFormat format, Surface surface) {
+        codec.configure(format, surface, null, 0);
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+    }
+
+    @Override
+    public void stop() {
+        codec.stop();
+    }
+
+    @Override
+    public void flush() {
+        codec.flush();
+    }
+
+    @Override
+    public void release() {
+        codec.release();
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    @Override
+    public void setOutputSurface(Surface surface) {
+        codec.setOutputSurface(surface);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return codec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public Image getOutputImage(int index) {
+        return codec.getOutputImage(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        codec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        codec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return codec.getOutputFormat();
+    }
+}
@@ -0,0 +1,165 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Iterate over the NAL units of Annex-B data, e.g. a framed frame, by looking for the start codes. The
+ * NAL units are read in place, nothing is allocated.
+ *
+ *     scanner.reset(frame, 0, size);
+ *     while (scanner.next()) {
+ *         int type = scanner.getH264NalType();
+ *         ...
+ *     }
+ */
+public class NalUnitScanner {
+    private ByteBuffer buffer;
+    private byte[] array;
+    private int limit;
+    private int searchFrom;
+    private int nalOffset;
+    // Offset of the start code following the current NAL unit, -1 until it is looked for.
+    private int nalEnd;
+    private int nalLength;
+
+    /**
+     * @param buffer The buffer containing the data
+     * @param offset Offset of the data
+     * @param length Length of the data
+     */
+    public void reset(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        array = null;
+        start(offset, length);
+    }
+
+    /**
+     * Scan an array, without wrapping it into a buffer.
+     * @param array The array containing the data
+     * @param offset Offset of the data
+     * @param length Length of the data
+     */
+    public void reset(byte[] array, int offset, int length) {
+        buffer = null;
+        this.array = array;
+        start(offset, length);
+    }
+
+    /**
+     * Start reading a part of the scanned data with a reader, e.g. the payload of the current NAL unit.
+     */
+    public void resetReader(BitReader reader, int offset, int length) {
+        if (array != null) {
+            reader.reset(array, offset, length);
+        } else {
+            reader.reset(buffer, offset, length);
+        }
+    }
+
+    private void start(int offset, int length) {
+        limit = offset + length;
+        searchFrom = offset;
+        nalOffset = limit;
+        nalEnd = -1;
+        nalLength = 0;
+    }
+
+    /**
+     * Move to the next NAL unit.
+     * @return false if there is none.
+     */
+    public boolean next() {
+        int begin = findStartCode(nalEnd >= 0 ? nalEnd : searchFrom);
+        if (begin < 0) {
+            searchFrom = limit;
+            nalOffset = limit;
+            nalEnd = -1;
+            return false;
+        }
+        nalOffset = begin + 3;
+        searchFrom = nalOffset;
+        nalEnd = -1;
+        return true;
+    }
+
+    /**
+     * @return Offset of the current NAL unit in the buffer, at its header.
+     */
+    public int getNalOffset() {
+        return nalOffset;
+    }
+
+    /**
+     * Get the length of the current NAL unit. Its end is only looked for here, so that a caller which only
+     * needs the beginning of a large NAL unit, e.g. a slice header, does not scan the whole NAL unit.
+     * @return Length of the current NAL unit, its header included.
+     */
+    public int getNalLength() {
+        if (nalEnd < 0) {
+            int end = findStartCode(nalOffset);
+            nalEnd = end < 0 ? limit : end;
+            // The trailing zero bytes belong to the next start code.
+            end = nalEnd;
+            while (end > nalOffset && byteAt(end - 1) == 0) {
+                end--;
+            }
+            nalLength = end - nalOffset;
+        }
+        return nalLength;
+    }
+
+    /**
+     * @return Number of bytes from the current NAL unit to the end of the data.
+     */
+    public int getRemainingLength() {
+        return limit - nalOffset;
+    }
+
+    /**
+     * @return The type of the current NAL unit in an H.264 stream, e.g. 5 for an IDR slice.
+     */
+    public int getH264NalType() {
+        return nalOffset < limit ? byteAt(nalOffset) & 0x1F : -1;
+    }
+
+    /**
+     * @return nal_ref_idc of the current NAL unit in an H.264 stream, 0 if it is not a reference.
+     */
+    public int getH264NalRefIdc() {
+        return nalOffset < limit ? (byteAt(nalOffset) >> 5) & 0x03 : 0;
+    }
+
+    /**
+     * @return The type of the current NAL unit in an H.265 stream, e.g. 21 for a CRA picture.
+     */
+    public int getH265NalType() {
+        return nalOffset < limit ? (byteAt(nalOffset) >> 1) & 0x3F : -1;
+    }
+
+    /**
+     * @return TemporalId of the current NAL unit in an H.265 stream, nuh_temporal_id_plus1 minus 1, -1 if the
+     * header is truncated.
+     */
+    public int getH265TemporalId() {
+        return nalOffset + 1 < limit ? (byteAt(nalOffset + 1) & 0x07) - 1 : -1;
+    }
+
+    /**
+     * @return Offset of the first 00 00 01 from the given offset, -1 if there is none.
+     */
+    private int findStartCode(int from) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((byteAt(i + 2) & 0xFF) > 1) {
+                // No start code can begin at i, i + 1 or i + 2.
+                i += 2;
+            } else if (byteAt(i) == 0 && byteAt(i + 1) == 0 && byteAt(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private byte byteAt(int index) {
+        return array != null ? array[index] : buffer.get(index);
+    }
+}
@@ -6,6 +6,8 @@ package com.dji.videostreamdecodingsample.media;
 public class NativeHelper {
 
     public static final String TAG = NativeHelper.class.getSimpleName();
+    public static final int CODEC_H264 = 0;
+    public static final int CODEC_HEVC = 1;
 
     public interface NativeDataListener {
         /**
@@ -42,6 +44,13 @@ public class NativeHelper {
     public native boolean init();
 
 
+    /**
+     * Set the codec of the stream to frame, {@link #CODEC_H264} by default. When it changes, the parser
+     * is initialized again for the new codec before the next data is framed.
+     * @param codecType {@link #CODEC_H264} or {@link #CODEC_HEVC}
+     */
+    public native void setCodecType(int codecType);
+
     /**
      * Framing the raw data from camera
      * @param buf
@@ -51,6 +60,17 @@ public class NativeHelper {
     public native boolean parse(byte[] buf, int size);
 
 
+    /**
+     * Decode frames with a software decoder of its own, independent of the framing.
+     * @param codecType Codec of the frames, {@link #CODEC_H264} or {@link #CODEC_HEVC}
+     * @param data The frames one after another, starting with an i-frame
+     * @param frameSizes Length of each frame
+     * @param frameCount Number of frames
+     * @param outSize Receives the width and the height of the picture
+     * @return The last decoded picture in the I420 format, null if nothing could be decoded.
+     */
+    public native byte[] decodeStill(int codecType, byte[] data, int[] frameSizes, int frameCount, int[] outSize);
+
     /**
      * Release the ffmpeg
      * @return
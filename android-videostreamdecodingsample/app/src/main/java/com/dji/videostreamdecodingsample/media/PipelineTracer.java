@@ -0,0 +1,200 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records trace points of the decoding pipeline into a preallocated ring, which can be dumped
+ * on demand in the Chrome trace event format and opened in chrome://tracing or the Perfetto UI.
+ *
+ * Each trace point is stored as primitives (timestamp, thread id, event and phase, argument), so
+ * recording allocates nothing. When tracing is disabled a trace point only reads a volatile flag. The
+ * ring keeps the latest {@link #CAPACITY} events, and the events recorded while a dump is running may be
+ * missing or incomplete in that dump.
+ */
+public class PipelineTracer {
+    public static final int EVENT_PARSE = 0;
+    public static final int EVENT_DATA_RECV = 1;
+    public static final int EVENT_FRAME_QUEUE_IN = 2;
+    public static final int EVENT_DECODE_FRAME = 3;
+    public static final int EVENT_OUTPUT_RELEASE = 4;
+    public static final int EVENT_SNAPSHOT = 5;
+    public static final int EVENT_QUEUE_SIZE = 6;
+    private static final String[] EVENT_NAMES = {
+            "parse",
+            "onDataRecv",
+            "onFrameQueueIn",
+            "decodeFrame",
+            "releaseOutputBuffer",
+            "snapshot",
+            "frameQueue",
+    };
+
+    private static final int PHASE_BEGIN = 0;
+    private static final int PHASE_END = 1;
+    private static final int PHASE_INSTANT = 2;
+    private static final int PHASE_COUNTER = 3;
+    private static final String[] PHASE_NAMES = {"B", "E", "i", "C"};
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile boolean enabled;
+    private static final long[] timestampsNs = new long[CAPACITY];
+    private static final long[] threadIds = new long[CAPACITY];
+    private static final int[] eventPhases = new int[CAPACITY];
+    private static final long[] args = new long[CAPACITY];
+    private static final AtomicLong writeIndex = new AtomicLong();
+    private static final ConcurrentHashMap<Long, String> threadNames = new ConcurrentHashMap<Long, String>();
+    private static final ThreadLocal<long[]> currentThreadId = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            // Registered once per thread, so that recording does not box the thread id.
+            Thread thread = Thread.currentThread();
+            threadNames.put(thread.getId(), thread.getName());
+            return new long[] {thread.getId()};
+        }
+    };
+
+    private PipelineTracer() {
+    }
+
+    /**
+     * Enable or disable the tracing. The recorded events are kept until {@link #clear()} is called.
+     * @param enable
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Drop all the recorded events.
+     */
+    public static void clear() {
+        writeIndex.set(0);
+    }
+
+    /**
+     * Mark the beginning of a pipeline stage in the current thread.
+     * @param event One of the EVENT_ constants
+     */
+    public static void begin(int event) {
+        if (enabled) {
+            record(event, PHASE_BEGIN, 0);
+        }
+    }
+
+    /**
+     * Mark the end of a pipeline stage in the current thread.
+     * @param event One of the EVENT_ constants
+     */
+    public static void end(int event) {
+        if (enabled) {
+            record(event, PHASE_END, 0);
+        }
+    }
+
+    /**
+     * Mark a point in time.
+     * @param event One of the EVENT_ constants
+     * @param arg A value shown with the event, e.g. the frame index
+     */
+    public static void instant(int event, long arg) {
+        if (enabled) {
+            record(event, PHASE_INSTANT, arg);
+        }
+    }
+
+    /**
+     * Record the value of a counter, e.g. the size of a queue.
+     * @param event One of the EVENT_ constants
+     * @param value Value of the counter
+     */
+    public static void counter(int event, long value) {
+        if (enabled) {
+            record(event, PHASE_COUNTER, value);
+        }
+    }
+
+    private static void record(int event, int phase, long arg) {
+        long threadId = currentThreadId.get()[0];
+        int slot = (int) (writeIndex.getAndIncrement() & MASK);
+        timestampsNs[slot] = System.nanoTime();
+        threadIds[slot] = threadId;
+        eventPhases[slot] = (event << 2) | phase;
+        args[slot] = arg;
+    }
+
+    /**
+     * Write the recorded events into a file in the Chrome trace event format.
+     * @param file The output file, e.g. "pipeline.json"
+     * @throws IOException
+     */
+    public static void dumpChromeTrace(File file) throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            writeChromeTrace(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the recorded events in the Chrome trace event format.
+     * @param writer
+     * @throws IOException
+     */
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        long end = writeIndex.get();
+        long start = Math.max(0, end - CAPACITY);
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (Long threadId : threadNames.keySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + threadId
+                    + ",\"args\":{\"name\":\"" + escape(threadNames.get(threadId)) + "\"}}");
+        }
+        for (long i = start; i < end; i++) {
+            int slot = (int) (i & MASK);
+            int event = eventPhases[slot] >>> 2;
+            int phase = eventPhases[slot] & 3;
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write("{\"name\":\"");
+            writer.write(EVENT_NAMES[event]);
+            writer.write("\",\"ph\":\"");
+            writer.write(PHASE_NAMES[phase]);
+            writer.write("\",\"pid\":1,\"tid\":");
+            writer.write(Long.toString(threadIds[slot]));
+            writer.write(",\"ts\":");
+            // The trace event timestamps are in microseconds.
+            writer.write(Long.toString(timestampsNs[slot] / 1000));
+            if (phase == PHASE_INSTANT) {
+                writer.write(",\"s\":\"t\",\"args\":{\"value\":" + args[slot] + "}");
+            } else if (phase == PHASE_COUNTER) {
+                writer.write(",\"args\":{\"size\":" + args[slot] + "}");
+            }
+            writer.write('}');
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
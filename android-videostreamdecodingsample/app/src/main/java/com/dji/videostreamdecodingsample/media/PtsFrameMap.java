@@ -0,0 +1,110 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * A map from the presentation timestamp of a frame fed into the codec to the metadata of the source
+ * frame, so that each codec output can be matched to the frame it comes from.
+ *
+ * The entries are kept in primitive arrays used as a ring, so no object is allocated per frame. When the
+ * ring is full the oldest entry is overwritten, which takes care of the frames the codec never outputs.
+ * Since the codec outputs the frames in the order they are fed in most of the time, a lookup starts
+ * right after the last matched entry and usually finds the frame at once.
+ *
+ * It is only accessed in the decoding thread.
+ */
+public class PtsFrameMap {
+    private static final int CAPACITY = 64;
+    private static final long NO_PTS = Long.MIN_VALUE;
+
+    private final long[] pts = new long[CAPACITY];
+    private final long[] frameIndex = new long[CAPACITY];
+    private final int[] frameNum = new int[CAPACITY];
+    private final long[] incomingTimeUs = new long[CAPACITY];
+    private final long[] fedIntoCodecTimeUs = new long[CAPACITY];
+    private final boolean[] keyFrame = new boolean[CAPACITY];
+    private final int[] width = new int[CAPACITY];
+    private final int[] height = new int[CAPACITY];
+    private int next;
+    private int searchStart;
+
+    public PtsFrameMap() {
+        clear();
+    }
+
+    /**
+     * Remove all the entries, e.g. when the codec is flushed.
+     */
+    public void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            pts[i] = NO_PTS;
+        }
+        next = 0;
+        searchStart = 0;
+    }
+
+    /**
+     * Record a frame fed into the codec.
+     */
+    public void put(long ptsUs, long index, int num, long incomingUs, long fedUs, boolean isKeyFrame, int w, int h) {
+        int slot = next;
+        next = (next + 1) % CAPACITY;
+        pts[slot] = ptsUs;
+        frameIndex[slot] = index;
+        frameNum[slot] = num;
+        incomingTimeUs[slot] = incomingUs;
+        fedIntoCodecTimeUs[slot] = fedUs;
+        keyFrame[slot] = isKeyFrame;
+        width[slot] = w;
+        height[slot] = h;
+    }
+
+    /**
+     * Find the frame of a codec output.
+     * @param ptsUs Presentation timestamp of the output
+     * @return The slot of the frame to read the metadata with, -1 if it is unknown.
+     */
+    public int find(long ptsUs) {
+        for (int i = 0; i < CAPACITY; i++) {
+            int slot = (searchStart + i) % CAPACITY;
+            if (pts[slot] == ptsUs) {
+                searchStart = (slot + 1) % CAPACITY;
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove the entry of a slot once its output has been handled.
+     */
+    public void remove(int slot) {
+        pts[slot] = NO_PTS;
+    }
+
+    public long getFrameIndex(int slot) {
+        return frameIndex[slot];
+    }
+
+    public int getFrameNum(int slot) {
+        return frameNum[slot];
+    }
+
+    public long getIncomingTimeUs(int slot) {
+        return incomingTimeUs[slot];
+    }
+
+    public long getFedIntoCodecTimeUs(int slot) {
+        return fedIntoCodecTimeUs[slot];
+    }
+
+    public boolean isKeyFrame(int slot) {
+        return keyFrame[slot];
+    }
+
+    public int getWidth(int slot) {
+        return width[slot];
+    }
+
+    public int getHeight(int slot) {
+        return height[slot];
+    }
+}
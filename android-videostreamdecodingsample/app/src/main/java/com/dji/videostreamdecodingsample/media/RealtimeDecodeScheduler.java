@@ -0,0 +1,268 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.os.Process;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The decoding thread as a dedicated loop, without looper nor message objects.
+ *
+ * The pending messages are the bits of an integer, so sending a message is an atomic OR and waking the
+ * thread only if it is parked. The delayed messages are kept in a small table of due times. The loop
+ * handles the pending messages in turns, so that a message sending itself again, e.g. the decoding of
+ * the next frame, does not starve the others.
+ *
+ * When no message is pending, the loop spins during a short time after the last handled message, as
+ * the next frame is expected soon, yielding on each turn, then parks until the next message or the next
+ * due time.
+ */
+public class RealtimeDecodeScheduler implements DecodeScheduler {
+    private static final int MAX_MESSAGES = 32;
+
+    private final String threadName;
+    private final int priority;
+    private final long spinNs;
+    private final AtomicInteger pendingMessages = new AtomicInteger();
+    // Delayed messages, the due time of each is in dueTimesNs.
+    private int delayedMessages;
+    private final long[] dueTimesNs = new long[MAX_MESSAGES];
+    // Incremented for each delayed message, so that the loop does not park past a new due time.
+    private volatile int delayedSequence;
+    private volatile boolean parked;
+    private volatile boolean running;
+    private Thread loopThread;
+    private int nextMessage;
+    private volatile long spinCount;
+    private volatile long parkCount;
+
+    /**
+     * @param threadName Name of the decoding thread
+     * @param priority Linux priority of the thread, e.g. {@link Process#THREAD_PRIORITY_DISPLAY}
+     * @param spinUs How long to spin after the last handled message before parking, 0 to never spin
+     */
+    public RealtimeDecodeScheduler(String threadName, int priority, long spinUs) {
+        this.threadName = threadName;
+        this.priority = priority;
+        this.spinNs = spinUs * 1000;
+    }
+
+    @Override
+    public synchronized void start(final MessageHandler handler) {
+        if (loopThread != null && loopThread.isAlive()) {
+            return;
+        }
+        running = true;
+        loopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(priority);
+                loop(handler);
+            }
+        }, threadName);
+        loopThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (loopThread == null || !loopThread.isAlive()) {
+            return;
+        }
+        running = false;
+        removeAllMessages();
+        LockSupport.unpark(loopThread);
+        try {
+            loopThread.join(3000);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        loopThread = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void sendMessage(int what) {
+        int bit = 1 << what;
+        int pending;
+        do {
+            pending = pendingMessages.get();
+            if ((pending & bit) != 0) {
+                return;
+            }
+        } while (!pendingMessages.compareAndSet(pending, pending | bit));
+        wakeUp();
+    }
+
+    @Override
+    public void sendMessageDelayed(int what, long delayMs) {
+        if (delayMs <= 0) {
+            sendMessage(what);
+            return;
+        }
+        synchronized (dueTimesNs) {
+            int bit = 1 << what;
+            if ((delayedMessages & bit) != 0 || hasMessage(what)) {
+                return;
+            }
+            dueTimesNs[what] = System.nanoTime() + delayMs * 1000000;
+            delayedMessages |= bit;
+            delayedSequence++;
+        }
+        // The loop may have to park for a shorter time.
+        wakeUp();
+    }
+
+    @Override
+    public boolean hasMessage(int what) {
+        int bit = 1 << what;
+        if ((pendingMessages.get() & bit) != 0) {
+            return true;
+        }
+        synchronized (dueTimesNs) {
+            return (delayedMessages & bit) != 0;
+        }
+    }
+
+    @Override
+    public void removeMessage(int what) {
+        int bit = 1 << what;
+        synchronized (dueTimesNs) {
+            delayedMessages &= ~bit;
+        }
+        int pending;
+        do {
+            pending = pendingMessages.get();
+        } while (!pendingMessages.compareAndSet(pending, pending & ~bit));
+    }
+
+    @Override
+    public void removeAllMessages() {
+        synchronized (dueTimesNs) {
+            delayedMessages = 0;
+        }
+        pendingMessages.set(0);
+    }
+
+    /**
+     * @return Number of times the loop found a message while spinning, i.e. a wake-up saved.
+     */
+    public long getSpinCount() {
+        return spinCount;
+    }
+
+    /**
+     * @return Number of times the loop parked.
+     */
+    public long getParkCount() {
+        return parkCount;
+    }
+
+    private void wakeUp() {
+        if (parked) {
+            Thread thread = loopThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    private void loop(MessageHandler handler) {
+        long lastMessageNs = System.nanoTime();
+        boolean spinning = false;
+        // The due times are only read when a delayed message was sent or is due, not on every turn.
+        int promotedSequence = delayedSequence - 1;
+        long waitNs = Long.MAX_VALUE;
+        long nextDueNs = 0;
+        while (running) {
+            long nowNs = System.nanoTime();
+            int sequence = delayedSequence;
+            if (sequence != promotedSequence || (waitNs != Long.MAX_VALUE && nowNs - nextDueNs >= 0)) {
+                promotedSequence = sequence;
+                waitNs = promoteDueMessages(nowNs);
+                nextDueNs = nowNs + waitNs;
+            }
+            int what = takeMessage();
+            if (what >= 0) {
+                if (spinning) {
+                    spinCount++;
+                    spinning = false;
+                }
+                handler.handleMessage(what);
+                lastMessageNs = System.nanoTime();
+                continue;
+            }
+            if (nowNs - lastMessageNs < spinNs) {
+                spinning = true;
+                // Leave the core to the framing thread, which sends the next frame.
+                Thread.yield();
+                continue;
+            }
+            spinning = false;
+            parked = true;
+            // Check again after publishing the parked flag, a message may have been sent meanwhile.
+            if (pendingMessages.get() == 0 && delayedSequence == sequence) {
+                parkCount++;
+                if (waitNs == Long.MAX_VALUE) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, Math.max(nextDueNs - nowNs, 0));
+                }
+            }
+            parked = false;
+        }
+    }
+
+    /**
+     * Move the delayed messages which are due into the pending messages.
+     * @return Time until the next delayed message, Long.MAX_VALUE if there is none.
+     */
+    private long promoteDueMessages(long nowNs) {
+        long waitNs = Long.MAX_VALUE;
+        int due = 0;
+        synchronized (dueTimesNs) {
+            int delayed = delayedMessages;
+            while (delayed != 0) {
+                int what = Integer.numberOfTrailingZeros(delayed);
+                delayed &= ~(1 << what);
+                long remainingNs = dueTimesNs[what] - nowNs;
+                if (remainingNs <= 0) {
+                    due |= 1 << what;
+                } else if (remainingNs < waitNs) {
+                    waitNs = remainingNs;
+                }
+            }
+            delayedMessages &= ~due;
+        }
+        if (due != 0) {
+            int pending;
+            do {
+                pending = pendingMessages.get();
+            } while (!pendingMessages.compareAndSet(pending, pending | due));
+        }
+        return waitNs;
+    }
+
+    /**
+     * Take the next pending message, in turns from the last handled one.
+     * @return The message, -1 if none is pending.
+     */
+    private int takeMessage() {
+        while (true) {
+            int pending = pendingMessages.get();
+            if (pending == 0) {
+                return -1;
+            }
+            // Look for the first pending message from nextMessage, wrapping around.
+            int rotated = Integer.rotateRight(pending, nextMessage);
+            int what = (Integer.numberOfTrailingZeros(rotated) + nextMessage) % MAX_MESSAGES;
+            if (pendingMessages.compareAndSet(pending, pending & ~(1 << what))) {
+                nextMessage = (what + 1) % MAX_MESSAGES;
+                return what;
+            }
+        }
+    }
+}
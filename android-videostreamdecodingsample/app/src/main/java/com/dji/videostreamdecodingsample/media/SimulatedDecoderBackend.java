@@ -0,0 +1,352 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fake decoder, deterministic, to exercise the scheduling, dropping, recovery and resolution change
+ * logic of the decoder without a device or a stream. It decodes nothing: every input comes out as a blank
+ * output in the same order, once the decode latency has passed on its clock. With a
+ * {@link VirtualDecoderClock}, the same inputs always give the same outputs at the same times.
+ *
+ * Like a hardware decoder, it has a fixed number of input and output buffers: an input buffer is busy
+ * until its frame is decoded, and a decoded frame waits for a free output buffer, so an output buffer
+ * never released stalls the decoding. The failures of a real codec can be injected: an exception on a
+ * given input, or a stall where nothing is output any more.
+ *
+ * It never blocks, a dequeue with a timeout returns at once. All the methods are synchronized, but it is
+ * meant to be used in the decoding thread.
+ */
+public class SimulatedDecoderBackend implements DecoderBackend {
+    private final DecoderClock clock;
+    private final int inputBufferCount;
+    private final int outputBufferCount;
+    private final ByteBuffer[] inputBuffers;
+    private final ByteBuffer[] outputBuffers;
+    // Input buffers held by the client, or decoding.
+    private final boolean[] inputBusy;
+    // The inputs being decoded, in decoding order, as a ring of input indexes.
+    private final int[] decodeQueue;
+    private final long[] decodeReadyUs;
+    private final long[] decodePts;
+    private final int[] decodeFlags;
+    private int decodeHead;
+    private int decodeCount;
+    // Output buffers held by the client.
+    private final boolean[] outputBusy;
+    private long decodeLatencyUs;
+    private long lastReadyUs;
+    private MediaFormat format;
+    private Surface surface;
+    private boolean started;
+    private boolean formatReported;
+    private boolean stalled;
+    private long failAtInput = -1;
+    private RuntimeException inputFailure;
+    private RuntimeException configureFailure;
+    private long inputCount;
+    private long outputCount;
+    private long renderedCount;
+    private long lastRenderTimestampNs;
+    private long flushCount;
+
+    /**
+     * @param clock The clock timing the decoding, usually a {@link VirtualDecoderClock}
+     * @param inputBufferCount Number of input buffers
+     * @param outputBufferCount Number of output buffers
+     * @param maxInputSize Capacity of an input buffer in bytes
+     * @param decodeLatencyUs Time from the input of a frame to its output
+     */
+    public SimulatedDecoderBackend(DecoderClock clock, int inputBufferCount, int outputBufferCount,
+                                   int maxInputSize, long decodeLatencyUs) {
+        this.clock = clock;
+        this.inputBufferCount = inputBufferCount;
+        this.outputBufferCount = outputBufferCount;
+        this.decodeLatencyUs = decodeLatencyUs;
+        inputBuffers = new ByteBuffer[inputBufferCount];
+        for (int i = 0; i < inputBufferCount; i++) {
+            inputBuffers[i] = ByteBuffer.allocate(maxInputSize);
+        }
+        outputBuffers = new ByteBuffer[outputBufferCount];
+        inputBusy = new boolean[inputBufferCount];
+        decodeQueue = new int[inputBufferCount];
+        decodeReadyUs = new long[inputBufferCount];
+        decodePts = new long[inputBufferCount];
+        decodeFlags = new int[inputBufferCount];
+        outputBusy = new boolean[outputBufferCount];
+    }
+
+    /**
+     * Create a factory of simulated backends sharing the same settings, to be set to the decoder.
+     */
+    public static DecoderBackend.Factory factory(final DecoderClock clock, final int inputBufferCount,
+                                                 final int outputBufferCount, final int maxInputSize,
+                                                 final long decodeLatencyUs) {
+        return new DecoderBackend.Factory() {
+            @Override
+            public DecoderBackend create(MediaFormat format) {
+                return new SimulatedDecoderBackend(clock, inputBufferCount, outputBufferCount, maxInputSize,
+                                                   decodeLatencyUs);
+            }
+        };
+    }
+
+    /**
+     * Change the decode latency, for the inputs queued from now on.
+     */
+    public synchronized void setDecodeLatencyUs(long decodeLatencyUs) {
+        this.decodeLatencyUs = decodeLatencyUs;
+    }
+
+    /**
+     * Throw an exception from queueInputBuffer for the given input, counted from 0 since the creation.
+     * @param inputNumber Number of the failing input, -1 to cancel
+     * @param failure The exception to throw, e.g. an IllegalStateException
+     */
+    public synchronized void failAtInput(long inputNumber, RuntimeException failure) {
+        failAtInput = inputNumber;
+        inputFailure = failure;
+    }
+
+    /**
+     * Throw an exception from the next configure call.
+     */
+    public synchronized void failNextConfigure(RuntimeException failure) {
+        configureFailure = failure;
+    }
+
+    /**
+     * Stop or resume the output, as a hung hardware decoder would. The inputs are still taken until the
+     * buffers run out.
+     */
+    public synchronized void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    @Override
+    public String getName() {
+        return "simulated";
+    }
+
+    @Override
+    public synchronized void configure(MediaFormat format, Surface surface) {
+        if (configureFailure != null) {
+            RuntimeException failure = configureFailure;
+            configureFailure = null;
+            throw failure;
+        }
+        this.format = format;
+        this.surface = surface;
+        int outputSize = format.getInteger(MediaFormat.KEY_WIDTH) * format.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        for (int i = 0; i < outputBufferCount; i++) {
+            if (outputBuffers[i] == null || outputBuffers[i].capacity() < outputSize) {
+                outputBuffers[i] = ByteBuffer.allocate(outputSize);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (format == null) {
+            throw new IllegalStateException("start before configure");
+        }
+        started = true;
+        formatReported = false;
+    }
+
+    @Override
+    public synchronized void stop() {
+        started = false;
+        clearBuffers();
+    }
+
+    @Override
+    public synchronized void flush() {
+        checkStarted();
+        flushCount++;
+        clearBuffers();
+    }
+
+    @Override
+    public synchronized void release() {
+        started = false;
+        format = null;
+        surface = null;
+        clearBuffers();
+    }
+
+    @Override
+    public synchronized void setOutputSurface(Surface surface) {
+        if (this.surface == null || surface == null) {
+            // Like MediaCodec, a codec configured without a surface can not switch to one.
+            throw new IllegalStateException("setOutputSurface needs a codec configured with a surface");
+        }
+        this.surface = surface;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        checkStarted();
+        for (int i = 0; i < inputBufferCount; i++) {
+            if (!inputBusy[i]) {
+                inputBusy[i] = true;
+                inputBuffers[i].clear();
+                return i;
+            }
+        }
+        return MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        return inputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkStarted();
+        if (!inputBusy[index]) {
+            throw new IllegalStateException("input buffer " + index + " was not dequeued");
+        }
+        long number = inputCount++;
+        if (number == failAtInput) {
+            failAtInput = -1;
+            inputBusy[index] = false;
+            throw inputFailure;
+        }
+        // The frames are decoded one after the other.
+        long readyUs = Math.max(clock.nowUs() + decodeLatencyUs, lastReadyUs);
+        lastReadyUs = readyUs;
+        int tail = (decodeHead + decodeCount) % inputBufferCount;
+        decodeQueue[tail] = index;
+        decodeReadyUs[tail] = readyUs;
+        decodePts[tail] = presentationTimeUs;
+        decodeFlags[tail] = flags;
+        decodeCount++;
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        checkStarted();
+        if (!formatReported) {
+            formatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (stalled || decodeCount == 0 || decodeReadyUs[decodeHead] > clock.nowUs()) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        int outIndex = -1;
+        for (int i = 0; i < outputBufferCount; i++) {
+            if (!outputBusy[i]) {
+                outIndex = i;
+                break;
+            }
+        }
+        if (outIndex < 0) {
+            // Every output buffer is held by the client.
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        outputBusy[outIndex] = true;
+        inputBusy[decodeQueue[decodeHead]] = false;
+        ByteBuffer output = outputBuffers[outIndex];
+        output.clear();
+        info.set(0, output.capacity(), decodePts[decodeHead], decodeFlags[decodeHead]);
+        decodeHead = (decodeHead + 1) % inputBufferCount;
+        decodeCount--;
+        outputCount++;
+        return outIndex;
+    }
+
+    @Override
+    public synchronized ByteBuffer getOutputBuffer(int index) {
+        return outputBuffers[index];
+    }
+
+    @Override
+    public Image getOutputImage(int index) {
+        return null;
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, boolean render) {
+        if (!outputBusy[index]) {
+            throw new IllegalStateException("output buffer " + index + " was not dequeued");
+        }
+        outputBusy[index] = false;
+        if (render && surface != null) {
+            renderedCount++;
+        }
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index, long renderTimestampNs) {
+        releaseOutputBuffer(index, true);
+        lastRenderTimestampNs = renderTimestampNs;
+    }
+
+    @Override
+    public synchronized MediaFormat getOutputFormat() {
+        return format;
+    }
+
+    /**
+     * @return Number of frames being decoded.
+     */
+    public synchronized int getDecodingCount() {
+        return decodeCount;
+    }
+
+    /**
+     * @return Number of inputs queued since the creation.
+     */
+    public synchronized long getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * @return Number of outputs dequeued since the creation.
+     */
+    public synchronized long getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * @return Number of outputs rendered to the surface.
+     */
+    public synchronized long getRenderedCount() {
+        return renderedCount;
+    }
+
+    /**
+     * @return Display time of the last output released with a render time, 0 if there is none.
+     */
+    public synchronized long getLastRenderTimestampNs() {
+        return lastRenderTimestampNs;
+    }
+
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    private void checkStarted() {
+        if (!started) {
+            throw new IllegalStateException("the codec is not started");
+        }
+    }
+
+    private void clearBuffers() {
+        for (int i = 0; i < inputBufferCount; i++) {
+            inputBusy[i] = false;
+        }
+        for (int i = 0; i < outputBufferCount; i++) {
+            outputBusy[i] = false;
+        }
+        decodeHead = 0;
+        decodeCount = 0;
+        lastReadyUs = 0;
+    }
+}
@@ -0,0 +1,154 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class skips the snapshots which are near duplicates of a recent one, e.g. while the aircraft is
+ * hovering, before any time is spent on the JPEG encoding.
+ *
+ * Each candidate frame gets a 64 bits difference hash (dHash) computed from its luma plane: the frame is
+ * reduced to 9 x 8 cells, and each bit tells whether a cell is brighter than its right neighbor. The
+ * hash is robust to noise, compression and small exposure changes. It is compared with the hashes of the
+ * last {@link #INDEX_SIZE} kept snapshots, and the frame is a duplicate if one of them is within the
+ * Hamming distance threshold.
+ *
+ * The index is a primitive ring, and the methods are thread safe.
+ */
+public class SnapshotDeduplicator {
+    public static final int INDEX_SIZE = 32;
+    private static final int HASH_COLUMNS = 9;
+    private static final int HASH_ROWS = 8;
+    // Samples per side of a cell, enough to smooth the noise out without reading the whole plane.
+    private static final int CELL_SAMPLES = 4;
+
+    private final long[] recentHashes = new long[INDEX_SIZE];
+    private final int[] cellMeans = new int[HASH_COLUMNS * HASH_ROWS];
+    private ByteBuffer wrappedLuma;
+    private int hashCount;
+    private int nextSlot;
+    private int maxDistance;
+    private long skippedCount;
+
+    /**
+     * @param maxDistance Largest Hamming distance, out of 64, for two frames to be near duplicates
+     */
+    public SnapshotDeduplicator(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    public synchronized void setMaxDistance(int maxDistance) {
+        this.maxDistance = maxDistance;
+    }
+
+    /**
+     * Check a candidate snapshot, and add its hash to the index if it is kept.
+     * @param luma Data starting with the luma plane
+     * @param offset Offset of the luma plane
+     * @param stride Row stride of the luma plane
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @return true if the snapshot should be saved, false if it is a near duplicate of a recent one.
+     */
+    public synchronized boolean offer(byte[] luma, int offset, int stride, int width, int height) {
+        // The snapshot arrays are usually recycled, so the wrapper is only replaced with the array.
+        ByteBuffer buffer = wrappedLuma;
+        if (buffer == null || buffer.array() != luma) {
+            buffer = ByteBuffer.wrap(luma);
+            wrappedLuma = buffer;
+        }
+        return offer(buffer, offset, stride, width, height);
+    }
+
+    /**
+     * Check a candidate snapshot, and add its hash to the index if it is kept.
+     * @param frame The frame, it is read only until this method returns
+     * @return true if the snapshot should be saved, false if it is a near duplicate of a recent one.
+     */
+    public synchronized boolean offer(YuvFrameView frame) {
+        return offer(frame.getBuffer(YuvFrameView.PLANE_Y), frame.getOffset(YuvFrameView.PLANE_Y),
+                     frame.getRowStride(YuvFrameView.PLANE_Y), frame.getWidth(), frame.getHeight());
+    }
+
+    /**
+     * Check a candidate snapshot from its luma plane, with a pixel stride of 1, and add its hash to the
+     * index if it is kept. The buffer is only read until this method returns, its position is left unchanged.
+     * @param luma Buffer holding the luma plane
+     * @param offset Offset of the first luma sample in the buffer
+     * @param stride Row stride of the luma plane
+     * @param width Width of the frame
+     * @param height Height of the frame
+     * @return true if the snapshot should be saved, false if it is a near duplicate of a recent one.
+     */
+    public synchronized boolean offer(ByteBuffer luma, int offset, int stride, int width, int height) {
+        for (int row = 0; row < HASH_ROWS; row++) {
+            for (int column = 0; column < HASH_COLUMNS; column++) {
+                int sum = 0;
+                for (int j = 0; j < CELL_SAMPLES; j++) {
+                    int rowOffset = offset + samplePosition(row, j, HASH_ROWS, height) * stride;
+                    for (int i = 0; i < CELL_SAMPLES; i++) {
+                        sum += luma.get(rowOffset + samplePosition(column, i, HASH_COLUMNS, width)) & 0xFF;
+                    }
+                }
+                cellMeans[row * HASH_COLUMNS + column] = sum;
+            }
+        }
+        return offerHash(computeHash());
+    }
+
+    /**
+     * Forget the recent hashes, e.g. when the saved snapshots are cleared.
+     */
+    public synchronized void clear() {
+        hashCount = 0;
+        nextSlot = 0;
+    }
+
+    /**
+     * @return Number of snapshots skipped as near duplicates.
+     */
+    public synchronized long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Get the distance between two hashes.
+     * @return The number of differing bits, from 0 to 64
+     */
+    public static int hammingDistance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static int samplePosition(int cell, int sample, int cellCount, int size) {
+        return (int) ((((long) cell * CELL_SAMPLES + sample) * 2 + 1) * size / (2L * cellCount * CELL_SAMPLES));
+    }
+
+    private long computeHash() {
+        long hash = 0;
+        int bit = 0;
+        for (int row = 0; row < HASH_ROWS; row++) {
+            for (int column = 0; column < HASH_COLUMNS - 1; column++) {
+                int index = row * HASH_COLUMNS + column;
+                if (cellMeans[index] > cellMeans[index + 1]) {
+                    hash |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        return hash;
+    }
+
+    private boolean offerHash(long hash) {
+        for (int i = 0; i < hashCount; i++) {
+            if (hammingDistance(hash, recentHashes[i]) <= maxDistance) {
+                skippedCount++;
+                return false;
+            }
+        }
+        recentHashes[nextSlot] = hash;
+        nextSlot = (nextSlot + 1) % INDEX_SIZE;
+        if (hashCount < INDEX_SIZE) {
+            hashCount++;
+        }
+        return true;
+    }
+}
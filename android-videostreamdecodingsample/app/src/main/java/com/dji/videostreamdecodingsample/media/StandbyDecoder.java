@@ -0,0 +1,476 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.annotation.TargetApi;
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class keeps a second hardware decoder ready to replace the primary one when it fails. Please
+ * follow the following steps to use it:
+ *
+ * 1. Call {@link #prepare(MediaFormat, String, int, int)} whenever the primary decoder is initialized. The
+ * standby codec is created, configured with an offscreen surface and started in the standby thread, then
+ * primed with the current GOP from the {@link GopBuffer}, whose key frame carries the SPS and PPS.
+ *
+ * 2. Call {@link #onFrameFed(byte[], int, long, boolean)} with every frame fed into the primary decoder.
+ * The standby codec decodes them too, without rendering, so that it always holds the reference frames
+ * of the primary one.
+ *
+ * 3. When the primary decoder fails, stop feeding it and call {@link #takeOver(DecoderBackend, Surface)}.
+ * In the standby thread, the failed codec is released, the standby codec is moved onto the displaying
+ * surface and handed to the {@link TakeOverListener}, then a new standby codec is built.
+ *
+ * All the codec work is done in the standby thread, the lock only guards the state read by the decoding
+ * thread. Moving a codec to another surface needs MediaCodec.setOutputSurface, so the standby decoder is
+ * only available on Android M and above, and only when the primary decoder renders to a surface.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class StandbyDecoder {
+    private static final String TAG = StandbyDecoder.class.getSimpleName();
+    private static final boolean DEBUG = false;
+    private static final long CODEC_TIMEOUT_US = 10000;
+    private static final long FEED_RETRY_MS = 5;
+    // The take over waits for the pending frames to be fed at most FEED_RETRY_MS times this.
+    private static final int TAKE_OVER_MAX_RETRIES = 20;
+    private static final long REBUILD_DELAY_MS = 1000;
+    private static final int PENDING_FRAME_CAPACITY = 64;
+    private static final int MSG_BUILD = 0;
+    private static final int MSG_FEED = 1;
+    private static final int MSG_TAKE_OVER = 2;
+    private static final int MSG_RELEASE_ALL = 3;
+
+    /**
+     * Receive the result of a take over.
+     */
+    public interface TakeOverListener {
+        /**
+         * Invoked in the standby thread once the failed codec is released.
+         * @param codec The codec now rendering to the displaying surface, null if the take over failed.
+         * @param lastFedPtsUs Timestamp of the last frame fed into the codec, the next frame to feed follows it.
+         */
+        void onTakenOver(DecoderBackend codec, long lastFedPtsUs);
+    }
+
+    private final HandlerThread standbyThread;
+    private final Handler standbyHandler;
+    private final GopBuffer gopBuffer;
+    private final TakeOverListener listener;
+    private final MediaCodec.BufferInfo drainBufferInfo = new MediaCodec.BufferInfo();
+    // The frames fed into the primary decoder, from the decoding thread to the standby thread.
+    private final FrameRing pendingFrames = new FrameRing(PENDING_FRAME_CAPACITY);
+    private volatile boolean pendingOverflowed;
+
+    // Guarded by this. Published by the standby thread, read by the decoding thread.
+    private boolean ready;
+    private boolean takingOver;
+    private boolean released;
+
+    // Only accessed in the standby thread.
+    private DecoderBackend codec;
+    private MediaFormat buildFormat;
+    private String buildDecoderName;
+    private SurfaceTexture offscreenTexture;
+    private Surface offscreenSurface;
+    private boolean waitingForKeyFrame;
+    private long lastFedPtsUs = Long.MIN_VALUE;
+
+    // Only accessed in the decoding thread.
+    private String preparedMimeType;
+    private String preparedDecoderName;
+    private int preparedWidth;
+    private int preparedHeight;
+
+    /**
+     * @param gopBuffer The GOP buffer of the decoder, the standby codec is primed with it
+     * @param listener Receives the codec taking over
+     */
+    public StandbyDecoder(GopBuffer gopBuffer, TakeOverListener listener) {
+        this.gopBuffer = gopBuffer;
+        this.listener = listener;
+        standbyThread = new HandlerThread("standby decoder thread");
+        standbyThread.start();
+        standbyHandler = new Handler(standbyThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_BUILD:
+                        Object[] params = (Object[]) msg.obj;
+                        buildFormat = (MediaFormat) params[0];
+                        buildDecoderName = (String) params[1];
+                        buildCodec();
+                        break;
+                    case MSG_FEED:
+                        feedPendingFrames();
+                        break;
+                    case MSG_TAKE_OVER:
+                        Object[] target = (Object[]) msg.obj;
+                        performTakeOver((DecoderBackend) target[0], (Surface) target[1], msg.arg1);
+                        break;
+                    case MSG_RELEASE_ALL:
+                        releaseStandby();
+                        standbyThread.quitSafely();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+    }
+
+    private static void logd(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.d(TAG, log);
+    }
+
+    private static void loge(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.e(TAG, log);
+    }
+
+    /**
+     * Build the standby codec for the given format, unless it is already built for the same resolution.
+     * Invoke in the decoding thread.
+     * @param format The format of the primary decoder
+     * @param decoderName Name of the decoder selected by the {@link DecoderProbe}, null for the default one
+     * @param width Width of current video stream
+     * @param height Height of current video stream
+     */
+    public void prepare(MediaFormat format, String decoderName, int width, int height) {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        if (width == preparedWidth && height == preparedHeight && mimeType.equals(preparedMimeType)
+                && (decoderName == null ? preparedDecoderName == null : decoderName.equals(preparedDecoderName))) {
+            return;
+        }
+        preparedMimeType = mimeType;
+        preparedDecoderName = decoderName;
+        preparedWidth = width;
+        preparedHeight = height;
+        synchronized (this) {
+            ready = false;
+        }
+        standbyHandler.removeMessages(MSG_BUILD);
+        standbyHandler.obtainMessage(MSG_BUILD, new Object[] {format, decoderName}).sendToTarget();
+    }
+
+    /**
+     * Record a frame fed into the primary decoder. Invoke in the decoding thread.
+     * @param data Frame data, it must not be modified afterwards
+     * @param size Frame length
+     * @param ptsUs Timestamp of the frame
+     * @param isKeyFrame Whether the frame is an i-frame
+     */
+    public void onFrameFed(byte[] data, int size, long ptsUs, boolean isKeyFrame) {
+        if (!pendingFrames.offer(data, size, ptsUs, 0, isKeyFrame, 0, 0, preparedWidth, preparedHeight, 0)) {
+            // The standby codec misses a frame, it has to wait for the next i-frame.
+            pendingOverflowed = true;
+        }
+        if (!standbyHandler.hasMessages(MSG_FEED)) {
+            standbyHandler.sendEmptyMessage(MSG_FEED);
+        }
+    }
+
+    /**
+     * @return Whether a primed standby codec is available for a take over.
+     */
+    public synchronized boolean isReady() {
+        return ready && !takingOver && !released;
+    }
+
+    /**
+     * Start moving the standby codec onto the displaying surface. The failed codec must not be used any
+     * more, it is released in the standby thread, because a surface can only be connected to one codec at
+     * a time and releasing a failed codec may block. The result is given to the {@link TakeOverListener}.
+     * Invoke in the decoding thread.
+     * @param failedCodec The failed primary codec
+     * @param surface The displaying surface
+     * @return false if the standby codec is not available, then the failed codec is left to the caller.
+     */
+    public boolean takeOver(DecoderBackend failedCodec, Surface surface) {
+        synchronized (this) {
+            if (!ready || takingOver || released) {
+                return false;
+            }
+            ready = false;
+            takingOver = true;
+        }
+        standbyHandler.obtainMessage(MSG_TAKE_OVER, new Object[] {failedCodec, surface}).sendToTarget();
+        return true;
+    }
+
+    /**
+     * Release the standby codec and quit the standby thread. A codec still taking over is released too,
+     * without being handed to the listener. Invoke in the decoding thread.
+     */
+    public void release() {
+        synchronized (this) {
+            released = true;
+            ready = false;
+        }
+        standbyHandler.removeMessages(MSG_BUILD);
+        standbyHandler.removeMessages(MSG_FEED);
+        standbyHandler.sendEmptyMessage(MSG_RELEASE_ALL);
+    }
+
+    private void buildCodec() {
+        synchronized (this) {
+            ready = false;
+        }
+        releaseQuietly(codec);
+        codec = null;
+        if (buildFormat == null) {
+            return;
+        }
+        if (offscreenSurface == null) {
+            offscreenTexture = new SurfaceTexture(0);
+            offscreenSurface = new Surface(offscreenTexture);
+        }
+        MediaCodec newCodec = null;
+        try {
+            if (buildDecoderName != null) {
+                try {
+                    newCodec = MediaCodec.createByCodecName(buildDecoderName);
+                } catch (Exception e) {
+                    loge("create decoder " + buildDecoderName + " error: " + e);
+                }
+            }
+            if (newCodec == null) {
+                newCodec = MediaCodec.createDecoderByType(buildFormat.getString(MediaFormat.KEY_MIME));
+            }
+            codec = new MediaCodecBackend(newCodec);
+            codec.configure(buildFormat, offscreenSurface);
+            codec.start();
+        } catch (Exception e) {
+            loge("build standby codec error: " + e);
+            releaseQuietly(codec);
+            codec = null;
+            return;
+        }
+        logd("standby codec built: " + codec.getName());
+        primeFromGopBuffer();
+        feedPendingFrames();
+    }
+
+    /**
+     * Decode the current GOP, from its key frame, so that the codec holds the SPS, the PPS and the
+     * reference frames of the primary decoder. Each frame is copied under the lock of the GOP buffer, the
+     * codec waits are done outside of it.
+     */
+    private void primeFromGopBuffer() {
+        lastFedPtsUs = Long.MIN_VALUE;
+        waitingForKeyFrame = true;
+        long firstPtsUs;
+        int count;
+        synchronized (gopBuffer) {
+            count = gopBuffer.getFrameCount();
+            if (count == 0 || gopBuffer.isTruncated() || gopBuffer.getWidth() != buildFormat.getInteger(MediaFormat.KEY_WIDTH)
+                    || gopBuffer.getHeight() != buildFormat.getInteger(MediaFormat.KEY_HEIGHT)) {
+                // Primed by the next i-frame fed into the primary decoder.
+                return;
+            }
+            firstPtsUs = gopBuffer.getPts(0);
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                int inIndex = codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                if (inIndex < 0) {
+                    loge("prime: no input buffer after " + i + " frames");
+                    return;
+                }
+                ByteBuffer buffer = codec.getInputBuffer(inIndex);
+                buffer.clear();
+                int size;
+                long ptsUs;
+                synchronized (gopBuffer) {
+                    if (gopBuffer.getFrameCount() <= i || gopBuffer.getPts(0) != firstPtsUs) {
+                        // A new GOP started meanwhile, its key frame is on its way.
+                        codec.queueInputBuffer(inIndex, 0, 0, 0, 0);
+                        logd("prime: the GOP changed after " + i + " frames");
+                        return;
+                    }
+                    size = gopBuffer.copyFrame(i, buffer);
+                    ptsUs = gopBuffer.getPts(i);
+                }
+                codec.queueInputBuffer(inIndex, 0, size, ptsUs, 0);
+                lastFedPtsUs = ptsUs;
+                drainWithoutRendering();
+            }
+        } catch (Exception e) {
+            loge("prime standby codec error: " + e);
+            onCodecError();
+            return;
+        }
+        waitingForKeyFrame = false;
+        publishReady(true);
+        logd("standby codec primed with " + count + " buffered frames");
+    }
+
+    /**
+     * Feed the frames fed into the primary decoder since the last time. The codec calls do not wait, a
+     * frame which finds no input buffer is retried a bit later.
+     */
+    private void feedPendingFrames() {
+        if (pendingOverflowed) {
+            pendingOverflowed = false;
+            waitingForKeyFrame = true;
+            publishReady(false);
+        }
+        while (pendingFrames.nextReceived() >= 0) {
+            pendingFrames.accept();
+        }
+        // The frames left by a previous call, which found no input buffer, are at the head.
+        int slot;
+        while ((slot = pendingFrames.peek()) >= 0) {
+            byte[] data = pendingFrames.getPayload(slot);
+            long ptsUs = pendingFrames.getPts(slot);
+            boolean isKeyFrame = pendingFrames.isKeyFrame(slot);
+            if (codec == null || ptsUs <= lastFedPtsUs || (waitingForKeyFrame && !isKeyFrame)) {
+                // No codec, already fed from the GOP buffer, or not decodable.
+                pendingFrames.remove();
+                continue;
+            }
+            try {
+                int inIndex = codec.dequeueInputBuffer(0);
+                if (inIndex < 0) {
+                    drainWithoutRendering();
+                    // Keep the frame at the head of the queue.
+                    if (!standbyHandler.hasMessages(MSG_FEED)) {
+                        standbyHandler.sendEmptyMessageDelayed(MSG_FEED, FEED_RETRY_MS);
+                    }
+                    return;
+                }
+                ByteBuffer buffer = codec.getInputBuffer(inIndex);
+                buffer.clear();
+                buffer.put(data, 0, pendingFrames.getSize(slot));
+                codec.queueInputBuffer(inIndex, 0, pendingFrames.getSize(slot), ptsUs, 0);
+                pendingFrames.remove();
+                lastFedPtsUs = ptsUs;
+                if (waitingForKeyFrame) {
+                    waitingForKeyFrame = false;
+                    publishReady(true);
+                }
+                drainWithoutRendering();
+            } catch (Exception e) {
+                loge("feed standby codec error: " + e);
+                onCodecError();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param failedCodec The failed codec, null when retrying
+     * @param retries Number of times the take over waited for the standby codec to take the pending frames
+     */
+    private void performTakeOver(DecoderBackend failedCodec, Surface surface, int retries) {
+        // The surface can only be connected to one codec, the failed one goes first.
+        releaseQuietly(failedCodec);
+        // The standby codec has to catch up with the primary before rendering.
+        feedPendingFrames();
+        boolean framesLeft = pendingFrames.peek() >= 0 || pendingFrames.nextReceived() >= 0;
+        if (codec != null && !waitingForKeyFrame && framesLeft && retries < TAKE_OVER_MAX_RETRIES) {
+            // No input buffer is free yet, the codec releases them as it decodes.
+            standbyHandler.removeMessages(MSG_FEED);
+            standbyHandler.sendMessageDelayed(standbyHandler.obtainMessage(MSG_TAKE_OVER, retries + 1, 0,
+                    new Object[] {null, surface}), FEED_RETRY_MS);
+            return;
+        }
+        DecoderBackend newCodec = codec;
+        codec = null;
+        if (newCodec != null && (waitingForKeyFrame || framesLeft)) {
+            // It lost frames, or could not take them all.
+            releaseQuietly(newCodec);
+            newCodec = null;
+        }
+        if (newCodec != null) {
+            try {
+                newCodec.setOutputSurface(surface);
+            } catch (Exception e) {
+                loge("take over error: " + e);
+                releaseQuietly(newCodec);
+                newCodec = null;
+            }
+        }
+        boolean cancelled;
+        synchronized (this) {
+            takingOver = false;
+            cancelled = released;
+            if (!cancelled) {
+                // Under the lock, so that a release either cancels the take over or follows the hand over.
+                listener.onTakenOver(newCodec, lastFedPtsUs);
+            }
+        }
+        if (cancelled) {
+            releaseQuietly(newCodec);
+            return;
+        }
+        logd("take over " + (newCodec != null ? "done" : "failed"));
+        // Build a new standby codec for the current resolution.
+        pendingFrames.clear();
+        buildCodec();
+    }
+
+    private void onCodecError() {
+        publishReady(false);
+        releaseQuietly(codec);
+        codec = null;
+        standbyHandler.removeMessages(MSG_BUILD);
+        standbyHandler.sendMessageDelayed(standbyHandler.obtainMessage(MSG_BUILD,
+                new Object[] {buildFormat, buildDecoderName}), REBUILD_DELAY_MS);
+    }
+
+    private synchronized void publishReady(boolean isReady) {
+        ready = isReady && codec != null && !released;
+    }
+
+    private void drainWithoutRendering() {
+        int outIndex;
+        while ((outIndex = codec.dequeueOutputBuffer(drainBufferInfo, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            if (outIndex >= 0) {
+                codec.releaseOutputBuffer(outIndex, false);
+            }
+        }
+    }
+
+    private void releaseStandby() {
+        publishReady(false);
+        releaseQuietly(codec);
+        codec = null;
+        buildFormat = null;
+        pendingFrames.clear();
+        if (offscreenSurface != null) {
+            offscreenSurface.release();
+            offscreenSurface = null;
+            offscreenTexture.release();
+            offscreenTexture = null;
+        }
+    }
+
+    private static void releaseQuietly(DecoderBackend backend) {
+        if (backend == null) {
+            return;
+        }
+        try {
+            backend.stop();
+        } catch (Exception e) {
+            loge("stop codec error: " + e.getMessage());
+        }
+        try {
+            backend.release();
+        } catch (Exception e) {
+            loge("release codec error: " + e.getMessage());
+        }
+    }
+}
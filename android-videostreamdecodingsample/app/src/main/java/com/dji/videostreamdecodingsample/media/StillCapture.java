@@ -0,0 +1,121 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.OutputStream;
+
+/**
+ * This class captures a still picture of the live stream without touching the hardware decoder, which
+ * keeps rendering to its surface. The latest i-frame and the following frames of its GOP are taken from
+ * a {@link GopBuffer} and decoded by the FFmpeg software decoder in the still capture thread, and the
+ * last decoded picture is returned in the I420 format.
+ *
+ * Decoding a whole GOP takes time, so the picture is the one of the most recent buffered frame at the
+ * time of the request, and the result comes a bit later.
+ */
+public class StillCapture {
+    public interface StillCallback {
+        /**
+         * Callback method invoked in the still capture thread.
+         * @param i420 The picture, the Y plane then the U and V planes, each row without padding
+         * @param width Width of the picture
+         * @param height Height of the picture
+         * @param ptsUs Presentation timestamp of the captured frame
+         */
+        void onStillCaptured(byte[] i420, int width, int height, long ptsUs);
+
+        /**
+         * Callback method invoked in the still capture thread when no picture could be decoded.
+         * @param reason Why the capture failed
+         */
+        void onStillFailed(String reason);
+    }
+
+    private final GopBuffer gopBuffer;
+    private final HandlerThread captureThread;
+    private final Handler captureHandler;
+    // Only used in the still capture thread.
+    private final int[] frameSizes;
+    private final int[] outSize = new int[2];
+
+    /**
+     * @param gopBuffer The buffer of the current GOP of the stream
+     */
+    public StillCapture(GopBuffer gopBuffer) {
+        this.gopBuffer = gopBuffer;
+        frameSizes = new int[gopBuffer.getMaxFrames()];
+        captureThread = new HandlerThread("still capture thread");
+        captureThread.start();
+        captureHandler = new Handler(captureThread.getLooper());
+    }
+
+    /**
+     * Capture a still picture of the stream. The GOP is copied in the still capture thread, so the calling
+     * thread is never blocked by the framing thread.
+     * @param callback The callback, invoked in the still capture thread
+     */
+    public void capture(final StillCallback callback) {
+        captureHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                byte[] frames;
+                int frameCount;
+                int codecType;
+                long ptsUs;
+                // Take the frames in one go, the framing thread keeps adding to the buffer.
+                synchronized (gopBuffer) {
+                    frameCount = gopBuffer.getFrameCount();
+                    frames = gopBuffer.copyFrames(frameSizes);
+                    codecType = gopBuffer.getCodecType();
+                    ptsUs = frameCount > 0 ? gopBuffer.getPts(frameCount - 1) : 0;
+                }
+                if (frames == null) {
+                    callback.onStillFailed("no i-frame received yet");
+                    return;
+                }
+                byte[] i420 = NativeHelper.getInstance().decodeStill(codecType, frames, frameSizes, frameCount,
+                        outSize);
+                if (i420 == null) {
+                    callback.onStillFailed("software decoding failed");
+                } else {
+                    callback.onStillCaptured(i420, outSize[0], outSize[1], ptsUs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the still capture thread. The pending captures are dropped.
+     */
+    public void release() {
+        captureHandler.removeCallbacksAndMessages(null);
+        captureThread.quitSafely();
+    }
+
+    /**
+     * Encode an I420 picture into JPEG.
+     * @param i420 The picture from {@link StillCallback#onStillCaptured(byte[], int, int, long)}
+     * @param width Width of the picture
+     * @param height Height of the picture
+     * @param quality JPEG quality, from 0 to 100
+     * @param out The output stream
+     * @return Whether the picture was encoded
+     */
+    public static boolean compressToJpeg(byte[] i420, int width, int height, int quality, OutputStream out) {
+        // YuvImage only takes NV21, i.e. the Y plane then the interleaved V and U samples.
+        int lumaSize = width * height;
+        int chromaSize = lumaSize / 4;
+        byte[] nv21 = new byte[lumaSize + chromaSize * 2];
+        System.arraycopy(i420, 0, nv21, 0, lumaSize);
+        for (int i = 0; i < chromaSize; i++) {
+            nv21[lumaSize + 2 * i] = i420[lumaSize + chromaSize + i];
+            nv21[lumaSize + 2 * i + 1] = i420[lumaSize + i];
+        }
+        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        return yuvImage.compressToJpeg(new Rect(0, 0, width, height), quality, out);
+    }
+}
@@ -0,0 +1,545 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.util.Random;
+
+/**
+ * A generator of a valid H.264 Annex-B stream, to load the parser, the queues and the decoder without an
+ * aircraft, for as long as needed. It runs on any JVM, it has no Android dependency.
+ *
+ * The pictures are cheap to code rather than realistic. Every IDR is a flat gray picture of Intra 16x16
+ * DC macroblocks without residual, and every P frame is made of skipped macroblocks. One I_PCM macroblock
+ * moves across the picture from frame to frame, so the decoded video changes and a lost frame shows. The
+ * stream is Constrained Baseline with CAVLC, one slice per picture and pic_order_cnt_type 2.
+ *
+ * The load is controlled by:
+ *
+ * - The resolution and the frame rate, any multiple of 2, up to 4K at 60 fps and beyond. A resolution
+ * change takes effect at the next IDR, with new parameter sets, like a camera mode change.
+ *
+ * - The GOP length and the non reference frames.
+ *
+ * - The bitrate. The frames are padded with filler data NAL units, so the average bitrate matches it.
+ *
+ * - The suffix of the frames. The DJI aircrafts end the frames with an AUD, a filler and an AUD, or two
+ * AUDs, which the native parser strips.
+ *
+ * - The chunking. Like the VideoFeeder, the stream is delivered in chunks of random sizes, a frame ending
+ * at the end of a chunk with its suffix.
+ *
+ * The random sizes come from a seeded generator, so a run can be reproduced. Once the buffers have grown
+ * to the largest frame, generating a frame allocates nothing; {@link #nextChunk()} allocates the returned
+ * chunk, as the VideoFeeder does.
+ */
+public class SyntheticH264Stream {
+    public static final int SUFFIX_NONE = 0;
+    /** 00 00 00 01 09 10, audbuffer2 of the native parser. */
+    public static final int SUFFIX_AUD = 1;
+    /** 00 00 00 01 0C 00 00 00 01 09 10, fillerbuffer2 of the native parser. */
+    public static final int SUFFIX_FILLER_AUD = 2;
+    /** 00 00 00 01 09 10 00 00 00 01 09 10, audaudbuffer2 of the native parser. */
+    public static final int SUFFIX_AUD_AUD = 3;
+    private static final byte[][] SUFFIXES = {
+            {},
+            {0x00, 0x00, 0x00, 0x01, 0x09, 0x10},
+            {0x00, 0x00, 0x00, 0x01, 0x0C, 0x00, 0x00, 0x00, 0x01, 0x09, 0x10},
+            {0x00, 0x00, 0x00, 0x01, 0x09, 0x10, 0x00, 0x00, 0x00, 0x01, 0x09, 0x10},
+    };
+
+    private static final int NAL_HEADER_NON_REF_SLICE = 0x01;
+    private static final int NAL_HEADER_REF_SLICE = 0x41;
+    private static final int NAL_HEADER_IDR = 0x65;
+    private static final int NAL_HEADER_SPS = 0x67;
+    private static final int NAL_HEADER_PPS = 0x68;
+    private static final int NAL_HEADER_FILLER = 0x0C;
+    private static final int PROFILE_BASELINE = 66;
+    private static final int LOG2_MAX_FRAME_NUM = 16;
+    private static final int MAX_FRAME_NUM = 1 << LOG2_MAX_FRAME_NUM;
+    private static final int SLICE_TYPE_P_ALL = 5;
+    private static final int SLICE_TYPE_I_ALL = 7;
+    // I_16x16_2_0_0: DC prediction, no coded block.
+    private static final int MB_TYPE_I_16X16_DC = 3;
+    private static final int MB_TYPE_I_PCM = 25;
+    // The intra macroblock types are offset by 5 in a P slice.
+    private static final int MB_TYPE_P_INTRA_OFFSET = 5;
+    // coeff_token of an empty block, for 0 <= nC < 2 and for nC >= 8.
+    private static final int COEFF_TOKEN_EMPTY_NC0 = 0x1;
+    private static final int COEFF_TOKEN_EMPTY_NC8 = 0x3;
+    // Levels of Table A-1: level_idc, MaxMBPS, MaxFS.
+    private static final int[][] LEVELS = {
+            {30, 40500, 1620}, {31, 108000, 3600}, {32, 216000, 5120}, {40, 245760, 8192},
+            {42, 522240, 8704}, {50, 589824, 22080}, {51, 983040, 36864}, {52, 2073600, 36864},
+    };
+
+    private final BitWriter writer = new BitWriter(64 * 1024);
+    private final Random random = new Random();
+    private int width;
+    private int height;
+    private final int fps;
+    private final int gopLength;
+    private int bitrate;
+    private int suffix = SUFFIX_AUD;
+    private int minChunkSize;
+    private int maxChunkSize;
+    private int nonReferenceInterval;
+    private int pendingWidth;
+    private int pendingHeight;
+    private int[] cycleWidths;
+    private int[] cycleHeights;
+    private int gopsPerResolution;
+    private boolean keyFrameRequested;
+
+    // Only valid between two IDRs.
+    private int widthInMbs;
+    private int heightInMbs;
+    private int mbCount;
+
+    private byte[] frame = new byte[64 * 1024];
+    private int frameLength;
+    private int chunkOffset;
+    private long frameIndex = -1;
+    private int framesInGop;
+    private long gopCount;
+    private int prevRefFrameNum;
+    private int idrPicId;
+    private long bitCredit;
+    private long keyFrameCount;
+    private long byteCount;
+
+    /**
+     * @param width Width of the pictures, a multiple of 2
+     * @param height Height of the pictures, a multiple of 2
+     * @param fps Frame rate
+     * @param gopLength Number of frames from an IDR to the next one
+     */
+    public SyntheticH264Stream(int width, int height, int fps, int gopLength) {
+        checkResolution(width, height);
+        if (fps <= 0 || gopLength <= 0) {
+            throw new IllegalArgumentException("Invalid fps or GOP length: " + fps + ", " + gopLength);
+        }
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.gopLength = gopLength;
+    }
+
+    /**
+     * A profile for long soak runs: 720p at 30 fps, one IDR per second, 4 Mbps, AUD suffix, chunks of a few
+     * kilobytes.
+     */
+    public static SyntheticH264Stream soakProfile() {
+        SyntheticH264Stream stream = new SyntheticH264Stream(1280, 720, 30, 30);
+        stream.setBitrate(4000000);
+        stream.setChunkSize(1024, 8 * 1024);
+        return stream;
+    }
+
+    /**
+     * A stress profile: 4K at 60 fps, one IDR per second, 100 Mbps, filler and AUD suffix, large chunks.
+     */
+    public static SyntheticH264Stream stress4k60Profile() {
+        SyntheticH264Stream stream = new SyntheticH264Stream(3840, 2160, 60, 60);
+        stream.setBitrate(100000000);
+        stream.setSuffix(SUFFIX_FILLER_AUD);
+        stream.setChunkSize(16 * 1024, 64 * 1024);
+        return stream;
+    }
+
+    /**
+     * @param bitrate Average bitrate in bits per second, reached with filler data. 0 for no filler, the
+     *                bitrate is then the one of the coded pictures, a few kilobits per frame.
+     */
+    public void setBitrate(int bitrate) {
+        this.bitrate = bitrate;
+    }
+
+    /**
+     * @param suffix The bytes ending every frame, e.g. {@link #SUFFIX_AUD} (the default)
+     */
+    public void setSuffix(int suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Set the sizes of the chunks, drawn uniformly between the minimum and the maximum. The last chunk of a
+     * frame ends with the frame.
+     * @param minChunkSize Minimum size in bytes
+     * @param maxChunkSize Maximum size in bytes, 0 for one chunk per frame (the default)
+     */
+    public void setChunkSize(int minChunkSize, int maxChunkSize) {
+        this.minChunkSize = Math.max(1, Math.min(minChunkSize, maxChunkSize));
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * @param interval Every interval-th P frame is a non reference frame, which can be dropped safely. 0 for
+     *                 none (the default), at least 2 otherwise.
+     */
+    public void setNonReferenceInterval(int interval) {
+        if (interval == 1) {
+            // With pic_order_cnt_type 2, two non reference frames can not follow each other.
+            throw new IllegalArgumentException("Two non reference frames can not be consecutive");
+        }
+        nonReferenceInterval = interval;
+    }
+
+    public void setSeed(long seed) {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Change the resolution at the next IDR.
+     */
+    public void setResolution(int width, int height) {
+        checkResolution(width, height);
+        pendingWidth = width;
+        pendingHeight = height;
+    }
+
+    /**
+     * Cycle through resolutions, changing every given number of GOPs.
+     * @param widths The widths, null to stop cycling
+     * @param heights The heights, in the same order
+     * @param gopsPerResolution Number of GOPs at each resolution
+     */
+    public void setResolutionCycle(int[] widths, int[] heights, int gopsPerResolution) {
+        if (widths != null) {
+            for (int i = 0; i < widths.length; i++) {
+                checkResolution(widths[i], heights[i]);
+            }
+        }
+        cycleWidths = widths;
+        cycleHeights = heights;
+        this.gopsPerResolution = Math.max(1, gopsPerResolution);
+    }
+
+    /**
+     * Start a new GOP at the next frame, as the aircraft does when a key frame is requested.
+     */
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
+    }
+
+    /**
+     * Get the next chunk of the stream, in a new array, like the VideoFeeder delivers them.
+     */
+    public byte[] nextChunk() {
+        int size = nextChunkSize();
+        byte[] chunk = new byte[size];
+        System.arraycopy(frame, chunkOffset, chunk, 0, size);
+        chunkOffset += size;
+        return chunk;
+    }
+
+    /**
+     * Copy the next chunk of the stream into a buffer, without allocating.
+     * @param dst The buffer
+     * @param offset Offset in the buffer
+     * @param capacity Room in the buffer, the chunk is shortened to it
+     * @return Size of the chunk.
+     */
+    public int readChunk(byte[] dst, int offset, int capacity) {
+        int size = Math.min(nextChunkSize(), capacity);
+        System.arraycopy(frame, chunkOffset, dst, offset, size);
+        chunkOffset += size;
+        return size;
+    }
+
+    /**
+     * @return Whether the last chunk ended a frame.
+     */
+    public boolean isEndOfFrame() {
+        return chunkOffset == frameLength;
+    }
+
+    /**
+     * @return Capture time of the frame of the last chunk, from the first frame, at the nominal frame rate.
+     */
+    public long getFrameTimeUs() {
+        return frameIndex * 1000000L / fps;
+    }
+
+    /**
+     * @return Number of frames generated.
+     */
+    public long getFrameCount() {
+        return frameIndex + 1;
+    }
+
+    public long getKeyFrameCount() {
+        return keyFrameCount;
+    }
+
+    /**
+     * @return Number of bytes generated, the suffixes and the filler data included.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private int nextChunkSize() {
+        if (chunkOffset == frameLength) {
+            generateFrame();
+        }
+        int remaining = frameLength - chunkOffset;
+        if (maxChunkSize <= 0) {
+            return remaining;
+        }
+        int size = minChunkSize + random.nextInt(maxChunkSize - minChunkSize + 1);
+        return Math.min(size, remaining);
+    }
+
+    private void generateFrame() {
+        frameIndex++;
+        frameLength = 0;
+        chunkOffset = 0;
+        if (framesInGop >= gopLength || keyFrameRequested || frameIndex == 0) {
+            startGop();
+        }
+        int markerMb = (int) (frameIndex % mbCount);
+        if (framesInGop == 0) {
+            writeSps();
+            writeNal(NAL_HEADER_SPS);
+            writePps();
+            writeNal(NAL_HEADER_PPS);
+            writeIdrSlice(markerMb);
+            writeNal(NAL_HEADER_IDR);
+            keyFrameCount++;
+        } else {
+            boolean reference = nonReferenceInterval == 0 || framesInGop % nonReferenceInterval != 0;
+            int frameNum = (prevRefFrameNum + 1) % MAX_FRAME_NUM;
+            writePSlice(frameNum, reference, markerMb);
+            writeNal(reference ? NAL_HEADER_REF_SLICE : NAL_HEADER_NON_REF_SLICE);
+            if (reference) {
+                prevRefFrameNum = frameNum;
+            }
+        }
+        framesInGop++;
+        writeFiller();
+        byte[] suffixBytes = SUFFIXES[suffix];
+        ensureCapacity(suffixBytes.length);
+        System.arraycopy(suffixBytes, 0, frame, frameLength, suffixBytes.length);
+        frameLength += suffixBytes.length;
+        byteCount += frameLength;
+    }
+
+    private void startGop() {
+        keyFrameRequested = false;
+        if (cycleWidths != null && frameIndex > 0 && gopCount % gopsPerResolution == 0) {
+            int index = (int) (gopCount / gopsPerResolution) % cycleWidths.length;
+            pendingWidth = cycleWidths[index];
+            pendingHeight = cycleHeights[index];
+        }
+        if (pendingWidth != 0) {
+            width = pendingWidth;
+            height = pendingHeight;
+            pendingWidth = 0;
+            pendingHeight = 0;
+        }
+        widthInMbs = (width + 15) / 16;
+        heightInMbs = (height + 15) / 16;
+        mbCount = widthInMbs * heightInMbs;
+        framesInGop = 0;
+        prevRefFrameNum = 0;
+        gopCount++;
+    }
+
+    private void writeSps() {
+        writer.reset();
+        writer.writeBits(8, PROFILE_BASELINE);
+        writer.writeBits(8, 0xC0); // constraint_set0_flag and constraint_set1_flag: Constrained Baseline
+        writer.writeBits(8, selectLevel());
+        writer.writeUe(0); // seq_parameter_set_id
+        writer.writeUe(LOG2_MAX_FRAME_NUM - 4);
+        writer.writeUe(2); // pic_order_cnt_type, the output order is the decoding order
+        writer.writeUe(1); // max_num_ref_frames
+        writer.writeFlag(false); // gaps_in_frame_num_value_allowed_flag
+        writer.writeUe(widthInMbs - 1);
+        writer.writeUe(heightInMbs - 1);
+        writer.writeFlag(true); // frame_mbs_only_flag
+        writer.writeFlag(true); // direct_8x8_inference_flag
+        int cropRight = (widthInMbs * 16 - width) / 2;
+        int cropBottom = (heightInMbs * 16 - height) / 2;
+        boolean cropping = cropRight != 0 || cropBottom != 0;
+        writer.writeFlag(cropping);
+        if (cropping) {
+            writer.writeUe(0);
+            writer.writeUe(cropRight);
+            writer.writeUe(0);
+            writer.writeUe(cropBottom);
+        }
+        writer.writeFlag(false); // vui_parameters_present_flag
+        writer.writeTrailingBits();
+    }
+
+    private int selectLevel() {
+        long mbps = (long) mbCount * fps;
+        for (int[] level : LEVELS) {
+            if (mbCount <= level[2] && mbps <= level[1]) {
+                return level[0];
+            }
+        }
+        return LEVELS[LEVELS.length - 1][0];
+    }
+
+    private void writePps() {
+        writer.reset();
+        writer.writeUe(0); // pic_parameter_set_id
+        writer.writeUe(0); // seq_parameter_set_id
+        writer.writeFlag(false); // entropy_coding_mode_flag, CAVLC
+        writer.writeFlag(false); // bottom_field_pic_order_in_frame_present_flag
+        writer.writeUe(0); // num_slice_groups_minus1
+        writer.writeUe(0); // num_ref_idx_l0_default_active_minus1
+        writer.writeUe(0); // num_ref_idx_l1_default_active_minus1
+        writer.writeFlag(false); // weighted_pred_flag
+        writer.writeBits(2, 0); // weighted_bipred_idc
+        writer.writeSe(0); // pic_init_qp_minus26
+        writer.writeSe(0); // pic_init_qs_minus26
+        writer.writeSe(0); // chroma_qp_index_offset
+        writer.writeFlag(true); // deblocking_filter_control_present_flag
+        writer.writeFlag(false); // constrained_intra_pred_flag
+        writer.writeFlag(false); // redundant_pic_cnt_present_flag
+        writer.writeTrailingBits();
+    }
+
+    private void writeIdrSlice(int markerMb) {
+        writer.reset();
+        writer.writeUe(0); // first_mb_in_slice
+        writer.writeUe(SLICE_TYPE_I_ALL);
+        writer.writeUe(0); // pic_parameter_set_id
+        writer.writeBits(LOG2_MAX_FRAME_NUM, 0); // frame_num
+        writer.writeUe(idrPicId);
+        idrPicId = (idrPicId + 1) & 0xFFFF;
+        writer.writeFlag(false); // no_output_of_prior_pics_flag
+        writer.writeFlag(false); // long_term_reference_flag
+        writeSliceHeaderEnd();
+        for (int mb = 0; mb < mbCount; mb++) {
+            if (mb == markerMb) {
+                writer.writeUe(MB_TYPE_I_PCM);
+                writePcmSamples();
+                continue;
+            }
+            writer.writeUe(MB_TYPE_I_16X16_DC);
+            writer.writeUe(0); // intra_chroma_pred_mode, DC
+            writer.writeSe(0); // mb_qp_delta
+            // The Intra16x16DCLevel block, empty. Its nC counts an I_PCM neighbour as 16 coefficients.
+            int mbX = mb % widthInMbs;
+            boolean leftAvailable = mbX > 0;
+            boolean topAvailable = mb >= widthInMbs;
+            int nA = leftAvailable && mb - 1 == markerMb ? 16 : 0;
+            int nB = topAvailable && mb - widthInMbs == markerMb ? 16 : 0;
+            int nC;
+            if (leftAvailable && topAvailable) {
+                nC = (nA + nB + 1) >> 1;
+            } else {
+                nC = leftAvailable ? nA : nB;
+            }
+            if (nC >= 8) {
+                writer.writeBits(6, COEFF_TOKEN_EMPTY_NC8);
+            } else {
+                writer.writeBits(1, COEFF_TOKEN_EMPTY_NC0);
+            }
+        }
+        writer.writeTrailingBits();
+    }
+
+    private void writePSlice(int frameNum, boolean reference, int markerMb) {
+        writer.reset();
+        writer.writeUe(0); // first_mb_in_slice
+        writer.writeUe(SLICE_TYPE_P_ALL);
+        writer.writeUe(0); // pic_parameter_set_id
+        writer.writeBits(LOG2_MAX_FRAME_NUM, frameNum);
+        writer.writeFlag(false); // num_ref_idx_active_override_flag
+        writer.writeFlag(false); // ref_pic_list_modification_flag_l0
+        if (reference) {
+            writer.writeFlag(false); // adaptive_ref_pic_marking_mode_flag
+        }
+        writeSliceHeaderEnd();
+        // Skip up to the marker, code it, and skip the rest.
+        writer.writeUe(markerMb); // mb_skip_run
+        writer.writeUe(MB_TYPE_P_INTRA_OFFSET + MB_TYPE_I_PCM);
+        writePcmSamples();
+        int remaining = mbCount - markerMb - 1;
+        if (remaining > 0) {
+            writer.writeUe(remaining); // mb_skip_run
+        }
+        writer.writeTrailingBits();
+    }
+
+    private void writeSliceHeaderEnd() {
+        writer.writeSe(0); // slice_qp_delta
+        writer.writeUe(1); // disable_deblocking_filter_idc
+    }
+
+    private void writePcmSamples() {
+        writer.byteAlign(); // pcm_alignment_zero_bit
+        // A luma changing with the frame, over a neutral chroma.
+        int luma = 16 + (int) (frameIndex * 8 % 220);
+        for (int i = 0; i < 256; i++) {
+            writer.writeByte(luma);
+        }
+        for (int i = 0; i < 128; i++) {
+            writer.writeByte(128);
+        }
+    }
+
+    /**
+     * Pad the frame with a filler data NAL unit, so that the average bitrate reaches the target one.
+     */
+    private void writeFiller() {
+        if (bitrate <= 0) {
+            return;
+        }
+        bitCredit += bitrate / fps;
+        bitCredit -= (frameLength + SUFFIXES[suffix].length) * 8L;
+        // A start code, a header and the trailing bits.
+        int fillerSize = (int) (bitCredit / 8) - 6;
+        if (fillerSize <= 0) {
+            return;
+        }
+        ensureCapacity(fillerSize + 6);
+        frame[frameLength++] = 0;
+        frame[frameLength++] = 0;
+        frame[frameLength++] = 0;
+        frame[frameLength++] = 1;
+        frame[frameLength++] = NAL_HEADER_FILLER;
+        for (int i = 0; i < fillerSize; i++) {
+            frame[frameLength++] = (byte) 0xFF;
+        }
+        frame[frameLength++] = (byte) 0x80;
+        bitCredit -= (fillerSize + 6) * 8L;
+    }
+
+    private void writeNal(int header) {
+        // The emulation prevention adds at most one byte per two payload bytes.
+        ensureCapacity(5 + writer.getLength() * 3 / 2 + 1);
+        frame[frameLength++] = 0;
+        frame[frameLength++] = 0;
+        frame[frameLength++] = 0;
+        frame[frameLength++] = 1;
+        frame[frameLength++] = (byte) header;
+        frameLength += writer.copyNalPayload(frame, frameLength);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (frameLength + extra <= frame.length) {
+            return;
+        }
+        byte[] grown = new byte[Math.max(frame.length * 2, frameLength + extra)];
+        System.arraycopy(frame, 0, grown, 0, frameLength);
+        frame = grown;
+    }
+
+    private static void checkResolution(int width, int height) {
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Invalid resolution: " + width + "x" + height);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * This class continuously keeps the last seconds of the encoded stream, so that they can be saved after
+ * something happened, e.g. "save the last 30 seconds".
+ *
+ * The framed H.264 data is written into a direct byte buffer used as a ring, outside of the Java heap,
+ * and each frame is indexed in primitive arrays together with a ring of the i-frames. The memory is
+ * allocated once, and writing a frame allocates nothing. When the ring is full, the oldest frames are
+ * overwritten.
+ *
+ * {@link #export(File, long, ExportCallback)} writes the retained frames into an Annex-B file starting at
+ * the earliest retained i-frame, in the export thread. The lock is only held while copying one frame,
+ * so the framing thread keeps writing during the export. If the frames being exported are overwritten
+ * meanwhile, the export stops at the last frame copied.
+ */
+public class TimeShiftBuffer {
+    private static final String TAG = TimeShiftBuffer.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    public interface ExportCallback {
+        /**
+         * Callback method invoked in the export thread when the file is written.
+         * @param file The file
+         * @param frameCount Number of frames written
+         * @param durationUs Time between the first and the last frame written
+         */
+        void onExported(File file, int frameCount, long durationUs);
+
+        /**
+         * Callback method invoked in the export thread when nothing could be written.
+         * @param reason Why the export failed
+         */
+        void onExportFailed(String reason);
+    }
+
+    private final ByteBuffer ring;
+    private final int capacityBytes;
+    private final int maxFrames;
+    // Frame index, by frame sequence number modulo maxFrames.
+    private final long[] frameStarts;
+    private final int[] frameSizes;
+    private final long[] framePts;
+    // Sequence numbers of the retained i-frames, by i-frame count modulo maxFrames.
+    private final long[] keyFrames;
+    private long firstFrame;
+    private long nextFrame;
+    private long firstKeyFrame;
+    private long nextKeyFrame;
+    private long writePosition;
+    private final HandlerThread exportThread;
+    private final Handler exportHandler;
+
+    /**
+     * @param capacityBytes Size of the ring, e.g. 30 seconds at the bitrate of the stream
+     * @param maxFrames Maximum number of retained frames, e.g. 30 seconds at the frame rate of the stream
+     */
+    public TimeShiftBuffer(int capacityBytes, int maxFrames) {
+        this.capacityBytes = capacityBytes;
+        this.maxFrames = maxFrames;
+        ring = ByteBuffer.allocateDirect(capacityBytes);
+        frameStarts = new long[maxFrames];
+        frameSizes = new int[maxFrames];
+        framePts = new long[maxFrames];
+        keyFrames = new long[maxFrames];
+        exportThread = new HandlerThread("time shift export thread");
+        exportThread.start();
+        exportHandler = new Handler(exportThread.getLooper());
+    }
+
+    /**
+     * Write a frame, overwriting the oldest frames if needed. Invoke in the framing thread.
+     * @param data Frame data
+     * @param size Frame length
+     * @param ptsUs Presentation timestamp of the frame
+     * @param isKeyFrame Whether the frame is an i-frame
+     */
+    public synchronized void write(byte[] data, int size, long ptsUs, boolean isKeyFrame) {
+        if (size > capacityBytes) {
+            return;
+        }
+        // Drop the frames whose data is about to be overwritten, and the frames beyond the index size.
+        while (firstFrame < nextFrame
+                && (frameStarts[slot(firstFrame)] < writePosition + size - capacityBytes
+                || nextFrame - firstFrame >= maxFrames)) {
+            firstFrame++;
+        }
+        while (firstKeyFrame < nextKeyFrame
+                && (keyFrames[slot(firstKeyFrame)] < firstFrame || nextKeyFrame - firstKeyFrame >= maxFrames)) {
+            firstKeyFrame++;
+        }
+        int position = (int) (writePosition % capacityBytes);
+        int firstPart = Math.min(size, capacityBytes - position);
+        ring.position(position);
+        ring.put(data, 0, firstPart);
+        if (firstPart < size) {
+            ring.position(0);
+            ring.put(data, firstPart, size - firstPart);
+        }
+        int frameSlot = slot(nextFrame);
+        frameStarts[frameSlot] = writePosition;
+        frameSizes[frameSlot] = size;
+        framePts[frameSlot] = ptsUs;
+        if (isKeyFrame) {
+            keyFrames[slot(nextKeyFrame)] = nextFrame;
+            nextKeyFrame++;
+        }
+        nextFrame++;
+        writePosition += size;
+    }
+
+    /**
+     * Drop all the retained frames.
+     */
+    public synchronized void clear() {
+        firstFrame = nextFrame;
+        firstKeyFrame = nextKeyFrame;
+    }
+
+    /**
+     * @return Time between the earliest retained i-frame and the latest frame, 0 if there is no i-frame.
+     */
+    public synchronized long getRetainedDurationUs() {
+        if (firstKeyFrame == nextKeyFrame) {
+            return 0;
+        }
+        return framePts[slot(nextFrame - 1)] - framePts[slot(keyFrames[slot(firstKeyFrame)])];
+    }
+
+    /**
+     * Write the retained frames into a file, in the export thread.
+     * @param file The output file, e.g. "event.h264"
+     * @param durationUs How far back to go, the file starts at the latest i-frame at least this old,
+     *                   or at the earliest retained i-frame
+     * @param callback The callback, invoked in the export thread
+     */
+    public void export(final File file, final long durationUs, final ExportCallback callback) {
+        exportHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                exportFrames(file, durationUs, callback);
+            }
+        });
+    }
+
+    /**
+     * Stop the export thread. The pending exports are dropped.
+     */
+    public void release() {
+        exportHandler.removeCallbacksAndMessages(null);
+        exportThread.quitSafely();
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % maxFrames);
+    }
+
+    private void exportFrames(File file, long durationUs, ExportCallback callback) {
+        long startFrame;
+        long endFrame;
+        synchronized (this) {
+            if (firstKeyFrame == nextKeyFrame) {
+                callback.onExportFailed("no i-frame retained");
+                return;
+            }
+            long latestPts = framePts[slot(nextFrame - 1)];
+            long keyFrame = nextKeyFrame - 1;
+            while (keyFrame > firstKeyFrame && latestPts - framePts[slot(keyFrames[slot(keyFrame)])] < durationUs) {
+                keyFrame--;
+            }
+            startFrame = keyFrames[slot(keyFrame)];
+            endFrame = nextFrame;
+        }
+        byte[] frame = new byte[64 * 1024];
+        int written = 0;
+        long firstPts = 0;
+        long lastPts = 0;
+        OutputStream out = null;
+        String error = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            for (long sequence = startFrame; sequence < endFrame; sequence++) {
+                int size;
+                long pts;
+                synchronized (this) {
+                    if (sequence < firstFrame) {
+                        // Overwritten by the live stream meanwhile, keep what was exported.
+                        loge("export overtaken by the live stream after " + written + " frames");
+                        break;
+                    }
+                    int frameSlot = slot(sequence);
+                    size = frameSizes[frameSlot];
+                    pts = framePts[frameSlot];
+                    if (frame.length < size) {
+                        frame = new byte[size];
+                    }
+                    int position = (int) (frameStarts[frameSlot] % capacityBytes);
+                    int firstPart = Math.min(size, capacityBytes - position);
+                    ring.position(position);
+                    ring.get(frame, 0, firstPart);
+                    if (firstPart < size) {
+                        ring.position(0);
+                        ring.get(frame, firstPart, size - firstPart);
+                    }
+                }
+                out.write(frame, 0, size);
+                if (written == 0) {
+                    firstPts = pts;
+                }
+                lastPts = pts;
+                written++;
+            }
+        } catch (IOException e) {
+            loge("export error: " + e);
+            error = e.toString();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    loge("close export file error: " + e);
+                }
+            }
+        }
+        if (error != null || written == 0) {
+            callback.onExportFailed(error != null ? error : "no frame written");
+        } else {
+            callback.onExported(file, written, lastPts - firstPts);
+        }
+    }
+
+    private static void loge(String log) {
+        if (!DEBUG) {
+            return;
+        }
+        Log.e(TAG, log);
+    }
+}
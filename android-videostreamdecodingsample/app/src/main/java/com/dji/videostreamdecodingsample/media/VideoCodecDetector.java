@@ -0,0 +1,45 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * Tell H.264 from H.265/HEVC in a raw Annex-B stream, from the NAL unit headers of its parameter sets.
+ * Both codecs use the same start codes, so a chunk is only recognized once it carries an SPS or a PPS, or
+ * an HEVC VPS. The headers are checked strictly enough that a start code emulated inside the slice data is
+ * unlikely to be taken for one.
+ */
+public class VideoCodecDetector {
+    public static final int CODEC_UNKNOWN = -1;
+
+    private VideoCodecDetector() {
+    }
+
+    /**
+     * Detect the codec of a chunk of the raw stream.
+     * @param data The chunk
+     * @param size Size of the chunk
+     * @return {@link NativeHelper#CODEC_H264}, {@link NativeHelper#CODEC_HEVC}, or {@link #CODEC_UNKNOWN}
+     * if the chunk has no parameter set.
+     */
+    public static int detect(byte[] data, int size) {
+        for (int i = 0; i + 4 < size; i++) {
+            if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1) {
+                continue;
+            }
+            int b0 = data[i + 3] & 0xFF;
+            int b1 = data[i + 4] & 0xFF;
+            // HEVC: forbidden_zero_bit, nal_unit_type, nuh_layer_id 0 and nuh_temporal_id_plus1 1.
+            int hevcType = (b0 >> 1) & 0x3F;
+            if ((b0 & 0x81) == 0 && b1 == 0x01
+                    && (hevcType == H265FrameClassifier.NAL_VPS || hevcType == H265FrameClassifier.NAL_SPS
+                    || hevcType == H265FrameClassifier.NAL_PPS)) {
+                return NativeHelper.CODEC_HEVC;
+            }
+            // H.264: forbidden_zero_bit, a non zero nal_ref_idc, as the parameter sets always have.
+            int avcType = b0 & 0x1F;
+            if ((b0 & 0x80) == 0 && (b0 & 0x60) != 0
+                    && (avcType == H264FrameClassifier.NAL_SPS || avcType == H264FrameClassifier.NAL_PPS)) {
+                return NativeHelper.CODEC_H264;
+            }
+        }
+        return CODEC_UNKNOWN;
+    }
+}
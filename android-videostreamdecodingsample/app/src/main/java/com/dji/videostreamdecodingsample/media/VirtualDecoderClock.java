@@ -0,0 +1,29 @@
+package com.dji.videostreamdecodingsample.media;
+
+/**
+ * A clock which only moves when told to, so that the timing of the decoding is reproducible, e.g. with a
+ * {@link SimulatedDecoderBackend}.
+ */
+public class VirtualDecoderClock implements DecoderClock {
+    private volatile long timeUs;
+
+    public VirtualDecoderClock(long startUs) {
+        timeUs = startUs;
+    }
+
+    @Override
+    public long nowUs() {
+        return timeUs;
+    }
+
+    /**
+     * Move the clock forward.
+     * @param deltaUs Time to add, in microseconds
+     */
+    public synchronized void advance(long deltaUs) {
+        if (deltaUs < 0) {
+            throw new IllegalArgumentException("The clock can not go back: " + deltaUs);
+        }
+        timeUs += deltaUs;
+    }
+}
@@ -0,0 +1,287 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A view on a decoded yuv 4:2:0 frame, which describes where the pixels are in the output buffer of the
+ * codec instead of copying them. It exposes the Y, U and V planes with their row and pixel strides, the
+ * crop rectangle and the color format, so the pixels can be read in place whatever the layout of the
+ * decoder is.
+ *
+ * A view is only valid during the callback it is passed to, because the underlying buffer is given back
+ * to the codec afterwards. Any access after that throws an IllegalStateException. Copy the pixels if they
+ * are needed later.
+ *
+ * A region of interest can be read in place with {@link #getRegion(int, int, int, int, YuvFrameView)},
+ * which fills another view sharing the same buffer and validity.
+ */
+public class YuvFrameView {
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[3];
+    private final int[] offsets = new int[3];
+    private final int[] rowStrides = new int[3];
+    private final int[] pixelStrides = new int[3];
+    private int colorFormat;
+    private int width;
+    private int height;
+    private long ptsUs;
+    private long frameIndex;
+    private YuvFrameView parent;
+    private int parentGeneration;
+    private int generation;
+    private boolean valid;
+
+    public YuvFrameView() {
+    }
+
+    /**
+     * Describe the planes of a yuv 4:2:0 output buffer. Invoke in the decoding thread.
+     * @param buffer The output buffer of the codec
+     * @param offset Offset of the frame in the buffer
+     * @param colorFormat Color format from the output format of the codec
+     * @param stride Row stride of the luma plane
+     * @param sliceHeight Number of rows of the luma plane
+     * @param crop Crop rectangle, inclusive of right and bottom as in the output format
+     * @param ptsUs Presentation timestamp of the frame
+     * @param frameIndex Index of the source frame
+     * @return false if the color format is not a known yuv 4:2:0 layout.
+     */
+    boolean set(ByteBuffer buffer, int offset, int colorFormat, int stride, int sliceHeight, Rect crop, long ptsUs,
+                long frameIndex) {
+        int lumaSize = stride * sliceHeight;
+        int top = crop.top;
+        int left = crop.left;
+        switch (colorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                // I420: full Y plane, then the quarter sized U and V planes.
+                setPlane(PLANE_U, buffer, offset + lumaSize + (top / 2) * (stride / 2) + left / 2, stride / 2, 1);
+                setPlane(PLANE_V, buffer, offset + lumaSize + (stride / 2) * (sliceHeight / 2)
+                        + (top / 2) * (stride / 2) + left / 2, stride / 2, 1);
+                break;
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar:
+                // NV12: full Y plane, then the interleaved U and V samples.
+                setPlane(PLANE_U, buffer, offset + lumaSize + (top / 2) * stride + (left & ~1), stride, 2);
+                setPlane(PLANE_V, buffer, offset + lumaSize + (top / 2) * stride + (left & ~1) + 1, stride, 2);
+                break;
+            default:
+                valid = false;
+                return false;
+        }
+        setPlane(PLANE_Y, buffer, offset + top * stride + left, stride, 1);
+        setFrame(colorFormat, crop.right - crop.left + 1, crop.bottom - crop.top + 1, ptsUs, frameIndex);
+        return true;
+    }
+
+    /**
+     * Describe the planes of an output image of the codec. Invoke in the decoding thread.
+     * @param image The image from MediaCodec.getOutputImage, in the YUV_420_888 format
+     * @param colorFormat Color format from the output format of the codec
+     * @param ptsUs Presentation timestamp of the frame
+     * @param frameIndex Index of the source frame
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    void set(Image image, int colorFormat, long ptsUs, long frameIndex) {
+        Image.Plane[] planes = image.getPlanes();
+        Rect crop = image.getCropRect();
+        int left = crop == null ? 0 : crop.left;
+        int top = crop == null ? 0 : crop.top;
+        for (int i = 0; i < 3; i++) {
+            int shift = i == PLANE_Y ? 0 : 1;
+            Image.Plane plane = planes[i];
+            setPlane(i, plane.getBuffer(),
+                     (top >> shift) * plane.getRowStride() + (left >> shift) * plane.getPixelStride(),
+                     plane.getRowStride(), plane.getPixelStride());
+        }
+        setFrame(colorFormat,
+                 crop == null ? image.getWidth() : crop.width(),
+                 crop == null ? image.getHeight() : crop.height(),
+                 ptsUs, frameIndex);
+    }
+
+    /**
+     * End the validity of the view once the callback returns. Invoke in the decoding thread.
+     */
+    void invalidate() {
+        valid = false;
+        generation++;
+        for (int i = 0; i < 3; i++) {
+            buffers[i] = null;
+        }
+    }
+
+    private void setPlane(int plane, ByteBuffer buffer, int offset, int rowStride, int pixelStride) {
+        buffers[plane] = buffer;
+        offsets[plane] = offset;
+        rowStrides[plane] = rowStride;
+        pixelStrides[plane] = pixelStride;
+    }
+
+    private void setFrame(int colorFormat, int width, int height, long ptsUs, long frameIndex) {
+        this.colorFormat = colorFormat;
+        this.width = width;
+        this.height = height;
+        this.ptsUs = ptsUs;
+        this.frameIndex = frameIndex;
+        this.parent = null;
+        this.valid = true;
+    }
+
+    /**
+     * @return Whether the view can still be read, i.e. its callback has not returned yet.
+     */
+    public boolean isValid() {
+        // A region stays valid only as long as the frame it was taken from.
+        return parent != null ? valid && parent.generation == parentGeneration && parent.isValid() : valid;
+    }
+
+    private void checkValid() {
+        if (!isValid()) {
+            throw new IllegalStateException("The yuv frame is only valid during its callback");
+        }
+    }
+
+    /**
+     * Fill another view with a region of this one, sharing the same buffer. The region is clipped to
+     * the frame, its left and top are rounded down to even values so that the chroma samples line up.
+     * @param left Left of the region in luma pixels
+     * @param top Top of the region in luma pixels
+     * @param regionWidth Width of the region in luma pixels
+     * @param regionHeight Height of the region in luma pixels
+     * @param out The view to fill, which stays valid only as long as this view
+     * @return The filled view
+     */
+    public YuvFrameView getRegion(int left, int top, int regionWidth, int regionHeight, YuvFrameView out) {
+        checkValid();
+        left = Math.max(0, Math.min(left & ~1, width));
+        top = Math.max(0, Math.min(top & ~1, height));
+        regionWidth = Math.max(0, Math.min(regionWidth, width - left));
+        regionHeight = Math.max(0, Math.min(regionHeight, height - top));
+        for (int i = 0; i < 3; i++) {
+            int shift = i == PLANE_Y ? 0 : 1;
+            out.setPlane(i, buffers[i],
+                         offsets[i] + (top >> shift) * rowStrides[i] + (left >> shift) * pixelStrides[i],
+                         rowStrides[i], pixelStrides[i]);
+        }
+        out.setFrame(colorFormat, regionWidth, regionHeight, ptsUs, frameIndex);
+        out.parent = this;
+        out.parentGeneration = generation;
+        return out;
+    }
+
+    /**
+     * @return Width of the visible frame in luma pixels.
+     */
+    public int getWidth() {
+        checkValid();
+        return width;
+    }
+
+    /**
+     * @return Height of the visible frame in luma pixels.
+     */
+    public int getHeight() {
+        checkValid();
+        return height;
+    }
+
+    /**
+     * @return The color format of the decoder, one of MediaCodecInfo.CodecCapabilities.COLOR_Format*.
+     */
+    public int getColorFormat() {
+        checkValid();
+        return colorFormat;
+    }
+
+    public long getPtsUs() {
+        checkValid();
+        return ptsUs;
+    }
+
+    public long getFrameIndex() {
+        checkValid();
+        return frameIndex;
+    }
+
+    /**
+     * Get the buffer of a plane. It must be read with absolute gets only, and must not be modified.
+     * @param plane One of the PLANE_ constants
+     * @return The buffer holding the plane
+     */
+    public ByteBuffer getBuffer(int plane) {
+        checkValid();
+        return buffers[plane];
+    }
+
+    /**
+     * @param plane One of the PLANE_ constants
+     * @return Offset in the buffer of the top left sample of the visible frame.
+     */
+    public int getOffset(int plane) {
+        checkValid();
+        return offsets[plane];
+    }
+
+    /**
+     * @param plane One of the PLANE_ constants
+     * @return Distance in bytes between two rows of the plane.
+     */
+    public int getRowStride(int plane) {
+        checkValid();
+        return rowStrides[plane];
+    }
+
+    /**
+     * @param plane One of the PLANE_ constants
+     * @return Distance in bytes between two samples of a row of the plane, 1 for planar, 2 for interleaved chroma.
+     */
+    public int getPixelStride(int plane) {
+        checkValid();
+        return pixelStrides[plane];
+    }
+
+    /**
+     * Read a luma sample.
+     * @param x Column in luma pixels
+     * @param y Row in luma pixels
+     * @return The value, from 0 to 255
+     */
+    public int getY(int x, int y) {
+        checkValid();
+        return buffers[PLANE_Y].get(offsets[PLANE_Y] + y * rowStrides[PLANE_Y] + x) & 0xFF;
+    }
+
+    /**
+     * Read a U sample.
+     * @param x Column in chroma samples, i.e. half the luma column
+     * @param y Row in chroma samples, i.e. half the luma row
+     * @return The value, from 0 to 255
+     */
+    public int getU(int x, int y) {
+        checkValid();
+        return buffers[PLANE_U].get(offsets[PLANE_U] + y * rowStrides[PLANE_U] + x * pixelStrides[PLANE_U]) & 0xFF;
+    }
+
+    /**
+     * Read a V sample.
+     * @param x Column in chroma samples, i.e. half the luma column
+     * @param y Row in chroma samples, i.e. half the luma row
+     * @return The value, from 0 to 255
+     */
+    public int getV(int x, int y) {
+        checkValid();
+        return buffers[PLANE_V].get(offsets[PLANE_V] + y * rowStrides[PLANE_V] + x * pixelStrides[PLANE_V]) & 0xFF;
+    }
+}
@@ -0,0 +1,406 @@
+package com.dji.videostreamdecodingsample.media;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class turns a decoded yuv frame into the RGB input tensor of a detection model in one pass: the
+ * color conversion, the downscale and the letterboxing are done together, straight from the planes of a
+ * {@link YuvFrameView} into a buffer owned by the caller.
+ *
+ * The output is interleaved RGB in rows, i.e. height x width x 3, either as bytes from 0 to 255 or as
+ * floats mapped with {@link #setFloatRange(float, float)}. The color conversion uses BT.601 limited range
+ * tables computed once. The source position of each output row and column is computed when the sizes
+ * change, so converting frames of the same size allocates nothing.
+ *
+ * The rows are shared between the calling thread and the worker threads of the converter, and
+ * {@link #convert(YuvFrameView, byte[], int, int)} returns when all of them are written, so it can be
+ * called from the callback of the view. Call {@link #release()} to stop the worker threads.
+ */
+public class YuvToRgbConverter {
+    /** Each output pixel interpolates the 4 nearest luma samples, for light downscales. */
+    public static final int SCALE_BILINEAR = 0;
+    /** Each output pixel averages all the samples it covers, for strong downscales. */
+    public static final int SCALE_AREA = 1;
+
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int FIX_SHIFT = 10;
+
+    // BT.601 limited range coefficients in fixed point.
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            Y_TABLE[i] = Math.round(1.164f * (i - 16) * (1 << FIX_SHIFT));
+            RV_TABLE[i] = Math.round(1.596f * (i - 128) * (1 << FIX_SHIFT));
+            GU_TABLE[i] = Math.round(0.391f * (i - 128) * (1 << FIX_SHIFT));
+            GV_TABLE[i] = Math.round(0.813f * (i - 128) * (1 << FIX_SHIFT));
+            BU_TABLE[i] = Math.round(2.018f * (i - 128) * (1 << FIX_SHIFT));
+        }
+    }
+
+    private final Thread[] workers;
+    private final Object lock = new Object();
+    private final AtomicInteger nextBand = new AtomicInteger();
+    private final AtomicInteger remainingBands = new AtomicInteger();
+    private final int bandCount;
+    private int generation;
+    private boolean running = true;
+
+    // Settings.
+    private int scaleMode = SCALE_BILINEAR;
+    private boolean letterbox = true;
+    private int padValue = 114;
+    private float floatScale = 1f / 255;
+    private float floatBias = 0f;
+
+    // Geometry, computed when the sizes change.
+    private int srcWidth;
+    private int srcHeight;
+    private int dstWidth;
+    private int dstHeight;
+    private int geometryMode = -1;
+    private boolean geometryLetterbox;
+    private int contentWidth;
+    private int contentHeight;
+    private int padX;
+    private int padY;
+    private int[] colStart = new int[0];
+    private int[] colEnd = new int[0];
+    private int[] colFraction = new int[0];
+    private int[] rowStart = new int[0];
+    private int[] rowEnd = new int[0];
+    private int[] rowFraction = new int[0];
+
+    // The frame being converted.
+    private ByteBuffer yBuffer;
+    private ByteBuffer uBuffer;
+    private ByteBuffer vBuffer;
+    private int yOffset;
+    private int uOffset;
+    private int vOffset;
+    private int yRowStride;
+    private int uRowStride;
+    private int vRowStride;
+    private int uPixelStride;
+    private int vPixelStride;
+    private byte[] byteOutput;
+    private float[] floatOutput;
+
+    /**
+     * @param threadCount Number of threads converting the rows, including the calling thread
+     */
+    public YuvToRgbConverter(int threadCount) {
+        threadCount = Math.max(1, threadCount);
+        bandCount = threadCount * BANDS_PER_THREAD;
+        workers = new Thread[threadCount - 1];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread("yuv to rgb converter thread " + i) {
+                @Override
+                public void run() {
+                    workerLoop();
+                }
+            };
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @param scaleMode {@link #SCALE_BILINEAR} or {@link #SCALE_AREA}
+     */
+    public void setScaleMode(int scaleMode) {
+        this.scaleMode = scaleMode;
+    }
+
+    /**
+     * Keep the aspect ratio of the frame and fill the borders, or stretch the frame to the output.
+     * @param letterbox Whether the aspect ratio is kept
+     * @param padValue Value of the three channels of the borders, from 0 to 255
+     */
+    public void setLetterbox(boolean letterbox, int padValue) {
+        this.letterbox = letterbox;
+        this.padValue = padValue;
+    }
+
+    /**
+     * Set the mapping of the float output, value = channel * scale + bias with a channel from 0 to 255.
+     * The default maps to 0..1.
+     */
+    public void setFloatRange(float scale, float bias) {
+        this.floatScale = scale;
+        this.floatBias = bias;
+    }
+
+    /**
+     * Convert a frame into bytes.
+     * @param src The frame, it is read only until this method returns
+     * @param dst Output of at least dstWidth * dstHeight * 3 bytes
+     * @param dstWidth Width of the output
+     * @param dstHeight Height of the output
+     */
+    public void convert(YuvFrameView src, byte[] dst, int dstWidth, int dstHeight) {
+        checkOutput(dst.length, dstWidth, dstHeight);
+        byteOutput = dst;
+        floatOutput = null;
+        run(src, dstWidth, dstHeight);
+    }
+
+    /**
+     * Convert a frame into floats.
+     * @param src The frame, it is read only until this method returns
+     * @param dst Output of at least dstWidth * dstHeight * 3 floats
+     * @param dstWidth Width of the output
+     * @param dstHeight Height of the output
+     */
+    public void convert(YuvFrameView src, float[] dst, int dstWidth, int dstHeight) {
+        checkOutput(dst.length, dstWidth, dstHeight);
+        byteOutput = null;
+        floatOutput = dst;
+        run(src, dstWidth, dstHeight);
+    }
+
+    /**
+     * Stop the worker threads. The converter can not be used afterwards.
+     */
+    public void release() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+    }
+
+    private static void checkOutput(int length, int dstWidth, int dstHeight) {
+        if (dstWidth <= 0 || dstHeight <= 0 || length < dstWidth * dstHeight * 3) {
+            throw new IllegalArgumentException("The output is too small for " + dstWidth + "x" + dstHeight);
+        }
+    }
+
+    private void run(YuvFrameView src, int width, int height) {
+        // Read the layout in the calling thread, the view may only be checked there.
+        yBuffer = src.getBuffer(YuvFrameView.PLANE_Y);
+        uBuffer = src.getBuffer(YuvFrameView.PLANE_U);
+        vBuffer = src.getBuffer(YuvFrameView.PLANE_V);
+        yOffset = src.getOffset(YuvFrameView.PLANE_Y);
+        uOffset = src.getOffset(YuvFrameView.PLANE_U);
+        vOffset = src.getOffset(YuvFrameView.PLANE_V);
+        yRowStride = src.getRowStride(YuvFrameView.PLANE_Y);
+        uRowStride = src.getRowStride(YuvFrameView.PLANE_U);
+        vRowStride = src.getRowStride(YuvFrameView.PLANE_V);
+        uPixelStride = src.getPixelStride(YuvFrameView.PLANE_U);
+        vPixelStride = src.getPixelStride(YuvFrameView.PLANE_V);
+        updateGeometry(src.getWidth(), src.getHeight(), width, height);
+
+        if (workers.length == 0) {
+            for (int row = 0; row < dstHeight; row++) {
+                convertRow(row);
+            }
+        } else {
+            // The fields above are published to the workers by the volatile writes below.
+            remainingBands.set(bandCount);
+            nextBand.set(0);
+            synchronized (lock) {
+                generation++;
+                lock.notifyAll();
+            }
+            runBands();
+            synchronized (lock) {
+                while (remainingBands.get() > 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        yBuffer = null;
+        uBuffer = null;
+        vBuffer = null;
+    }
+
+    private void workerLoop() {
+        int seenGeneration = 0;
+        while (true) {
+            synchronized (lock) {
+                while (running && generation == seenGeneration) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                seenGeneration = generation;
+            }
+            runBands();
+        }
+    }
+
+    private void runBands() {
+        int band;
+        while ((band = nextBand.getAndIncrement()) < bandCount) {
+            int first = band * dstHeight / bandCount;
+            int last = (band + 1) * dstHeight / bandCount;
+            for (int row = first; row < last; row++) {
+                convertRow(row);
+            }
+            if (remainingBands.decrementAndGet() == 0) {
+                synchronized (lock) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void updateGeometry(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (srcWidth == this.srcWidth && srcHeight == this.srcHeight && dstWidth == this.dstWidth
+                && dstHeight == this.dstHeight && scaleMode == geometryMode && letterbox == geometryLetterbox) {
+            return;
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        geometryMode = scaleMode;
+        geometryLetterbox = letterbox;
+        if (letterbox) {
+            float scale = Math.min((float) dstWidth / srcWidth, (float) dstHeight / srcHeight);
+            contentWidth = Math.max(1, Math.min(dstWidth, Math.round(srcWidth * scale)));
+            contentHeight = Math.max(1, Math.min(dstHeight, Math.round(srcHeight * scale)));
+        } else {
+            contentWidth = dstWidth;
+            contentHeight = dstHeight;
+        }
+        padX = (dstWidth - contentWidth) / 2;
+        padY = (dstHeight - contentHeight) / 2;
+        colStart = new int[contentWidth];
+        colEnd = new int[contentWidth];
+        colFraction = new int[contentWidth];
+        rowStart = new int[contentHeight];
+        rowEnd = new int[contentHeight];
+        rowFraction = new int[contentHeight];
+        mapAxis(srcWidth, contentWidth, colStart, colEnd, colFraction);
+        mapAxis(srcHeight, contentHeight, rowStart, rowEnd, rowFraction);
+    }
+
+    /**
+     * Compute the source samples of each output position of an axis. For the bilinear scale, start and
+     * end are the two neighbors and fraction the weight of the end in 1/256. For the area scale, the
+     * samples from start to end excluded are averaged.
+     */
+    private void mapAxis(int srcSize, int dstSize, int[] start, int[] end, int[] fraction) {
+        for (int i = 0; i < dstSize; i++) {
+            if (scaleMode == SCALE_AREA) {
+                start[i] = (int) ((long) i * srcSize / dstSize);
+                end[i] = Math.max(start[i] + 1, (int) ((long) (i + 1) * srcSize / dstSize));
+            } else {
+                float position = Math.max(0f, (i + 0.5f) * srcSize / dstSize - 0.5f);
+                int first = Math.min((int) position, srcSize - 1);
+                start[i] = first;
+                end[i] = Math.min(first + 1, srcSize - 1);
+                fraction[i] = (int) ((position - first) * 256);
+            }
+        }
+    }
+
+    private void convertRow(int row) {
+        int out = row * dstWidth * 3;
+        int contentRow = row - padY;
+        if (contentRow < 0 || contentRow >= contentHeight) {
+            for (int x = 0; x < dstWidth; x++) {
+                write(out, padValue, padValue, padValue);
+                out += 3;
+            }
+            return;
+        }
+        boolean area = geometryMode == SCALE_AREA;
+        int y0 = rowStart[contentRow];
+        int y1 = rowEnd[contentRow];
+        int fy = rowFraction[contentRow];
+        for (int x = 0; x < dstWidth; x++, out += 3) {
+            int contentCol = x - padX;
+            if (contentCol < 0 || contentCol >= contentWidth) {
+                write(out, padValue, padValue, padValue);
+                continue;
+            }
+            int x0 = colStart[contentCol];
+            int x1 = colEnd[contentCol];
+            int luma;
+            int u;
+            int v;
+            if (area) {
+                luma = averageLuma(x0, x1, y0, y1);
+                int cx0 = x0 >> 1;
+                int cx1 = Math.max(cx0 + 1, (x1 + 1) >> 1);
+                int cy0 = y0 >> 1;
+                int cy1 = Math.max(cy0 + 1, (y1 + 1) >> 1);
+                u = averageChroma(uBuffer, uOffset, uRowStride, uPixelStride, cx0, cx1, cy0, cy1);
+                v = averageChroma(vBuffer, vOffset, vRowStride, vPixelStride, cx0, cx1, cy0, cy1);
+            } else {
+                int fx = colFraction[contentCol];
+                int row0 = yOffset + y0 * yRowStride;
+                int row1 = yOffset + y1 * yRowStride;
+                int top = (yBuffer.get(row0 + x0) & 0xFF) * (256 - fx) + (yBuffer.get(row0 + x1) & 0xFF) * fx;
+                int bottom = (yBuffer.get(row1 + x0) & 0xFF) * (256 - fx) + (yBuffer.get(row1 + x1) & 0xFF) * fx;
+                luma = (top * (256 - fy) + bottom * fy) >> 16;
+                // The chroma is sampled at the nearest position, it has half the resolution anyway.
+                int cx = (fx < 128 ? x0 : x1) >> 1;
+                int cy = (fy < 128 ? y0 : y1) >> 1;
+                u = uBuffer.get(uOffset + cy * uRowStride + cx * uPixelStride) & 0xFF;
+                v = vBuffer.get(vOffset + cy * vRowStride + cx * vPixelStride) & 0xFF;
+            }
+            int yy = Y_TABLE[luma];
+            write(out,
+                  clamp((yy + RV_TABLE[v]) >> FIX_SHIFT),
+                  clamp((yy - GU_TABLE[u] - GV_TABLE[v]) >> FIX_SHIFT),
+                  clamp((yy + BU_TABLE[u]) >> FIX_SHIFT));
+        }
+    }
+
+    private int averageLuma(int x0, int x1, int y0, int y1) {
+        int sum = 0;
+        for (int y = y0; y < y1; y++) {
+            int rowOffset = yOffset + y * yRowStride;
+            for (int x = x0; x < x1; x++) {
+                sum += yBuffer.get(rowOffset + x) & 0xFF;
+            }
+        }
+        return sum / ((x1 - x0) * (y1 - y0));
+    }
+
+    private static int averageChroma(ByteBuffer buffer, int offset, int rowStride, int pixelStride,
+                                     int x0, int x1, int y0, int y1) {
+        int sum = 0;
+        for (int y = y0; y < y1; y++) {
+            int rowOffset = offset + y * rowStride;
+            for (int x = x0; x < x1; x++) {
+                sum += buffer.get(rowOffset + x * pixelStride) & 0xFF;
+            }
+        }
+        return sum / ((x1 - x0) * (y1 - y0));
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private void write(int index, int r, int g, int b) {
+        if (floatOutput != null) {
+            floatOutput[index] = r * floatScale + floatBias;
+            floatOutput[index + 1] = g * floatScale + floatBias;
+            floatOutput[index + 2] = b * floatScale + floatBias;
+        } else {
+            byteOutput[index] = (byte) r;
+            byteOutput[index + 1] = (byte) g;
+            byteOutput[index + 2] = (byte) b;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The decoding logic run step by step: the decoder is fed with the frames of a {@link SyntheticH264Stream}
+ * as the native parser would, its messages are handled by a {@link ManualDecodeScheduler} in the test
+ * thread, on the time of a {@link VirtualDecoderClock}, and it decodes with {@link SimulatedDecoderBackend}s.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class DJIVideoStreamDecoderTest {
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final int MAX_MESSAGES = 1000;
+    /** BUF_QUEUE_SIZE of the decoder. */
+    private static final int QUEUE_SIZE = 30;
+
+    private final VirtualDecoderClock clock = new VirtualDecoderClock(1000000);
+    private final ManualDecodeScheduler scheduler = new ManualDecodeScheduler(clock);
+    private final List<SimulatedDecoderBackend> backends = new ArrayList<>();
+    private final List<MediaFormat> formats = new ArrayList<>();
+    private final byte[] frame = new byte[1024 * 1024];
+    private DJIVideoStreamDecoder decoder;
+    private SyntheticH264Stream stream;
+    // Whether the frames are passed with their information, or without as if the native parser missed it.
+    private boolean frameInfoKnown = true;
+
+    @Before
+    public void setUp() {
+        decoder = new DJIVideoStreamDecoder();
+        decoder.setClock(clock);
+        decoder.setDefaultKeyFrameEnabled(false);
+        decoder.setDecoderBackendFactory(new DecoderBackend.Factory() {
+            @Override
+            public DecoderBackend create(MediaFormat format) {
+                SimulatedDecoderBackend backend = new SimulatedDecoderBackend(clock, 8, 4, frame.length, 0);
+                backends.add(backend);
+                formats.add(format);
+                return backend;
+            }
+        });
+        decoder.setDecodeScheduler(scheduler);
+        decoder.init(RuntimeEnvironment.getApplication(), null, DJIVideoStreamDecoder.THREADING_PIPELINED);
+        stream = new SyntheticH264Stream(1280, 720, 30, 30);
+        stream.setSeed(1);
+        stream.setBitrate(2000000);
+        stream.setSuffix(SyntheticH264Stream.SUFFIX_NONE);
+    }
+
+    @After
+    public void tearDown() {
+        decoder.stop();
+    }
+
+    @Test
+    public void decodesTheStream() {
+        receiveFrames(60, true);
+
+        assertEquals(1, backends.size());
+        assertEquals(1280, formats.get(0).getInteger(MediaFormat.KEY_WIDTH));
+        assertEquals(720, formats.get(0).getInteger(MediaFormat.KEY_HEIGHT));
+        SimulatedDecoderBackend backend = backends.get(0);
+        assertEquals(60, backend.getInputCount());
+        // Without decode latency, every frame is output as soon as it is fed.
+        assertEquals(60, backend.getOutputCount());
+        assertEquals(59, decoder.getLastOutputFrameIndex());
+    }
+
+    @Test
+    public void classifiesTheFramesWithoutTheNativeParser() {
+        frameInfoKnown = false;
+        receiveFrames(60, true);
+
+        assertEquals(1, backends.size());
+        assertEquals(1280, formats.get(0).getInteger(MediaFormat.KEY_WIDTH));
+        assertEquals(720, formats.get(0).getInteger(MediaFormat.KEY_HEIGHT));
+        assertEquals(60, backends.get(0).getInputCount());
+    }
+
+    @Test
+    public void dropsTheOldestFramesWhenTheQueueIsFull() {
+        receiveFrames(10, true);
+        SimulatedDecoderBackend backend = backends.get(0);
+        long inputCount = backend.getInputCount();
+
+        // The decoding thread is late, the frames pile up in the queue.
+        receiveFrames(QUEUE_SIZE + 10, false);
+        runFrameInterval();
+
+        assertEquals(1, backends.size());
+        assertEquals(inputCount + QUEUE_SIZE, backend.getInputCount());
+        // The decoding goes on with the newest frames.
+        receiveFrames(10, true);
+        assertEquals(inputCount + QUEUE_SIZE + 10, backend.getInputCount());
+    }
+
+    @Test
+    public void recreatesTheCodecAfterAnException() {
+        receiveFrames(10, true);
+        SimulatedDecoderBackend failing = backends.get(0);
+        failing.failAtInput(failing.getInputCount() + 2, new IllegalStateException("simulated failure"));
+
+        receiveFrames(10, true);
+
+        assertEquals(2, backends.size());
+        // The failed input included.
+        assertEquals(13, failing.getInputCount());
+        // The new codec resumes from the key frame in the GOP buffer, and decodes the next frames.
+        SimulatedDecoderBackend recreated = backends.get(1);
+        assertTrue(recreated.getInputCount() >= 8);
+        assertTrue(recreated.getOutputCount() > 0);
+        assertEquals(19, decoder.getLastOutputFrameIndex());
+    }
+
+    @Test
+    public void endsTheFreezeOnceCaughtUpAfterAnException() {
+        decoder.setConcealmentEnabled(true);
+        receiveFrames(10, true);
+        SimulatedDecoderBackend failing = backends.get(0);
+        failing.failAtInput(failing.getInputCount(), new IllegalStateException("simulated failure"));
+
+        receiveFrames(10, true);
+
+        // The new codec decoded the GOP from its key frame, the next frames are shown at once.
+        assertEquals(2, backends.size());
+        assertFalse(decoder.getFreezeConcealment().isFrozen());
+        assertEquals(0, decoder.getFreezeConcealment().getSuppressedFrameCount());
+    }
+
+    @Test
+    public void reinitializesTheCodecOnResolutionChange() {
+        receiveFrames(10, true);
+        stream.setResolution(1920, 1080);
+        stream.requestKeyFrame();
+
+        receiveFrames(10, true);
+
+        assertEquals(2, backends.size());
+        assertEquals(1920, formats.get(1).getInteger(MediaFormat.KEY_WIDTH));
+        assertEquals(1080, formats.get(1).getInteger(MediaFormat.KEY_HEIGHT));
+        // The new codec starts at the key frame of the new resolution.
+        assertEquals(10, backends.get(1).getInputCount());
+        assertEquals(19, decoder.getLastOutputFrameIndex());
+    }
+
+    /**
+     * Pass the next frames of the stream to the decoder, as the native parser does, one frame interval
+     * apart.
+     * @param decode Whether the decoding thread runs after each frame, or is late
+     */
+    private void receiveFrames(int count, boolean decode) {
+        for (int i = 0; i < count; i++) {
+            long keyFrameCount = stream.getKeyFrameCount();
+            int size = 0;
+            do {
+                size += stream.readChunk(frame, size, frame.length - size);
+            } while (!stream.isEndOfFrame());
+            boolean isKeyFrame = stream.getKeyFrameCount() != keyFrameCount;
+            if (frameInfoKnown) {
+                decoder.onDataRecv(Arrays.copyOf(frame, size), size, (int) stream.getFrameCount(), isKeyFrame,
+                                   stream.getWidth(), stream.getHeight());
+            } else {
+                decoder.onDataRecv(Arrays.copyOf(frame, size), size, 0, false, 0, 0);
+            }
+            if (decode) {
+                runFrameInterval();
+            } else {
+                clock.advance(FRAME_INTERVAL_US);
+            }
+        }
+    }
+
+    private void runFrameInterval() {
+        scheduler.runPending(MAX_MESSAGES);
+        clock.advance(FRAME_INTERVAL_US);
+        scheduler.runPending(MAX_MESSAGES);
+    }
+}
@@ -0,0 +1,107 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.media.MediaFormat;
+import android.os.Process;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The end-to-end latency of the threading modes, from {@link DJIVideoStreamDecoder#parse(byte[], int)} to
+ * the codec output, on real threads and a real clock. The raw data are the frames of a
+ * {@link SyntheticH264Stream}, one per chunk, framed in place of the native parser, and decoded by a
+ * {@link SimulatedDecoderBackend} with a fixed decode latency, so that the difference comes from the thread
+ * hops. The smoothed latency of the decoder is sampled after each frame and averaged over the run. The
+ * latencies are printed; the thresholds only catch a stalled mode, the scheduling of a test host
+ * is too noisy to rank them.
+ *
+ * The clock of Robolectric only moves when told to, so the decoder is timed by {@link System#nanoTime()},
+ * and decodes in a {@link RealtimeDecodeScheduler}, whose delayed messages do not depend on the looper.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class DecoderLatencyTest {
+    private static final int WARM_UP_FRAME_COUNT = 30;
+    private static final int FRAME_COUNT = 150;
+    private static final long FRAME_INTERVAL_MS = 10;
+    private static final long DECODE_LATENCY_US = 5000;
+    private static final long MAX_LATENCY_US = 200000;
+    private static final DecoderClock NANO_TIME_CLOCK = new DecoderClock() {
+        @Override
+        public long nowUs() {
+            return System.nanoTime() / 1000;
+        }
+    };
+
+    @Test
+    public void reportsTheLatencyOfBothModes() throws InterruptedException {
+        long pipelinedUs = measureAverageLatencyUs(DJIVideoStreamDecoder.THREADING_PIPELINED);
+        long fusedUs = measureAverageLatencyUs(DJIVideoStreamDecoder.THREADING_FUSED);
+        System.out.println("average latency with a decode latency of " + DECODE_LATENCY_US + "us, pipelined: "
+                           + pipelinedUs + "us, fused: " + fusedUs + "us");
+
+        assertTrue("pipelined " + pipelinedUs, pipelinedUs >= DECODE_LATENCY_US && pipelinedUs < MAX_LATENCY_US);
+        assertTrue("fused " + fusedUs, fusedUs >= DECODE_LATENCY_US && fusedUs < MAX_LATENCY_US);
+    }
+
+    private long measureAverageLatencyUs(int threadingMode) throws InterruptedException {
+        final DJIVideoStreamDecoder decoder = new DJIVideoStreamDecoder();
+        final List<SimulatedDecoderBackend> backends = new ArrayList<>();
+        decoder.setDefaultKeyFrameEnabled(false);
+        decoder.setClock(NANO_TIME_CLOCK);
+        decoder.setDecodeScheduler(new RealtimeDecodeScheduler("decoding thread", Process.THREAD_PRIORITY_DEFAULT,
+                                                               1000));
+        decoder.setDecoderBackendFactory(new DecoderBackend.Factory() {
+            @Override
+            public DecoderBackend create(MediaFormat format) {
+                SimulatedDecoderBackend backend = new SimulatedDecoderBackend(NANO_TIME_CLOCK, 8, 4,
+                                                                              1024 * 1024, DECODE_LATENCY_US);
+                synchronized (backends) {
+                    backends.add(backend);
+                }
+                return backend;
+            }
+        });
+        decoder.setRawDataFramer(new DJIVideoStreamDecoder.RawDataFramer() {
+            @Override
+            public void parse(byte[] buf, int size) {
+                // One frame per chunk, in a new array as the native parser delivers it.
+                decoder.onDataRecv(Arrays.copyOf(buf, size), size, 0, false, 0, 0);
+            }
+        });
+        decoder.init(RuntimeEnvironment.getApplication(), null, threadingMode);
+        SyntheticH264Stream stream = new SyntheticH264Stream(1280, 720, 30, 30);
+        stream.setSeed(1);
+        stream.setBitrate(2000000);
+        stream.setSuffix(SyntheticH264Stream.SUFFIX_NONE);
+        long latencySumUs = 0;
+        try {
+            for (int i = 0; i < WARM_UP_FRAME_COUNT + FRAME_COUNT; i++) {
+                byte[] chunk = stream.nextChunk();
+                decoder.parse(chunk, chunk.length);
+                Thread.sleep(FRAME_INTERVAL_MS);
+                if (i >= WARM_UP_FRAME_COUNT) {
+                    latencySumUs += decoder.getAverageLatencyUs();
+                }
+            }
+        } finally {
+            decoder.stop();
+        }
+        synchronized (backends) {
+            assertEquals(1, backends.size());
+            // The outputs are dequeued as the next frames are fed, the last ones may still be in the codec.
+            assertTrue(backends.get(0).getOutputCount() >= WARM_UP_FRAME_COUNT + FRAME_COUNT - 4);
+        }
+        return latencySumUs / FRAME_COUNT;
+    }
+}
@@ -0,0 +1,80 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the reads of {@link BitReader} which the parameter sets and the slice headers are made of, with
+ * the emulation prevention bytes skipped on the fly.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BitReaderBenchmark {
+    private static final int CODE_COUNT = 1024;
+
+    private final BitReader reader = new BitReader();
+    private ByteBuffer ueCodes;
+    private int ueCodesLength;
+    private ByteBuffer bits;
+    private int bitsLength;
+
+    @Setup
+    public void setUp() {
+        // The values found in the headers, mostly short codes.
+        BitWriter writer = new BitWriter(CODE_COUNT * 4);
+        Random random = new Random(1);
+        for (int i = 0; i < CODE_COUNT; i++) {
+            writer.writeUe(random.nextInt(1 << random.nextInt(16)));
+        }
+        writer.writeTrailingBits();
+        byte[] codes = new byte[writer.getNalPayloadLength()];
+        ueCodesLength = writer.copyNalPayload(codes, 0);
+        ueCodes = ByteBuffer.wrap(codes);
+
+        // Fields of 1 to 16 bits, with the zero runs which need emulation prevention bytes.
+        writer.reset();
+        for (int i = 0; i < CODE_COUNT; i++) {
+            writer.writeBits(1 + (i & 15), random.nextBoolean() ? 0 : random.nextInt());
+        }
+        writer.writeTrailingBits();
+        byte[] data = new byte[writer.getNalPayloadLength()];
+        bitsLength = writer.copyNalPayload(data, 0);
+        bits = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * {@value #CODE_COUNT} ue(v) reads per call.
+     */
+    @Benchmark
+    public int readUe() {
+        reader.reset(ueCodes, 0, ueCodesLength);
+        int sum = 0;
+        for (int i = 0; i < CODE_COUNT; i++) {
+            sum += reader.readUe();
+        }
+        return sum;
+    }
+
+    /**
+     * {@value #CODE_COUNT} fixed length reads per call.
+     */
+    @Benchmark
+    public int readBits() {
+        reader.reset(bits, 0, bitsLength);
+        int sum = 0;
+        for (int i = 0; i < CODE_COUNT; i++) {
+            sum += reader.readBits(1 + (i & 15));
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,67 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Java parsing done for every frame: the classification of a frame by
+ * {@link H264FrameClassifier}, which scans the NAL units and parses the parameter sets and the first slice
+ * header.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class H264ParserBenchmark {
+    private static final int FRAME_COUNT = 120;
+
+    /** The filler data makes the frames as long as on the link, the classifier stops before it. */
+    @Param({"1280x720", "3840x2160"})
+    public String resolution;
+
+    private final H264FrameClassifier classifier = new H264FrameClassifier();
+    private final int[] frameOffsets = new int[FRAME_COUNT];
+    private final int[] frameLengths = new int[FRAME_COUNT];
+    private ByteBuffer frames;
+    private int nextFrame;
+
+    @Setup
+    public void setUp() {
+        int separator = resolution.indexOf('x');
+        int width = Integer.parseInt(resolution.substring(0, separator));
+        int height = Integer.parseInt(resolution.substring(separator + 1));
+        SyntheticH264Stream stream = new SyntheticH264Stream(width, height, 30, 30);
+        stream.setSeed(1);
+        stream.setBitrate(width * height * 4);
+        stream.setNonReferenceInterval(2);
+        byte[] data = new byte[64 * 1024 * 1024];
+        int length = 0;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            frameOffsets[i] = length;
+            do {
+                length += stream.readChunk(data, length, data.length - length);
+            } while (!stream.isEndOfFrame());
+            frameLengths[i] = length - frameOffsets[i];
+        }
+        frames = ByteBuffer.wrap(data, 0, length);
+    }
+
+    /**
+     * One frame per call, in the order of the stream: the IDR with its parameter sets once per GOP, the P
+     * frames otherwise.
+     */
+    @Benchmark
+    public boolean classifyFrame() {
+        int frame = nextFrame;
+        nextFrame = frame + 1 == FRAME_COUNT ? 0 : frame + 1;
+        return classifier.classify(frames, frameOffsets[frame], frameLengths[frame]) && classifier.isKeyFrame();
+    }
+}
@@ -0,0 +1,77 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the analysis of one frame by {@link LumaMotionDetector}, which should not depend on the
+ * resolution. The frames alternate between two luma planes, a block moving across a noisy background, so
+ * that the model is updated as on a live stream.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LumaMotionDetectorBenchmark {
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    private final LumaMotionDetector detector = new LumaMotionDetector();
+    private final ByteBuffer[] heapFrames = new ByteBuffer[2];
+    private final ByteBuffer[] directFrames = new ByteBuffer[2];
+    private int width;
+    private int height;
+    private int stride;
+    private long ptsUs;
+
+    @Setup
+    public void setUp() {
+        int separator = resolution.indexOf('x');
+        width = Integer.parseInt(resolution.substring(0, separator));
+        height = Integer.parseInt(resolution.substring(separator + 1));
+        // Decoders align the rows, keep the stride distinct from the width.
+        stride = (width + 63) & ~63;
+        Random random = new Random(1);
+        for (int i = 0; i < heapFrames.length; i++) {
+            byte[] luma = new byte[stride * height];
+            for (int j = 0; j < luma.length; j++) {
+                luma[j] = (byte) (96 + random.nextInt(16));
+            }
+            int left = width / 4 + i * width / 8;
+            for (int y = height / 4; y < height / 2; y++) {
+                for (int x = left; x < left + width / 4; x++) {
+                    luma[y * stride + x] = (byte) 220;
+                }
+            }
+            heapFrames[i] = ByteBuffer.wrap(luma);
+            directFrames[i] = ByteBuffer.allocateDirect(luma.length);
+            directFrames[i].put(luma).clear();
+        }
+    }
+
+    @Benchmark
+    public float heapBuffer() {
+        ptsUs += 33333;
+        detector.process(heapFrames[(int) (ptsUs / 33333) & 1], 0, stride, width, height, ptsUs);
+        return detector.getMotionScore();
+    }
+
+    /**
+     * The luma plane of a decoder output buffer or an Image is a direct buffer.
+     */
+    @Benchmark
+    public float directBuffer() {
+        ptsUs += 33333;
+        detector.process(directFrames[(int) (ptsUs / 33333) & 1], 0, stride, width, height, ptsUs);
+        return detector.getMotionScore();
+    }
+}
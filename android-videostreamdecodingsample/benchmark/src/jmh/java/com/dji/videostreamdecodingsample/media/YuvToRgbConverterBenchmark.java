@@ -0,0 +1,79 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.graphics.Rect;
+import android.media.MediaCodecInfo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a 1080p decoded frame into the 640x640 letterboxed input of a detection model with
+ * {@link YuvToRgbConverter}, in the planar and the semi-planar layouts of the decoders, with each scale
+ * mode and a few threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvToRgbConverterBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int TARGET_SIZE = 640;
+
+    @Param({"I420", "NV12"})
+    public String layout;
+
+    @Param({"0", "1"})
+    public int scaleMode;
+
+    @Param({"1", "4"})
+    public int threadCount;
+
+    private final YuvFrameView frame = new YuvFrameView();
+    private final byte[] byteOutput = new byte[TARGET_SIZE * TARGET_SIZE * 3];
+    private final float[] floatOutput = new float[TARGET_SIZE * TARGET_SIZE * 3];
+    private YuvToRgbConverter converter;
+
+    @Setup
+    public void setUp() {
+        // Decoders align the rows and the planes, keep the stride and the slice height distinct from the size.
+        int stride = (WIDTH + 63) & ~63;
+        int sliceHeight = (HEIGHT + 15) & ~15;
+        byte[] data = new byte[stride * sliceHeight * 3 / 2];
+        new Random(1).nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).clear();
+        int colorFormat = "I420".equals(layout) ? MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+                : MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        frame.set(buffer, 0, colorFormat, stride, sliceHeight, new Rect(0, 0, WIDTH - 1, HEIGHT - 1), 0, 0);
+        converter = new YuvToRgbConverter(threadCount);
+        converter.setScaleMode(scaleMode);
+    }
+
+    @TearDown
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Benchmark
+    public byte[] byteTensor() {
+        converter.convert(frame, byteOutput, TARGET_SIZE, TARGET_SIZE);
+        return byteOutput;
+    }
+
+    @Benchmark
+    public float[] floatTensor() {
+        converter.convert(frame, floatOutput, TARGET_SIZE, TARGET_SIZE);
+        return floatOutput;
+    }
+}
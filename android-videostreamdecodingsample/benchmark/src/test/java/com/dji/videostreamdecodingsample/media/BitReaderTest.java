@@ -0,0 +1,150 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of random syntax elements through {@link BitWriter} and {@link BitReader}, and reads of
+ * random bytes, which must never throw. The seeds are fixed, so a failure can be reproduced.
+ */
+public class BitReaderTest {
+    private static final int RUNS = 500;
+    private static final int ELEMENTS_PER_RUN = 200;
+    private static final int OP_BITS = 0;
+    private static final int OP_UE = 1;
+    private static final int OP_SE = 2;
+    private static final int OP_FLAG = 3;
+
+    @Test
+    public void readsBackRandomElements() {
+        Random random = new Random(1);
+        BitWriter writer = new BitWriter(256);
+        BitReader reader = new BitReader();
+        int[] ops = new int[ELEMENTS_PER_RUN];
+        int[] counts = new int[ELEMENTS_PER_RUN];
+        int[] values = new int[ELEMENTS_PER_RUN];
+        for (int run = 0; run < RUNS; run++) {
+            writer.reset();
+            int elementCount = 1 + random.nextInt(ELEMENTS_PER_RUN);
+            for (int i = 0; i < elementCount; i++) {
+                ops[i] = random.nextInt(4);
+                switch (ops[i]) {
+                    case OP_BITS:
+                        counts[i] = random.nextInt(33);
+                        // Many zero bits, so that the payload needs emulation prevention bytes.
+                        values[i] = random.nextBoolean() ? 0 : random.nextInt();
+                        writer.writeBits(counts[i], values[i]);
+                        break;
+                    case OP_UE:
+                        values[i] = randomMagnitude(random, Integer.MAX_VALUE);
+                        writer.writeUe(values[i]);
+                        break;
+                    case OP_SE:
+                        values[i] = randomMagnitude(random, (1 << 30) - 1);
+                        if (random.nextBoolean()) {
+                            values[i] = -values[i];
+                        }
+                        writer.writeSe(values[i]);
+                        break;
+                    default:
+                        values[i] = random.nextInt(2);
+                        writer.writeFlag(values[i] != 0);
+                        break;
+                }
+            }
+            writer.writeTrailingBits();
+
+            // The payload is read in place, between unrelated bytes.
+            int offset = random.nextInt(8);
+            byte[] nal = new byte[offset + writer.getNalPayloadLength() + 8];
+            random.nextBytes(nal);
+            int length = writer.copyNalPayload(nal, offset);
+            reader.reset(ByteBuffer.wrap(nal), offset, length);
+            for (int i = 0; i < elementCount; i++) {
+                String element = "run " + run + ", element " + i;
+                switch (ops[i]) {
+                    case OP_BITS:
+                        int mask = counts[i] == 32 ? -1 : (1 << counts[i]) - 1;
+                        assertEquals(element, values[i] & mask, reader.readBits(counts[i]));
+                        break;
+                    case OP_UE:
+                        assertEquals(element, values[i], reader.readUe());
+                        break;
+                    case OP_SE:
+                        assertEquals(element, values[i], reader.readSe());
+                        break;
+                    default:
+                        assertEquals(element, values[i] != 0, reader.readFlag());
+                        break;
+                }
+            }
+            assertFalse("run " + run, reader.moreRbspData());
+            assertFalse("run " + run, reader.hasOverrun());
+        }
+    }
+
+    @Test
+    public void randomBytesNeverThrow() {
+        Random random = new Random(2);
+        BitReader reader = new BitReader();
+        for (int run = 0; run < RUNS * 10; run++) {
+            byte[] data = new byte[random.nextInt(64)];
+            for (int i = 0; i < data.length; i++) {
+                // Mostly zero bytes, for long Exp-Golomb prefixes and emulation prevention patterns.
+                int draw = random.nextInt(8);
+                data[i] = (byte) (draw < 4 ? 0 : draw == 4 ? 3 : random.nextInt(256));
+            }
+            reader.reset(ByteBuffer.wrap(data), 0, data.length);
+            boolean overrun = false;
+            for (int i = 0; i < 100; i++) {
+                switch (random.nextInt(5)) {
+                    case 0:
+                        reader.readBits(random.nextInt(33));
+                        break;
+                    case 1:
+                        int ue = reader.readUe();
+                        assertTrue(ue >= -1);
+                        break;
+                    case 2:
+                        reader.readSe();
+                        break;
+                    case 3:
+                        reader.moreRbspData();
+                        break;
+                    default:
+                        reader.byteAlign();
+                        break;
+                }
+                // Once set, the overrun flag stays set until the next reset.
+                assertTrue(!overrun || reader.hasOverrun());
+                overrun = reader.hasOverrun();
+            }
+        }
+    }
+
+    @Test
+    public void overrunReadsZeroBits() {
+        BitReader reader = new BitReader();
+        reader.reset(ByteBuffer.wrap(new byte[]{(byte) 0xFF}), 0, 1);
+        assertEquals(0xFF, reader.readBits(8));
+        assertFalse(reader.hasOverrun());
+        assertEquals(0, reader.readBits(16));
+        assertTrue(reader.hasOverrun());
+        assertEquals(-1, reader.readUe());
+    }
+
+    /**
+     * A value up to the maximum, spread over all the bit lengths rather than mostly large ones.
+     */
+    private static int randomMagnitude(Random random, int max) {
+        int bits = random.nextInt(32 - Integer.numberOfLeadingZeros(max) + 1);
+        long value = bits == 0 ? 0 : (random.nextLong() & ((1L << bits) - 1));
+        return (int) Math.min(value, max);
+    }
+}
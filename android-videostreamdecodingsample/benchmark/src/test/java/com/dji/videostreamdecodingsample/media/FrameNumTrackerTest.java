@@ -0,0 +1,172 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FrameNumTracker} on the frames of a {@link SyntheticH264Stream}, classified by
+ * {@link H264FrameClassifier} as the decoder does, with frames lost or repeated on the way. The seeds are
+ * fixed, so a failure can be reproduced.
+ */
+public class FrameNumTrackerTest {
+    private static final int GOP_LENGTH = 12;
+    private static final int NON_REFERENCE_INTERVAL = 3;
+
+    private final byte[] frame = new byte[1024 * 1024];
+    private final H264FrameClassifier classifier = new H264FrameClassifier();
+    private final FrameNumTracker tracker = new FrameNumTracker();
+
+    @Test
+    public void continuousStreamHasNoGap() {
+        SyntheticH264Stream stream = newStream(1, GOP_LENGTH);
+        for (int i = 0; i < 600; i++) {
+            assertFalse("frame " + i, track(readFrame(stream)));
+        }
+        assertEquals(0, tracker.getGapCount());
+        assertEquals(0, tracker.getLostFrameCount());
+    }
+
+    @Test
+    public void frameNumWrapsAtMaxFrameNum() {
+        // One GOP longer than MaxFrameNum, 65536 with the SPS of the generator.
+        SyntheticH264Stream stream = new SyntheticH264Stream(16, 16, 30, 70000);
+        stream.setSeed(2);
+        stream.setSuffix(SyntheticH264Stream.SUFFIX_NONE);
+        int wrapCount = 0;
+        int prevFrameNum = -1;
+        for (int i = 0; i < 70000; i++) {
+            assertFalse("frame " + i, track(readFrame(stream)));
+            if (classifier.getFrameNum() < prevFrameNum) {
+                wrapCount++;
+            }
+            prevFrameNum = classifier.getFrameNum();
+        }
+        assertEquals(1, wrapCount);
+        assertEquals(65536, 1 << classifier.getSps().log2MaxFrameNum);
+        assertEquals(0, tracker.getGapCount());
+    }
+
+    @Test
+    public void lostReferenceFramesAreAGap() {
+        SyntheticH264Stream stream = newStream(3, GOP_LENGTH);
+        // The IDR and the first P frames: frame_num 0, 1, 2, then the non reference frame 3.
+        for (int i = 0; i < 4; i++) {
+            assertFalse(track(readFrame(stream)));
+        }
+        // Two reference frames lost, frame_num 3 and 4.
+        readFrame(stream);
+        readFrame(stream);
+        assertTrue(track(readFrame(stream)));
+        assertEquals(1, tracker.getGapCount());
+        assertEquals(2, tracker.getLostFrameCount());
+
+        // Resynchronized on the frame after the gap.
+        for (int i = 0; i < 30; i++) {
+            assertFalse("frame " + i, track(readFrame(stream)));
+        }
+        assertEquals(1, tracker.getGapCount());
+    }
+
+    @Test
+    public void lostNonReferenceFrameIsNotAGap() {
+        SyntheticH264Stream stream = newStream(4, GOP_LENGTH);
+        for (int i = 0; i < 3; i++) {
+            assertFalse(track(readFrame(stream)));
+        }
+        // The non reference frame, which no other frame refers to.
+        assertTrue(classifier.classify(frame, 0, readFrame(stream)));
+        assertFalse(classifier.isReference());
+        for (int i = 0; i < 30; i++) {
+            assertFalse("frame " + i, track(readFrame(stream)));
+        }
+        assertEquals(0, tracker.getGapCount());
+    }
+
+    @Test
+    public void duplicateFrameIsNotAGap() {
+        SyntheticH264Stream stream = newStream(5, GOP_LENGTH);
+        for (int i = 0; i < 5; i++) {
+            int length = readFrame(stream);
+            assertFalse(track(length));
+            // Received twice, e.g. retransmitted: the same frame_num as the previous reference frame.
+            assertFalse(track(length));
+        }
+        for (int i = 0; i < 30; i++) {
+            assertFalse("frame " + i, track(readFrame(stream)));
+        }
+        assertEquals(0, tracker.getGapCount());
+    }
+
+    @Test
+    public void idrRestartsTheNumbering() {
+        SyntheticH264Stream stream = newStream(6, GOP_LENGTH);
+        for (int i = 0; i < 8; i++) {
+            assertFalse(track(readFrame(stream)));
+        }
+        // The end of the GOP is lost, the numbering restarts at the IDR.
+        for (int i = 8; i < GOP_LENGTH; i++) {
+            readFrame(stream);
+        }
+        assertFalse(track(readFrame(stream)));
+        assertTrue(classifier.isIdr());
+        assertEquals(0, classifier.getFrameNum());
+
+        // A key frame requested in the middle of a GOP.
+        for (int i = 0; i < 5; i++) {
+            assertFalse(track(readFrame(stream)));
+        }
+        stream.requestKeyFrame();
+        assertFalse(track(readFrame(stream)));
+        assertTrue(classifier.isIdr());
+        for (int i = 0; i < 30; i++) {
+            assertFalse("frame " + i, track(readFrame(stream)));
+        }
+        assertEquals(0, tracker.getGapCount());
+    }
+
+    @Test
+    public void resetResynchronizesOnTheNextFrame() {
+        SyntheticH264Stream stream = newStream(7, GOP_LENGTH);
+        for (int i = 0; i < 4; i++) {
+            assertFalse(track(readFrame(stream)));
+        }
+        readFrame(stream);
+        readFrame(stream);
+        tracker.reset();
+        assertFalse(track(readFrame(stream)));
+        assertEquals(0, tracker.getGapCount());
+    }
+
+    private static SyntheticH264Stream newStream(long seed, int gopLength) {
+        SyntheticH264Stream stream = new SyntheticH264Stream(640, 360, 30, gopLength);
+        stream.setSeed(seed);
+        stream.setNonReferenceInterval(NON_REFERENCE_INTERVAL);
+        return stream;
+    }
+
+    /**
+     * Classify a frame and check its frame_num, as the decoder does.
+     * @return true if there is a gap before the frame
+     */
+    private boolean track(int length) {
+        assertTrue(classifier.classify(frame, 0, length));
+        H264Sps sps = classifier.getSps();
+        return tracker.onFrame(classifier.getFrameNum(), 1 << sps.log2MaxFrameNum, classifier.isIdr(),
+                               classifier.isReference(), sps.gapsInFrameNumAllowed);
+    }
+
+    /**
+     * Gather the chunks of the next frame into the frame array.
+     * @return Length of the frame
+     */
+    private int readFrame(SyntheticH264Stream stream) {
+        int length = 0;
+        do {
+            length += stream.readChunk(frame, length, frame.length - length);
+        } while (!stream.isEndOfFrame());
+        return length;
+    }
+}
@@ -0,0 +1,157 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link FreezeConcealment} on the outputs of a 30 fps stream, timed by a {@link VirtualDecoderClock}: the
+ * outputs are checked one frame interval apart, as the decoding thread would release them.
+ */
+public class FreezeConcealmentTest {
+    private static final long FRAME_INTERVAL_US = 33333;
+
+    private final VirtualDecoderClock clock = new VirtualDecoderClock(1000000);
+    private final FreezeConcealment concealment = new FreezeConcealment();
+    private long nextPtsUs;
+
+    @Test
+    public void freezesFromTheBrokenFrame() {
+        concealment.setEnabled(true);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(output(false));
+        }
+        long brokenPtsUs = nextPtsUs + 2 * FRAME_INTERVAL_US;
+        concealment.freeze(brokenPtsUs, clock.nowUs());
+        assertTrue(concealment.isFrozen());
+        // Still decoded before the broken frame.
+        assertTrue(output(false));
+        assertTrue(output(false));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(output(false));
+        }
+        assertEquals(1, concealment.getFreezeCount());
+        assertEquals(5, concealment.getSuppressedFrameCount());
+    }
+
+    @Test
+    public void keyFrameEndsTheFreeze() {
+        concealment.setEnabled(true);
+        assertTrue(output(true));
+        long freezeStartUs = clock.nowUs();
+        concealment.freeze(Long.MIN_VALUE, freezeStartUs);
+        for (int i = 0; i < 10; i++) {
+            assertFalse(output(false));
+        }
+        long keyFrameUs = clock.nowUs();
+        assertTrue(output(true));
+        assertFalse(concealment.isFrozen());
+        assertTrue(output(false));
+
+        assertEquals(1, concealment.getFreezeCount());
+        assertEquals(10, concealment.getSuppressedFrameCount());
+        assertEquals(keyFrameUs - freezeStartUs, concealment.getLastFreezeDurationUs());
+        assertEquals(keyFrameUs - freezeStartUs, concealment.getLongestFreezeDurationUs());
+        assertEquals(keyFrameUs - freezeStartUs, concealment.getTotalFreezeDurationUs());
+    }
+
+    @Test
+    public void secondFreezeAddsUp() {
+        concealment.setEnabled(true);
+        concealment.freeze(Long.MIN_VALUE, clock.nowUs());
+        for (int i = 0; i < 3; i++) {
+            output(false);
+        }
+        output(true);
+        concealment.freeze(Long.MIN_VALUE, clock.nowUs());
+        for (int i = 0; i < 6; i++) {
+            output(false);
+        }
+        output(true);
+
+        assertEquals(2, concealment.getFreezeCount());
+        assertEquals(9, concealment.getSuppressedFrameCount());
+        assertEquals(6 * FRAME_INTERVAL_US, concealment.getLastFreezeDurationUs());
+        assertEquals(6 * FRAME_INTERVAL_US, concealment.getLongestFreezeDurationUs());
+        assertEquals(9 * FRAME_INTERVAL_US, concealment.getTotalFreezeDurationUs());
+    }
+
+    @Test
+    public void freezeWithoutSuppressedOutputIsNotCounted() {
+        concealment.setEnabled(true);
+        concealment.freeze(Long.MIN_VALUE, clock.nowUs());
+        // The codec was fed again from a key frame, e.g. from the GOP buffer, before any broken output.
+        concealment.release(clock.nowUs());
+        assertFalse(concealment.isFrozen());
+        assertTrue(output(false));
+        assertEquals(0, concealment.getFreezeCount());
+        assertEquals(0, concealment.getLastFreezeDurationUs());
+    }
+
+    @Test
+    public void maxDurationEndsTheFreeze() {
+        concealment.setEnabled(true);
+        concealment.setMaxFreezeDurationUs(10 * FRAME_INTERVAL_US);
+        long freezeStartUs = clock.nowUs();
+        concealment.freeze(Long.MIN_VALUE, freezeStartUs);
+        // No key frame comes.
+        for (int i = 0; i < 10; i++) {
+            assertFalse("output " + i, output(false));
+        }
+        assertTrue(output(false));
+        assertFalse(concealment.isFrozen());
+        assertEquals(1, concealment.getFreezeCount());
+        assertEquals(10, concealment.getSuppressedFrameCount());
+        assertEquals(10 * FRAME_INTERVAL_US, concealment.getLastFreezeDurationUs());
+    }
+
+    @Test
+    public void noMaxDurationWaitsForTheKeyFrame() {
+        concealment.setEnabled(true);
+        concealment.freeze(Long.MIN_VALUE, clock.nowUs());
+        for (int i = 0; i < 300; i++) {
+            assertFalse("output " + i, output(false));
+        }
+        assertTrue(concealment.isFrozen());
+    }
+
+    @Test
+    public void disabledPassesEveryOutput() {
+        concealment.freeze(Long.MIN_VALUE, clock.nowUs());
+        assertFalse(concealment.isFrozen());
+        for (int i = 0; i < 30; i++) {
+            assertTrue(output(false));
+        }
+        assertEquals(0, concealment.getFreezeCount());
+        assertEquals(0, concealment.getSuppressedFrameCount());
+    }
+
+    @Test
+    public void disablingEndsTheFreeze() {
+        concealment.setEnabled(true);
+        concealment.freeze(Long.MIN_VALUE, clock.nowUs());
+        assertFalse(output(false));
+        concealment.setEnabled(false);
+        assertTrue(output(false));
+        assertFalse(concealment.isFrozen());
+        assertEquals(FRAME_INTERVAL_US, concealment.getLastFreezeDurationUs());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeMaxDurationIsRejected() {
+        concealment.setMaxFreezeDurationUs(-1);
+    }
+
+    /**
+     * Check the next output, then move the clock to the next one.
+     * @return Whether the output is rendered
+     */
+    private boolean output(boolean isKeyFrame) {
+        boolean render = concealment.onOutput(nextPtsUs, isKeyFrame, clock.nowUs());
+        nextPtsUs += FRAME_INTERVAL_US;
+        clock.advance(FRAME_INTERVAL_US);
+        return render;
+    }
+}
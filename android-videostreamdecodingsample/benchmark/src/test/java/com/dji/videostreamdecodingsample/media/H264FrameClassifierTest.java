@@ -0,0 +1,171 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The H.264 parsers behind {@link H264FrameClassifier}, on the frames of a {@link SyntheticH264Stream}: the
+ * valid frames are classified as the generator coded them, and the corrupted ones never make a parser
+ * throw. The seeds are fixed, so a failure can be reproduced.
+ */
+public class H264FrameClassifierTest {
+    private static final int GOP_LENGTH = 12;
+    private static final int NON_REFERENCE_INTERVAL = 3;
+    private static final int FRAME_COUNT = 600;
+    private static final int MUTATIONS_PER_FRAME = 20;
+
+    private final byte[] frame = new byte[1024 * 1024];
+
+    @Test
+    public void classifiesSyntheticFrames() {
+        SyntheticH264Stream stream = newStream(1);
+        H264FrameClassifier classifier = new H264FrameClassifier();
+        // The same frames through the array path.
+        H264FrameClassifier arrayClassifier = new H264FrameClassifier();
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int prevRefFrameNum = 0;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            long keyFrameCount = stream.getKeyFrameCount();
+            int length = readFrame(stream);
+            boolean isKeyFrame = stream.getKeyFrameCount() != keyFrameCount;
+            String name = "frame " + i;
+            assertTrue(name, classifier.classify(buffer, 0, length));
+            assertEquals(name, isKeyFrame, classifier.isKeyFrame());
+            assertEquals(name, isKeyFrame, classifier.isIdr());
+            assertEquals(name, isKeyFrame, classifier.hasSps());
+            assertEquals(name, stream.getWidth(), classifier.getWidth());
+            assertEquals(name, stream.getHeight(), classifier.getHeight());
+            int framesInGop = i % GOP_LENGTH;
+            boolean reference = framesInGop == 0 || framesInGop % NON_REFERENCE_INTERVAL != 0;
+            assertEquals(name, reference, classifier.isReference());
+            int frameNum = isKeyFrame ? 0 : prevRefFrameNum + 1;
+            assertEquals(name, frameNum, classifier.getFrameNum());
+            if (reference) {
+                prevRefFrameNum = frameNum;
+            }
+            assertTrue(name, arrayClassifier.classify(frame, 0, length));
+            assertEquals(name, classifier.isKeyFrame(), arrayClassifier.isKeyFrame());
+            assertEquals(name, classifier.getFrameNum(), arrayClassifier.getFrameNum());
+            assertEquals(name, classifier.getWidth(), arrayClassifier.getWidth());
+            assertEquals(name, classifier.getHeight(), arrayClassifier.getHeight());
+        }
+    }
+
+    @Test
+    public void corruptedFramesNeverThrow() {
+        SyntheticH264Stream stream = newStream(2);
+        H264FrameClassifier classifier = new H264FrameClassifier();
+        Random random = new Random(3);
+        byte[] corrupted = new byte[frame.length + 64];
+        ByteBuffer buffer = ByteBuffer.wrap(corrupted);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            int length = readFrame(stream);
+            // The intact frame first, so that the parameter sets of the corrupted slices are known.
+            classifier.classify(ByteBuffer.wrap(frame), 0, length);
+            for (int j = 0; j < MUTATIONS_PER_FRAME; j++) {
+                System.arraycopy(frame, 0, corrupted, 0, length);
+                int corruptedLength = mutate(random, corrupted, length);
+                String name = "frame " + i + ", mutation " + j;
+                // Both paths, alternately.
+                boolean classified = j % 2 == 0 ? classifier.classify(buffer, 0, corruptedLength)
+                        : classifier.classify(corrupted, 0, corruptedLength);
+                if (classified) {
+                    assertTrue(name, classifier.getWidth() > 0 && classifier.getHeight() > 0);
+                    assertTrue(name, classifier.getFrameNum() >= 0);
+                }
+            }
+            if (random.nextInt(50) == 0) {
+                // Also from scratch, with whatever parameter sets the corrupted frames left.
+                classifier.reset();
+            }
+        }
+    }
+
+    @Test
+    public void randomNalUnitsNeverThrow() {
+        H264FrameClassifier classifier = new H264FrameClassifier();
+        Random random = new Random(4);
+        byte[] data = new byte[512];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        for (int i = 0; i < 100000; i++) {
+            int length = 4 + random.nextInt(data.length - 4);
+            random.nextBytes(data);
+            data[0] = 0;
+            data[1] = 0;
+            data[2] = 1;
+            // An SEI, an SPS, a PPS or a slice, with a random payload.
+            int[] nalHeaders = {0x06, 0x67, 0x68, 0x65, 0x41, 0x01};
+            data[3] = (byte) nalHeaders[random.nextInt(nalHeaders.length)];
+            classifier.classify(buffer, 0, length);
+        }
+        assertFalse(classifier.classify(buffer, 0, 0));
+    }
+
+    private static SyntheticH264Stream newStream(long seed) {
+        SyntheticH264Stream stream = new SyntheticH264Stream(640, 360, 30, GOP_LENGTH);
+        stream.setSeed(seed);
+        stream.setNonReferenceInterval(NON_REFERENCE_INTERVAL);
+        stream.setResolutionCycle(new int[]{640, 1280, 1920, 176}, new int[]{360, 720, 1080, 144}, 2);
+        stream.setChunkSize(100, 4000);
+        return stream;
+    }
+
+    /**
+     * Gather the chunks of the next frame into the frame array.
+     * @return Length of the frame
+     */
+    private int readFrame(SyntheticH264Stream stream) {
+        int length = 0;
+        do {
+            length += stream.readChunk(frame, length, frame.length - length);
+        } while (!stream.isEndOfFrame());
+        return length;
+    }
+
+    /**
+     * Corrupt a frame as a lossy link or a broken encoder would.
+     * @return The new length of the frame
+     */
+    private static int mutate(Random random, byte[] data, int length) {
+        // Most of the syntax is in the first bytes: the parameter sets and the slice header.
+        int headerLength = Math.min(length, 64);
+        switch (random.nextInt(5)) {
+            case 0:
+                for (int k = 1 + random.nextInt(4); k > 0; k--) {
+                    data[random.nextInt(headerLength)] ^= 1 << random.nextInt(8);
+                }
+                return length;
+            case 1:
+                // Truncated, e.g. a lost packet.
+                return random.nextInt(length + 1);
+            case 2:
+                // A run of zero bytes, which the emulation prevention makes special.
+                int start = random.nextInt(headerLength);
+                int end = Math.min(length, start + 1 + random.nextInt(8));
+                for (int k = start; k < end; k++) {
+                    data[k] = 0;
+                }
+                return length;
+            case 3:
+                // A start code in the middle of a NAL unit.
+                int at = random.nextInt(Math.max(1, headerLength - 3));
+                data[at] = 0;
+                data[at + 1] = 0;
+                data[at + 2] = 1;
+                return length;
+            default:
+                for (int k = 0; k < headerLength; k++) {
+                    if (random.nextInt(4) == 0) {
+                        data[k] = (byte) random.nextInt(256);
+                    }
+                }
+                return length;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.dji.videostreamdecodingsample.media;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The delay of {@link JitterBuffer} on simulated links: the frames are captured at 30 fps, arrive after
+ * a link delay with a random jitter, and are decoded a few milliseconds later. The seeds are fixed, so a
+ * failure can be reproduced.
+ */
+public class JitterBufferTest {
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final long LINK_DELAY_US = 20000;
+    private static final long DECODE_LATENCY_US = 3000;
+    private static final int FRAME_COUNT = 600;
+
+    @Test
+    public void delayConvergesOnJitteryArrivals() {
+        JitterBuffer buffer = new JitterBuffer();
+        Link link = new Link(1, 20000);
+        feed(buffer, link, FRAME_COUNT);
+        long settledDelayUs = buffer.getDelayUs();
+        // Deeper than the default minimum of 10 ms to absorb the jitter, well below the maximum.
+        assertTrue("delay " + settledDelayUs, settledDelayUs > 12000 && settledDelayUs < 100000);
+
+        long dropsBefore = buffer.getLateDropCount();
+        feed(buffer, link, FRAME_COUNT);
+        // Settled: few late frames, and the delay stays around the same depth.
+        assertTrue("drops " + (buffer.getLateDropCount() - dropsBefore),
+                   buffer.getLateDropCount() - dropsBefore < FRAME_COUNT / 50);
+        assertTrue("delay " + buffer.getDelayUs(), Math.abs(buffer.getDelayUs() - settledDelayUs) < 20000);
+    }
+
+    @Test
+    public void displayTimesAreInOrderAndAfterTheDecoding() {
+        JitterBuffer buffer = new JitterBuffer();
+        Link link = new Link(2, 20000);
+        long lastDisplayUs = Long.MIN_VALUE;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            link.next();
+            long displayUs = buffer.schedule(link.arrivalUs, link.decodedUs);
+            if (displayUs == JitterBuffer.DROP) {
+                continue;
+            }
+            assertTrue("frame " + i, displayUs >= link.decodedUs);
+            assertTrue("frame " + i, displayUs > lastDisplayUs);
+            lastDisplayUs = displayUs;
+        }
+    }
+
+    @Test
+    public void lateFrameIsDropped() {
+        JitterBuffer buffer = new JitterBuffer();
+        Link link = new Link(3, 0);
+        feed(buffer, link, 60);
+        assertEquals(0, buffer.getLateDropCount());
+
+        // Decoded long after its display time, e.g. behind a slow frame.
+        link.next();
+        assertEquals(JitterBuffer.DROP, buffer.schedule(link.arrivalUs, link.decodedUs + 100000));
+        assertEquals(1, buffer.getLateDropCount());
+        // The next frames on time are shown again.
+        link.next();
+        assertNotEquals(JitterBuffer.DROP, buffer.schedule(link.arrivalUs, link.decodedUs));
+    }
+
+    @Test
+    public void lateFramesAreNotAllDropped() {
+        JitterBuffer buffer = new JitterBuffer();
+        Link link = new Link(4, 0);
+        feed(buffer, link, 60);
+
+        int shown = 0;
+        for (int i = 0; i < 10; i++) {
+            link.next();
+            if (buffer.schedule(link.arrivalUs, link.decodedUs + 150000) != JitterBuffer.DROP) {
+                shown++;
+            }
+        }
+        // The display never stops, a frame is shown after a few drops in a row.
+        assertTrue("shown " + shown, shown > 0);
+    }
+
+    @Test
+    public void delayStaysWithinTheBounds() {
+        JitterBuffer buffer = new JitterBuffer();
+        buffer.setDelayBounds(30000, 50000);
+        // No jitter, the delay shrinks to the minimum.
+        feed(buffer, new Link(5, 0), FRAME_COUNT);
+        assertEquals(30000, buffer.getDelayUs());
+
+        // More jitter than the maximum absorbs.
+        buffer.reset();
+        Link link = new Link(6, 120000);
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            link.next();
+            buffer.schedule(link.arrivalUs, link.decodedUs);
+            assertTrue("frame " + i, buffer.getDelayUs() >= 30000 && buffer.getDelayUs() <= 50000);
+        }
+        assertEquals(50000, buffer.getDelayUs());
+    }
+
+    @Test
+    public void smoothnessKeepsALargerDelayThanLatency() {
+        JitterBuffer latency = new JitterBuffer();
+        JitterBuffer smoothness = new JitterBuffer();
+        smoothness.setPreference(JitterBuffer.PREFER_SMOOTHNESS);
+        // The same arrivals for both.
+        feed(latency, new Link(7, 25000), FRAME_COUNT);
+        feed(smoothness, new Link(7, 25000), FRAME_COUNT);
+
+        assertTrue(latency.getDelayUs() + " < " + smoothness.getDelayUs(),
+                   latency.getDelayUs() < smoothness.getDelayUs());
+        assertTrue(latency.getLateDropCount() + " >= " + smoothness.getLateDropCount(),
+                   latency.getLateDropCount() >= smoothness.getLateDropCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPreferenceIsRejected() {
+        new JitterBuffer().setPreference(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBoundsAreRejected() {
+        new JitterBuffer().setDelayBounds(50000, 30000);
+    }
+
+    private static void feed(JitterBuffer buffer, Link link, int frameCount) {
+        for (int i = 0; i < frameCount; i++) {
+            link.next();
+            buffer.schedule(link.arrivalUs, link.decodedUs);
+        }
+    }
+
+    /**
+     * The arrival and decoding times of the frames on a link with a uniform random jitter.
+     */
+    private static class Link {
+        private final Random random;
+        private final long jitterUs;
+        private long frameIndex;
+        long arrivalUs;
+        long decodedUs;
+
+        Link(long seed, long jitterUs) {
+            random = new Random(seed);
+            this.jitterUs = jitterUs;
+        }
+
+        void next() {
+            long captureUs = frameIndex++ * FRAME_INTERVAL_US;
+            long jitter = jitterUs > 0 ? (long) (random.nextDouble() * jitterUs) : 0;
+            // The timestamps of the decoder are strictly increasing.
+            arrivalUs = Math.max(captureUs + LINK_DELAY_US + jitter, arrivalUs + 1);
+            decodedUs = arrivalUs + DECODE_LATENCY_US;
+        }
+    }
+}
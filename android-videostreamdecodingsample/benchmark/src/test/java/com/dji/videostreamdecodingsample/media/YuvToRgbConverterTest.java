@@ -0,0 +1,237 @@
+package com.dji.videostreamdecodingsample.media;
+
+import android.graphics.Rect;
+import android.media.MediaCodecInfo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The output of {@link YuvToRgbConverter} on small I420 frames whose content is known: the crop, the
+ * scales, the letterbox and the color conversion. The gray levels are checked against BT.601 limited
+ * range, within the rounding of the fixed point tables.
+ */
+public class YuvToRgbConverterTest {
+    private static final int TOLERANCE = 1;
+
+    private final YuvToRgbConverter converter = new YuvToRgbConverter(1);
+
+    @After
+    public void tearDown() {
+        converter.release();
+    }
+
+    @Test
+    public void cropLeavesOutTheBorders() {
+        // Bright inside the crop rectangle, dark and colored outside.
+        I420Frame frame = new I420Frame(48, 40);
+        frame.fill(0, 0, 48, 40, 30, 200, 60);
+        frame.fill(8, 8, 32, 24, 200, 128, 128);
+        YuvFrameView view = frame.view(new Rect(8, 8, 39, 31));
+        assertEquals(32, view.getWidth());
+        assertEquals(24, view.getHeight());
+
+        converter.setLetterbox(false, 0);
+        for (int mode = YuvToRgbConverter.SCALE_BILINEAR; mode <= YuvToRgbConverter.SCALE_AREA; mode++) {
+            converter.setScaleMode(mode);
+            byte[] rgb = new byte[16 * 12 * 3];
+            converter.convert(view, rgb, 16, 12);
+            for (int i = 0; i < rgb.length; i++) {
+                assertGray("mode " + mode + ", sample " + i, 200, rgb[i] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void areaScaleAveragesTheCoveredSamples() {
+        I420Frame frame = new I420Frame(8, 8);
+        Random random = new Random(1);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                frame.setY(x, y, 16 + random.nextInt(220));
+            }
+        }
+        frame.fillChroma(128, 128);
+        converter.setLetterbox(false, 0);
+        converter.setScaleMode(YuvToRgbConverter.SCALE_AREA);
+        byte[] rgb = new byte[4 * 4 * 3];
+        converter.convert(frame.view(null), rgb, 4, 4);
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                int sum = frame.getY(2 * x, 2 * y) + frame.getY(2 * x + 1, 2 * y) + frame.getY(2 * x, 2 * y + 1)
+                        + frame.getY(2 * x + 1, 2 * y + 1);
+                int index = (y * 4 + x) * 3;
+                assertGray("pixel " + x + "," + y, sum / 4, rgb[index] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void bilinearScaleOfTheSameSizeKeepsThePixels() {
+        I420Frame frame = new I420Frame(16, 8);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 16; x++) {
+                frame.setY(x, y, 16 + 13 * x + y);
+            }
+        }
+        frame.fillChroma(128, 128);
+        converter.setLetterbox(false, 0);
+        byte[] rgb = new byte[16 * 8 * 3];
+        converter.convert(frame.view(null), rgb, 16, 8);
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 16; x++) {
+                assertGray("pixel " + x + "," + y, frame.getY(x, y), rgb[(y * 16 + x) * 3 + 1] & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void letterboxPadsTheBorders() {
+        // 2:1, so the content fills the width and half of the height.
+        I420Frame frame = new I420Frame(64, 32);
+        frame.fill(0, 0, 64, 32, 128, 128, 128);
+        converter.setLetterbox(true, 114);
+        byte[] rgb = new byte[32 * 32 * 3];
+        converter.convert(frame.view(null), rgb, 32, 32);
+        for (int y = 0; y < 32; y++) {
+            boolean content = y >= 8 && y < 24;
+            for (int x = 0; x < 32; x++) {
+                int value = rgb[(y * 32 + x) * 3] & 0xFF;
+                if (content) {
+                    assertGray("pixel " + x + "," + y, 128, value);
+                } else {
+                    assertEquals("pixel " + x + "," + y, 114, value);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void colorsAreConverted() {
+        // Red, green and blue in BT.601 limited range.
+        int[][] yuvs = {{81, 90, 240}, {145, 54, 34}, {41, 240, 110}};
+        int[][] rgbs = {{255, 0, 0}, {0, 255, 0}, {0, 0, 255}};
+        for (int i = 0; i < yuvs.length; i++) {
+            I420Frame frame = new I420Frame(4, 4);
+            frame.fill(0, 0, 4, 4, yuvs[i][0], yuvs[i][1], yuvs[i][2]);
+            byte[] rgb = new byte[2 * 2 * 3];
+            converter.convert(frame.view(null), rgb, 2, 2);
+            for (int channel = 0; channel < 3; channel++) {
+                int value = rgb[channel] & 0xFF;
+                assertTrue("color " + i + ", channel " + channel + ": " + value,
+                           Math.abs(value - rgbs[i][channel]) <= 3);
+            }
+        }
+    }
+
+    @Test
+    public void floatOutputIsMapped() {
+        I420Frame frame = new I420Frame(4, 4);
+        frame.fill(0, 0, 4, 4, 235, 128, 128);
+        converter.setFloatRange(2f / 255, -1f);
+        float[] values = new float[2 * 2 * 3];
+        converter.convert(frame.view(null), values, 2, 2);
+        for (float value : values) {
+            assertEquals(1f, value, 2f * TOLERANCE / 255 + 1e-6f);
+        }
+    }
+
+    @Test
+    public void threadsGiveTheSameOutput() {
+        // The size of the benchmark, 1080p into the 640x640 input of a model.
+        I420Frame frame = new I420Frame(1920, 1080);
+        new Random(2).nextBytes(frame.data);
+        YuvToRgbConverter threaded = new YuvToRgbConverter(4);
+        try {
+            for (int mode = YuvToRgbConverter.SCALE_BILINEAR; mode <= YuvToRgbConverter.SCALE_AREA; mode++) {
+                converter.setScaleMode(mode);
+                threaded.setScaleMode(mode);
+                byte[] expected = new byte[640 * 640 * 3];
+                byte[] actual = new byte[640 * 640 * 3];
+                converter.convert(frame.view(null), expected, 640, 640);
+                threaded.convert(frame.view(null), actual, 640, 640);
+                assertArrayEquals("mode " + mode, expected, actual);
+            }
+        } finally {
+            threaded.release();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmallOutputIsRejected() {
+        converter.convert(new I420Frame(4, 4).view(null), new byte[10], 2, 2);
+    }
+
+    /**
+     * Check a gray level against the BT.601 limited range expansion of a luma value.
+     */
+    private static void assertGray(String message, int luma, int value) {
+        int expected = Math.max(0, Math.min(255, Math.round(255f * (luma - 16) / 219)));
+        assertTrue(message + ": " + value + " instead of " + expected, Math.abs(value - expected) <= TOLERANCE);
+    }
+
+    /**
+     * An I420 frame in an array, the planes without padding.
+     */
+    private static class I420Frame {
+        final int width;
+        final int height;
+        final byte[] data;
+
+        I420Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            data = new byte[width * height * 3 / 2];
+        }
+
+        void setY(int x, int y, int value) {
+            data[y * width + x] = (byte) value;
+        }
+
+        int getY(int x, int y) {
+            return data[y * width + x] & 0xFF;
+        }
+
+        void fillChroma(int u, int v) {
+            fill(0, 0, width, height, -1, u, v);
+        }
+
+        /**
+         * Fill a rectangle of even position and size.
+         * @param luma The luma value, -1 to keep the luma plane
+         */
+        void fill(int left, int top, int rectWidth, int rectHeight, int luma, int u, int v) {
+            int uPlane = width * height;
+            int vPlane = uPlane + width * height / 4;
+            for (int y = top; y < top + rectHeight; y++) {
+                for (int x = left; x < left + rectWidth; x++) {
+                    if (luma >= 0) {
+                        setY(x, y, luma);
+                    }
+                    if (x % 2 == 0 && y % 2 == 0) {
+                        data[uPlane + (y / 2) * (width / 2) + x / 2] = (byte) u;
+                        data[vPlane + (y / 2) * (width / 2) + x / 2] = (byte) v;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param crop The crop rectangle, inclusive of right and bottom, null for the whole frame
+         */
+        YuvFrameView view(Rect crop) {
+            YuvFrameView view = new YuvFrameView();
+            view.set(ByteBuffer.wrap(data), 0, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar, width,
+                     height, crop != null ? crop : new Rect(0, 0, width - 1, height - 1), 0, 0);
+            return view;
+        }
+    }
+}
@@ -24,6 +24,7 @@ AVFrame* m_pYUVFrame;
 AVCodecContext* m_pCodecCtx;
 AVCodec* m_pAVCodec;
 AVCodecParserContext* m_pCodecPaser;
+enum AVCodecID m_codecId = AV_CODEC_ID_H264;
 
 jmethodID dataCallbackMID;
 
@@ -76,9 +77,9 @@ JNIEXPORT jboolean Java_com_dji_videostreamdecodingsample_media_NativeHelper_ini
 		av_register_all();
 		isFFmpegInitialized = 1;
 	}
-	m_pAVCodec = avcodec_find_decoder(AV_CODEC_ID_H264);
+	m_pAVCodec = avcodec_find_decoder(m_codecId);
 	m_pCodecCtx = avcodec_alloc_context3(m_pAVCodec);
-	m_pCodecPaser = av_parser_init(AV_CODEC_ID_H264);
+	m_pCodecPaser = av_parser_init(m_codecId);
 	if (m_pAVCodec == NULL || m_pCodecCtx == NULL)
 	{
 		LOGD("m_pAVCodec == NULL||m_pCodecCtx == NULL");
@@ -97,7 +98,10 @@ JNIEXPORT jboolean Java_com_dji_videostreamdecodingsample_media_NativeHelper_ini
 		return 0;
 	}
 
-	m_pYUVFrame = av_frame_alloc();
+	if (m_pYUVFrame == NULL)
+	{
+		m_pYUVFrame = av_frame_alloc();
+	}
 
 	if (m_pYUVFrame == NULL) 
 	{
@@ -108,6 +112,32 @@ JNIEXPORT jboolean Java_com_dji_videostreamdecodingsample_media_NativeHelper_ini
 	return 1;
 }
 
+/**
+ * Select the codec of the stream. The parser and its codec context are closed when the codec changes,
+ * and created again for the new codec by the next parse.
+ */
+JNIEXPORT void Java_com_dji_videostreamdecodingsample_media_NativeHelper_setCodecType(JNIEnv *env, jobject obj, jint codecType)
+{
+	enum AVCodecID codecId = codecType == 1 ? AV_CODEC_ID_HEVC : AV_CODEC_ID_H264;
+	if (codecId == m_codecId)
+	{
+		return;
+	}
+	LOGD("setCodecType: %d", codecType);
+	m_codecId = codecId;
+	if (m_pCodecPaser)
+	{
+		av_parser_close(m_pCodecPaser);
+		m_pCodecPaser = NULL;
+	}
+	if (m_pCodecCtx)
+	{
+		avcodec_close(m_pCodecCtx);
+		av_free(m_pCodecCtx);
+		m_pCodecCtx = NULL;
+	}
+}
+
 /**
  * Framing the raw data from camera using the av parser.
  */
@@ -214,6 +244,155 @@ JNIEXPORT jboolean Java_com_dji_videostreamdecodingsample_media_NativeHelper_par
 }
 
 
+/**
+ * Copy a decoded picture into a packed I420 buffer, each row without padding.
+ */
+void copyFrameToI420(AVFrame* frame, uint8_t* out)
+{
+	int i;
+	int chromaWidth = frame->width / 2;
+	int chromaHeight = frame->height / 2;
+	for (i = 0; i < frame->height; i++)
+	{
+		memcpy(out + i * frame->width, frame->data[0] + i * frame->linesize[0], frame->width);
+	}
+	out += frame->width * frame->height;
+	for (i = 0; i < chromaHeight; i++)
+	{
+		memcpy(out + i * chromaWidth, frame->data[1] + i * frame->linesize[1], chromaWidth);
+	}
+	out += chromaWidth * chromaHeight;
+	for (i = 0; i < chromaHeight; i++)
+	{
+		memcpy(out + i * chromaWidth, frame->data[2] + i * frame->linesize[2], chromaWidth);
+	}
+}
+
+/**
+ * Keep a decoded picture in I420, in a buffer reallocated when the resolution changes.
+ * Return 0 if the buffer could not be allocated.
+ */
+static int keepPicture(AVFrame* frame, uint8_t** picture, int* pictureWidth, int* pictureHeight)
+{
+	if (frame->format != AV_PIX_FMT_YUV420P && frame->format != AV_PIX_FMT_YUVJ420P)
+	{
+		LOGE("decodeStill: unsupported pixel format %d", frame->format);
+		return 1;
+	}
+	if (*picture == NULL || *pictureWidth != frame->width || *pictureHeight != frame->height)
+	{
+		av_free(*picture);
+		*pictureWidth = frame->width;
+		*pictureHeight = frame->height;
+		*picture = av_malloc(frame->width * frame->height * 3 / 2);
+		if (*picture == NULL)
+		{
+			return 0;
+		}
+	}
+	copyFrameToI420(frame, *picture);
+	return 1;
+}
+
+/**
+ * Decode a GOP with a codec context of its own, so that the framing context is not touched,
+ * and return the last decoded picture in I420. codecType is the codec of the frames,
+ * 0 for H.264 and 1 for HEVC.
+ */
+JNIEXPORT jbyteArray Java_com_dji_videostreamdecodingsample_media_NativeHelper_decodeStill(JNIEnv *env, jobject obj, jint codecType, jbyteArray data, jintArray frameSizes, jint frameCount, jintArray outSize)
+{
+	// The codec of the frames, not m_codecId, which the framing thread may change meanwhile.
+	AVCodec* codec = avcodec_find_decoder(codecType == 1 ? AV_CODEC_ID_HEVC : AV_CODEC_ID_H264);
+	AVCodecContext* codecCtx;
+	AVFrame* frame;
+	AVPacket packet;
+	jbyte* jData;
+	jint* sizes;
+	uint8_t* picture = NULL;
+	int pictureWidth = 0;
+	int pictureHeight = 0;
+	int offset = 0;
+	int gotPicture;
+	int i;
+	jbyteArray result = NULL;
+
+	if (codec == NULL)
+	{
+		return NULL;
+	}
+	codecCtx = avcodec_alloc_context3(codec);
+	if (codecCtx == NULL)
+	{
+		return NULL;
+	}
+	// One thread, so that the pictures are not delayed by the frame threading.
+	codecCtx->thread_count = 1;
+	if (avcodec_open2(codecCtx, codec, NULL) < 0)
+	{
+		av_free(codecCtx);
+		return NULL;
+	}
+	frame = av_frame_alloc();
+
+	jData = (*env)->GetByteArrayElements(env, data, 0);
+	sizes = (*env)->GetIntArrayElements(env, frameSizes, 0);
+	for (i = 0; i < frameCount && frame != NULL; i++)
+	{
+		av_init_packet(&packet);
+		packet.data = (uint8_t*) jData + offset;
+		packet.size = sizes[i];
+		offset += sizes[i];
+		gotPicture = 0;
+		if (avcodec_decode_video2(codecCtx, frame, &gotPicture, &packet) < 0 || !gotPicture)
+		{
+			continue;
+		}
+		if (!keepPicture(frame, &picture, &pictureWidth, &pictureHeight))
+		{
+			break;
+		}
+	}
+	// Drain the pictures still delayed in the decoder, the last one is the last frame of the GOP.
+	if (frame != NULL && i == frameCount)
+	{
+		do
+		{
+			av_init_packet(&packet);
+			packet.data = NULL;
+			packet.size = 0;
+			gotPicture = 0;
+			if (avcodec_decode_video2(codecCtx, frame, &gotPicture, &packet) < 0)
+			{
+				break;
+			}
+			if (gotPicture && !keepPicture(frame, &picture, &pictureWidth, &pictureHeight))
+			{
+				break;
+			}
+		} while (gotPicture);
+	}
+	(*env)->ReleaseIntArrayElements(env, frameSizes, sizes, JNI_ABORT);
+	(*env)->ReleaseByteArrayElements(env, data, jData, JNI_ABORT);
+
+	if (picture != NULL)
+	{
+		jint size[2];
+		size[0] = pictureWidth;
+		size[1] = pictureHeight;
+		result = (*env)->NewByteArray(env, pictureWidth * pictureHeight * 3 / 2);
+		if (result != NULL)
+		{
+			(*env)->SetByteArrayRegion(env, result, 0, pictureWidth * pictureHeight * 3 / 2, (jbyte*) picture);
+			(*env)->SetIntArrayRegion(env, outSize, 0, 2, size);
+		}
+		av_free(picture);
+	}
+	av_frame_free(&frame);
+	avcodec_close(codecCtx);
+	av_free(codecCtx);
+	return result;
+}
+
 /**
  * Release the ffmpeg.
  */
@@ -225,9 +404,11 @@ JNIEXPORT jboolean Java_com_dji_videostreamdecodingsample_media_NativeHelper_rel
 		m_pCodecCtx = NULL;
 	}
 
-	av_free(m_pYUVFrame);
+	// Reset to NULL, the next init allocates the frame again.
+	av_frame_free(&m_pYUVFrame);
 	av_free(m_pCodecCtx);
 	av_parser_close(m_pCodecPaser);
+	m_pCodecPaser = NULL;
 
 	return 1;
 }
\ No newline at end of file